@@ -0,0 +1,205 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.Deadline;
+import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+/**
+ * Non-blocking REST MSS Client.
+ * <p>Every method returns immediately. The returned future completes when the MSSP answers,
+ * or completes exceptionally with a {@link MssRestException}.
+ * Example usage:
+ *
+ * <pre>
+ * MssClient client = new MssClient.Builder().withRestUrl("https://demo.methics.fi/restapi/")
+ *                                           .withPassword("TestAP", "9TMzfH7EKXETOB8FT5gz")
+ *                                           .build();
+ * client.async().authenticate("35847001001", "Authentication test", SignatureProfile.of("http://alauda.mobi/digitalSignature"))
+ *               .thenAccept(resp -&gt; System.out.println("Authenticated " + resp.getSubjectDN()));
+ * </pre>
+ */
+public class MssAsyncClient {
+
+    private final MssClient client;
+
+    MssAsyncClient(final MssClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Authenticate a user with MSSP
+     * @param msisdn           Phone number of the user (in international format)
+     * @param message          Message shown to the user (e.g. "Please authenticate to Bank A Portal")
+     * @param signatureprofile Signatureprofile of the wanted authentication key
+     * @return Future authentication response
+     * @see MssClient#authenticate(String, String, SignatureProfile)
+     */
+    public CompletableFuture<MSS_SignatureResp> authenticate(final String msisdn,
+                                                             final String message,
+                                                             final SignatureProfile signatureprofile)
+    {
+        return this.authenticate(msisdn, message, signatureprofile, null);
+    }
+
+    /**
+     * Authenticate a user with MSSP within a deadline
+     * @param msisdn           Phone number of the user (in international format)
+     * @param message          Message shown to the user (e.g. "Please authenticate to Bank A Portal")
+     * @param signatureprofile Signatureprofile of the wanted authentication key
+     * @param deadline         Deadline of the call, or null for the default of the request TimeOut
+     * @return Future authentication response
+     * @see MssClient#authenticate(String, String, SignatureProfile, Deadline)
+     */
+    public CompletableFuture<MSS_SignatureResp> authenticate(final String msisdn,
+                                                             final String message,
+                                                             final SignatureProfile signatureprofile,
+                                                             final Deadline deadline)
+    {
+        if (signatureprofile == null) {
+            return failed(new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request"));
+        }
+        JsonRequest jReq = this.client.createAuthnReq(msisdn, message, signatureprofile);
+        return this.client.getRestClient().sendReqAsync(jReq, deadline != null ? deadline : Deadline.of(jReq))
+                                          .thenApply(jResp -> jResp.MSS_SignatureResp);
+    }
+
+    /**
+     * List user's certificates with ProfileQuery
+     * @param msisdn Phone number of the user (in international format)
+     * @return Future map of user's certificates
+     * @see MssClient#listCertificates(String)
+     */
+    public CompletableFuture<Map<SignatureProfile, MssCertificate>> listCertificates(final String msisdn) {
+        CompletableFuture<Map<SignatureProfile, MssCertificate>> shared = this.client.sharedCertificates(msisdn);
+        if (shared != null) {
+            return shared.thenApply(MssClient::copy);
+        }
+        JsonRequest jReq = this.client.createProfileReq(msisdn);
+        return this.client.getRestClient().sendReqAsync(jReq).thenApply(this.client::parseCertificates);
+    }
+
+    /**
+     * Get a specific user Certificate with ProfileQuery
+     * @param msisdn            Phone number of the user (in international format)
+     * @param signatureprofile  Signatureprofile of the wanted certificate chain
+     * @return Future certificate. If not available, completes with an empty MssCertificate object.
+     * @see MssClient#getCertificate(String, SignatureProfile)
+     */
+    public CompletableFuture<MssCertificate> getCertificate(final String msisdn,
+                                                            final SignatureProfile signatureprofile)
+    {
+        if (signatureprofile == null) {
+            return failed(new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request"));
+        }
+        CompletableFuture<MssCertificate> shared = this.client.sharedCertificate(msisdn, signatureprofile);
+        if (shared != null) {
+            return shared.thenApply(MssCertificate::copy);
+        }
+        JsonRequest jReq = this.client.createProfileReq(msisdn);
+        return this.client.getRestClient().sendReqAsync(jReq).thenApply(resp -> this.client.parseCertificate(resp, signatureprofile));
+    }
+
+    /**
+     * Sign data and get a CMS signature
+     * @param msisdn   Phone number of the user (in international format)
+     * @param message  Message shown to the user (e.g. "Please sign contract.pdf")
+     * @param digest   Document digest
+     * @param mimetype Mime-Type of the digest (e.g. {@link DTBS#MIME_SHA256})
+     * @param signatureprofile Signatureprofile of the wanted signing key
+     * @return Future raw CMS signature
+     * @see MssClient#sign(String, String, byte[], String, SignatureProfile)
+     */
+    public CompletableFuture<byte[]> sign(final String msisdn,
+                                          final String message,
+                                          final byte[] digest,
+                                          final String mimetype,
+                                          final SignatureProfile signatureprofile)
+    {
+        return this.sign(msisdn, message, digest, mimetype, signatureprofile, MssClient.FORMAT_CMS);
+    }
+
+    /**
+     * Sign data and get a PKCS1 signature
+     * @param msisdn   Phone number of the user (in international format)
+     * @param message  Message shown to the user (e.g. "Please sign contract.pdf")
+     * @param digest   Document digest
+     * @param mimetype Mime-Type of the digest (e.g. {@link DTBS#MIME_SHA256})
+     * @param signatureprofile Signatureprofile of the wanted signing key
+     * @return Future raw PKCS1 signature
+     * @see MssClient#signPKCS1(String, String, byte[], String, SignatureProfile)
+     */
+    public CompletableFuture<byte[]> signPKCS1(final String msisdn,
+                                               final String message,
+                                               final byte[] digest,
+                                               final String mimetype,
+                                               final SignatureProfile signatureprofile)
+    {
+        return this.sign(msisdn, message, digest, mimetype, signatureprofile, MssClient.FORMAT_KIURU_PKCS1);
+    }
+
+    /**
+     * Advanced method that can be used to send any MSS_SignatureReq to the MSSP.
+     * @param req MSS_SignatureReq
+     * @return Future MSS_SignatureResp
+     * @see MssClient#sign(MSS_SignatureReq)
+     */
+    public CompletableFuture<MSS_SignatureResp> sign(final MSS_SignatureReq req) {
+        return this.sign(req, null);
+    }
+
+    /**
+     * Advanced method that can be used to send any MSS_SignatureReq to the MSSP within a deadline.
+     * @param req      MSS_SignatureReq
+     * @param deadline Deadline of the call, or null for the default of the request TimeOut
+     * @return Future MSS_SignatureResp
+     * @see MssClient#sign(MSS_SignatureReq, Deadline)
+     */
+    public CompletableFuture<MSS_SignatureResp> sign(final MSS_SignatureReq req, final Deadline deadline) {
+        JsonRequest jReq = new JsonRequest();
+        jReq.MSS_SignatureReq = req;
+        return this.client.getRestClient().sendReqAsync(jReq, deadline != null ? deadline : Deadline.of(jReq))
+                                          .thenApply(jResp -> jResp.MSS_SignatureResp);
+    }
+
+    private CompletableFuture<byte[]> sign(final String msisdn,
+                                           final String message,
+                                           final byte[] digest,
+                                           final String mimetype,
+                                           final SignatureProfile signatureprofile,
+                                           final String format)
+    {
+        if (signatureprofile == null) {
+            return failed(new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request"));
+        }
+        JsonRequest jReq = this.client.createSignReq(msisdn, message, digest, mimetype, signatureprofile, format);
+        return this.client.getRestClient().sendReqAsync(jReq).thenApply(jResp -> jResp.MSS_SignatureResp).thenApply(resp -> {
+            if (resp == null) {
+                throw new MssRestException(MssRestException.UNABLE_TO_PROVIDE_SERVICES, "Failed to get response");
+            }
+            return resp.getRawSignature();
+        });
+    }
+
+    /**
+     * Create an exceptionally completed future
+     * @param e Exception
+     * @return failed future
+     */
+    static <T> CompletableFuture<T> failed(final Throwable e) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+}
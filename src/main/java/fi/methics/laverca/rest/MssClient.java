@@ -3,27 +3,61 @@
 //
 package fi.methics.laverca.rest;
 
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
+import fi.methics.laverca.rest.json.AP_Info;
 import fi.methics.laverca.rest.json.JsonRequest;
 import fi.methics.laverca.rest.json.JsonResponse;
-import fi.methics.laverca.rest.json.MSS_ProfileReq;
+import fi.methics.laverca.rest.json.MSS_ReceiptReq;
+import fi.methics.laverca.rest.json.MSS_ReceiptResp;
 import fi.methics.laverca.rest.json.MSS_SignatureReq;
 import fi.methics.laverca.rest.json.MSS_SignatureResp;
 import fi.methics.laverca.rest.json.Status.MobileUserCertificate;
+import fi.methics.laverca.rest.util.Bulkhead;
+import fi.methics.laverca.rest.util.BulkheadConfig;
+import fi.methics.laverca.rest.util.CertificateCache;
+import fi.methics.laverca.rest.util.CertificateCacheConfig;
+import fi.methics.laverca.rest.util.CircuitBreaker;
+import fi.methics.laverca.rest.util.CircuitBreakerConfig;
+import fi.methics.laverca.rest.util.ConcurrencyLimitConfig;
+import fi.methics.laverca.rest.util.ConcurrencyLimiter;
+import fi.methics.laverca.rest.util.ConnectionPoolConfig;
 import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.Deadline;
+import fi.methics.laverca.rest.util.Endpoint;
+import fi.methics.laverca.rest.util.HedgingConfig;
+import fi.methics.laverca.rest.util.LoadBalancerConfig;
+import fi.methics.laverca.rest.util.LoadBalancingPolicy;
 import fi.methics.laverca.rest.util.MSS_SignatureReqBuilder;
 import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.NotificationReceiver;
+import fi.methics.laverca.rest.util.ProfileReqTemplate;
+import fi.methics.laverca.rest.util.ReceiptConfig;
+import fi.methics.laverca.rest.util.ReceiptDispatcher;
+import fi.methics.laverca.rest.util.RequestHedger;
 import fi.methics.laverca.rest.util.RestClient;
+import fi.methics.laverca.rest.util.RestSocketFactory;
+import fi.methics.laverca.rest.util.Retrier;
+import fi.methics.laverca.rest.util.RetryConfig;
 import fi.methics.laverca.rest.util.RestClient.AuthnMode;
 import fi.methics.laverca.rest.util.MssRestException;
 import fi.methics.laverca.rest.util.SignatureProfile;
-import fi.methics.laverca.rest.util.X509Util;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+import fi.methics.laverca.rest.util.SingleFlight;
+import fi.methics.laverca.rest.util.StatusPoller;
+import fi.methics.laverca.rest.util.TenantScheduler;
+import fi.methics.laverca.rest.util.TransactionJournal;
+import fi.methics.laverca.rest.util.TransactionRegistry;
 
 /**
  * REST MSS Client class.
@@ -50,11 +84,20 @@ public class MssClient {
     public static final String FORMAT_KIURU_PKCS1 = "http://www.methics.fi/KiuruMSSP/v3.2.0#PKCS1";
     public static final String FORMAT_FICOM_PKCS1 = "http://mss.ficom.fi/TS102204/v1.0.0#PKCS1";
 
-    private static final String DEFAULT_APPWD = "x";
-    
     private RestClient client;
     private String apid;
-    private String appwd = DEFAULT_APPWD;
+    private String appwd = AP_Info.DEFAULT_APPWD;
+    private String messagingMode = MSS_SignatureReq.MODE_SYNCH;
+    
+    private final MssAsyncClient async = new MssAsyncClient(this);
+    
+    private final Map<String, SignatureReqTemplate> signTemplates = new ConcurrentHashMap<>();
+    private volatile ProfileReqTemplate profileTemplate;
+    
+    private ReceiptConfig receiptConfig = new ReceiptConfig();
+    private volatile ReceiptDispatcher receipts;
+    private CertificateCache certificates;
+    private SingleFlight<String, Map<SignatureProfile, MssCertificate>> profileQueries;
     
     private MssClient() { }
 
@@ -70,29 +113,31 @@ public class MssClient {
                                           final String message, 
                                           final SignatureProfile signatureprofile)
         throws MssRestException
+    {
+        return this.authenticate(msisdn, message, signatureprofile, null);
+    }
+    
+    /**
+     * Authenticate a user with MSSP within a deadline.
+     * <p>Call {@link Deadline#cancel()} from another thread to abort the pending request,
+     * e.g. when the session of the user closes.
+     * @param msisdn           Phone number of the user (in international format)
+     * @param message          Message shown to the user (e.g. "Please authenticate to Bank A Portal")
+     * @param signatureprofile Signatureprofile of the wanted authentication key
+     * @param deadline         Deadline of the call, or null for the default of the request TimeOut
+     * @return Authentication response
+     * @throws MssRestException if signature fails, the deadline passes or the call is cancelled
+     */
+    public MSS_SignatureResp authenticate(final String msisdn, 
+                                          final String message, 
+                                          final SignatureProfile signatureprofile,
+                                          final Deadline deadline)
+        throws MssRestException
     {
         if (signatureprofile == null) {
             throw new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request");
         }
-        try {
-            JsonRequest jReq = new JsonRequest();
-            final String dtbd = message;
-            final DTBS   dtbs = new DTBS(dtbd);
-
-            jReq.MSS_SignatureReq = new MSS_SignatureReq(msisdn, dtbs, null);
-            jReq.MSS_SignatureReq.SignatureProfile = signatureprofile.getUri();
-            jReq.MSS_SignatureReq.MSS_Format       = FORMAT_CMS;
-            jReq.MSS_SignatureReq.AP_Info.AP_ID    = this.apid;
-            jReq.MSS_SignatureReq.AP_Info.AP_PWD   = this.appwd;
-            jReq.MSS_SignatureReq.AP_Info.AP_TransID = "A" + UUID.randomUUID().toString();
-            
-            JsonResponse jResp = this.client.sendReq(jReq);
-            return jResp.MSS_SignatureResp;
-        } catch (MssRestException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new MssRestException(e);
-        }
+        return this.sendSignReq(this.createAuthnReq(msisdn, message, signatureprofile), deadline);
     }
     
     /**
@@ -102,33 +147,13 @@ public class MssClient {
      * @return User's certificates in a map
      */
     public Map<SignatureProfile, MssCertificate> listCertificates(final String msisdn) {
+        CompletableFuture<Map<SignatureProfile, MssCertificate>> shared = this.sharedCertificates(msisdn);
+        if (shared != null) {
+            return copy(await(shared));
+        }
         try {
-            JsonRequest jReq = new JsonRequest();
-            jReq.MSS_ProfileReq = new MSS_ProfileReq(msisdn.toString());
-            jReq.MSS_ProfileReq.AP_Info.AP_ID    = this.apid;
-            jReq.MSS_ProfileReq.AP_Info.AP_PWD   = this.appwd;
-            
-            JsonResponse resp = this.client.sendReq(jReq);
-            
-            List<MobileUserCertificate> jsonChain = resp.MSS_ProfileResp.Status.StatusDetail.ProfileQueryExtension.MobileUserCertificate;
-            Map<SignatureProfile, MssCertificate> result = new HashMap<>();
-
-            for (MobileUserCertificate chain : jsonChain) {
-                if (chain == null) continue;
-                if (chain.SignatureProfiles == null) continue;
-                if (chain.X509Certificate   == null) continue;
-                if (chain.State != null && !chain.State.equals("ACTIVE")) continue; // ignore inactive certs
-                
-                for (String sigprof : chain.SignatureProfiles) {
-                    if (chain.X509Certificate == null) continue;
-                    if (chain.X509Certificate.isEmpty()) continue;
-                    
-                    MssCertificate cert = MssCertificate.fromJson(chain.X509Certificate);
-                    cert.addSignatureProfiles(chain.SignatureProfiles);
-                    result.put(SignatureProfile.of(sigprof), cert);
-                }
-            }
-            return result;
+            JsonResponse resp = this.client.sendReq(this.createProfileReq(msisdn));
+            return this.parseCertificates(resp);
         } catch (MssRestException e) {
             throw e;
         } catch (Exception e) {
@@ -157,33 +182,13 @@ public class MssClient {
         if (signatureprofile == null) {
             throw new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request");
         }
+        CompletableFuture<MssCertificate> shared = this.sharedCertificate(msisdn, signatureprofile);
+        if (shared != null) {
+            return await(shared).copy();
+        }
         try {
-            JsonRequest jReq = new JsonRequest();
-            jReq.MSS_ProfileReq = new MSS_ProfileReq(msisdn);
-            jReq.MSS_ProfileReq.AP_Info.AP_ID    = this.apid;
-            jReq.MSS_ProfileReq.AP_Info.AP_PWD   = this.appwd;
-            
-            JsonResponse resp = this.client.sendReq(jReq);
-            
-            List<MobileUserCertificate> jsonChain = resp.MSS_ProfileResp.Status.StatusDetail.ProfileQueryExtension.MobileUserCertificate;
-            MssCertificate result = MssCertificate.EMPTY;
-
-            for (MobileUserCertificate chain : jsonChain) {
-                if (chain == null) continue;
-                if (chain.SignatureProfiles == null) continue;
-                if (chain.X509Certificate   == null) continue;
-                if (chain.State != null && !chain.State.equals("ACTIVE")) continue; // ignore inactive certs
-                
-                if (chain.SignatureProfiles.contains(signatureprofile.getUri())) {
-                    List<X509Certificate> certs = new ArrayList<>();
-                    for (String cert : chain.X509Certificate) {
-                        certs.add(X509Util.parseCertificate(cert));
-                    }
-                    result = new MssCertificate(certs);
-                    result.addSignatureProfiles(chain.SignatureProfiles);
-                }
-            }
-            return result;
+            JsonResponse resp = this.client.sendReq(this.createProfileReq(msisdn));
+            return this.parseCertificate(resp, signatureprofile);
         } catch (MssRestException e) {
             throw e;
         } catch (Exception e) {
@@ -222,19 +227,35 @@ public class MssClient {
         if (signatureprofile == null) {
             throw new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request");
         }
-        final String dtbd = message;
-        final DTBS   dtbs = new DTBS(digest, DTBS.ENCODING_BASE64,mimetype);
-
-        MSS_SignatureReqBuilder builder = new MSS_SignatureReqBuilder();
-        builder.withApid(this.apid);
-        builder.withAppwd(this.appwd);
-        builder.withDtbd(dtbd);
-        builder.withDtbs(dtbs);
-        builder.withMssFormat(FORMAT_CMS);
-        builder.withMsisdn(msisdn);
-        builder.withSignatureProfile(signatureprofile);
-
-        MSS_SignatureResp resp = this.sign(builder.build());
+        return this.sign(msisdn, message, digest, mimetype, signatureprofile, null);
+    }
+    
+    /**
+     * Sign data within a deadline. By default this method returns a CMS signature byte[].
+     * <p>Call {@link Deadline#cancel()} from another thread to abort the pending request.
+     * 
+     * @param msisdn   Phone number of the user (in international format)
+     * @param message  Message shown to the user (e.g. "Please sign contract.pdf")
+     * @param digest   Document digest
+     * @param mimetype Mime-Type of the digest (e.g. "application/x-sha256")
+     * @param signatureprofile Signatureprofile of the wanted signing key
+     * @param deadline Deadline of the call, or null for the default of the request TimeOut
+     * @return raw CMS signature
+     * @throws MssRestException if signature fails, the deadline passes or the call is cancelled
+     * @see #sign(String, String, byte[], String, SignatureProfile)
+     */
+    public byte[] sign(final String msisdn,
+                       final String message,
+                       final byte[] digest, 
+                       final String mimetype,
+                       final SignatureProfile signatureprofile,
+                       final Deadline deadline)
+        throws MssRestException
+    {
+        if (signatureprofile == null) {
+            throw new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request");
+        }
+        MSS_SignatureResp resp = this.sendSignReq(this.createSignReq(msisdn, message, digest, mimetype, signatureprofile, FORMAT_CMS), deadline);
         if (resp == null) {
             throw new MssRestException(MssRestException.UNABLE_TO_PROVIDE_SERVICES, "Failed to get response");
         }
@@ -272,19 +293,7 @@ public class MssClient {
         if (signatureprofile == null) {
             throw new MssRestException(MssRestException.MISSING_PARAM, "Missing SignatureProfile in request");
         }
-        final String dtbd = message;
-        final DTBS   dtbs = new DTBS(digest, DTBS.ENCODING_BASE64, mimetype);
-
-        MSS_SignatureReqBuilder builder = new MSS_SignatureReqBuilder();
-        builder.withApid(this.apid);
-        builder.withAppwd(this.appwd);
-        builder.withDtbd(dtbd);
-        builder.withDtbs(dtbs);
-        builder.withMssFormat(FORMAT_KIURU_PKCS1);
-        builder.withMsisdn(msisdn);
-        builder.withSignatureProfile(signatureprofile);
-
-        MSS_SignatureResp resp = this.sign(builder.build());
+        MSS_SignatureResp resp = this.sendSignReq(this.createSignReq(msisdn, message, digest, mimetype, signatureprofile, FORMAT_KIURU_PKCS1), null);
         if (resp == null) {
             throw new MssRestException(MssRestException.UNABLE_TO_PROVIDE_SERVICES, "Failed to get response");
         }
@@ -299,10 +308,33 @@ public class MssClient {
      * @see MSS_SignatureReqBuilder
      */
     public MSS_SignatureResp sign(final MSS_SignatureReq req) throws MssRestException {
+        return this.sign(req, null);
+    }
+    
+    /**
+     * Advanced method that can be used to send any MSS_SignatureReq to the MSSP within a deadline.
+     * @param req      MSS_SignatureReq
+     * @param deadline Deadline of the call, or null for the default of the request TimeOut
+     * @return MSS_SignatureResp
+     * @throws MssRestException if signature fails, the deadline passes or the call is cancelled
+     * @see Deadline
+     */
+    public MSS_SignatureResp sign(final MSS_SignatureReq req, final Deadline deadline) throws MssRestException {
+        JsonRequest jReq = new JsonRequest();
+        jReq.MSS_SignatureReq = req;
+        return this.sendSignReq(jReq, deadline);
+    }
+    
+    /**
+     * Send a signature request
+     * @param jReq     JSON request containing an MSS_SignatureReq
+     * @param deadline Deadline of the call, or null for the default of the request TimeOut
+     * @return MSS_SignatureResp
+     * @throws MssRestException if signature fails
+     */
+    private MSS_SignatureResp sendSignReq(final JsonRequest jReq, final Deadline deadline) throws MssRestException {
         try {
-            JsonRequest jReq = new JsonRequest();
-            jReq.MSS_SignatureReq = req;
-            JsonResponse jResp = this.client.sendReq(jReq);
+            JsonResponse jResp = this.client.sendReq(jReq, deadline != null ? deadline : Deadline.of(jReq));
             return jResp.MSS_SignatureResp;
         } catch (MssRestException e) {
             throw e;
@@ -311,6 +343,278 @@ public class MssClient {
         }
     }
     
+    /**
+     * Send a receipt of a completed signature in the background.
+     * <p>Returns at once: the receipt is queued and sent by the {@link ReceiptDispatcher} of this client,
+     * and retried if it fails. Nothing needs to wait for the returned future.
+     * @param resp    Signature response with the MSSP_TransID
+     * @param message Receipt message (may be null)
+     * @return Future that completes with the MSS_ReceiptResp, or with a {@link MssRestException}.
+     *         Code {@link MssRestException#TOO_MANY_REQUESTS} means that the receipt queue was full.
+     */
+    public CompletableFuture<MSS_ReceiptResp> sendReceipt(final MSS_SignatureResp resp, final String message) {
+        final String apid = resp.AP_Info != null && resp.AP_Info.AP_ID != null ? resp.AP_Info.AP_ID : this.apid;
+        final String appwd = this.appwd != null ? this.appwd : AP_Info.DEFAULT_APPWD;
+        return this.sendReceipt(new MSS_ReceiptReq(apid, appwd, resp.MSSP_TransID, resp.getMsisdn(), message));
+    }
+    
+    /**
+     * Advanced method that sends any MSS_ReceiptReq in the background
+     * @param req MSS_ReceiptReq
+     * @return Future that completes with the MSS_ReceiptResp, or with a {@link MssRestException}
+     * @see #sendReceipt(MSS_SignatureResp, String)
+     */
+    public CompletableFuture<MSS_ReceiptResp> sendReceipt(final MSS_ReceiptReq req) {
+        return this.getReceiptDispatcher().send(req);
+    }
+    
+    /**
+     * Get the dispatcher of receipts. It is created on first use.
+     * @return receipt dispatcher
+     */
+    public ReceiptDispatcher getReceiptDispatcher() {
+        ReceiptDispatcher d = this.receipts;
+        if (d == null) {
+            synchronized (this) {
+                d = this.receipts;
+                if (d == null) {
+                    d = new ReceiptDispatcher(this.receiptConfig,
+                                              this.client::sendReqAsync,
+                                              this.client.getStatusPoller().getTimingWheel());
+                    this.receipts = d;
+                }
+            }
+        }
+        return d;
+    }
+    
+    /**
+     * Resume the asynchronous signatures that were pending when the application stopped.
+     * <p>The transactions are read from the journal set with {@link Builder#withJournal(TransactionJournal)}.
+     * They are not requested again: their status is polled, or their notification awaited, as if
+     * the client had not been restarted. Transactions past their deadline are not resumed.
+     * @return Futures of the final MSS_SignatureResp by AP_TransID. Empty if this client has no journal.
+     */
+    public Map<String, CompletableFuture<MSS_SignatureResp>> resumePending() {
+        final Map<String, CompletableFuture<MSS_SignatureResp>> resumed = new LinkedHashMap<>();
+        final TransactionJournal journal = this.client.getTransactionJournal();
+        if (journal == null) {
+            return resumed;
+        }
+        for (TransactionJournal.Entry entry : journal.getRecovered()) {
+            resumed.put(entry.getApTransId(), this.client.resume(entry).thenApply(jResp -> jResp.MSS_SignatureResp));
+        }
+        return resumed;
+    }
+    
+    /**
+     * Get a non-blocking view of this client.
+     * <p>Methods of the returned client return immediately with a {@link java.util.concurrent.CompletableFuture}
+     * and share the configuration and connections of this client.
+     * @return asynchronous client
+     */
+    public MssAsyncClient async() {
+        return this.async;
+    }
+    
+    /**
+     * Create an authentication request
+     * @param msisdn           Phone number of the user
+     * @param message          Message shown to the user
+     * @param signatureprofile Signatureprofile of the wanted authentication key
+     * @return JSON request
+     */
+    JsonRequest createAuthnReq(final String msisdn, final String message, final SignatureProfile signatureprofile) {
+        final DTBS dtbs = new DTBS(message);
+        return this.getSignTemplate(signatureprofile, FORMAT_CMS, dtbs).prepare(msisdn, dtbs.toBytes(), null);
+    }
+    
+    /**
+     * Create a document signing request
+     * @param msisdn           Phone number of the user
+     * @param message          Message shown to the user
+     * @param digest           Document digest
+     * @param mimetype         Mime-Type of the digest
+     * @param signatureprofile Signatureprofile of the wanted signing key
+     * @param format           MSS_Format
+     * @return JSON request
+     */
+    JsonRequest createSignReq(final String msisdn,
+                              final String message,
+                              final byte[] digest,
+                              final String mimetype,
+                              final SignatureProfile signatureprofile,
+                              final String format)
+    {
+        final DTBS dtbs = new DTBS(digest, DTBS.ENCODING_BASE64, mimetype);
+        return this.getSignTemplate(signatureprofile, format, dtbs).prepare(msisdn, dtbs.toBytes(), message);
+    }
+    
+    /**
+     * Create a ProfileQuery request
+     * @param msisdn Phone number of the user
+     * @return JSON request
+     */
+    JsonRequest createProfileReq(final String msisdn) {
+        ProfileReqTemplate template = this.profileTemplate;
+        if (template == null) {
+            template = new ProfileReqTemplate(this.apid, this.appwd);
+            this.profileTemplate = template;
+        }
+        return template.prepare(msisdn);
+    }
+    
+    /**
+     * Get the pre-serialized MSS_SignatureReq template for given parameters.
+     * Templates are created on first use and kept for the lifetime of this client.
+     * @param signatureprofile SignatureProfile
+     * @param format           MSS_Format
+     * @param dtbs             DTBS whose MimeType and Encoding are used
+     * @return template
+     */
+    private SignatureReqTemplate getSignTemplate(final SignatureProfile signatureprofile, final String format, final DTBS dtbs) {
+        String key = format + ' ' + dtbs.getMimetype() + ' ' + dtbs.getEncoding() + ' ' + signatureprofile.getUri();
+        SignatureReqTemplate template = this.signTemplates.get(key);
+        if (template == null) {
+            template = this.signTemplates.computeIfAbsent(key, k -> new SignatureReqTemplate(this.apid,
+                                                                                             this.appwd,
+                                                                                             signatureprofile.getUri(),
+                                                                                             format,
+                                                                                             dtbs.getMimetype(),
+                                                                                             dtbs.getEncoding(),
+                                                                                             this.messagingMode));
+        }
+        return template;
+    }
+    
+    /**
+     * Read all active certificates from a ProfileQuery response
+     * @param resp ProfileQuery response
+     * @return User's certificates in a map
+     */
+    Map<SignatureProfile, MssCertificate> parseCertificates(final JsonResponse resp) {
+        List<MobileUserCertificate> jsonChain = resp.MSS_ProfileResp.Status.StatusDetail.ProfileQueryExtension.MobileUserCertificate;
+        Map<SignatureProfile, MssCertificate> result = new HashMap<>();
+
+        for (MobileUserCertificate chain : jsonChain) {
+            if (chain == null) continue;
+            if (chain.SignatureProfiles == null) continue;
+            if (chain.X509Certificate   == null) continue;
+            if (chain.State != null && !chain.State.equals("ACTIVE")) continue; // ignore inactive certs
+            if (chain.X509Certificate.isEmpty()) continue;
+            
+            // One instance for all the profiles of the chain, decoded when first used
+            MssCertificate cert = MssCertificate.fromJson(chain.X509Certificate);
+            cert.addSignatureProfiles(chain.SignatureProfiles);
+            for (String sigprof : chain.SignatureProfiles) {
+                result.put(SignatureProfile.of(sigprof), cert);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Read the certificate of given SignatureProfile from a ProfileQuery response
+     * @param resp             ProfileQuery response
+     * @param signatureprofile Signatureprofile of the wanted certificate chain
+     * @return Certificate if available. If not, returns an empty MssCertificate object.
+     */
+    MssCertificate parseCertificate(final JsonResponse resp, final SignatureProfile signatureprofile) {
+        List<MobileUserCertificate> jsonChain = resp.MSS_ProfileResp.Status.StatusDetail.ProfileQueryExtension.MobileUserCertificate;
+        MssCertificate result = MssCertificate.EMPTY;
+
+        for (MobileUserCertificate chain : jsonChain) {
+            if (chain == null) continue;
+            if (chain.SignatureProfiles == null) continue;
+            if (chain.X509Certificate   == null) continue;
+            if (chain.State != null && !chain.State.equals("ACTIVE")) continue; // ignore inactive certs
+            
+            if (chain.SignatureProfiles.contains(signatureprofile.getUri())) {
+                result = MssCertificate.fromJson(chain.X509Certificate);
+                result.addSignatureProfiles(chain.SignatureProfiles);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Get the certificates of a user from the certificate cache or from a ProfileQuery shared by concurrent lookups
+     * @param msisdn Phone number of the user
+     * @return Future map of the user's certificates that must not be modified,
+     *         or null if neither caching nor coalescing is enabled
+     */
+    CompletableFuture<Map<SignatureProfile, MssCertificate>> sharedCertificates(final String msisdn) {
+        if (this.certificates != null) {
+            return this.certificates.get(msisdn);
+        }
+        if (this.profileQueries != null) {
+            return this.profileQueries.run(msisdn, this::queryCertificates);
+        }
+        return null;
+    }
+    
+    /**
+     * Get the certificate of a SignatureProfile of a user from the certificate cache or from a ProfileQuery
+     * shared by concurrent lookups
+     * @param msisdn           Phone number of the user
+     * @param signatureprofile Signatureprofile of the wanted certificate chain
+     * @return Future certificate, or null if neither caching nor coalescing is enabled
+     */
+    CompletableFuture<MssCertificate> sharedCertificate(final String msisdn, final SignatureProfile signatureprofile) {
+        if (this.certificates != null) {
+            return this.certificates.get(msisdn, signatureprofile);
+        }
+        if (this.profileQueries != null) {
+            return this.profileQueries.run(msisdn, this::queryCertificates)
+                                      .thenApply(certs -> certs.getOrDefault(signatureprofile, MssCertificate.EMPTY));
+        }
+        return null;
+    }
+    
+    /**
+     * Copy shared certificates for a caller, who may modify them.
+     * Profiles that shared one certificate share one copy.
+     * @param shared Certificates from {@link #sharedCertificates(String)}
+     * @return new map of new certificates
+     */
+    static Map<SignatureProfile, MssCertificate> copy(final Map<SignatureProfile, MssCertificate> shared) {
+        Map<MssCertificate, MssCertificate> copies = new IdentityHashMap<>();
+        Map<SignatureProfile, MssCertificate> result = new HashMap<>();
+        for (Map.Entry<SignatureProfile, MssCertificate> e : shared.entrySet()) {
+            result.put(e.getKey(), copies.computeIfAbsent(e.getValue(), MssCertificate::copy));
+        }
+        return result;
+    }
+    
+    /**
+     * Send a ProfileQuery without blocking and read all active certificates from the response
+     * @param msisdn Phone number of the user
+     * @return Future map of the user's certificates
+     */
+    CompletableFuture<Map<SignatureProfile, MssCertificate>> queryCertificates(final String msisdn) {
+        return this.client.sendReqAsync(this.createProfileReq(msisdn)).thenApply(this::parseCertificates);
+    }
+    
+    /**
+     * Wait for a future of the certificate cache
+     * @param future Future
+     * @return result
+     * @throws MssRestException if the future failed
+     */
+    private static <T> T await(final CompletableFuture<T> future) throws MssRestException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MssRestException) {
+                throw (MssRestException) e.getCause();
+            }
+            throw new MssRestException(e.getCause());
+        }
+    }
+    
     /**
      * Get the underlying REST client
      * @return REST client
@@ -319,6 +623,137 @@ public class MssClient {
         return this.client;
     }
     
+    /**
+     * Get the circuit breakers of the REST URLs (primary first).
+     * The breakers expose their state and transition counts as metrics.
+     * @return circuit breakers
+     */
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return this.client.getCircuitBreakers();
+    }
+    
+    /**
+     * Get the REST endpoints with their load and latency statistics
+     * @return endpoints (primary first)
+     */
+    public List<Endpoint> getEndpoints() {
+        return this.client.getEndpoints();
+    }
+    
+    /**
+     * Get the hedging state and metrics (hedge rate and wins) of this client
+     * @return request hedger
+     */
+    public RequestHedger getHedger() {
+        return this.client.getHedger();
+    }
+    
+    /**
+     * Get the retry budget and metrics of this client
+     * @return retrier
+     */
+    public Retrier getRetrier() {
+        return this.client.getRetrier();
+    }
+    
+    /**
+     * Get the current concurrency limits and rejection counts of this client
+     * @return concurrency limiter
+     */
+    public ConcurrencyLimiter getLimiter() {
+        return this.client.getLimiter();
+    }
+    
+    /**
+     * Get the bulkheads of this client with their load and rejection counts
+     * @return bulkheads
+     */
+    public Collection<Bulkhead> getBulkheads() {
+        return this.client.getBulkheads();
+    }
+    
+    /**
+     * Get the rate limiter shared by the APs, or null if there is none
+     * @return tenant scheduler
+     */
+    public TenantScheduler getScheduler() {
+        return this.client.getScheduler();
+    }
+    
+    /**
+     * Get the registry of signature requests in flight, or null if there is none
+     * @return transaction registry
+     */
+    public TransactionRegistry getTransactionRegistry() {
+        return this.client.getTransactionRegistry();
+    }
+    
+    /**
+     * Get the poller of asynchClientServer signatures
+     * @return status poller
+     */
+    public StatusPoller getStatusPoller() {
+        return this.client.getStatusPoller();
+    }
+    
+    /**
+     * Get the receiver of asynchServerServer notifications, or null if there is none
+     * @return notification receiver
+     */
+    public NotificationReceiver getNotificationReceiver() {
+        return this.client.getNotificationReceiver();
+    }
+    
+    /**
+     * Get the cache of user certificates, or null if certificates are not cached
+     * @return certificate cache
+     */
+    public CertificateCache getCertificateCache() {
+        return this.certificates;
+    }
+    
+    /**
+     * Get the shared MSS_ProfileReqs in flight, or null if profile queries are not coalesced
+     * @return profile queries
+     */
+    public SingleFlight<String, Map<SignatureProfile, MssCertificate>> getProfileQueries() {
+        return this.profileQueries;
+    }
+    
+    /**
+     * Get the journal of pending asynchronous signatures, or null if there is none
+     * @return transaction journal
+     */
+    public TransactionJournal getJournal() {
+        return this.client.getTransactionJournal();
+    }
+    
+    /**
+     * Open given number of pooled connections to every REST URL before traffic arrives.
+     * HTTPS connections complete their TLS handshake, and later handshakes resume the
+     * cached TLS sessions.
+     * @param connections Number of connections per REST URL
+     * @return total number of connections opened
+     * @see RestSocketFactory#getFullHandshakeCount()
+     * @see RestSocketFactory#getResumedHandshakeCount()
+     */
+    public int warmUp(int connections) {
+        return this.client.warmUp(connections);
+    }
+    
+    /**
+     * Close this client and release all pooled connections.
+     * Queued receipts are sent first, within {@link ReceiptConfig#getDrainTime()}.
+     * Signatures still pending stay in the journal, if there is one.
+     */
+    public void close() {
+        ReceiptDispatcher d = this.receipts;
+        if (d != null) {
+            d.close();
+        }
+        this.client.close();
+    }
+    
     /**
      * MSS Client Builder
      */
@@ -326,6 +761,7 @@ public class MssClient {
 
         private String restUrl;
         private String secondaryUrl;
+        private List<String> restUrls;
         private String apid;
         private String apname;
         private String password;
@@ -334,20 +770,64 @@ public class MssClient {
         
         private String appwd;
         
+        private ConnectionPoolConfig poolConfig = new ConnectionPoolConfig();
+        private CircuitBreakerConfig breakerConfig = new CircuitBreakerConfig();
+        private LoadBalancerConfig balancerConfig = new LoadBalancerConfig();
+        private HedgingConfig hedgingConfig = HedgingConfig.disabled();
+        private RetryConfig retryConfig = RetryConfig.disabled();
+        private ConcurrencyLimitConfig limitConfig = ConcurrencyLimitConfig.disabled();
+        private TenantScheduler scheduler;
+        private TransactionRegistry registry;
+        private StatusPoller poller;
+        private NotificationReceiver receiver;
+        private TransactionJournal journal;
+        private ReceiptConfig receiptConfig = new ReceiptConfig();
+        private CertificateCacheConfig cacheConfig;
+        private boolean coalesceProfileQueries;
+        private String messagingMode = MSS_SignatureReq.MODE_SYNCH;
+        private List<BulkheadConfig> bulkheads = new ArrayList<>();
+        private int warmUpConnections;
+        
         public MssClient build() {
             MssClient client = new MssClient();
-            client.client = new RestClient();
+            client.client = new RestClient(this.poolConfig.copy(), this.breakerConfig, this.balancerConfig.copy());
             client.client.setAuthnMode(this.authnMode);
+            client.client.setHedging(this.hedgingConfig);
+            client.client.setRetry(this.retryConfig);
+            client.client.setConcurrencyLimit(this.limitConfig);
+            client.client.setScheduler(this.scheduler);
+            client.client.setTransactionRegistry(this.registry);
+            client.client.setStatusPoller(this.poller);
+            client.client.setNotificationReceiver(this.receiver);
+            client.client.setTransactionJournal(this.journal);
+            client.client.setBulkheads(this.bulkheads);
             if (this.authnMode == AuthnMode.APIKEY) {
+                client.apid = this.apid;
                 client.client.setApId(this.apid);
                 client.client.setApiKey(this.apikey);
             } else {
                 client.client.setApName(this.apname);
                 client.client.setPassword(this.password);
             }
-            client.client.setRestUrl(this.restUrl);
-            client.client.setSecondaryUrl(this.secondaryUrl);
+            if (this.restUrls != null) {
+                client.client.setRestUrls(this.restUrls);
+            } else {
+                client.client.setRestUrl(this.restUrl);
+                client.client.setSecondaryUrl(this.secondaryUrl);
+            }
             client.appwd = this.appwd;
+            client.client.setAppwd(this.appwd != null ? this.appwd : AP_Info.DEFAULT_APPWD);
+            client.messagingMode = this.messagingMode;
+            client.receiptConfig = this.receiptConfig;
+            if (this.coalesceProfileQueries) {
+                client.profileQueries = new SingleFlight<>();
+            }
+            if (this.cacheConfig != null) {
+                client.certificates = new CertificateCache(this.cacheConfig, client::queryCertificates);
+            }
+            if (this.warmUpConnections > 0) {
+                client.warmUp(this.warmUpConnections);
+            }
             return client;
         }
         
@@ -371,6 +851,18 @@ public class MssClient {
             return this;
         }
         
+        /**
+         * Set all RESTAPI service URLs of a MSSP cluster.
+         * <p>This replaces the URLs given with {@link #withRestUrl(String)} and {@link #withSecondaryUrl(String)}.
+         * Use {@link #withLoadBalancing(LoadBalancingPolicy)} to spread requests over the URLs.
+         * @param urls RESTAPI service URLs
+         * @return this builder
+         */
+        public Builder withRestUrls(String... urls) {
+            this.restUrls = Arrays.asList(urls);
+            return this;
+        }
+        
         /**
          * Set username/password authn
          * <p>Note: Use either this or {@link #withApiKey(String, String)}.
@@ -413,6 +905,276 @@ public class MssClient {
             this.appwd = appwd;
             return this;
         }
+        
+        /**
+         * Set HTTP connection pool settings
+         * <p>This replaces any values given with other connection pool methods of this builder.
+         * The builder keeps a copy, so later changes to either do not affect the other.
+         * @param poolConfig Connection pool settings
+         * @return this builder
+         */
+        public Builder withConnectionPool(ConnectionPoolConfig poolConfig) {
+            this.poolConfig = poolConfig.copy();
+            return this;
+        }
+        
+        /**
+         * Set the maximum number of HTTP connections. Each REST URL has its own pool.
+         * @param maxTotal   Max connections in total per REST URL
+         * @param maxPerRoute Max connections per REST URL host
+         * @return this builder
+         */
+        public Builder withMaxConnections(int maxTotal, int maxPerRoute) {
+            this.poolConfig.withMaxTotal(maxTotal);
+            this.poolConfig.withMaxPerRoute(maxPerRoute);
+            return this;
+        }
+        
+        /**
+         * Set HTTP connection time to live in milliseconds
+         * @param ttl TTL in milliseconds
+         * @return this builder
+         */
+        public Builder withConnectionTtl(long ttl) {
+            this.poolConfig.withConnectionTtl(ttl);
+            return this;
+        }
+        
+        /**
+         * Set the time after which idle HTTP connections are evicted
+         * @param maxIdleTime idle time in milliseconds
+         * @return this builder
+         */
+        public Builder withMaxIdleTime(long maxIdleTime) {
+            this.poolConfig.withMaxIdleTime(maxIdleTime);
+            return this;
+        }
+        
+        /**
+         * Set the period of inactivity after which a pooled HTTP connection is re-validated
+         * @param validateInactive inactivity period in milliseconds
+         * @return this builder
+         */
+        public Builder withValidateAfterInactivity(int validateInactive) {
+            this.poolConfig.withValidateAfterInactivity(validateInactive);
+            return this;
+        }
+        
+        /**
+         * Set the maximum time to wait for a free HTTP connection from the pool
+         * @param leaseTimeout lease timeout in milliseconds
+         * @return this builder
+         */
+        public Builder withConnectionLeaseTimeout(int leaseTimeout) {
+            this.poolConfig.withLeaseTimeout(leaseTimeout);
+            return this;
+        }
+        
+        /**
+         * Set circuit breaker settings of the REST URLs.
+         * <p>When the breaker of the primary URL is open, requests go straight to the secondary URL
+         * until a background probe finds the primary URL healthy again.
+         * @param breakerConfig Circuit breaker settings
+         * @return this builder
+         */
+        public Builder withCircuitBreaker(CircuitBreakerConfig breakerConfig) {
+            this.breakerConfig = breakerConfig;
+            return this;
+        }
+        
+        /**
+         * Set load balancing settings of the REST URLs
+         * <p>This replaces any policy given with {@link #withLoadBalancing(LoadBalancingPolicy)}.
+         * The builder keeps a copy, so later changes to either do not affect the other.
+         * @param balancerConfig Load balancer settings
+         * @return this builder
+         */
+        public Builder withLoadBalancer(LoadBalancerConfig balancerConfig) {
+            this.balancerConfig = balancerConfig.copy();
+            return this;
+        }
+        
+        /**
+         * Set the policy that spreads requests over the REST URLs.
+         * Default is {@link LoadBalancingPolicy#failover()}.
+         * @param policy Load balancing policy
+         * @return this builder
+         */
+        public Builder withLoadBalancing(LoadBalancingPolicy policy) {
+            this.balancerConfig.withPolicy(policy);
+            return this;
+        }
+        
+        /**
+         * Enable hedging of MSS_ProfileReq and MSS_StatusReq.
+         * <p>A request without an answer within the given latency percentile is sent again
+         * to another REST URL and the first response wins. Needs at least two REST URLs.
+         * MSS_SignatureReq and MSS_RegistrationReq are never hedged.
+         * @param hedgingConfig Hedging settings
+         * @return this builder
+         */
+        public Builder withHedging(HedgingConfig hedgingConfig) {
+            this.hedgingConfig = hedgingConfig;
+            return this;
+        }
+        
+        /**
+         * Enable retries of failed requests.
+         * <p>Requests that never left the client are always retried. Idempotent requests are also
+         * retried after connection errors and MSSP faults 780 and 900. An MSS_SignatureReq that may
+         * have reached the MSSP is never sent again.
+         * @param retryConfig Retry settings
+         * @return this builder
+         */
+        public Builder withRetry(RetryConfig retryConfig) {
+            this.retryConfig = retryConfig;
+            return this;
+        }
+        
+        /**
+         * Enable an adaptive limit of requests in flight per request type.
+         * <p>The limit follows the MSSP's latency and failures. Requests over the limit are
+         * rejected with error code {@link MssRestException#TOO_MANY_REQUESTS}.
+         * @param limitConfig Concurrency limit settings
+         * @return this builder
+         */
+        public Builder withConcurrencyLimit(ConcurrencyLimitConfig limitConfig) {
+            this.limitConfig = limitConfig;
+            return this;
+        }
+        
+        /**
+         * Rate limit the requests of this AP with a scheduler that can be shared by the clients of several APs.
+         * <p>Each AP_ID has its own token bucket, and APs share a global limit in weighted fair order.
+         * Requests over the rate are rejected with error code {@link MssRestException#TOO_MANY_REQUESTS}.
+         * @param scheduler Rate limiter and fair scheduler
+         * @return this builder
+         */
+        public Builder withScheduler(TenantScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+        
+        /**
+         * Track signature requests in flight in a registry that can be shared by several clients.
+         * <p>Identical concurrent requests (same MSISDN, SignatureProfile and DTBS) are sent once and share
+         * the response, and differing requests for the same MSISDN wait for each other instead of colliding
+         * at the MSSP. Pending transactions can be looked up by AP_TransID or MSSP_TransID.
+         * @param registry Transaction registry
+         * @return this builder
+         */
+        public Builder withTransactionRegistry(TransactionRegistry registry) {
+            this.registry = registry;
+            return this;
+        }
+        
+        /**
+         * Set the MessagingMode of signature requests. Defaults to {@link MSS_SignatureReq#MODE_SYNCH}.
+         * <p>With {@link MSS_SignatureReq#MODE_ASYNCH_CLIENT_SERVER} the MSSP acknowledges each request at once
+         * with an MSSP_TransID, and a shared {@link StatusPoller} polls the result with MSS_StatusReq.
+         * No connection is held while the user confirms. Blocking methods still return the final response,
+         * and the futures of {@link MssClient#async()} complete without holding any thread.
+         * <p>With {@link MSS_SignatureReq#MODE_ASYNCH_SERVER_SERVER} the MSSP pushes the result instead,
+         * see {@link #withNotificationReceiver(NotificationReceiver)}.
+         * @param messagingMode MessagingMode
+         * @return this builder
+         */
+        public Builder withMessagingMode(String messagingMode) {
+            this.messagingMode = messagingMode;
+            return this;
+        }
+        
+        /**
+         * Poll asynchClientServer signatures with given poller. The poller may be shared by several clients.
+         * Clients without a poller of their own use {@link StatusPoller#getDefault()}.
+         * @param poller Status poller
+         * @return this builder
+         */
+        public Builder withStatusPoller(StatusPoller poller) {
+            this.poller = poller;
+            return this;
+        }
+        
+        /**
+         * Wait for the results the MSSP pushes to given receiver instead of polling them.
+         * Use with {@link MSS_SignatureReq#MODE_ASYNCH_SERVER_SERVER}. The receiver may be shared by several clients.
+         * @param receiver Notification receiver
+         * @return this builder
+         */
+        public Builder withNotificationReceiver(NotificationReceiver receiver) {
+            this.receiver = receiver;
+            return this;
+        }
+        
+        /**
+         * Write pending asynchronous signatures to given journal, so that they can be
+         * resumed with {@link MssClient#resumePending()} after a restart.
+         * The journal is closed when the client is closed.
+         * @param journal Transaction journal
+         * @return this builder
+         */
+        public Builder withJournal(TransactionJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+        
+        /**
+         * Cache the certificates returned by {@link MssClient#getCertificate(String, SignatureProfile)}
+         * and {@link MssClient#listCertificates(String)}, so that e.g. a user who signs several documents
+         * in a row is queried once. Certificates are not cached by default.
+         * @param cacheConfig Cache settings
+         * @return this builder
+         */
+        public Builder withCertificateCache(CertificateCacheConfig cacheConfig) {
+            this.cacheConfig = cacheConfig;
+            return this;
+        }
+        
+        /**
+         * Let concurrent {@link MssClient#getCertificate(String, SignatureProfile)} and {@link MssClient#listCertificates(String)}
+         * calls for the same user share one MSS_ProfileReq and its parsed result. Off by default, so that each call
+         * sends its own request. Lookups through a certificate cache are always shared.
+         * @param coalesce true to share
+         * @return this builder
+         */
+        public Builder withProfileQueryCoalescing(boolean coalesce) {
+            this.coalesceProfileQueries = coalesce;
+            return this;
+        }
+        
+        /**
+         * Set the queue, workers and retries of receipts sent with {@link MssClient#sendReceipt(MSS_SignatureResp, String)}
+         * @param receiptConfig Receipt settings
+         * @return this builder
+         */
+        public Builder withReceipts(ReceiptConfig receiptConfig) {
+            this.receiptConfig = receiptConfig;
+            return this;
+        }
+        
+        /**
+         * Add a bulkhead. The request types of the bulkhead get their own connection pools,
+         * a cap on requests in flight and a bounded wait queue, so that e.g. slow synchronous
+         * signatures cannot block fast profile queries. Requests that find the bulkhead and its
+         * queue full are rejected with error code {@link MssRestException#TOO_MANY_REQUESTS}.
+         * @param bulkhead Bulkhead settings
+         * @return this builder
+         */
+        public Builder withBulkhead(BulkheadConfig bulkhead) {
+            this.bulkheads.add(bulkhead);
+            return this;
+        }
+        
+        /**
+         * Open and handshake given number of pooled connections to every REST URL
+         * when the client is built. See {@link MssClient#warmUp(int)}.
+         * @param connections Number of connections per REST URL
+         * @return this builder
+         */
+        public Builder withWarmUp(int connections) {
+            this.warmUpConnections = connections;
+            return this;
+        }
     }
     
 }
@@ -3,6 +3,8 @@
 //
 package fi.methics.laverca.rest;
 
+import java.util.concurrent.CompletableFuture;
+
 import fi.methics.laverca.rest.json.JsonRequest;
 import fi.methics.laverca.rest.json.JsonResponse;
 import fi.methics.laverca.rest.json.MSS_RegistrationReq;
@@ -53,4 +55,15 @@ public class RegistrationClient {
         }
     }
     
+    /**
+     * Send an MReg request without blocking the calling thread
+     * @param req MReg request
+     * @return Future MReg response
+     */
+    public CompletableFuture<MSS_RegistrationResp> sendMRegReqAsync(MSS_RegistrationReq req) {
+        JsonRequest jReq = new JsonRequest();
+        jReq.MSS_RegistrationReq = req;
+        return this.client.getRestClient().sendReqAsync(jReq).thenApply(jResp -> jResp.MSS_RegistrationResp);
+    }
+    
 }
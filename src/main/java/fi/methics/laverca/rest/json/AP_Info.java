@@ -6,6 +6,11 @@ package fi.methics.laverca.rest.json;
 import com.google.gson.annotations.SerializedName;
 
 public class AP_Info {
+
+    /**
+     * AP_PWD sent when the AP has not set one
+     */
+    public static final String DEFAULT_APPWD = "x";
     
     public AP_Info() {
         super();
@@ -0,0 +1,468 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reflection-free Gson TypeAdapters for all classes of this package.
+ * <p>The adapters write fields in the same order as the reflective Gson adapter
+ * (own fields first, then inherited fields, nulls omitted), so the produced JSON is identical.
+ * When reading, unknown fields are skipped without building a JSON tree.
+ * Fields the client never reads ({@link Status.MobileUserCertificate#X509SubjectName}
+ * and {@link Param#Tip}) are written but skipped when reading.
+ */
+public final class JsonAdapters {
+
+    /**
+     * String adapter that accepts numbers and booleans like Gson does
+     */
+    static final TypeAdapter<String> STRING = new TypeAdapter<String>() {
+        @Override
+        public void write(final JsonWriter out, final String value) throws IOException {
+            out.value(value);
+        }
+
+        @Override
+        public String read(final JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (token == JsonToken.BOOLEAN) {
+                return Boolean.toString(in.nextBoolean());
+            }
+            return in.nextString();
+        }
+    };
+
+    /**
+     * Boolean adapter that accepts "true"/"false" strings like Gson does
+     */
+    static final TypeAdapter<Boolean> BOOLEAN = new TypeAdapter<Boolean>() {
+        @Override
+        public void write(final JsonWriter out, final Boolean value) throws IOException {
+            out.value(value);
+        }
+
+        @Override
+        public Boolean read(final JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (token == JsonToken.STRING) {
+                return Boolean.parseBoolean(in.nextString());
+            }
+            return in.nextBoolean();
+        }
+    };
+
+    static final ObjectAdapter<AP_Info> AP_INFO = new ObjectAdapter<>(AP_Info::new)
+        .field("AP_ID",      STRING, o -> o.AP_ID,      (o, v) -> o.AP_ID      = v)
+        .field("AP_PWD",     STRING, o -> o.AP_PWD,     (o, v) -> o.AP_PWD     = v)
+        .field("AP_TransID", STRING, o -> o.AP_TransID, (o, v) -> o.AP_TransID = v)
+        .field("Instant",    STRING, o -> o.Instant,    (o, v) -> o.Instant    = v);
+
+    static final ObjectAdapter<JsonMeshMember> MESH_MEMBER = new ObjectAdapter<>(JsonMeshMember::new)
+        .field("URI",              STRING, o -> o.URI,              (o, v) -> o.URI              = v)
+        .field("DNSName",          STRING, o -> o.DNSName,          (o, v) -> o.DNSName          = v)
+        .field("IPAddress",        STRING, o -> o.IPAddress,        (o, v) -> o.IPAddress        = v)
+        .field("IdentifierString", STRING, o -> o.IdentifierString, (o, v) -> o.IdentifierString = v);
+
+    static final ObjectAdapter<MSSP_Info> MSSP_INFO = new ObjectAdapter<>(MSSP_Info::new)
+        .field("Instant", STRING,      o -> o.Instant, (o, v) -> o.Instant = v)
+        .field("MSSP_ID", MESH_MEMBER, o -> o.MSSP_ID, (o, v) -> o.MSSP_ID = v);
+
+    static final ObjectAdapter<MobileUser> MOBILE_USER = new ObjectAdapter<>(MobileUser::new)
+        .field("UserIdentifier", STRING, o -> o.UserIdentifier, (o, v) -> o.UserIdentifier = v)
+        .field("MSISDN",         STRING, o -> o.MSISDN,         (o, v) -> o.MSISDN         = v);
+
+    static final ObjectAdapter<AdditionalServices> ADDITIONAL_SERVICES = new ObjectAdapter<>(AdditionalServices::new)
+        .field("Description", STRING, o -> o.Description, (o, v) -> o.Description = v);
+
+    static final ObjectAdapter<MSS_Signature> SIGNATURE = new ObjectAdapter<>(MSS_Signature::new)
+        .field("Base64Signature", STRING, o -> o.Base64Signature, (o, v) -> o.Base64Signature = v);
+
+    static final ObjectAdapter<MSS_SignatureReq.Data> DATA = new ObjectAdapter<>(MSS_SignatureReq.Data::new)
+        .field("MimeType", STRING, o -> o.MimeType, (o, v) -> o.MimeType = v)
+        .field("Encoding", STRING, o -> o.Encoding, (o, v) -> o.Encoding = v)
+        .field("Data",     STRING, o -> o.Data,     (o, v) -> o.Data     = v);
+
+    static final ObjectAdapter<Status.StatusCode> STATUS_CODE = new ObjectAdapter<>(Status.StatusCode::new);
+    static {
+        STATUS_CODE.field("Value",      STRING,      o -> o.Value,      (o, v) -> o.Value      = v)
+                   .field("StatusCode", STATUS_CODE, o -> o.StatusCode, (o, v) -> o.StatusCode = v);
+    }
+
+    static final ObjectAdapter<Status.MobileUserCertificate> MOBILE_USER_CERTIFICATE = new ObjectAdapter<>(Status.MobileUserCertificate::new)
+        .list("X509Certificate",   STRING, o -> o.X509Certificate,   (o, v) -> o.X509Certificate   = v)
+        .list("X509SubjectName",   STRING, o -> o.X509SubjectName,   null)
+        .field("Algorithm",        STRING, o -> o.Algorithm,         (o, v) -> o.Algorithm         = v)
+        .field("State",            STRING, o -> o.State,             (o, v) -> o.State             = v)
+        .list("SignatureProfiles", STRING, o -> o.SignatureProfiles, (o, v) -> o.SignatureProfiles = v);
+
+    static final ObjectAdapter<Status.ProfileQueryExtension> PROFILE_QUERY_EXTENSION = new ObjectAdapter<>(Status.ProfileQueryExtension::new)
+        .list("MobileUserCertificate", MOBILE_USER_CERTIFICATE, o -> o.MobileUserCertificate, (o, v) -> o.MobileUserCertificate = v)
+        .field("AutoActivation",       BOOLEAN, o -> o.AutoActivation,      (o, v) -> o.AutoActivation      = v)
+        .field("ServerSideSignature",  BOOLEAN, o -> o.ServerSideSignature, (o, v) -> o.ServerSideSignature = v)
+        .field("RecoveryCodeCreated",  BOOLEAN, o -> o.RecoveryCodeCreated, (o, v) -> o.RecoveryCodeCreated = v);
+
+    static final ObjectAdapter<Status.StatusDetail> STATUS_DETAIL = new ObjectAdapter<>(Status.StatusDetail::new)
+        .field("ProfileQueryExtension", PROFILE_QUERY_EXTENSION, o -> o.ProfileQueryExtension, (o, v) -> o.ProfileQueryExtension = v)
+        .field("StatusDetail",          STRING,                  o -> o.StatusDetail,          (o, v) -> o.StatusDetail          = v);
+
+    static final ObjectAdapter<Status> STATUS = new ObjectAdapter<>(Status::new)
+        .field("StatusCode",    STATUS_CODE,   o -> o.StatusCode,    (o, v) -> o.StatusCode    = v)
+        .field("StatusMessage", STRING,        o -> o.StatusMessage, (o, v) -> o.StatusMessage = v)
+        .field("StatusDetail",  STATUS_DETAIL, o -> o.StatusDetail,  (o, v) -> o.StatusDetail  = v);
+
+    static final ObjectAdapter<ServiceResponses> SERVICE_RESPONSES = new ObjectAdapter<>(ServiceResponses::new)
+        .field("Description", STRING, o -> o.Description, (o, v) -> o.Description = v)
+        .field("Status",      STATUS, o -> o.Status,      (o, v) -> o.Status      = v)
+        .list("Roles",        STRING, o -> o.Roles,       (o, v) -> o.Roles       = v);
+
+    static final ObjectAdapter<Input>  INPUT  = param(new ObjectAdapter<>(Input::new));
+    static final ObjectAdapter<Output> OUTPUT = param(new ObjectAdapter<>(Output::new));
+
+    static final ObjectAdapter<Group> GROUP = new ObjectAdapter<>(Group::new)
+        .field("Name",   STRING, o -> o.Name,    (o, v) -> o.Name    = v)
+        .list("Outputs", OUTPUT, o -> o.Outputs, (o, v) -> o.Outputs = v);
+
+    static final ObjectAdapter<UseCase> USE_CASE = new ObjectAdapter<>(UseCase::new)
+        .field("Name",      STRING, o -> o.Name,      (o, v) -> o.Name      = v)
+        .field("NameSpace", STRING, o -> o.NameSpace, (o, v) -> o.NameSpace = v)
+        .field("SessionId", STRING, o -> o.SessionId, (o, v) -> o.SessionId = v)
+        .list("Inputs",     INPUT,  o -> o.Inputs,    (o, v) -> o.Inputs    = v)
+        .list("Groups",     GROUP,  o -> o.Groups,    (o, v) -> o.Groups    = v)
+        .list("Outputs",    OUTPUT, o -> o.Outputs,   (o, v) -> o.Outputs   = v);
+
+    static final ObjectAdapter<Fault.Code> FAULT_CODE = new ObjectAdapter<>(Fault.Code::new);
+    static {
+        FAULT_CODE.field("Value",   STRING,     o -> o.Value,   (o, v) -> o.Value   = v)
+                  .field("ValueNs", STRING,     o -> o.ValueNs, (o, v) -> o.ValueNs = v)
+                  .field("SubCode", FAULT_CODE, o -> o.SubCode, (o, v) -> o.SubCode = v);
+    }
+
+    static final ObjectAdapter<Fault.Details> FAULT_DETAILS = new ObjectAdapter<>(Fault.Details::new)
+        .field("FaultURL",      STRING, o -> o.FaultURL,      (o, v) -> o.FaultURL      = v)
+        .field("Hostname",      STRING, o -> o.Hostname,      (o, v) -> o.Hostname      = v)
+        .field("FaultNode",     STRING, o -> o.FaultNode,     (o, v) -> o.FaultNode     = v)
+        .field("HttpErrorCode", STRING, o -> o.HttpErrorCode, (o, v) -> o.HttpErrorCode = v);
+
+    static final ObjectAdapter<Fault> FAULT = new ObjectAdapter<>(Fault::new);
+    static {
+        FAULT.field("Code",          FAULT_CODE,    o -> o.Code,          (o, v) -> o.Code          = v)
+             .field("Reason",        STRING,        o -> o.Reason,        (o, v) -> o.Reason        = v)
+             .field("Node",          STRING,        o -> o.Node,          (o, v) -> o.Node          = v)
+             .field("Role",          STRING,        o -> o.Role,          (o, v) -> o.Role          = v)
+             .field("Detail",        STRING,        o -> o.Detail,        (o, v) -> o.Detail        = v)
+             .field("Details",       FAULT_DETAILS, o -> o.Details,       (o, v) -> o.Details       = v)
+             .field("Help",          STRING,        o -> o.Help,          (o, v) -> o.Help          = v)
+             .field("SessionID",     STRING,        o -> o.SessionID,     (o, v) -> o.SessionID     = v)
+             .field("RollbackFault", FAULT,         o -> o.RollbackFault, (o, v) -> o.RollbackFault = v);
+    }
+
+    static final ObjectAdapter<MSS_SignatureReq> SIGNATURE_REQ = message(new ObjectAdapter<>(MSS_SignatureReq::new)
+        .field("MessagingMode",     STRING,      o -> o.MessagingMode,     (o, v) -> o.MessagingMode     = v)
+        .field("ValidityDate",      STRING,      o -> o.ValidityDate,      (o, v) -> o.ValidityDate      = v)
+        .field("TimeOut",           STRING,      o -> o.TimeOut,           (o, v) -> o.TimeOut           = v)
+        .field("SignatureProfile",  STRING,      o -> o.SignatureProfile,  (o, v) -> o.SignatureProfile  = v)
+        .field("MobileUser",        MOBILE_USER, o -> o.MobileUser,        (o, v) -> o.MobileUser        = v)
+        .field("DataToBeSigned",    DATA,        o -> o.DataToBeSigned,    (o, v) -> o.DataToBeSigned    = v)
+        .field("DataToBeDisplayed", DATA,        o -> o.DataToBeDisplayed, (o, v) -> o.DataToBeDisplayed = v)
+        .list("AdditionalServices", ADDITIONAL_SERVICES, o -> o.AdditionalServices, (o, v) -> o.AdditionalServices = v)
+        .field("MSS_Format",        STRING,      o -> o.MSS_Format,        (o, v) -> o.MSS_Format        = v));
+
+    static final ObjectAdapter<MSS_SignatureResp> SIGNATURE_RESP = message(new ObjectAdapter<>(MSS_SignatureResp::new)
+        .field("MSSP_TransID",     STRING,      o -> o.MSSP_TransID,     (o, v) -> o.MSSP_TransID     = v)
+        .field("MobileUser",       MOBILE_USER, o -> o.MobileUser,       (o, v) -> o.MobileUser       = v)
+        .field("MSS_Signature",    SIGNATURE,   o -> o.MSS_Signature,    (o, v) -> o.MSS_Signature    = v)
+        .field("SignatureProfile", STRING,      o -> o.SignatureProfile, (o, v) -> o.SignatureProfile = v)
+        .field("Status",           STATUS,      o -> o.Status,           (o, v) -> o.Status           = v)
+        .list("ServiceResponses",  SERVICE_RESPONSES, o -> o.ServiceResponses, (o, v) -> o.ServiceResponses = v));
+
+    static final ObjectAdapter<MSS_StatusReq> STATUS_REQ = message(new ObjectAdapter<>(MSS_StatusReq::new)
+        .field("MSSP_TransID", STRING, o -> o.MSSP_TransID, (o, v) -> o.MSSP_TransID = v));
+
+    static final ObjectAdapter<MSS_StatusResp> STATUS_RESP = message(new ObjectAdapter<>(MSS_StatusResp::new)
+        .field("MobileUser",      MOBILE_USER, o -> o.MobileUser,    (o, v) -> o.MobileUser    = v)
+        .field("MSS_Signature",   SIGNATURE,   o -> o.MSS_Signature, (o, v) -> o.MSS_Signature = v)
+        .field("Status",          STATUS,      o -> o.Status,        (o, v) -> o.Status        = v)
+        .list("ServiceResponses", SERVICE_RESPONSES, o -> o.ServiceResponses, (o, v) -> o.ServiceResponses = v));
+
+    static final ObjectAdapter<MSS_ReceiptReq> RECEIPT_REQ = message(new ObjectAdapter<>(MSS_ReceiptReq::new)
+        .field("MSSP_TransID", STRING,      o -> o.MSSP_TransID, (o, v) -> o.MSSP_TransID = v)
+        .field("MobileUser",   MOBILE_USER, o -> o.MobileUser,   (o, v) -> o.MobileUser   = v)
+        .field("Status",       STATUS,      o -> o.Status,       (o, v) -> o.Status       = v));
+
+    static final ObjectAdapter<MSS_ReceiptResp> RECEIPT_RESP = message(new ObjectAdapter<>(MSS_ReceiptResp::new)
+        .field("Status",          STATUS, o -> o.Status, (o, v) -> o.Status = v)
+        .list("ServiceResponses", SERVICE_RESPONSES, o -> o.ServiceResponses, (o, v) -> o.ServiceResponses = v));
+
+    static final ObjectAdapter<MSS_ProfileReq> PROFILE_REQ = message(new ObjectAdapter<>(MSS_ProfileReq::new)
+        .field("MobileUser", MOBILE_USER, o -> o.MobileUser, (o, v) -> o.MobileUser = v)
+        .field("Params",     STRING,      o -> o.Params,     (o, v) -> o.Params     = v));
+
+    static final ObjectAdapter<MSS_ProfileResp> PROFILE_RESP = message(new ObjectAdapter<>(MSS_ProfileResp::new)
+        .list("SignatureProfile", STRING, o -> o.SignatureProfile, (o, v) -> o.SignatureProfile = v)
+        .field("Status",          STATUS, o -> o.Status,           (o, v) -> o.Status           = v));
+
+    static final ObjectAdapter<MSS_RegistrationReq> REGISTRATION_REQ = message(new ObjectAdapter<>(MSS_RegistrationReq::new)
+        .field("UseCase", USE_CASE, o -> o.UseCase, (o, v) -> o.UseCase = v));
+
+    static final ObjectAdapter<MSS_RegistrationResp> REGISTRATION_RESP = message(new ObjectAdapter<>(MSS_RegistrationResp::new)
+        .field("UseCase", USE_CASE, o -> o.UseCase, (o, v) -> o.UseCase = v)
+        .field("Status",  STATUS,   o -> o.Status,  (o, v) -> o.Status  = v));
+
+    static final ObjectAdapter<MSS_AbstractMessage> ABSTRACT_MESSAGE = message(new ObjectAdapter<>(MSS_AbstractMessage::new));
+
+    static final ObjectAdapter<JsonRequest> REQUEST = new ObjectAdapter<>(JsonRequest::new)
+        .field("MSS_SignatureReq",    SIGNATURE_REQ,    o -> o.MSS_SignatureReq,    (o, v) -> o.MSS_SignatureReq    = v)
+        .field("MSS_StatusReq",       STATUS_REQ,       o -> o.MSS_StatusReq,       (o, v) -> o.MSS_StatusReq       = v)
+        .field("MSS_ReceiptReq",      RECEIPT_REQ,      o -> o.MSS_ReceiptReq,      (o, v) -> o.MSS_ReceiptReq      = v)
+        .field("MSS_ProfileReq",      PROFILE_REQ,      o -> o.MSS_ProfileReq,      (o, v) -> o.MSS_ProfileReq      = v)
+        .field("MSS_RegistrationReq", REGISTRATION_REQ, o -> o.MSS_RegistrationReq, (o, v) -> o.MSS_RegistrationReq = v);
+
+    static final ObjectAdapter<JsonResponse> RESPONSE = new ObjectAdapter<>(JsonResponse::new)
+        .field("Fault",                FAULT,             o -> o.Fault,                (o, v) -> o.Fault                = v)
+        .field("MSS_SignatureResp",    SIGNATURE_RESP,    o -> o.MSS_SignatureResp,    (o, v) -> o.MSS_SignatureResp    = v)
+        .field("MSS_StatusResp",       STATUS_RESP,       o -> o.MSS_StatusResp,       (o, v) -> o.MSS_StatusResp       = v)
+        .field("MSS_ReceiptResp",      RECEIPT_RESP,      o -> o.MSS_ReceiptResp,      (o, v) -> o.MSS_ReceiptResp      = v)
+        .field("MSS_ProfileResp",      PROFILE_RESP,      o -> o.MSS_ProfileResp,      (o, v) -> o.MSS_ProfileResp      = v)
+        .field("MSS_RegistrationResp", REGISTRATION_RESP, o -> o.MSS_RegistrationResp, (o, v) -> o.MSS_RegistrationResp = v);
+
+    private static final Map<Class<?>, TypeAdapter<?>> ADAPTERS = new HashMap<>();
+    static {
+        ADAPTERS.put(AP_Info.class,                      AP_INFO);
+        ADAPTERS.put(JsonMeshMember.class,               MESH_MEMBER);
+        ADAPTERS.put(MSSP_Info.class,                    MSSP_INFO);
+        ADAPTERS.put(MobileUser.class,                   MOBILE_USER);
+        ADAPTERS.put(AdditionalServices.class,           ADDITIONAL_SERVICES);
+        ADAPTERS.put(MSS_Signature.class,                SIGNATURE);
+        ADAPTERS.put(MSS_SignatureReq.Data.class,        DATA);
+        ADAPTERS.put(Status.class,                       STATUS);
+        ADAPTERS.put(Status.StatusCode.class,            STATUS_CODE);
+        ADAPTERS.put(Status.StatusDetail.class,          STATUS_DETAIL);
+        ADAPTERS.put(Status.ProfileQueryExtension.class, PROFILE_QUERY_EXTENSION);
+        ADAPTERS.put(Status.MobileUserCertificate.class, MOBILE_USER_CERTIFICATE);
+        ADAPTERS.put(ServiceResponses.class,             SERVICE_RESPONSES);
+        ADAPTERS.put(Input.class,                        INPUT);
+        ADAPTERS.put(Output.class,                       OUTPUT);
+        ADAPTERS.put(Group.class,                        GROUP);
+        ADAPTERS.put(UseCase.class,                      USE_CASE);
+        ADAPTERS.put(Fault.class,                        FAULT);
+        ADAPTERS.put(Fault.Code.class,                   FAULT_CODE);
+        ADAPTERS.put(Fault.Details.class,                FAULT_DETAILS);
+        ADAPTERS.put(MSS_AbstractMessage.class,          ABSTRACT_MESSAGE);
+        ADAPTERS.put(MSS_SignatureReq.class,             SIGNATURE_REQ);
+        ADAPTERS.put(MSS_SignatureResp.class,            SIGNATURE_RESP);
+        ADAPTERS.put(MSS_StatusReq.class,                STATUS_REQ);
+        ADAPTERS.put(MSS_StatusResp.class,               STATUS_RESP);
+        ADAPTERS.put(MSS_ReceiptReq.class,               RECEIPT_REQ);
+        ADAPTERS.put(MSS_ReceiptResp.class,              RECEIPT_RESP);
+        ADAPTERS.put(MSS_ProfileReq.class,               PROFILE_REQ);
+        ADAPTERS.put(MSS_ProfileResp.class,              PROFILE_RESP);
+        ADAPTERS.put(MSS_RegistrationReq.class,          REGISTRATION_REQ);
+        ADAPTERS.put(MSS_RegistrationResp.class,         REGISTRATION_RESP);
+        ADAPTERS.put(JsonRequest.class,                  REQUEST);
+        ADAPTERS.put(JsonResponse.class,                 RESPONSE);
+    }
+
+    /**
+     * Factory that returns the compiled adapter for exact matches of the classes of this package.
+     * Subclasses fall back to Gson's reflective adapter.
+     */
+    public static final TypeAdapterFactory FACTORY = new TypeAdapterFactory() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+            return (TypeAdapter<T>) ADAPTERS.get(type.getRawType());
+        }
+    };
+
+    /**
+     * Shared Gson instance with the compiled adapters registered
+     */
+    public static final Gson GSON = new GsonBuilder().registerTypeAdapterFactory(FACTORY).create();
+
+    private JsonAdapters() {
+
+    }
+
+    /**
+     * Add the fields of {@link Param} to an adapter
+     */
+    @SuppressWarnings("deprecation")
+    private static <T extends Param> ObjectAdapter<T> param(final ObjectAdapter<T> adapter) {
+        return adapter.field("Name",     STRING,  o -> o.Name,     (o, v) -> o.Name     = v)
+                      .field("Value",    STRING,  o -> o.Value,    (o, v) -> o.Value    = v)
+                      .field("Required", BOOLEAN, o -> o.Required, (o, v) -> o.Required = v)
+                      .field("Tip",      STRING,  o -> o.Tip,      null)
+                      .field("Type",     STRING,  o -> o.Type,     (o, v) -> o.Type     = v)
+                      .field("Encoding", STRING,  o -> o.Encoding, (o, v) -> o.Encoding = v)
+                      .field("MimeType", STRING,  o -> o.MimeType, (o, v) -> o.MimeType = v);
+    }
+
+    /**
+     * Add the inherited fields of {@link MSS_AbstractMessage} to an adapter
+     */
+    private static <T extends MSS_AbstractMessage> ObjectAdapter<T> message(final ObjectAdapter<T> adapter) {
+        return adapter.field("MajorVersion", STRING,    o -> o.MajorVersion, (o, v) -> o.MajorVersion = v)
+                      .field("MinorVersion", STRING,    o -> o.MinorVersion, (o, v) -> o.MinorVersion = v)
+                      .field("AP_Info",      AP_INFO,   o -> o.AP_Info,      (o, v) -> o.AP_Info      = v)
+                      .field("MSSP_Info",    MSSP_INFO, o -> o.MSSP_Info,    (o, v) -> o.MSSP_Info    = v);
+    }
+
+    /**
+     * Adapter for one JSON object type. Fields are bound with getter and setter lambdas.
+     * A field without a setter is written but skipped when reading.
+     */
+    static final class ObjectAdapter<T> extends TypeAdapter<T> {
+
+        private final Supplier<T> constructor;
+        private final List<Binding<T>> fields = new ArrayList<>();
+        private final Map<String, Binding<T>> readable = new HashMap<>();
+
+        ObjectAdapter(final Supplier<T> constructor) {
+            this.constructor = constructor;
+        }
+
+        <V> ObjectAdapter<T> field(final String name,
+                                   final TypeAdapter<V> adapter,
+                                   final Function<T, V> getter,
+                                   final BiConsumer<T, V> setter)
+        {
+            Binding<T> binding = new Binding<T>() {
+                @Override
+                public boolean write(final JsonWriter out, final T obj) throws IOException {
+                    V value = getter.apply(obj);
+                    if (value == null) return false;
+                    out.name(name);
+                    adapter.write(out, value);
+                    return true;
+                }
+
+                @Override
+                public void read(final JsonReader in, final T obj) throws IOException {
+                    setter.accept(obj, adapter.read(in));
+                }
+            };
+            this.fields.add(binding);
+            if (setter != null) {
+                this.readable.put(name, binding);
+            }
+            return this;
+        }
+
+        <V> ObjectAdapter<T> list(final String name,
+                                  final TypeAdapter<V> adapter,
+                                  final Function<T, List<V>> getter,
+                                  final BiConsumer<T, List<V>> setter)
+        {
+            return this.field(name, new ListAdapter<>(adapter), getter, setter);
+        }
+
+        @Override
+        public void write(final JsonWriter out, final T value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            for (Binding<T> field : this.fields) {
+                field.write(out, value);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public T read(final JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            T obj = this.constructor.get();
+            in.beginObject();
+            while (in.hasNext()) {
+                Binding<T> field = this.readable.get(in.nextName());
+                if (field == null) {
+                    in.skipValue();
+                } else {
+                    field.read(in, obj);
+                }
+            }
+            in.endObject();
+            return obj;
+        }
+    }
+
+    /**
+     * Adapter for JSON arrays. Reads into an {@link ArrayList}.
+     */
+    static final class ListAdapter<V> extends TypeAdapter<List<V>> {
+
+        private final TypeAdapter<V> element;
+
+        ListAdapter(final TypeAdapter<V> element) {
+            this.element = element;
+        }
+
+        @Override
+        public void write(final JsonWriter out, final List<V> value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (V v : value) {
+                if (v == null) {
+                    out.nullValue();
+                } else {
+                    this.element.write(out, v);
+                }
+            }
+            out.endArray();
+        }
+
+        @Override
+        public List<V> read(final JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            List<V> list = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                list.add(this.element.read(in));
+            }
+            in.endArray();
+            return list;
+        }
+    }
+
+    private interface Binding<T> {
+        boolean write(JsonWriter out, T obj) throws IOException;
+        void read(JsonReader in, T obj) throws IOException;
+    }
+
+}
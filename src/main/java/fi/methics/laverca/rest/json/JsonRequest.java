@@ -3,16 +3,21 @@
 //
 package fi.methics.laverca.rest.json;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * JSON request base
  */
 public class JsonRequest {
     
-    protected static final Gson GSON = new GsonBuilder().create();
+    protected static final Gson GSON = JsonAdapters.GSON;
     
     @SerializedName("MSS_SignatureReq")
     public MSS_SignatureReq   MSS_SignatureReq;
@@ -52,10 +57,90 @@ public class JsonRequest {
         return RequestType.UNKNOWN;
     }
     
+    /**
+     * Get the TimeOut of this request
+     * @return timeout in milliseconds, or 0 if the request has no TimeOut
+     */
+    public long getTimeout() {
+        if (this.MSS_SignatureReq == null || this.MSS_SignatureReq.TimeOut == null) {
+            return 0;
+        }
+        try {
+            return Math.max(Long.parseLong(this.MSS_SignatureReq.TimeOut.trim()), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Get the MSISDN of the mobile user of this request
+     * @return MSISDN, or null if the request has no MobileUser
+     */
+    public String getMsisdn() {
+        MobileUser user = null;
+        if (this.MSS_SignatureReq != null) {
+            user = this.MSS_SignatureReq.MobileUser;
+        } else if (this.MSS_ProfileReq != null) {
+            user = this.MSS_ProfileReq.MobileUser;
+        }
+        return user != null ? user.MSISDN : null;
+    }
+    
+    /**
+     * Get the AP_TransID of this request
+     * @return AP_TransID, or null if the request is not an MSS_SignatureReq or has no AP_Info
+     */
+    public String getApTransId() {
+        if (this.MSS_SignatureReq == null || this.MSS_SignatureReq.AP_Info == null) {
+            return null;
+        }
+        return this.MSS_SignatureReq.AP_Info.AP_TransID;
+    }
+    
+    /**
+     * Get a key that identifies the signature asked by this request: AP, MSISDN, SignatureProfile,
+     * MSS_Format, DTBS and DTBD. Requests with equal keys ask the same user to sign the same data.
+     * The AP_TransID is not part of the key.
+     * @return signature key, or null if this is not an MSS_SignatureReq
+     */
+    public String getSignatureKey() {
+        final MSS_SignatureReq req = this.MSS_SignatureReq;
+        if (req == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(req.AP_Info != null ? req.AP_Info.AP_ID : null).append('\n')
+          .append(this.getMsisdn()).append('\n')
+          .append(req.SignatureProfile).append('\n')
+          .append(req.MSS_Format).append('\n')
+          .append(req.TimeOut).append('\n');
+        if (req.DataToBeSigned != null) {
+            sb.append(req.DataToBeSigned.MimeType).append('\n')
+              .append(req.DataToBeSigned.Encoding).append('\n')
+              .append(req.DataToBeSigned.Data);
+        }
+        sb.append('\n');
+        if (req.DataToBeDisplayed != null) {
+            sb.append(req.DataToBeDisplayed.Data);
+        }
+        return sb.toString();
+    }
+    
     public String toJson() {
         return GSON.toJson(this);
     }
     
+    /**
+     * Write this request as UTF-8 JSON to given stream
+     * @param os Output stream. The stream is flushed but not closed.
+     * @throws IOException if writing fails
+     */
+    public void writeTo(final OutputStream os) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        GSON.toJson(this, JsonRequest.class, writer);
+        writer.flush();
+    }
+    
     @Override
     public String toString() {
         return this.toJson();
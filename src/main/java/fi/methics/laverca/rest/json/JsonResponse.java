@@ -3,13 +3,17 @@
 //
 package fi.methics.laverca.rest.json;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
 
 public class JsonResponse {
         
-    protected static final Gson GSON = new GsonBuilder().create();
+    protected static final Gson GSON = JsonAdapters.GSON;
     
     @SerializedName("Fault")
     public Fault Fault;
@@ -37,6 +41,16 @@ public class JsonResponse {
         return GSON.fromJson(resp, JsonResponse.class);
     }
     
+    /**
+     * Parse a response directly from a UTF-8 JSON stream
+     * @param is Input stream. The stream is not closed.
+     * @return parsed response or null if the stream is empty
+     */
+    public static JsonResponse fromStream(InputStream is) {
+        JsonReader reader = new JsonReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        return GSON.fromJson(reader, JsonResponse.class);
+    }
+    
     /**
      * Get the JSON response type from this message
      * @return
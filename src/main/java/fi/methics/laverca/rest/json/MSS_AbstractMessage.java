@@ -4,12 +4,11 @@
 package fi.methics.laverca.rest.json;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.SerializedName;
 
 public class MSS_AbstractMessage {
 
-    protected static final Gson GSON = new GsonBuilder().create();
+    protected static final Gson GSON = JsonAdapters.GSON;
     
     @SerializedName("MajorVersion")
     public String MajorVersion;
@@ -13,6 +13,13 @@ public class MSS_ProfileReq extends MSS_AbstractMessage {
     @SerializedName("Params")
     public String Params; 
     
+    /**
+     * Constructor for JSON deserialization
+     */
+    MSS_ProfileReq() {
+        
+    }
+    
     public MSS_ProfileReq(final String msisdn) {
         this.MobileUser = new MobileUser();
         this.MobileUser.MSISDN = msisdn;
@@ -3,8 +3,15 @@
 //
 package fi.methics.laverca.rest.json;
 
+import static fi.methics.laverca.rest.json.AP_Info.DEFAULT_APPWD;
+
+import java.util.UUID;
+
 import com.google.gson.annotations.SerializedName;
 
+/**
+ * Receipt of a completed signature transaction. Tells the MSSP (and optionally the user) the outcome.
+ */
 public class MSS_ReceiptReq extends MSS_AbstractMessage {
 
     @SerializedName("MSSP_TransID")
@@ -16,4 +23,40 @@ public class MSS_ReceiptReq extends MSS_AbstractMessage {
     @SerializedName("Status")
     public Status Status;
 
+    public MSS_ReceiptReq() {
+        
+    }
+    
+    /**
+     * Create a receipt with a random AP_TransID and the default AP_PWD
+     * @param apid        AP_ID (may be null)
+     * @param msspTransId MSSP_TransID of the signature transaction
+     * @param msisdn      MSISDN of the user (may be null)
+     * @param message     Receipt message (may be null)
+     */
+    public MSS_ReceiptReq(final String apid, final String msspTransId, final String msisdn, final String message) {
+        this(apid, DEFAULT_APPWD, msspTransId, msisdn, message);
+    }
+
+    /**
+     * Create a receipt with a random AP_TransID
+     * @param apid        AP_ID (may be null)
+     * @param appwd       AP_PWD (may be null)
+     * @param msspTransId MSSP_TransID of the signature transaction
+     * @param msisdn      MSISDN of the user (may be null)
+     * @param message     Receipt message (may be null)
+     */
+    public MSS_ReceiptReq(final String apid, final String appwd, final String msspTransId, final String msisdn, final String message) {
+        this.MSSP_TransID = msspTransId;
+        this.AP_Info = new AP_Info(apid, appwd);
+        this.AP_Info.AP_TransID = "A" + UUID.randomUUID().toString();
+        if (msisdn != null) {
+            this.MobileUser = new MobileUser(msisdn);
+        }
+        if (message != null) {
+            this.Status = new Status();
+            this.Status.StatusMessage = message;
+        }
+    }
+
 }
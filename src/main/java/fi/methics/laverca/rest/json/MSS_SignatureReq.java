@@ -14,6 +14,13 @@ import fi.methics.laverca.rest.util.DTBS;
 
 public class MSS_SignatureReq extends MSS_AbstractMessage {
 
+    /** The MSSP answers when the user has signed. The connection is held open until then. */
+    public static final String MODE_SYNCH                = "synch";
+    /** The MSSP answers at once with an MSSP_TransID, and the AP polls the result with MSS_StatusReq */
+    public static final String MODE_ASYNCH_CLIENT_SERVER = "asynchClientServer";
+    /** The MSSP answers at once with an MSSP_TransID, and pushes the result to the AP's notification endpoint */
+    public static final String MODE_ASYNCH_SERVER_SERVER = "asynchServerServer";
+
     @SerializedName("MessagingMode")
     public String MessagingMode;
     
@@ -41,8 +48,15 @@ public class MSS_SignatureReq extends MSS_AbstractMessage {
     @SerializedName("MSS_Format")
     public String MSS_Format;
     
+    /**
+     * Constructor for JSON deserialization
+     */
+    MSS_SignatureReq() {
+        
+    }
+    
     public MSS_SignatureReq(final String msisdn, final DTBS dtbs, final String dtbd) {
-        this.MessagingMode = "synch";
+        this.MessagingMode = MODE_SYNCH;
         this.MobileUser = new MobileUser();
         this.MobileUser.MSISDN = msisdn;
         
@@ -39,8 +39,10 @@ import fi.methics.laverca.rest.util.X509Util;
  */
 public class MSS_SignatureResp extends MSS_AbstractMessage {
 
+    public static final String STATUS_REQUEST_OK      = "100";
     public static final String STATUS_SIGNATURE       = "500";
     public static final String STATUS_VALID_SIGNATURE = "502";
+    public static final String STATUS_OUTSTANDING     = "504";
     
     @SerializedName("MSSP_TransID")
     public String MSSP_TransID;
@@ -72,6 +74,17 @@ public class MSS_SignatureResp extends MSS_AbstractMessage {
         return Status.StatusCode.Value.equals(STATUS_SIGNATURE) || Status.StatusCode.Value.equals(STATUS_VALID_SIGNATURE);
     }
     
+    /**
+     * Check if this is an asynchClientServer acknowledgement or an outstanding transaction
+     * whose result must still be polled with MSS_StatusReq
+     * @return true if the StatusCode is 100 or 504 and the response has an MSSP_TransID
+     */
+    public boolean isPending() {
+        if (this.MSSP_TransID == null || this.MSS_Signature != null) return false;
+        if (this.Status == null || this.Status.StatusCode == null) return false;
+        return STATUS_REQUEST_OK.equals(this.Status.StatusCode.Value) || STATUS_OUTSTANDING.equals(this.Status.StatusCode.Value);
+    }
+    
     /**
      * Get the user's Subject DN from the signature (when using CMS)
      * @return Subject DN
@@ -3,11 +3,43 @@
 //
 package fi.methics.laverca.rest.json;
 
+import static fi.methics.laverca.rest.json.AP_Info.DEFAULT_APPWD;
+
+import java.util.UUID;
+
 import com.google.gson.annotations.SerializedName;
 
+/**
+ * Status query of an asynchClientServer signature transaction
+ */
 public class MSS_StatusReq extends MSS_AbstractMessage {
 
     @SerializedName("MSSP_TransID")
     public String MSSP_TransID;
 
+    public MSS_StatusReq() {
+        
+    }
+    
+    /**
+     * Create a status query with a random AP_TransID and the default AP_PWD
+     * @param apid        AP_ID (may be null)
+     * @param msspTransId MSSP_TransID from the acknowledgement of the signature request
+     */
+    public MSS_StatusReq(final String apid, final String msspTransId) {
+        this(apid, DEFAULT_APPWD, msspTransId);
+    }
+
+    /**
+     * Create a status query with a random AP_TransID
+     * @param apid        AP_ID (may be null)
+     * @param appwd       AP_PWD (may be null)
+     * @param msspTransId MSSP_TransID from the acknowledgement of the signature request
+     */
+    public MSS_StatusReq(final String apid, final String appwd, final String msspTransId) {
+        this.MSSP_TransID = msspTransId;
+        this.AP_Info = new AP_Info(apid, appwd);
+        this.AP_Info.AP_TransID = "A" + UUID.randomUUID().toString();
+    }
+
 }
@@ -0,0 +1,128 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runtime state and metrics of one bulkhead of {@link RestClient}
+ * @see BulkheadConfig
+ */
+public class Bulkhead {
+
+    private static final Log log = LogFactory.getLog(Bulkhead.class);
+
+    private final BulkheadConfig config;
+    private final LongAdder rejected = new LongAdder();
+
+    // guarded by this
+    private int active;
+    private int queued;
+
+    /**
+     * Create a new bulkhead
+     * @param config Bulkhead settings
+     */
+    public Bulkhead(final BulkheadConfig config) {
+        this.config = config;
+    }
+
+    public String getName() {
+        return this.config.getName();
+    }
+
+    public BulkheadConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * @return number of requests in flight
+     */
+    public synchronized int getActiveCount() {
+        return this.active;
+    }
+
+    /**
+     * @return number of requests waiting for room
+     */
+    public synchronized int getQueuedCount() {
+        return this.queued;
+    }
+
+    /**
+     * @return number of requests rejected because the bulkhead and its queue were full
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Enter the bulkhead before a request is sent
+     * @param block true to wait in the queue if the bulkhead is full
+     * @throws MssRestException with code {@link MssRestException#TOO_MANY_REQUESTS} if the bulkhead is full
+     */
+    void enter(final boolean block) throws MssRestException {
+        this.enter(block, this.config.getMaxWait());
+    }
+
+    /**
+     * Enter the bulkhead before a request is sent
+     * @param block   true to wait in the queue if the bulkhead is full
+     * @param maxWait longest wait in milliseconds, at most {@link BulkheadConfig#getMaxWait()}
+     * @throws MssRestException with code {@link MssRestException#TOO_MANY_REQUESTS} if the bulkhead is full
+     */
+    synchronized void enter(final boolean block, final long maxWait) throws MssRestException {
+        if (this.active < this.config.getMaxConcurrent()) {
+            this.active++;
+            return;
+        }
+        if (!block || this.queued >= this.config.getMaxQueue()) {
+            this.reject();
+        }
+        this.queued++;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(maxWait, this.config.getMaxWait()));
+            while (this.active >= this.config.getMaxConcurrent()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    this.reject();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            this.active++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.reject();
+        } finally {
+            this.queued--;
+        }
+    }
+
+    /**
+     * Leave the bulkhead after the request completed
+     */
+    synchronized void leave() {
+        this.active--;
+        this.notifyAll();
+    }
+
+    private void reject() throws MssRestException {
+        this.rejected.increment();
+        if (log.isDebugEnabled()) {
+            log.debug("Bulkhead " + this.getName() + " is full: " + this.active + " active, " + this.queued + " queued");
+        }
+        throw new MssRestException(MssRestException.TOO_MANY_REQUESTS, "Bulkhead " + this.getName() + " is full");
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Bulkhead [" + this.getName() + " active=" + this.active + "/" + this.config.getMaxConcurrent()
+             + ", queued=" + this.queued + ", rejected=" + this.rejected.sum() + "]";
+    }
+
+}
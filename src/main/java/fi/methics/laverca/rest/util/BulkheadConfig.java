@@ -0,0 +1,142 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * Settings of one bulkhead of {@link RestClient}.
+ * <p>A bulkhead gives a set of request types their own connection pools, a cap on requests
+ * in flight and a bounded wait queue. E.g. long-held synchronous MSS_SignatureReqs that wait
+ * for the user can then never take the connections and threads of fast MSS_ProfileReqs.
+ * Request types outside all bulkheads use the client's default pool without a cap.
+ * <p>Usage:
+ * <pre>
+ * BulkheadConfig signatures = BulkheadConfig.of("signature", RequestType.MSS_SignatureReq)
+ *                                           .withPool(new ConnectionPoolConfig().withMaxPerRoute(200).withMaxTotal(400))
+ *                                           .withMaxConcurrent(200)
+ *                                           .withMaxQueue(0);
+ * BulkheadConfig metadata   = BulkheadConfig.of("metadata", RequestType.MSS_ProfileReq, RequestType.MSS_StatusReq)
+ *                                           .withMaxConcurrent(20)
+ *                                           .withMaxQueue(100)
+ *                                           .withMaxWait(1000);
+ * </pre>
+ */
+public class BulkheadConfig {
+
+    public static final int  DEFAULT_MAX_CONCURRENT = 50;
+    public static final int  DEFAULT_MAX_QUEUE      = 0;
+    public static final long DEFAULT_MAX_WAIT       = 1000;
+
+    private final String name;
+    private final Set<RequestType> types;
+
+    private ConnectionPoolConfig poolConfig;
+    private int  maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int  maxQueue      = DEFAULT_MAX_QUEUE;
+    private long maxWait       = DEFAULT_MAX_WAIT;
+
+    /**
+     * Create a new bulkhead config
+     * @param name  Bulkhead name, used in metrics and logs
+     * @param types Request types in this bulkhead
+     * @throws IllegalArgumentException if the name is missing or {@link RestClient#DEFAULT_BULKHEAD}
+     */
+    public BulkheadConfig(final String name, final Set<RequestType> types) {
+        if (name == null || RestClient.DEFAULT_BULKHEAD.equals(name)) {
+            throw new IllegalArgumentException("Bulkhead name must not be " + name);
+        }
+        this.name  = name;
+        this.types = types.isEmpty() ? EnumSet.noneOf(RequestType.class) : EnumSet.copyOf(types);
+    }
+
+    /**
+     * Create a bulkhead for given request types
+     * @param name  Bulkhead name
+     * @param types Request types
+     * @return new config
+     */
+    public static BulkheadConfig of(final String name, final RequestType... types) {
+        EnumSet<RequestType> set = EnumSet.noneOf(RequestType.class);
+        Collections.addAll(set, types);
+        return new BulkheadConfig(name, set);
+    }
+
+    /**
+     * Set the connection pool of the bulkhead. Each REST URL gets its own pool with these settings.
+     * Default is the client's pool settings.
+     * <p>Each pool that sends async requests starts its own I/O reactor with
+     * {@link ConnectionPoolConfig#getIoThreads()} threads, so a bulkhead that serves few
+     * async requests may well do with {@code withIoThreads(1)}.
+     * @param poolConfig Connection pool settings
+     * @return this config
+     */
+    public BulkheadConfig withPool(ConnectionPoolConfig poolConfig) {
+        this.poolConfig = poolConfig;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of requests in flight in this bulkhead
+     * @param maxConcurrent requests
+     * @return this config
+     */
+    public BulkheadConfig withMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of blocking requests waiting for room in this bulkhead.
+     * Requests over the queue bound are rejected at once. Async requests never wait.
+     * @param maxQueue waiting requests
+     * @return this config
+     */
+    public BulkheadConfig withMaxQueue(int maxQueue) {
+        this.maxQueue = maxQueue;
+        return this;
+    }
+
+    /**
+     * Set how long a queued request waits before it is rejected
+     * @param maxWait wait in milliseconds
+     * @return this config
+     */
+    public BulkheadConfig withMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public Set<RequestType> getRequestTypes() {
+        return Collections.unmodifiableSet(this.types);
+    }
+
+    /**
+     * @return pool settings, or null to use the client's pool settings
+     */
+    public ConnectionPoolConfig getPoolConfig() {
+        return this.poolConfig;
+    }
+
+    public int getMaxConcurrent() {
+        return this.maxConcurrent;
+    }
+
+    public int getMaxQueue() {
+        return this.maxQueue;
+    }
+
+    public long getMaxWait() {
+        return this.maxWait;
+    }
+
+}
@@ -0,0 +1,378 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounded cache of the certificates of users, i.e. of ProfileQuery results by MSISDN.
+ * <p>One ProfileQuery returns the certificates of all SignatureProfiles of a user, so the cache keeps
+ * the whole result per MSISDN and answers both {@link #get(String)} and {@link #get(String, SignatureProfile)}.
+ * Concurrent misses of the same user share one ProfileQuery.
+ * <p>Results are kept for {@link CertificateCacheConfig#getTtl()}. A result that is used after
+ * {@link CertificateCacheConfig#getRefreshAfter()} is queried again in the background while the old
+ * one is still returned. Fault {@link MssRestException#UNKNOWN_USER}, an empty result and a missing
+ * SignatureProfile are cached for {@link CertificateCacheConfig#getNegativeTtl()}. Other failures are not cached.
+ * <p>When the cache is full, the least recently used users are evicted in a batch.
+ * <p>Cached {@link MssCertificate} objects are shared by all callers and must not be modified.
+ */
+public class CertificateCache {
+
+    private static final Log log = LogFactory.getLog(CertificateCache.class);
+
+    private final CertificateCacheConfig config;
+    private final Function<String, CompletableFuture<Map<SignatureProfile, MssCertificate>>> loader;
+
+    private final Map<String, Node> nodes    = new ConcurrentHashMap<>();
+    private final ReentrantLock     evicting = new ReentrantLock();
+
+    private final long ttl;
+    private final long refreshAfter;
+    private final long negativeTtl;
+
+    private final LongAdder hits         = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses       = new LongAdder();
+    private final LongAdder refreshes    = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder evictions    = new LongAdder();
+    private final LongAdder loads        = new LongAdder();
+    private final LongAdder loadTime     = new LongAdder(); // nanoseconds
+
+    /**
+     * @param config Cache settings
+     * @param loader Sends a ProfileQuery for an MSISDN and parses the certificates
+     */
+    public CertificateCache(final CertificateCacheConfig config,
+                            final Function<String, CompletableFuture<Map<SignatureProfile, MssCertificate>>> loader)
+    {
+        this.config       = config;
+        this.loader       = loader;
+        this.ttl          = TimeUnit.MILLISECONDS.toNanos(config.getTtl());
+        this.refreshAfter = TimeUnit.MILLISECONDS.toNanos(config.getRefreshAfter());
+        this.negativeTtl  = TimeUnit.MILLISECONDS.toNanos(config.getNegativeTtl());
+    }
+
+    public CertificateCacheConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * Get the certificates of a user
+     * @param msisdn Phone number of the user
+     * @return Future map of the user's certificates, or a failed future with the ProfileQuery error.
+     *         The map is shared and must not be modified.
+     */
+    public CompletableFuture<Map<SignatureProfile, MssCertificate>> get(final String msisdn) {
+        return this.lookup(msisdn, null);
+    }
+
+    /**
+     * Get the certificate of a SignatureProfile of a user
+     * @param msisdn           Phone number of the user
+     * @param signatureprofile SignatureProfile of the wanted certificate
+     * @return Future certificate. If the user does not have the SignatureProfile, completes with {@link MssCertificate#EMPTY}.
+     */
+    public CompletableFuture<MssCertificate> get(final String msisdn, final SignatureProfile signatureprofile) {
+        return this.lookup(msisdn, signatureprofile).thenApply(certs -> certs.getOrDefault(signatureprofile, MssCertificate.EMPTY));
+    }
+
+    /**
+     * Forget the certificates of a user, e.g. after the user got a new certificate
+     * @param msisdn Phone number of the user
+     */
+    public void invalidate(final String msisdn) {
+        this.nodes.remove(msisdn);
+    }
+
+    /**
+     * Forget all certificates
+     */
+    public void invalidateAll() {
+        this.nodes.clear();
+    }
+
+    /**
+     * @return number of users in the cache
+     */
+    public int size() {
+        return this.nodes.size();
+    }
+
+    /**
+     * @return number of lookups answered from the cache or by a ProfileQuery already in flight, negative ones included
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of lookups answered with a cached {@link MssRestException#UNKNOWN_USER} or missing SignatureProfile
+     */
+    public long getNegativeHitCount() {
+        return this.negativeHits.sum();
+    }
+
+    /**
+     * @return number of lookups that had to wait for a ProfileQuery
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return number of background refreshes
+     */
+    public long getRefreshCount() {
+        return this.refreshes.sum();
+    }
+
+    /**
+     * @return number of ProfileQueries that failed with an error that is not cached
+     */
+    public long getLoadFailureCount() {
+        return this.loadFailures.sum();
+    }
+
+    /**
+     * @return number of users evicted to keep the cache within its maximum size
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return number of ProfileQueries sent by this cache, refreshes included
+     */
+    public long getLoadCount() {
+        return this.loads.sum();
+    }
+
+    /**
+     * @return total time of the ProfileQueries in milliseconds
+     */
+    public long getTotalLoadTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.loadTime.sum());
+    }
+
+    /**
+     * @return average time of a ProfileQuery in milliseconds, 0 if none was sent
+     */
+    public double getAverageLoadTime() {
+        long n = this.loads.sum();
+        return n > 0 ? this.loadTime.sum() / 1e6 / n : 0;
+    }
+
+    /**
+     * Find the certificates of a user, or load them on a miss
+     * @param msisdn           Phone number of the user
+     * @param signatureprofile SignatureProfile that must be found in a result older than the negative TTL, or null
+     * @return Future map of certificates
+     */
+    private CompletableFuture<Map<SignatureProfile, MssCertificate>> lookup(final String msisdn, final SignatureProfile signatureprofile) {
+        final long now = System.nanoTime();
+        Node node = this.nodes.get(msisdn);
+        if (node != null && node.isFresh(now, signatureprofile)) {
+            this.hit(node, now, signatureprofile);
+            return node.value;
+        }
+        final Node created = new Node(msisdn, now);
+        node = this.nodes.compute(msisdn, (k, old) -> old != null && old.isFresh(now, signatureprofile) ? old : created);
+        if (node != created) {
+            this.hit(node, now, signatureprofile);
+            return node.value;
+        }
+        this.misses.increment();
+        this.load(msisdn, created);
+        if (this.nodes.size() > this.config.getMaxSize()) {
+            this.evict();
+        }
+        return created.value;
+    }
+
+    private void hit(final Node node, final long now, final SignatureProfile signatureprofile) {
+        this.hits.increment();
+        node.accessed = now;
+        CompletableFuture<Map<SignatureProfile, MssCertificate>> value = node.value;
+        if (!value.isDone()) {
+            return;
+        }
+        if (value.isCompletedExceptionally()) {
+            this.negativeHits.increment();
+            return;
+        }
+        Map<SignatureProfile, MssCertificate> certs = value.getNow(null);
+        if (certs.isEmpty() || signatureprofile != null && !certs.containsKey(signatureprofile)) {
+            this.negativeHits.increment();
+        }
+        if (now - node.loaded >= this.refreshAfter && node.refreshing.compareAndSet(false, true)) {
+            this.refresh(node);
+        }
+    }
+
+    /**
+     * Send the ProfileQuery of a missed user
+     */
+    private void load(final String msisdn, final Node node) {
+        final long start = System.nanoTime();
+        this.query(msisdn).whenComplete((certs, e) -> {
+            long now = System.nanoTime();
+            this.loadTime.add(now - start);
+            node.loaded = now;
+            if (e == null) {
+                node.expires = now + (certs.isEmpty() ? this.negativeTtl : this.ttl);
+                node.value.complete(certs);
+                return;
+            }
+            Throwable cause = unwrap(e);
+            if (isUnknownUser(cause)) {
+                node.expires = now + this.negativeTtl;
+            } else {
+                this.loadFailures.increment();
+                this.nodes.remove(msisdn, node);
+            }
+            node.value.completeExceptionally(cause);
+        });
+    }
+
+    /**
+     * Query a used user again in the background. The old result is returned until the new one arrives,
+     * and kept if the query fails.
+     */
+    private void refresh(final Node node) {
+        final String msisdn = node.msisdn;
+        this.refreshes.increment();
+        final long start = System.nanoTime();
+        this.query(msisdn).whenComplete((certs, e) -> {
+            long now = System.nanoTime();
+            this.loadTime.add(now - start);
+            if (e == null) {
+                node.value   = CompletableFuture.completedFuture(certs);
+                node.loaded  = now;
+                node.expires = now + (certs.isEmpty() ? this.negativeTtl : this.ttl);
+            } else {
+                Throwable cause = unwrap(e);
+                if (isUnknownUser(cause)) {
+                    CompletableFuture<Map<SignatureProfile, MssCertificate>> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(cause);
+                    node.value   = failed;
+                    node.loaded  = now;
+                    node.expires = now + this.negativeTtl;
+                } else {
+                    this.loadFailures.increment();
+                    log.debug("Refreshing certificates of " + msisdn + " failed", cause);
+                }
+            }
+            node.refreshing.set(false);
+        });
+    }
+
+    private CompletableFuture<Map<SignatureProfile, MssCertificate>> query(final String msisdn) {
+        this.loads.increment();
+        try {
+            return this.loader.apply(msisdn);
+        } catch (RuntimeException e) {
+            CompletableFuture<Map<SignatureProfile, MssCertificate>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Evict the least recently used users, and some more so that the next evictions are not right after this one
+     */
+    private void evict() {
+        if (!this.evicting.tryLock()) {
+            return;
+        }
+        try {
+            final int max    = this.config.getMaxSize();
+            final int excess = this.nodes.size() - max + max / 16;
+            if (excess <= 0) {
+                return;
+            }
+            final long now = System.nanoTime();
+            List<Node> lru = new ArrayList<>(this.nodes.values());
+            lru.sort(Comparator.comparingLong(n -> n.accessed - now));
+            int evicted = 0;
+            for (int i = 0; i < lru.size() && evicted < excess; i++) {
+                Node n = lru.get(i);
+                if (this.nodes.remove(n.msisdn, n)) {
+                    evicted++;
+                }
+            }
+            this.evictions.add(evicted);
+        } finally {
+            this.evicting.unlock();
+        }
+    }
+
+    private static Throwable unwrap(final Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static boolean isUnknownUser(final Throwable e) {
+        return e instanceof MssRestException && MssRestException.UNKNOWN_USER.equals(((MssRestException) e).getErrorCode());
+    }
+
+    @Override
+    public String toString() {
+        return "CertificateCache [size=" + this.size() + ", hits=" + this.getHitCount() + ", misses=" + this.getMissCount()
+             + ", refreshes=" + this.getRefreshCount() + ", evictions=" + this.getEvictionCount() + "]";
+    }
+
+    /**
+     * Cached ProfileQuery result of one user
+     */
+    private final class Node {
+
+        final String        msisdn;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        volatile CompletableFuture<Map<SignatureProfile, MssCertificate>> value = new CompletableFuture<>();
+        volatile long loaded;
+        volatile long expires;
+        volatile long accessed;
+
+        Node(final String msisdn, final long now) {
+            this.msisdn   = msisdn;
+            this.accessed = now;
+        }
+
+        /**
+         * @param now              Current System.nanoTime()
+         * @param signatureprofile SignatureProfile that must be found in a result older than the negative TTL, or null
+         * @return true if the node is still loading or can be used
+         */
+        boolean isFresh(final long now, final SignatureProfile signatureprofile) {
+            CompletableFuture<Map<SignatureProfile, MssCertificate>> v = this.value;
+            if (!v.isDone()) {
+                return true;
+            }
+            if (now - this.expires >= 0) {
+                return false;
+            }
+            if (signatureprofile == null || v.isCompletedExceptionally()) {
+                return true;
+            }
+            return v.getNow(null).containsKey(signatureprofile) || now - this.loaded < CertificateCache.this.negativeTtl;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Settings of the {@link CertificateCache} of user certificates.
+ * <p>A cached ProfileQuery result is used for the TTL. When it is used after the refresh time,
+ * it is queried again in the background, so users who sign often never wait for a ProfileQuery.
+ * Unknown users, users without certificates and SignatureProfiles a user does not have are
+ * cached for the shorter negative TTL.
+ * <p>Usage:
+ * <pre>
+ * CertificateCacheConfig config = new CertificateCacheConfig().withMaxSize(50000)
+ *                                                             .withTtl(15 * 60 * 1000);
+ * </pre>
+ * All time values are in milliseconds.
+ */
+public class CertificateCacheConfig {
+
+    public static final int  DEFAULT_MAX_SIZE      = 10000;
+    public static final long DEFAULT_TTL           = 600000; // 10 min
+    public static final long DEFAULT_REFRESH_AFTER = 480000; //  8 min
+    public static final long DEFAULT_NEGATIVE_TTL  = 60000;
+
+    private int  maxSize      = DEFAULT_MAX_SIZE;
+    private long ttl          = DEFAULT_TTL;
+    private long refreshAfter = DEFAULT_REFRESH_AFTER;
+    private long negativeTtl  = DEFAULT_NEGATIVE_TTL;
+
+    public CertificateCacheConfig() {
+
+    }
+
+    /**
+     * Set the maximum number of users in the cache. The least recently used ones are evicted first.
+     * @param maxSize users
+     * @return this config
+     */
+    public CertificateCacheConfig withMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Set how long a ProfileQuery result is used
+     * @param ttl time in milliseconds
+     * @return this config
+     */
+    public CertificateCacheConfig withTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * Set the age after which a used result is queried again in the background.
+     * Set to the TTL or more to disable refresh-ahead.
+     * @param refreshAfter time in milliseconds
+     * @return this config
+     */
+    public CertificateCacheConfig withRefreshAfter(long refreshAfter) {
+        this.refreshAfter = refreshAfter;
+        return this;
+    }
+
+    /**
+     * Set how long unknown users and missing certificates are cached
+     * @param negativeTtl time in milliseconds
+     * @return this config
+     */
+    public CertificateCacheConfig withNegativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+        return this;
+    }
+
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    public long getTtl() {
+        return this.ttl;
+    }
+
+    public long getRefreshAfter() {
+        return this.refreshAfter;
+    }
+
+    public long getNegativeTtl() {
+        return this.negativeTtl;
+    }
+
+}
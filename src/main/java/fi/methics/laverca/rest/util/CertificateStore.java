@@ -0,0 +1,209 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.io.ByteArrayInputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed store of parsed X.509 certificates.
+ * <p>The intermediate and root CA certificates of nearly all users are the same, so the chains of
+ * cached users would otherwise hold thousands of equal {@link X509Certificate} objects. The store
+ * keys each certificate by the SHA-256 of its DER encoding, parses each distinct certificate once
+ * and returns the same instance to every caller.
+ * <p>Certificates are held by weak references: a certificate stays in the store as long as some
+ * chain uses it, and is dropped by the garbage collector after that.
+ * <p>{@link X509Util#parseCertificate(String)} and {@link X509Util#DERtoX509Certificate(byte[])} use
+ * the {@link #getDefault() default store}.
+ */
+public class CertificateStore {
+
+    private static final CertificateStore DEFAULT = new CertificateStore();
+
+    private static final ThreadLocal<CertificateFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (CertificateException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Map<Key, Ref>                   certs   = new ConcurrentHashMap<>();
+    private final ReferenceQueue<X509Certificate> cleared = new ReferenceQueue<>();
+
+    private final LongAdder hits   = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CertificateStore() {
+
+    }
+
+    /**
+     * Get the store shared by all clients
+     * @return default store
+     */
+    public static CertificateStore getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Parse a DER certificate with a CertificateFactory of the calling thread, without interning it
+     * @param der DER encoded certificate
+     * @return certificate, or null if the input is not a certificate
+     */
+    public static X509Certificate parse(final byte[] der) {
+        try {
+            return (X509Certificate) FACTORY.get().generateCertificate(new ByteArrayInputStream(der));
+        } catch (CertificateException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the shared instance of a certificate
+     * @param der DER encoded certificate
+     * @return certificate, or null if the input is null or not a certificate
+     */
+    public X509Certificate intern(final byte[] der) {
+        if (der == null) {
+            return null;
+        }
+        final Key key = new Key(SHA256.get().digest(der));
+        Ref ref = this.certs.get(key);
+        X509Certificate cert = ref != null ? ref.get() : null;
+        if (cert != null) {
+            this.hits.increment();
+            return cert;
+        }
+        this.misses.increment();
+        this.expunge();
+        final X509Certificate parsed = parse(der);
+        if (parsed == null) {
+            return null;
+        }
+        final Ref created = new Ref(key, parsed, this.cleared);
+        while (true) {
+            ref = this.certs.putIfAbsent(key, created);
+            if (ref == null) {
+                return parsed;
+            }
+            cert = ref.get();
+            if (cert != null) {
+                return cert; // parsed by another thread meanwhile
+            }
+            if (this.certs.replace(key, ref, created)) {
+                return parsed;
+            }
+        }
+    }
+
+    /**
+     * Get the shared instance of a base64 encoded certificate
+     * @param base64 Base64 encoded DER certificate
+     * @return certificate, or null if the input is null or not a certificate
+     */
+    public X509Certificate intern(final String base64) {
+        if (base64 == null) {
+            return null;
+        }
+        try {
+            return this.intern(Base64.getDecoder().decode(base64));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return number of distinct certificates in the store, some of which may have been cleared already
+     */
+    public int size() {
+        this.expunge();
+        return this.certs.size();
+    }
+
+    /**
+     * @return number of lookups that returned an already parsed certificate
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of lookups that parsed the certificate
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Remove the entries of certificates that are no longer used
+     */
+    private void expunge() {
+        Ref ref;
+        while ((ref = (Ref) this.cleared.poll()) != null) {
+            this.certs.remove(ref.key, ref);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CertificateStore [size=" + this.certs.size() + ", hits=" + this.getHitCount() + ", misses=" + this.getMissCount() + "]";
+    }
+
+    /**
+     * SHA-256 of a DER certificate
+     */
+    private static final class Key {
+
+        private final byte[] digest;
+        private final int    hash;
+
+        Key(final byte[] digest) {
+            this.digest = digest;
+            this.hash   = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | digest[3] & 0xff;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof Key && Arrays.equals(this.digest, ((Key) obj).digest);
+        }
+
+    }
+
+    private static final class Ref extends WeakReference<X509Certificate> {
+
+        final Key key;
+
+        Ref(final Key key, final X509Certificate cert, final ReferenceQueue<X509Certificate> queue) {
+            super(cert, queue);
+            this.key = key;
+        }
+
+    }
+
+}
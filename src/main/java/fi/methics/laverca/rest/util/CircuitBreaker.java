@@ -0,0 +1,229 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Circuit breaker of one REST endpoint.
+ * <p>States:
+ * <ul>
+ * <li>{@link State#CLOSED}: requests are sent to the endpoint.
+ * <li>{@link State#OPEN}: the endpoint has failed. Requests go to other endpoints.
+ * <li>{@link State#HALF_OPEN}: a background probe is checking the endpoint.
+ *     A successful probe closes the breaker and a failed probe opens it again.
+ * </ul>
+ * The breaker opens after {@link CircuitBreakerConfig#getFailureThreshold()} consecutive failures.
+ * A response slower than the latency SLO counts as a failure.
+ * <p>All counters are cumulative and can be read at any time as metrics.
+ */
+public class CircuitBreaker {
+
+    private static final Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final CircuitBreakerConfig config;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final LongAdder successes     = new LongAdder();
+    private final LongAdder failures      = new LongAdder();
+    private final LongAdder slowCalls     = new LongAdder();
+    private final LongAdder shortCircuits = new LongAdder();
+    private final LongAdder opened        = new LongAdder();
+    private final LongAdder halfOpened    = new LongAdder();
+    private final LongAdder closed        = new LongAdder();
+    private final LongAdder probeFailures = new LongAdder();
+
+    private volatile long stateSince = System.currentTimeMillis();
+
+    /**
+     * Create a new closed breaker
+     * @param name   Breaker name (endpoint URL)
+     * @param config Breaker settings
+     */
+    public CircuitBreaker(final String name, final CircuitBreakerConfig config) {
+        this.name   = name;
+        this.config = config;
+    }
+
+    /**
+     * Check if requests may be sent to the endpoint
+     * @return true if the breaker is closed or disabled
+     */
+    public boolean isCallPermitted() {
+        return !this.config.isEnabled() || this.state.get() == State.CLOSED;
+    }
+
+    /**
+     * Record a successful call
+     * @param latency  Call latency in milliseconds
+     * @param checkSlo true if the latency SLO applies to this call
+     * @return true if this call opened the breaker
+     */
+    public boolean recordSuccess(final long latency, final boolean checkSlo) {
+        long slo = this.config.getLatencySlo();
+        if (checkSlo && slo >= 0 && latency > slo) {
+            this.slowCalls.increment();
+            log.debug(this.name + " responded in " + latency + " ms (SLO " + slo + " ms)");
+            return this.recordFailure();
+        }
+        this.successes.increment();
+        this.consecutiveFailures.set(0);
+        return false;
+    }
+
+    /**
+     * Record a failed call
+     * @return true if this call opened the breaker
+     */
+    public boolean recordFailure() {
+        this.failures.increment();
+        int n = this.consecutiveFailures.incrementAndGet();
+        if (this.config.isEnabled() && n >= this.config.getFailureThreshold()) {
+            return this.transition(State.CLOSED, State.OPEN);
+        }
+        return false;
+    }
+
+    /**
+     * Record a request that skipped this endpoint because the breaker was not closed
+     */
+    public void recordShortCircuit() {
+        this.shortCircuits.increment();
+    }
+
+    /**
+     * Move an open breaker to half-open before a probe
+     * @return true if the caller should probe the endpoint
+     */
+    boolean tryHalfOpen() {
+        return this.transition(State.OPEN, State.HALF_OPEN);
+    }
+
+    /**
+     * Record the result of a probe started with {@link #tryHalfOpen()}
+     * @param success true if the endpoint responded
+     */
+    void recordProbe(final boolean success) {
+        if (success) {
+            this.consecutiveFailures.set(0);
+            this.transition(State.HALF_OPEN, State.CLOSED);
+        } else {
+            this.probeFailures.increment();
+            this.transition(State.HALF_OPEN, State.OPEN);
+        }
+    }
+
+    private boolean transition(final State from, final State to) {
+        if (!this.state.compareAndSet(from, to)) {
+            return false;
+        }
+        this.stateSince = System.currentTimeMillis();
+        switch (to) {
+        case OPEN:
+            if (from == State.CLOSED) {
+                this.opened.increment();
+                log.warn("Circuit breaker of " + this.name + " opened after " + this.consecutiveFailures.get() + " consecutive failures");
+            }
+            break;
+        case HALF_OPEN:
+            this.halfOpened.increment();
+            break;
+        case CLOSED:
+        default:
+            this.closed.increment();
+            log.info("Circuit breaker of " + this.name + " closed");
+            break;
+        }
+        return true;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public State getState() {
+        return this.state.get();
+    }
+
+    /**
+     * @return time of the latest state transition (epoch millis)
+     */
+    public long getStateSince() {
+        return this.stateSince;
+    }
+
+    public int getConsecutiveFailures() {
+        return this.consecutiveFailures.get();
+    }
+
+    public long getSuccessCount() {
+        return this.successes.sum();
+    }
+
+    /**
+     * @return failed calls, including slow calls
+     */
+    public long getFailureCount() {
+        return this.failures.sum();
+    }
+
+    public long getSlowCallCount() {
+        return this.slowCalls.sum();
+    }
+
+    public long getShortCircuitCount() {
+        return this.shortCircuits.sum();
+    }
+
+    /**
+     * @return number of CLOSED to OPEN transitions
+     */
+    public long getOpenCount() {
+        return this.opened.sum();
+    }
+
+    /**
+     * @return number of probes started
+     */
+    public long getHalfOpenCount() {
+        return this.halfOpened.sum();
+    }
+
+    /**
+     * @return number of HALF_OPEN to CLOSED transitions
+     */
+    public long getCloseCount() {
+        return this.closed.sum();
+    }
+
+    public long getProbeFailureCount() {
+        return this.probeFailures.sum();
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " " + this.state.get()
+             + " [successes=" + this.getSuccessCount()
+             + ", failures=" + this.getFailureCount()
+             + ", slow=" + this.getSlowCallCount()
+             + ", shortCircuits=" + this.getShortCircuitCount()
+             + ", opened=" + this.getOpenCount()
+             + ", closed=" + this.getCloseCount() + "]";
+    }
+
+}
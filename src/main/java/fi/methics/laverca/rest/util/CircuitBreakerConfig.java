@@ -0,0 +1,103 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Settings of the per-endpoint {@link CircuitBreaker CircuitBreakers} used by {@link RestClient}.
+ * <p>Usage:
+ * <pre>
+ * CircuitBreakerConfig config = new CircuitBreakerConfig().withFailureThreshold(5)
+ *                                                         .withLatencySlo(2000)
+ *                                                         .withProbeInterval(5000);
+ * </pre>
+ * All time values are in milliseconds.
+ */
+public class CircuitBreakerConfig {
+
+    public static final int  DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_LATENCY_SLO       = -1;    // disabled
+    public static final long DEFAULT_PROBE_INTERVAL    = 5000;  // 5 s
+    public static final int  DEFAULT_PROBE_TIMEOUT     = 2000;  // 2 s
+
+    private int  failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long latencySlo       = DEFAULT_LATENCY_SLO;
+    private long probeInterval    = DEFAULT_PROBE_INTERVAL;
+    private int  probeTimeout     = DEFAULT_PROBE_TIMEOUT;
+
+    public CircuitBreakerConfig() {
+
+    }
+
+    /**
+     * Create a config that never opens the breaker.
+     * Requests always try the primary URL first.
+     * @return disabled config
+     */
+    public static CircuitBreakerConfig disabled() {
+        return new CircuitBreakerConfig().withFailureThreshold(0);
+    }
+
+    /**
+     * Set the number of consecutive failures that opens the breaker.
+     * Zero or negative disables the breaker.
+     * @param failureThreshold consecutive failures
+     * @return this config
+     */
+    public CircuitBreakerConfig withFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /**
+     * Set the latency SLO. A response slower than this counts as a failure.
+     * <p>The SLO is not applied to MSS_SignatureReq, since its latency depends on the user.
+     * @param latencySlo latency in milliseconds. Negative disables the SLO.
+     * @return this config
+     */
+    public CircuitBreakerConfig withLatencySlo(long latencySlo) {
+        this.latencySlo = latencySlo;
+        return this;
+    }
+
+    /**
+     * Set the interval of background probes sent to an open endpoint
+     * @param probeInterval interval in milliseconds
+     * @return this config
+     */
+    public CircuitBreakerConfig withProbeInterval(long probeInterval) {
+        this.probeInterval = probeInterval;
+        return this;
+    }
+
+    /**
+     * Set the connect and read timeout of a probe
+     * @param probeTimeout timeout in milliseconds
+     * @return this config
+     */
+    public CircuitBreakerConfig withProbeTimeout(int probeTimeout) {
+        this.probeTimeout = probeTimeout;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return this.failureThreshold > 0;
+    }
+
+    public int getFailureThreshold() {
+        return this.failureThreshold;
+    }
+
+    public long getLatencySlo() {
+        return this.latencySlo;
+    }
+
+    public long getProbeInterval() {
+        return this.probeInterval;
+    }
+
+    public int getProbeTimeout() {
+        return this.probeTimeout;
+    }
+
+}
@@ -0,0 +1,252 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * Settings of the adaptive concurrency limit of {@link RestClient}.
+ * <p>Each request type has its own limit of requests in flight. The limit grows while
+ * the MSSP answers quickly and shrinks when it slows down or fails, so a degraded MSSP
+ * gets less load and callers fail fast instead of piling up in blocked threads.
+ * Requests over the limit wait up to {@link #getMaxWait()} and are then rejected with
+ * {@link MssRestException#TOO_MANY_REQUESTS}.
+ * <p>Usage:
+ * <pre>
+ * ConcurrencyLimitConfig config = new ConcurrencyLimitConfig().withAlgorithm(Algorithm.GRADIENT)
+ *                                                             .withLimits(RequestType.MSS_SignatureReq, 100, 1000)
+ *                                                             .withMaxWait(50);
+ * </pre>
+ * The limit is off by default. All time values are in milliseconds.
+ */
+public class ConcurrencyLimitConfig {
+
+    public static final int    DEFAULT_INITIAL_LIMIT     = 20;
+    public static final int    DEFAULT_MIN_LIMIT         = 1;
+    public static final int    DEFAULT_MAX_LIMIT         = 200;
+    public static final double DEFAULT_BACKOFF_RATIO     = 0.9;
+    public static final long   DEFAULT_LATENCY_THRESHOLD = 2000;
+    public static final double DEFAULT_RTT_TOLERANCE     = 2.0;
+    public static final double DEFAULT_SMOOTHING         = 0.2;
+    public static final long   DEFAULT_RTT_WINDOW        = 30000; // 30 s
+    public static final long   DEFAULT_MAX_WAIT          = 0;     // reject at once
+
+    private Algorithm algorithm        = Algorithm.AIMD;
+    private int       initialLimit     = DEFAULT_INITIAL_LIMIT;
+    private int       minLimit         = DEFAULT_MIN_LIMIT;
+    private int       maxLimit         = DEFAULT_MAX_LIMIT;
+    private double    backoffRatio     = DEFAULT_BACKOFF_RATIO;
+    private long      latencyThreshold = DEFAULT_LATENCY_THRESHOLD;
+    private double    rttTolerance     = DEFAULT_RTT_TOLERANCE;
+    private double    smoothing        = DEFAULT_SMOOTHING;
+    private long      rttWindow        = DEFAULT_RTT_WINDOW;
+    private long      maxWait          = DEFAULT_MAX_WAIT;
+
+    private final Map<RequestType, Integer> initialLimits = new EnumMap<>(RequestType.class);
+    private final Map<RequestType, Integer> maxLimits     = new EnumMap<>(RequestType.class);
+
+    public ConcurrencyLimitConfig() {
+
+    }
+
+    /**
+     * Create a config without a limit. This is the default of {@link RestClient}.
+     * @return disabled config
+     */
+    public static ConcurrencyLimitConfig disabled() {
+        return new ConcurrencyLimitConfig().withInitialLimit(0);
+    }
+
+    /**
+     * Set the algorithm that adjusts the limit
+     * @param algorithm limit algorithm
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withAlgorithm(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        return this;
+    }
+
+    /**
+     * Set the limit each request type starts with. Zero or negative disables the limit.
+     * @param initialLimit requests in flight
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    /**
+     * Set the range the limit is kept in
+     * @param minLimit lowest limit
+     * @param maxLimit highest limit
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withLimitRange(int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    /**
+     * Set the initial and highest limit of one request type.
+     * E.g. synchronous MSS_SignatureReqs wait for the user and need a higher limit than MSS_ProfileReqs.
+     * @param type         Request type
+     * @param initialLimit limit the type starts with
+     * @param maxLimit     highest limit of the type
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withLimits(RequestType type, int initialLimit, int maxLimit) {
+        this.initialLimits.put(type, initialLimit);
+        this.maxLimits.put(type, maxLimit);
+        return this;
+    }
+
+    /**
+     * Set the factor the limit is multiplied with when the MSSP is overloaded
+     * @param backoffRatio factor between 0 and 1
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * Set the latency over which {@link Algorithm#AIMD} treats a response as an overload signal
+     * @param latencyThreshold latency in milliseconds
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withLatencyThreshold(long latencyThreshold) {
+        this.latencyThreshold = latencyThreshold;
+        return this;
+    }
+
+    /**
+     * Set how much {@link Algorithm#GRADIENT} lets latency grow over the lowest seen latency
+     * before it starts to lower the limit
+     * @param rttTolerance ratio, at least 1
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withRttTolerance(double rttTolerance) {
+        this.rttTolerance = rttTolerance;
+        return this;
+    }
+
+    /**
+     * Set the weight of a new {@link Algorithm#GRADIENT} estimate in the limit
+     * @param smoothing weight between 0 and 1
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    /**
+     * Set how long {@link Algorithm#GRADIENT} keeps the lowest seen latency.
+     * The lowest latency is measured again after this time, so that a lasting
+     * change of the MSSP or network is learnt.
+     * @param rttWindow time in milliseconds
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withRttWindow(long rttWindow) {
+        this.rttWindow = rttWindow;
+        return this;
+    }
+
+    /**
+     * Set how long a blocking request waits for room under the limit before it is rejected.
+     * Async requests never wait.
+     * @param maxWait wait in milliseconds
+     * @return this config
+     */
+    public ConcurrencyLimitConfig withMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return this.initialLimit > 0;
+    }
+
+    public Algorithm getAlgorithm() {
+        return this.algorithm;
+    }
+
+    public int getInitialLimit() {
+        return this.initialLimit;
+    }
+
+    /**
+     * @param type Request type
+     * @return initial limit of the type
+     */
+    public int getInitialLimit(RequestType type) {
+        return this.initialLimits.getOrDefault(type, this.initialLimit);
+    }
+
+    public int getMinLimit() {
+        return this.minLimit;
+    }
+
+    public int getMaxLimit() {
+        return this.maxLimit;
+    }
+
+    /**
+     * @param type Request type
+     * @return highest limit of the type
+     */
+    public int getMaxLimit(RequestType type) {
+        return this.maxLimits.getOrDefault(type, this.maxLimit);
+    }
+
+    public double getBackoffRatio() {
+        return this.backoffRatio;
+    }
+
+    public long getLatencyThreshold() {
+        return this.latencyThreshold;
+    }
+
+    public double getRttTolerance() {
+        return this.rttTolerance;
+    }
+
+    public double getSmoothing() {
+        return this.smoothing;
+    }
+
+    public long getRttWindow() {
+        return this.rttWindow;
+    }
+
+    public long getMaxWait() {
+        return this.maxWait;
+    }
+
+    /**
+     * Limit algorithm
+     */
+    public static enum Algorithm {
+        /**
+         * Additive increase, multiplicative decrease. The limit grows by one per round of
+         * successful requests and is cut by the backoff ratio on a failure or a response
+         * slower than the latency threshold.
+         */
+        AIMD,
+        /**
+         * Gradient of the latency. The limit follows the ratio of the lowest seen latency to
+         * the current latency, so it shrinks as soon as requests start to queue at the MSSP.
+         * Failures cut the limit as in AIMD.
+         */
+        GRADIENT
+    }
+
+}
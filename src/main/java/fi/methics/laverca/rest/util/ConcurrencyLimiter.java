@@ -0,0 +1,321 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * Adaptive limit of requests in flight of a {@link RestClient}, kept separately per request type.
+ * <p>Every request takes a {@link Permit} before it is sent and returns it with its outcome.
+ * Connection failures and MSSP faults 780 and 900 are overload signals that cut the limit.
+ * Latency adjusts the limit as configured in {@link ConcurrencyLimitConfig#getAlgorithm()}.
+ * <p>The latency of a synchronous MSS_SignatureReq is mostly the user's time on the phone,
+ * so it is not used as a load signal. MSS_SignatureReq limits react to failures only.
+ * @see ConcurrencyLimitConfig
+ */
+public class ConcurrencyLimiter {
+
+    private static final Log log = LogFactory.getLog(ConcurrencyLimiter.class);
+
+    private static final Permit NOOP = new Permit(null, 0);
+
+    private final ConcurrencyLimitConfig config;
+    private final Map<RequestType, Limit> limits = new EnumMap<>(RequestType.class);
+
+    /**
+     * Create a new limiter
+     * @param config Limit settings
+     */
+    public ConcurrencyLimiter(final ConcurrencyLimitConfig config) {
+        this.config = config;
+        for (RequestType type : RequestType.values()) {
+            this.limits.put(type, new Limit(type, config));
+        }
+    }
+
+    /**
+     * Take a permit to send a request
+     * @param type     Request type
+     * @param block    true to wait up to {@link ConcurrencyLimitConfig#getMaxWait()} for room under the limit
+     * @param deadline Deadline of the request that also bounds the wait, or null
+     * @return permit to release when the request completes
+     * @throws MssRestException with code {@link MssRestException#TOO_MANY_REQUESTS} if the limit is reached
+     */
+    Permit acquire(final RequestType type, final boolean block, final Deadline deadline) throws MssRestException {
+        if (!this.config.isEnabled()) {
+            return NOOP;
+        }
+        Limit limit = this.limits.get(type);
+        long maxWait = block ? this.config.getMaxWait() : 0;
+        if (deadline != null) {
+            maxWait = Math.min(maxWait, deadline.remaining());
+        }
+        boolean acquired;
+        try {
+            acquired = limit.acquire(maxWait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            limit.rejected.increment();
+            if (log.isDebugEnabled()) {
+                log.debug("Rejected " + type + ": " + limit.getInFlight() + " requests in flight, limit " + limit.getLimit());
+            }
+            throw new MssRestException(MssRestException.TOO_MANY_REQUESTS, "Too many " + type + " requests in flight");
+        }
+        return new Permit(limit, System.nanoTime());
+    }
+
+    /**
+     * @param type Request type
+     * @return current limit of requests in flight
+     */
+    public int getLimit(final RequestType type) {
+        return this.limits.get(type).getLimit();
+    }
+
+    /**
+     * @param type Request type
+     * @return number of requests in flight
+     */
+    public int getInFlight(final RequestType type) {
+        return this.limits.get(type).getInFlight();
+    }
+
+    /**
+     * @param type Request type
+     * @return number of requests rejected over the limit
+     */
+    public long getRejectedCount(final RequestType type) {
+        return this.limits.get(type).rejected.sum();
+    }
+
+    /**
+     * @return number of requests of all types rejected over the limit
+     */
+    public long getRejectedCount() {
+        long count = 0;
+        for (Limit limit : this.limits.values()) {
+            count += limit.rejected.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @param type Request type
+     * @return number of overload signals (failures and slow responses) that cut the limit
+     */
+    public long getDropCount(final RequestType type) {
+        return this.limits.get(type).drops.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ConcurrencyLimiter [");
+        String sep = "";
+        for (Limit limit : this.limits.values()) {
+            if (limit.rejected.sum() == 0 && limit.getInFlight() == 0 && limit.drops.sum() == 0) {
+                continue;
+            }
+            sb.append(sep).append(limit);
+            sep = ", ";
+        }
+        return sb.append("]").toString();
+    }
+
+    /**
+     * Room for one request under the limit
+     */
+    static class Permit {
+
+        private final Limit limit;
+        private final long  start;
+        private boolean released;
+
+        private Permit(final Limit limit, final long start) {
+            this.limit = limit;
+            this.start = start;
+        }
+
+        /**
+         * Return the permit with the outcome of the request. Only the first call has an effect.
+         * @param failure Failure of the request, or null if the MSSP answered
+         */
+        void release(final MssRestException failure) {
+            if (!this.take()) {
+                return;
+            }
+            long rtt = System.nanoTime() - this.start;
+            if (failure != null && MssRestException.CANCELLED.equals(failure.getErrorCode())) {
+                this.limit.onCancel(); // cut short by the caller, says nothing about the MSSP
+            } else if (failure == null || !isOverload(failure)) {
+                this.limit.onSample(rtt);
+            } else {
+                this.limit.onDrop();
+            }
+        }
+
+        /**
+         * Return the permit of a request that was not sent after all, without adjusting the limit
+         */
+        void cancel() {
+            if (this.take()) {
+                this.limit.onCancel();
+            }
+        }
+
+        private synchronized boolean take() {
+            if (this.limit == null || this.released) {
+                return false;
+            }
+            this.released = true;
+            return true;
+        }
+
+        private static boolean isOverload(final MssRestException e) {
+            return e instanceof ConnectionFailedException
+                || MssRestException.UNABLE_TO_PROVIDE_SERVICES.equals(e.getErrorCode())
+                || MssRestException.INTERNAL_ERROR.equals(e.getErrorCode());
+        }
+
+    }
+
+    /**
+     * Limit state of one request type
+     */
+    private static class Limit {
+
+        private final RequestType type;
+        private final ConcurrencyLimitConfig config;
+        private final boolean usesLatency;
+        private final int     minLimit;
+        private final int     maxLimit;
+
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder drops    = new LongAdder();
+
+        // guarded by this
+        private double limit;
+        private int    inFlight;
+        private long   minRtt = Long.MAX_VALUE;
+        private long   minRttStamp;
+
+        Limit(final RequestType type, final ConcurrencyLimitConfig config) {
+            this.type        = type;
+            this.config      = config;
+            this.usesLatency = type != RequestType.MSS_SignatureReq;
+            this.maxLimit    = Math.max(config.getMaxLimit(type), 1);
+            this.minLimit    = Math.max(Math.min(config.getMinLimit(), this.maxLimit), 1);
+            this.limit       = Math.max(Math.min(config.getInitialLimit(type), this.maxLimit), this.minLimit);
+        }
+
+        synchronized int getLimit() {
+            return (int) this.limit;
+        }
+
+        synchronized int getInFlight() {
+            return this.inFlight;
+        }
+
+        synchronized boolean acquire(final long maxWait) throws InterruptedException {
+            if (this.inFlight < (int) this.limit) {
+                this.inFlight++;
+                return true;
+            }
+            if (maxWait <= 0) {
+                return false;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+            while (this.inFlight >= (int) this.limit) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            this.inFlight++;
+            return true;
+        }
+
+        /**
+         * Adjust the limit after a request the MSSP answered
+         * @param rtt Latency in nanoseconds
+         */
+        synchronized void onSample(final long rtt) {
+            // Grow only when the limit is in use. Light traffic says nothing about capacity.
+            boolean limited = this.inFlight * 2 >= this.limit;
+            this.inFlight--;
+            if (!this.usesLatency) {
+                if (limited) this.increase();
+            } else if (this.config.getAlgorithm() == ConcurrencyLimitConfig.Algorithm.GRADIENT) {
+                this.gradient(rtt, limited);
+            } else if (TimeUnit.NANOSECONDS.toMillis(rtt) > this.config.getLatencyThreshold()) {
+                this.decrease();
+            } else if (limited) {
+                this.increase();
+            }
+            this.notifyAll();
+        }
+
+        /**
+         * Free the slot of a request cancelled by the caller without adjusting the limit
+         */
+        synchronized void onCancel() {
+            this.inFlight--;
+            this.notifyAll();
+        }
+
+        /**
+         * Cut the limit after an overload signal
+         */
+        synchronized void onDrop() {
+            this.inFlight--;
+            this.decrease();
+            this.notifyAll();
+        }
+
+        private void increase() {
+            this.limit = Math.min(this.limit + 1 / this.limit, this.maxLimit);
+        }
+
+        private void decrease() {
+            this.drops.increment();
+            this.limit = Math.max(this.limit * this.config.getBackoffRatio(), this.minLimit);
+        }
+
+        private void gradient(final long rtt, final boolean limited) {
+            long now = System.currentTimeMillis();
+            if (now - this.minRttStamp > this.config.getRttWindow()) {
+                this.minRtt = Long.MAX_VALUE; // measure the unloaded latency again
+                this.minRttStamp = now;
+            }
+            this.minRtt = Math.min(this.minRtt, Math.max(rtt, 1));
+            double gradient = Math.max(0.5, Math.min(1.0, this.config.getRttTolerance() * this.minRtt / rtt));
+            double queue    = Math.sqrt(this.limit);
+            double estimate = this.limit * gradient + queue;
+            if (estimate > this.limit && !limited) {
+                return;
+            }
+            double smoothing = this.config.getSmoothing();
+            double next = this.limit * (1 - smoothing) + estimate * smoothing;
+            this.limit  = Math.max(Math.min(next, this.maxLimit), this.minLimit);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return this.type + "=" + this.inFlight + "/" + (int) this.limit + " rejected=" + this.rejected.sum();
+        }
+
+    }
+
+}
@@ -0,0 +1,56 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * No REST endpoint answered a request.
+ * <p>Tells whether the request may have reached the MSSP. A request that failed
+ * only while connecting was never sent and can be retried safely, even if it is
+ * not idempotent.
+ */
+public class ConnectionFailedException extends MssRestException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean delivered;
+
+    /**
+     * Create a new exception
+     * @param msg       Error message
+     * @param delivered false if no endpoint received the request
+     */
+    public ConnectionFailedException(final String msg, final boolean delivered) {
+        super(UNABLE_TO_PROVIDE_SERVICES, msg);
+        this.delivered = delivered;
+    }
+
+    /**
+     * @return true if the request may have reached the MSSP
+     */
+    public boolean isDelivered() {
+        return this.delivered;
+    }
+
+    /**
+     * Check if a failure happened before the request was sent
+     * (connect failure, connect timeout or connection pool timeout)
+     * @param t Failure
+     * @return true if the request was not sent
+     */
+    public static boolean isConnectFailure(final Throwable t) {
+        return t instanceof ConnectException
+            || t instanceof ConnectTimeoutException
+            || t instanceof UnknownHostException
+            || t instanceof NoRouteToHostException
+            || t instanceof TimeoutException;
+    }
+
+}
@@ -0,0 +1,156 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * HTTP connection pool settings used by {@link RestSocketFactory}.
+ * <p>Usage:
+ * <pre>
+ * ConnectionPoolConfig config = new ConnectionPoolConfig().withMaxTotal(200)
+ *                                                         .withMaxPerRoute(100)
+ *                                                         .withLeaseTimeout(5000);
+ * </pre>
+ * All time values are in milliseconds. A negative value disables the feature.
+ */
+public class ConnectionPoolConfig {
+
+    public static final int  DEFAULT_MAX_TOTAL          = 100;
+    public static final int  DEFAULT_MAX_PER_ROUTE      = 50;
+    public static final long DEFAULT_CONNECTION_TTL     = -1;     // unlimited
+    public static final long DEFAULT_MAX_IDLE_TIME      = 60000;  // 60 s
+    public static final int  DEFAULT_VALIDATE_INACTIVE  = 2000;   // 2 s
+    public static final int  DEFAULT_LEASE_TIMEOUT      = -1;     // wait forever
+    public static final int  DEFAULT_IO_THREADS         = Runtime.getRuntime().availableProcessors();
+
+    private int  maxTotal         = DEFAULT_MAX_TOTAL;
+    private int  maxPerRoute      = DEFAULT_MAX_PER_ROUTE;
+    private long connectionTtl    = DEFAULT_CONNECTION_TTL;
+    private long maxIdleTime      = DEFAULT_MAX_IDLE_TIME;
+    private int  validateInactive = DEFAULT_VALIDATE_INACTIVE;
+    private int  leaseTimeout     = DEFAULT_LEASE_TIMEOUT;
+    private int  ioThreads        = DEFAULT_IO_THREADS;
+
+    public ConnectionPoolConfig() {
+
+    }
+
+    /**
+     * Copy these settings, e.g. to change them without touching a config shared with others
+     * @return new ConnectionPoolConfig
+     */
+    public ConnectionPoolConfig copy() {
+        ConnectionPoolConfig copy = new ConnectionPoolConfig();
+        copy.maxTotal         = this.maxTotal;
+        copy.maxPerRoute      = this.maxPerRoute;
+        copy.connectionTtl    = this.connectionTtl;
+        copy.maxIdleTime      = this.maxIdleTime;
+        copy.validateInactive = this.validateInactive;
+        copy.leaseTimeout     = this.leaseTimeout;
+        copy.ioThreads        = this.ioThreads;
+        return copy;
+    }
+
+    /**
+     * Set the maximum number of pooled connections in total
+     * @param maxTotal max connections
+     * @return this config
+     */
+    public ConnectionPoolConfig withMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of pooled connections per route (REST URL host)
+     * @param maxPerRoute max connections per route
+     * @return this config
+     */
+    public ConnectionPoolConfig withMaxPerRoute(int maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+        return this;
+    }
+
+    /**
+     * Set the total time to live of a pooled connection.
+     * Connections older than this are closed instead of being reused.
+     * @param ttl TTL in milliseconds
+     * @return this config
+     */
+    public ConnectionPoolConfig withConnectionTtl(long ttl) {
+        this.connectionTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Set the time after which idle connections are evicted from the pool
+     * by a background thread.
+     * @param maxIdleTime idle time in milliseconds
+     * @return this config
+     */
+    public ConnectionPoolConfig withMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+        return this;
+    }
+
+    /**
+     * Set the period of inactivity after which a pooled connection
+     * is re-validated before it is leased again.
+     * @param validateInactive inactivity period in milliseconds
+     * @return this config
+     */
+    public ConnectionPoolConfig withValidateAfterInactivity(int validateInactive) {
+        this.validateInactive = validateInactive;
+        return this;
+    }
+
+    /**
+     * Set the maximum time to wait for a free connection from the pool
+     * @param leaseTimeout lease timeout in milliseconds
+     * @return this config
+     */
+    public ConnectionPoolConfig withLeaseTimeout(int leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+        return this;
+    }
+
+    /**
+     * Set the number of I/O dispatcher threads used by the asynchronous client.
+     * Every endpoint and bulkhead pool that sends async requests starts its own threads.
+     * @param ioThreads I/O thread count
+     * @return this config
+     */
+    public ConnectionPoolConfig withIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    public int getMaxPerRoute() {
+        return this.maxPerRoute;
+    }
+
+    public long getConnectionTtl() {
+        return this.connectionTtl;
+    }
+
+    public long getMaxIdleTime() {
+        return this.maxIdleTime;
+    }
+
+    public int getValidateAfterInactivity() {
+        return this.validateInactive;
+    }
+
+    public int getLeaseTimeout() {
+        return this.leaseTimeout;
+    }
+
+    public int getIoThreads() {
+        return this.ioThreads;
+    }
+
+}
@@ -0,0 +1,185 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.Cancellable;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+
+/**
+ * Time budget and cancellation handle of one call to the MSSP.
+ * <p>The deadline is carried from {@link fi.methics.laverca.rest.MssClient} down to the HTTP transport:
+ * <ul>
+ * <li>connect, socket and connection lease timeouts of each attempt are cut to the remaining budget
+ * <li>a request whose deadline passed while it waited for a rate limit token or room in a bulkhead
+ *     is dropped before it is sent
+ * <li>retries are not started after the deadline
+ * </ul>
+ * {@link #cancel()} may be called from any thread, e.g. when the browser session of the user closes.
+ * It aborts the HTTP request in flight, which closes its connection and frees the pool slot at once.
+ * <p>Usage:
+ * <pre>
+ * Deadline deadline = Deadline.after(60, TimeUnit.SECONDS);
+ * session.onClose(deadline::cancel);
+ * MSS_SignatureResp resp = client.authenticate(msisdn, "Login to Bank A", profile, deadline);
+ * </pre>
+ */
+public class Deadline {
+
+    private static final Log log = LogFactory.getLog(Deadline.class);
+
+    /** Time given to the MSSP on top of the request TimeOut to respond with its own timeout fault */
+    public static final long TIMEOUT_GRACE = 10000;
+
+    private final long expiry; // System.nanoTime()
+    private final List<Cancellable> inFlight = new ArrayList<>(2);
+
+    // guarded by this
+    private boolean cancelled;
+
+    private Deadline(final long expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * Create a deadline that passes after given time
+     * @param timeout Time budget
+     * @param unit    Unit of the time budget
+     * @return new deadline
+     */
+    public static Deadline after(final long timeout, final TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(Math.max(timeout, 0)));
+    }
+
+    /**
+     * Create the default deadline of a request: its TimeOut plus {@link #TIMEOUT_GRACE}.
+     * @param req JSON request
+     * @return new deadline, or null if the request has no TimeOut
+     */
+    public static Deadline of(final JsonRequest req) {
+        long timeout = req.getTimeout();
+        if (timeout <= 0) {
+            return null;
+        }
+        return after(timeout + TIMEOUT_GRACE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return remaining budget in milliseconds rounded up, 0 if the deadline has passed
+     */
+    public long remaining() {
+        long left = this.expiry - System.nanoTime();
+        return left > 0 ? TimeUnit.NANOSECONDS.toMillis(left + 999_999) : 0;
+    }
+
+    /**
+     * @return true if the deadline has passed
+     */
+    public boolean isExpired() {
+        return this.expiry - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return true if {@link #cancel()} was called
+     */
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * @return true if the call should not go on, because the deadline passed or it was cancelled
+     */
+    public boolean isDone() {
+        return this.isCancelled() || this.isExpired();
+    }
+
+    /**
+     * Cancel the call. HTTP requests in flight are aborted and requests not yet sent are dropped.
+     * Calling this more than once has no effect.
+     */
+    public void cancel() {
+        List<Cancellable> abort;
+        synchronized (this) {
+            if (this.cancelled) {
+                return;
+            }
+            this.cancelled = true;
+            abort = new ArrayList<>(this.inFlight);
+            this.inFlight.clear();
+        }
+        log.debug("Cancelling " + abort.size() + " requests in flight");
+        for (Cancellable c : abort) {
+            c.cancel();
+        }
+    }
+
+    /**
+     * Throw if the call should not go on
+     * @throws MssRestException with code {@link MssRestException#CANCELLED} or {@link MssRestException#DEADLINE_EXCEEDED}
+     */
+    public void check() throws MssRestException {
+        if (this.isDone()) {
+            throw this.toException();
+        }
+    }
+
+    /**
+     * @return exception telling why the call ended
+     */
+    MssRestException toException() {
+        if (this.isCancelled()) {
+            return new MssRestException(MssRestException.CANCELLED, "Request cancelled");
+        }
+        return new MssRestException(MssRestException.DEADLINE_EXCEEDED, "Deadline exceeded");
+    }
+
+    /**
+     * Register a request in flight. If the call was already cancelled, the request is aborted at once.
+     * @param request Abort handle of the request
+     */
+    void attach(final Cancellable request) {
+        synchronized (this) {
+            if (!this.cancelled) {
+                this.inFlight.add(request);
+                return;
+            }
+        }
+        request.cancel();
+    }
+
+    /**
+     * Unregister a completed request
+     * @param request Abort handle given to {@link #attach(Cancellable)}
+     */
+    synchronized void detach(final Cancellable request) {
+        this.inFlight.remove(request);
+    }
+
+    /**
+     * Create the request config of one attempt. All timeouts are cut to the remaining budget.
+     * @param leaseTimeout Connection lease timeout of the pool, or a negative value for none
+     * @return request config
+     */
+    RequestConfig toRequestConfig(final int leaseTimeout) {
+        int left = (int) Math.min(Math.max(this.remaining(), 1), Integer.MAX_VALUE);
+        return RequestConfig.custom()
+                            .setConnectTimeout(left)
+                            .setSocketTimeout(left)
+                            .setConnectionRequestTimeout(leaseTimeout >= 0 ? Math.min(leaseTimeout, left) : left)
+                            .build();
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline [remaining=" + this.remaining() + " ms" + (this.isCancelled() ? ", cancelled" : "") + "]";
+    }
+
+}
@@ -0,0 +1,427 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.pool.PoolStats;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * One REST service URL of a {@link RestClient} and its health and load state.
+ * <p>Each endpoint has its own HTTP connection pools, blocking and non-blocking, so that a slow
+ * node cannot exhaust the connections of the others. Each {@link BulkheadConfig bulkhead}
+ * has further pools of its own.
+ * <p>The non-blocking client of a pool is started on its first async request, with an I/O reactor
+ * of {@link ConnectionPoolConfig#getIoThreads()} threads. An I/O reactor serves one connection pool
+ * only, so a client that sends async requests of every bulkhead runs up to
+ * <code>endpoints * (1 + bulkheads) * ioThreads</code> I/O threads.
+ */
+public class Endpoint {
+
+    private static final Log log = LogFactory.getLog(Endpoint.class);
+
+    private final String url;
+    private final CircuitBreaker breaker;
+    private final Pool defaultPool;
+    private final Map<String, Pool>      pools     = new LinkedHashMap<>();
+    private final Map<RequestType, Pool> poolTypes = new EnumMap<>(RequestType.class);
+    private final long ewmaDecay;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder     requests    = new LongAdder();
+    private final LongAdder     ejections   = new LongAdder();
+
+    private volatile double ewma;      // peak EWMA latency in milliseconds
+    private volatile long   samples;
+    private long            ewmaStamp; // guarded by this
+    private volatile long   ejectedUntil;
+
+    /**
+     * Create a new endpoint
+     * @param url            REST service URL
+     * @param poolConfig     Connection pool settings of this endpoint
+     * @param breakerConfig  Circuit breaker settings
+     * @param balancerConfig Load balancer settings
+     */
+    public Endpoint(final String url,
+                    final ConnectionPoolConfig poolConfig,
+                    final CircuitBreakerConfig breakerConfig,
+                    final LoadBalancerConfig balancerConfig)
+    {
+        this(url, poolConfig, breakerConfig, balancerConfig, Collections.<BulkheadConfig>emptyList());
+    }
+
+    /**
+     * Create a new endpoint with a connection pool per bulkhead
+     * @param url            REST service URL
+     * @param poolConfig     Default connection pool settings of this endpoint
+     * @param breakerConfig  Circuit breaker settings
+     * @param balancerConfig Load balancer settings
+     * @param bulkheads      Bulkheads that get their own connection pools
+     */
+    public Endpoint(final String url,
+                    final ConnectionPoolConfig poolConfig,
+                    final CircuitBreakerConfig breakerConfig,
+                    final LoadBalancerConfig balancerConfig,
+                    final List<BulkheadConfig> bulkheads)
+    {
+        this.url         = url;
+        this.breaker     = new CircuitBreaker(url, breakerConfig);
+        this.defaultPool = new Pool(poolConfig);
+        this.ewmaDecay   = balancerConfig.getEwmaDecay();
+        this.pools.put(RestClient.DEFAULT_BULKHEAD, this.defaultPool);
+        for (BulkheadConfig bulkhead : bulkheads) {
+            Pool pool = new Pool(bulkhead.getPoolConfig() != null ? bulkhead.getPoolConfig() : poolConfig);
+            this.pools.put(bulkhead.getName(), pool);
+            for (RequestType type : bulkhead.getRequestTypes()) {
+                this.poolTypes.put(type, pool);
+            }
+        }
+    }
+
+    public String getUrl() {
+        return this.url;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return this.breaker;
+    }
+
+    /**
+     * @return HTTP client of this endpoint's default connection pool
+     */
+    public CloseableHttpClient getHttpClient() {
+        return this.defaultPool.httpClient;
+    }
+
+    /**
+     * Get the HTTP client of the bulkhead of a request type
+     * @param type Request type
+     * @return HTTP client of the bulkhead's pool, or of the default pool
+     */
+    public CloseableHttpClient getHttpClient(final RequestType type) {
+        return this.poolTypes.getOrDefault(type, this.defaultPool).httpClient;
+    }
+
+    /**
+     * Get the non-blocking HTTP client of the bulkhead of a request type.
+     * The client and its I/O threads are created on first use.
+     * @param type Request type
+     * @return asynchronous HTTP client of the bulkhead's pool, or of the default pool
+     * @throws MssRestException if the I/O reactor cannot be created
+     */
+    public CloseableHttpAsyncClient getAsyncClient(final RequestType type) {
+        return this.poolTypes.getOrDefault(type, this.defaultPool).getAsyncClient();
+    }
+
+    /**
+     * @return connection pool statistics of this endpoint, summed over all pools
+     */
+    public PoolStats getPoolStats() {
+        int leased = 0, pending = 0, available = 0, max = 0;
+        for (Pool pool : this.pools.values()) {
+            PoolStats stats = pool.connManager.getTotalStats();
+            leased    += stats.getLeased();
+            pending   += stats.getPending();
+            available += stats.getAvailable();
+            max       += stats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    /**
+     * Get the connection pool statistics of one bulkhead
+     * @param bulkhead Bulkhead name, or {@link RestClient#DEFAULT_BULKHEAD}
+     * @return pool statistics, or null if there is no such bulkhead
+     */
+    public PoolStats getPoolStats(final String bulkhead) {
+        Pool pool = this.pools.get(bulkhead);
+        return pool != null ? pool.connManager.getTotalStats() : null;
+    }
+
+    /**
+     * @return number of requests sent but not yet answered
+     */
+    public int getOutstanding() {
+        return this.outstanding.get();
+    }
+
+    /**
+     * @return total number of requests sent to this endpoint
+     */
+    public long getRequestCount() {
+        return this.requests.sum();
+    }
+
+    /**
+     * Get the peak EWMA latency. A slower response raises the value immediately,
+     * faster responses lower it gradually.
+     * @return latency in milliseconds, or 0 if unknown
+     */
+    public double getLatencyEwma() {
+        return this.ewma;
+    }
+
+    /**
+     * @return number of latency samples since the endpoint was last ejected
+     */
+    public long getLatencySamples() {
+        return this.samples;
+    }
+
+    /**
+     * @return number of times this endpoint has been ejected as a latency outlier
+     */
+    public long getEjectionCount() {
+        return this.ejections.sum();
+    }
+
+    /**
+     * Check if this endpoint is ejected as an outlier
+     * @param now Current time (epoch millis)
+     * @return true if ejected
+     */
+    public boolean isEjected(final long now) {
+        return this.ejectedUntil > now;
+    }
+
+    /**
+     * Check if new requests may be sent to this endpoint
+     * @param now Current time (epoch millis)
+     * @return true if the circuit breaker is closed and the endpoint is not ejected
+     */
+    public boolean isAvailable(final long now) {
+        return this.breaker.isCallPermitted() && !this.isEjected(now);
+    }
+
+    /**
+     * Mark a request as sent
+     * @return start time for {@link #end(long, boolean)}
+     */
+    long begin() {
+        this.outstanding.incrementAndGet();
+        this.requests.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * Mark a request as answered or failed
+     * @param start   Value returned by {@link #begin()}
+     * @param observe true if the latency should be added to the EWMA
+     * @return latency in milliseconds
+     */
+    long end(final long start, final boolean observe) {
+        this.outstanding.decrementAndGet();
+        long now = System.nanoTime();
+        if (observe) {
+            this.observe(now, now - start);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(now - start);
+    }
+
+    /**
+     * Eject this endpoint for given time. Latency statistics are reset,
+     * so the endpoint is judged on fresh samples when it returns.
+     * @param until End of ejection (epoch millis)
+     */
+    synchronized void eject(final long until) {
+        this.ejectedUntil = until;
+        this.ejections.increment();
+        this.ewma    = 0;
+        this.samples = 0;
+        log.warn("Ejected " + this.url + " as a latency outlier");
+    }
+
+    /**
+     * Add a latency sample to the peak EWMA
+     * @param now Sample time from {@link System#nanoTime()}
+     * @param rtt Latency in nanoseconds
+     */
+    private synchronized void observe(final long now, final long rtt) {
+        double ms = rtt / 1_000_000.0;
+        if (this.samples == 0 || ms > this.ewma) {
+            this.ewma = ms;
+        } else {
+            double elapsed = Math.max(now - this.ewmaStamp, 0) / 1_000_000.0;
+            double w = Math.exp(-elapsed / this.ewmaDecay);
+            this.ewma = this.ewma * w + ms * (1 - w);
+        }
+        this.ewmaStamp = now;
+        this.samples++;
+    }
+
+    /**
+     * Open given number of connections to this endpoint in every pool and return them to the pool.
+     * For HTTPS URLs each connection completes its TLS handshake, so the first
+     * requests do not pay for TCP and TLS setup.
+     * @param connections Number of connections to open per pool
+     * @param timeout     Connect timeout of each connection in milliseconds
+     * @return number of connections opened
+     */
+    public int warmUp(final int connections, final int timeout) {
+        int count = 0;
+        for (Pool pool : this.pools.values()) {
+            count += this.warmUp(pool.connManager, connections, timeout);
+        }
+        return count;
+    }
+
+    /**
+     * Open given number of connections in one pool.
+     * <p>Connections are opened one at a time and held until all are open, so that
+     * the pool does not hand out the same connection twice.
+     */
+    private int warmUp(final PoolingHttpClientConnectionManager connManager, final int connections, final int timeout) {
+        URI     uri    = URI.create(this.url);
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int     port   = uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80);
+        HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+
+        // Connections beyond the route limit would only wait for the timeout, as all are held here
+        int n = Math.min(connections, Math.min(connManager.getMaxPerRoute(route), connManager.getMaxTotal()));
+        List<HttpClientConnection> opened = new ArrayList<>(n);
+        int count = 0;
+        try {
+            for (int i = 0; i < n; i++) {
+                HttpClientConnection conn = connManager.requestConnection(route, null).get(timeout, TimeUnit.MILLISECONDS);
+                if (conn.isOpen()) {
+                    connManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+                    break; // pool holds fewer connections per route than requested
+                }
+                opened.add(conn);
+                HttpClientContext context = HttpClientContext.create();
+                long start = System.currentTimeMillis();
+                connManager.connect(conn, route, timeout, context);
+                connManager.routeComplete(conn, route, context);
+                boolean usable;
+                try {
+                    usable = awaitSessionTicket(conn, Math.min(System.currentTimeMillis() - start + 1, timeout));
+                } catch (IOException e) {
+                    log.debug("Failed to read session ticket", e);
+                    usable = false;
+                }
+                if (usable) {
+                    count++;
+                } else {
+                    conn.shutdown(); // closed connections are not returned to the pool as reusable
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to warm up connections to " + this.url, e);
+        } finally {
+            for (HttpClientConnection conn : opened) {
+                connManager.releaseConnection(conn, null, -1, TimeUnit.MILLISECONDS);
+            }
+        }
+        log.debug("Warmed up " + count + " connections to " + this.url);
+        return count;
+    }
+
+    /**
+     * A TLS 1.3 server sends its session ticket after the handshake, and the client stores the
+     * session for resumption only once it reads the ticket. Read it now, so that the next
+     * warm-up connection can resume instead of doing a full handshake.
+     * <p>The ticket takes about one round trip, so the wait is bounded by the handshake time.
+     * Reading goes through the session buffer of the connection, so no data is lost.
+     * @param conn Connected connection
+     * @param wait Maximum wait in milliseconds
+     * @return true if the connection can be reused, false if the server closed it or sent unexpected data
+     */
+    private static boolean awaitSessionTicket(final HttpClientConnection conn, final long wait) throws IOException {
+        if (!(conn instanceof ManagedHttpClientConnection)) return true;
+        Socket socket = ((ManagedHttpClientConnection) conn).getSocket();
+        if (!(socket instanceof SSLSocket)) return true;
+        if (!"TLSv1.3".equals(((SSLSocket) socket).getSession().getProtocol())) return true;
+        if (conn.isResponseAvailable((int) Math.max(wait, 1))) {
+            log.debug("Unexpected data from server before a request");
+            return false;
+        }
+        return !conn.isStale(); // false after end of stream
+    }
+
+    /**
+     * Close the connection pool of this endpoint
+     */
+    void close() {
+        for (Pool pool : this.pools.values()) {
+            pool.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.url;
+    }
+
+    /**
+     * Connection pool and its HTTP client, and the non-blocking client with the same settings
+     */
+    private class Pool {
+
+        private final ConnectionPoolConfig config;
+        private final PoolingHttpClientConnectionManager connManager;
+        private final CloseableHttpClient httpClient;
+        private CloseableHttpAsyncClient  asyncClient; // guarded by this
+        private boolean closed;                        // guarded by this
+
+        Pool(final ConnectionPoolConfig config) {
+            this.config      = config;
+            this.connManager = RestSocketFactory.getNewConnectionManager(config);
+            this.httpClient  = RestSocketFactory.getNewHttpClient(this.connManager, config);
+        }
+
+        synchronized CloseableHttpAsyncClient getAsyncClient() {
+            if (this.asyncClient == null) {
+                if (this.closed) {
+                    throw new MssRestException(MssRestException.INTERNAL_ERROR, "Client closed");
+                }
+                this.asyncClient = RestSocketFactory.getNewAsyncHttpClient(this.config);
+            }
+            return this.asyncClient;
+        }
+
+        void close() {
+            CloseableHttpAsyncClient async;
+            synchronized (this) {
+                this.closed = true;
+                async = this.asyncClient;
+            }
+            try {
+                this.httpClient.close();
+                if (async != null) {
+                    async.close();
+                }
+            } catch (IOException e) {
+                log.debug("Failed to close HTTP client of " + Endpoint.this.url, e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Settings of request hedging done by {@link RestClient}.
+ * <p>When an idempotent request (MSS_ProfileReq or MSS_StatusReq) has no answer within the
+ * configured percentile of recent latencies, a second copy is sent to another endpoint
+ * and the first response wins. Hedging is off by default.
+ * <p>Usage:
+ * <pre>
+ * HedgingConfig config = new HedgingConfig().withPercentile(95)
+ *                                           .withMaxHedgePercent(10);
+ * </pre>
+ * All time values are in milliseconds.
+ */
+public class HedgingConfig {
+
+    public static final double DEFAULT_PERCENTILE        = 95;
+    public static final long   DEFAULT_MIN_DELAY         = 5;
+    public static final int    DEFAULT_WINDOW_SIZE       = 200;
+    public static final int    DEFAULT_MIN_SAMPLES       = 20;
+    public static final int    DEFAULT_MAX_HEDGE_PERCENT = 10;
+    public static final int    DEFAULT_MAX_HEDGE_BURST   = 10;
+
+    private double percentile      = DEFAULT_PERCENTILE;
+    private long   minDelay        = DEFAULT_MIN_DELAY;
+    private int    windowSize      = DEFAULT_WINDOW_SIZE;
+    private int    minSamples      = DEFAULT_MIN_SAMPLES;
+    private int    maxHedgePercent = DEFAULT_MAX_HEDGE_PERCENT;
+    private int    maxHedgeBurst   = DEFAULT_MAX_HEDGE_BURST;
+
+    public HedgingConfig() {
+
+    }
+
+    /**
+     * Create a config that never hedges. This is the default of {@link RestClient}.
+     * @return disabled config
+     */
+    public static HedgingConfig disabled() {
+        return new HedgingConfig().withPercentile(0);
+    }
+
+    /**
+     * Set the latency percentile after which a hedge is sent.
+     * Zero or negative disables hedging.
+     * @param percentile percentile (e.g. 95)
+     * @return this config
+     */
+    public HedgingConfig withPercentile(double percentile) {
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Set the minimum wait before a hedge is sent
+     * @param minDelay delay in milliseconds
+     * @return this config
+     */
+    public HedgingConfig withMinDelay(long minDelay) {
+        this.minDelay = minDelay;
+        return this;
+    }
+
+    /**
+     * Set the number of recent latencies the percentile is computed from
+     * @param windowSize number of samples
+     * @return this config
+     */
+    public HedgingConfig withWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * Set the number of latency samples needed before hedging starts
+     * @param minSamples number of samples
+     * @return this config
+     */
+    public HedgingConfig withMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of hedges as a percentage of hedgeable requests.
+     * Keeps a cluster-wide slowdown from doubling the load.
+     * @param maxHedgePercent percentage of requests
+     * @return this config
+     */
+    public HedgingConfig withMaxHedgePercent(int maxHedgePercent) {
+        this.maxHedgePercent = maxHedgePercent;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of hedges the budget can save up. After a burst of this
+     * many hedges, only {@link #withMaxHedgePercent(int)} of new requests are hedged.
+     * @param maxHedgeBurst number of hedges
+     * @return this config
+     */
+    public HedgingConfig withMaxHedgeBurst(int maxHedgeBurst) {
+        this.maxHedgeBurst = maxHedgeBurst;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return this.percentile > 0;
+    }
+
+    public double getPercentile() {
+        return this.percentile;
+    }
+
+    public long getMinDelay() {
+        return this.minDelay;
+    }
+
+    public int getWindowSize() {
+        return this.windowSize;
+    }
+
+    public int getMinSamples() {
+        return this.minSamples;
+    }
+
+    public int getMaxHedgePercent() {
+        return this.maxHedgePercent;
+    }
+
+    public int getMaxHedgeBurst() {
+        return this.maxHedgeBurst;
+    }
+
+}
@@ -3,20 +3,9 @@
 //
 package fi.methics.laverca.rest.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Base64;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.Map;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,10 +17,12 @@ import org.apache.http.ParseException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.util.EntityUtils;
 
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonResponse;
+
 /**
  * Simple HTTP Client used for HMAC authentication
  */
@@ -40,11 +31,7 @@ public class HmacHttpClient {
     private static final Log log = LogFactory.getLog(HmacHttpClient.class);
     
     private HttpClient client;
-    private String userId;
-    private String apiKey;
-    
-    private String    rfc2822Pattern = "EEE, dd MMM yyyy HH:mm:ss Z";
-    private SimpleDateFormat rfc2822 = new SimpleDateFormat(this.rfc2822Pattern, Locale.US);
+    private HmacSigner signer;
     
     /**
      * Create a new HMAC HttpClient
@@ -56,10 +43,21 @@ public class HmacHttpClient {
     public HmacHttpClient(final HttpClient client,
                           final String userId, 
                           final String apiKey) 
+    {
+        this(client, new HmacSigner(userId, apiKey));
+    }
+    
+    /**
+     * Create a new HMAC HttpClient with a shared signer
+     * 
+     * @param client Base KiuruHttpClient
+     * @param signer HMAC signer of the AP
+     */
+    public HmacHttpClient(final HttpClient client,
+                          final HmacSigner signer) 
     {
         this.client = client;
-        this.userId = userId;
-        this.apiKey = apiKey;
+        this.signer = signer;
     }
 
     /**
@@ -76,88 +74,87 @@ public class HmacHttpClient {
     }
 
     /**
-     * Convert byte[] to hex
-     * @param bytes byte[] to convert
-     * @return Hex String
+     * Send a JSON request. The response is parsed directly from the response stream.
+     * 
+     * @param request Request to send
+     * @param url Request URL
+     * @return parsed response or null if the response has no body
+     * @throws IOException if request sending fails
      */
-    private static String bytesToHex(byte[] bytes) {
-        final char[] hexArray = "0123456789abcdef".toCharArray();
+    public JsonResponse send(final JsonRequest request, final String url) throws IOException {
+        HttpPost post = this.createPost(request, url);
+        return RestClient.readResponse(this.client.execute(post));
+    }
 
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        return new String(hexChars);
+    /**
+     * Create a HTTP Post with HMAC authentication headers.
+     * <p>The request is serialized once into a byte buffer while the HMAC is computed
+     * over the same bytes, since the headers have to be known before the body is sent.
+     * @param req JSON request
+     * @param url Request URL
+     * @return HTTP Post
+     * @throws IOException
+     */
+    public HttpPost createPost(final JsonRequest req, final String url) throws IOException {
+        return createPost(this.signer, req, url);
     }
     
     /**
-     * Add headers that HMAC authentication requires. 
-     * @param req  HTTP Request
-     * @param body Request body
-     * @throws IOException Failed to create HMAC key. 
+     * Create a HTTP Post with HMAC authentication headers without a HmacHttpClient,
+     * e.g. for a request sent with another HTTP client
+     * @param signer HMAC signer of the AP
+     * @param req    JSON request
+     * @param url    Request URL
+     * @return HTTP Post
+     * @throws IOException
+     * @see #createPost(JsonRequest, String)
      */
-    private void addHeaders(final HttpUriRequest req, final String body) throws IOException {
-        Map<String, String> headers = this.requestHeaders(req,
-                                                          body,
-                                                          this.userId,
-                                                          this.apiKey);
-        for (String header : headers.keySet()) {
-            req.addHeader(header, headers.get(header));
+    static HttpPost createPost(final HmacSigner signer, final JsonRequest req, final String url) throws IOException {
+        if (req instanceof PreparedRequest) {
+            final HttpPost post = new HttpPost(url);
+            final byte[]   body = ((PreparedRequest) req).getBytes();
+            post.setEntity(new ByteArrayEntity(body));
+            signer.sign(post, body, 0, body.length);
+            if (log.isDebugEnabled()) {
+                printRequest(post, req.toJson());
+            }
+            return post;
         }
+        
+        final HttpPost   post = new HttpPost(url);
+        final BodyBuffer body = new BodyBuffer();
+        
+        HmacSigner.Session session = signer.begin(post);
+        req.writeTo(session.tee(body));
+        session.finish();
+        
+        post.setEntity(body.toEntity());
+        if (log.isDebugEnabled()) {
+            printRequest(post, req.toJson());
+        }
+        return post;
     }
     
     /**
-     * Create a HTTP Post
+     * Create a HTTP Post with HMAC authentication headers
      * @param req Request as String
      * @param url Request URL
      * @return HTTP Post
      * @throws IOException
      */
-    private HttpPost createPost(final String req, final String url) throws IOException {
+    public HttpPost createPost(final String req, final String url) throws IOException {
         final HttpPost post = new HttpPost(url);
-        final String body = req;
-        if (!body.isEmpty()) {
-            post.setEntity(new StringEntity(body, "UTF-8"));
+        final byte[]   body = req.getBytes(StandardCharsets.UTF_8);
+        if (body.length > 0) {
+            post.setEntity(new ByteArrayEntity(body));
         }
         
-        this.addHeaders(post, body);
-        this.printRequest(post, body);
+        this.signer.sign(post, body, 0, body.length);
+        printRequest(post, req);
         
         return post;
     }
     
-    /**
-     * Calculate a HMAC digest
-     * @param content Content to digest
-     * @param skey    HMAC secret key
-     * @return
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     */
-    private byte[] digest(final String content, final String skey) throws NoSuchAlgorithmException, InvalidKeyException {
-        byte[] contentBytes = content.getBytes();
-        Mac mac = Mac.getInstance("HMACSHA256");
-        SecretKeySpec macKey = new SecretKeySpec(skey.getBytes(), "RAW");
-        mac.init(macKey);
-        return mac.doFinal(contentBytes);
-    }
-    
-    /**
-     * Get the host parameter from HTTP Request
-     * @param req HTTP Request
-     * @return host value (e.g. localhost or server-xyzzy:9061)
-     */
-    private String getHost(final HttpUriRequest req) {
-        String host = req.getURI().getHost();
-        int port    = req.getURI().getPort();
-        if (port > 0 && port != 80 && port != 443) {
-            host += ":" + port;
-        }
-        return host;
-    }
-    
     /**
      * Get response body
      * @param resp HTTP Response
@@ -174,7 +171,8 @@ public class HmacHttpClient {
      * @param request Request to print
      * @param body    Request body
      */
-    private void printRequest(final HttpRequest request, final String body) {
+    private static void printRequest(final HttpRequest request, final String body) {
+        if (!log.isDebugEnabled()) return;
         log.debug("Request:");
         log.debug("  Headers: ");
         for (Header h: request.getAllHeaders()) {
@@ -188,54 +186,6 @@ public class HmacHttpClient {
         }
     }
 
-    /**
-     * Return HTTP Basic Authentication ("Authorization" and "Date") headers.
-     *
-     * @param method request HTTP method
-     * @param host request host string (without port and without the "https://" prefix)
-     * @param path request path (including query params)
-     * @param params request body parameters stringified
-     * @param userId Base64(AP_ID)
-     * @param apiKey Service Auth API key
-     */
-    private Map<String, String> requestHeaders(final HttpUriRequest req,
-                                               String params,
-                                               final String userId,
-                                               final String apiKey) throws IOException {
-        params = (params == null) ? "" : params;
-        String date = this.rfc2822.format(new Date());
-        URI  reqUri = req.getURI();
-        String host   = this.getHost(req);
-        String method = req.getMethod();
-        String path   = reqUri.getPath();
-
-        String[] values = new String[] { date, method, host, path, params };
-        log.debug("Checksum data: " + Arrays.toString(values));
-
-        StringBuilder data = new StringBuilder();
-        for (String val : values) {
-            data.append(val);
-            data.append("\n");
-        }
-
-        String sig;
-        try {
-            sig = bytesToHex(this.digest(data.toString(), apiKey));
-        } catch (Exception e) {
-            log.debug("Crypto error while computing HMAC request signature", e);
-            throw new IOException("Crypto error while computing HMAC request signature");
-        }
-
-        String auth = userId + ":" + sig;
-
-        Map<String, String> headers = new HashMap<String, String>();
-        headers.put("Date", date);
-        headers.put("Authorization", "Basic " + Base64.getEncoder().encodeToString(auth.getBytes()));
-        headers.put("Content-Type",  "application/json");
-
-        return headers;
-    }
-    
     /**
      * Send a HTTP request. 
      * @param req HTTP request
@@ -257,5 +207,18 @@ public class HmacHttpClient {
         return body;
     }
 
+    /**
+     * Byte buffer whose content is handed to the entity without copying
+     */
+    private static class BodyBuffer extends ByteArrayOutputStream {
+        
+        BodyBuffer() {
+            super(1024);
+        }
+        
+        ByteArrayEntity toEntity() {
+            return new ByteArrayEntity(this.buf, 0, this.count);
+        }
+    }
 
 }
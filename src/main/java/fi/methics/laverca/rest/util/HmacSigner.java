@@ -0,0 +1,295 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Locale;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Thread-safe HMAC request signer for one AP_ID/API_KEY pair.
+ * <p>Computes the same "Authorization" and "Date" headers as {@link HmacHttpClient} did
+ * per request, but keeps all expensive state for the lifetime of the signer:
+ * <ul>
+ * <li>The HMAC key is initialized once. Each thread uses its own clone of the initialized {@link Mac}.
+ * <li>The RFC 2822 "Date" header value is formatted at most once per second.
+ * <li>The signed data (date, method, host, path and body) is fed to the Mac piece by piece.
+ * <li>Hex and Base64 encoding use per-thread buffers.
+ * </ul>
+ * Usage:
+ * <pre>
+ * HmacSigner signer = new HmacSigner(userId, apiKey);
+ * HttpPost post = new HttpPost(url);
+ * post.setEntity(new ByteArrayEntity(body));
+ * signer.sign(post, body, 0, body.length);
+ * </pre>
+ */
+public class HmacSigner {
+
+    public static final String ALGORITHM = "HMACSHA256";
+
+    private static final DateTimeFormatter RFC2822 = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US)
+                                                                      .withZone(ZoneId.systemDefault());
+    private static final byte[] HEX     = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte   NEWLINE = '\n';
+    private static final byte[] BASIC   = "Basic ".getBytes(StandardCharsets.US_ASCII);
+
+    private final Mac    prototype;
+    private final byte[] userPrefix;
+
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(this::newState);
+
+    private volatile CachedDate date = new CachedDate(Long.MIN_VALUE, null, null);
+
+    /**
+     * Create a new signer
+     * @param userId UserId (Base64 of AP_ID)
+     * @param apiKey API_KEY (aka HMAC secret)
+     * @throws MssRestException if the HMAC key cannot be initialized
+     */
+    public HmacSigner(final String userId, final String apiKey) throws MssRestException {
+        try {
+            this.prototype = Mac.getInstance(ALGORITHM);
+            this.prototype.init(new SecretKeySpec(apiKey.getBytes(), "RAW"));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, e);
+        }
+        this.userPrefix = (userId + ":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compute and set the HMAC headers ("Date", "Authorization" and "Content-Type") on a request
+     * @param req  HTTP request
+     * @param body Request body
+     * @param off  Body offset
+     * @param len  Body length
+     * @throws IOException if the signature cannot be computed
+     */
+    public void sign(final HttpUriRequest req, final byte[] body, final int off, final int len) throws IOException {
+        Session session = this.begin(req);
+        session.update(body, off, len);
+        session.finish();
+    }
+
+    /**
+     * Start signing a request whose body is fed afterwards with {@link Session#update(byte[], int, int)}.
+     * <p>The returned session is bound to the calling thread and must be finished before
+     * another request is signed on the same thread.
+     * @param req HTTP request
+     * @return signing session
+     */
+    public Session begin(final HttpUriRequest req) {
+        State s = this.state.get();
+        CachedDate d = this.currentDate();
+        Mac mac = s.mac;
+        mac.reset();
+        mac.update(d.bytes);
+        mac.update(NEWLINE);
+        updateAscii(mac, req.getMethod());
+        mac.update(NEWLINE);
+        URI uri = req.getURI();
+        updateAscii(mac, uri.getHost());
+        int port = uri.getPort();
+        if (port > 0 && port != 80 && port != 443) {
+            mac.update((byte)':');
+            updateAscii(mac, Integer.toString(port));
+        }
+        mac.update(NEWLINE);
+        updateUtf8(mac, uri.getPath());
+        mac.update(NEWLINE);
+        s.session.start(req, d.text);
+        return s.session;
+    }
+
+    /**
+     * Get the current RFC 2822 date. The value is formatted only when the second changes.
+     * @return cached date
+     */
+    private CachedDate currentDate() {
+        long now = System.currentTimeMillis() / 1000;
+        CachedDate d = this.date;
+        if (d.second != now) {
+            String text = RFC2822.format(Instant.ofEpochSecond(now));
+            d = new CachedDate(now, text, text.getBytes(StandardCharsets.US_ASCII));
+            this.date = d;
+        }
+        return d;
+    }
+
+    private State newState() {
+        Mac mac;
+        try {
+            mac = (Mac) this.prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("HMAC provider does not support cloning", e);
+        }
+        return new State(mac);
+    }
+
+    /**
+     * Feed an ASCII string to the Mac without creating a byte[]
+     */
+    private static void updateAscii(final Mac mac, final String s) {
+        if (s == null) return;
+        for (int i = 0; i < s.length(); i++) {
+            mac.update((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Feed a string as UTF-8 to the Mac. ASCII strings are fed without creating a byte[].
+     */
+    private static void updateUtf8(final Mac mac, final String s) {
+        if (s == null) return;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                mac.update(s.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        updateAscii(mac, s);
+    }
+
+    /**
+     * Signing of one request. Feed the body with {@link #update(byte[], int, int)}
+     * and call {@link #finish()} to set the headers.
+     */
+    public final class Session {
+
+        private final State owner;
+        private HttpUriRequest req;
+        private String date;
+
+        private Session(final State owner) {
+            this.owner = owner;
+        }
+
+        private void start(final HttpUriRequest req, final String date) {
+            this.req  = req;
+            this.date = date;
+        }
+
+        /**
+         * Add request body bytes to the signature
+         * @param b   bytes
+         * @param off offset
+         * @param len length
+         */
+        public void update(final byte[] b, final int off, final int len) {
+            if (len > 0) {
+                this.owner.mac.update(b, off, len);
+            }
+        }
+
+        /**
+         * Add a single request body byte to the signature
+         * @param b byte
+         */
+        public void update(final int b) {
+            this.owner.mac.update((byte) b);
+        }
+
+        /**
+         * Wrap an output stream so that every byte written to it is also added to the signature
+         * @param out Stream that receives the request body
+         * @return signing stream
+         */
+        public OutputStream tee(final OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(final int b) throws IOException {
+                    Session.this.update(b);
+                    this.out.write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    Session.this.update(b, off, len);
+                    this.out.write(b, off, len);
+                }
+            };
+        }
+
+        /**
+         * Complete the signature and set the headers on the request
+         * @throws IOException if the signature cannot be computed
+         */
+        public void finish() throws IOException {
+            State s = this.owner;
+            try {
+                s.mac.update(NEWLINE);
+                s.mac.doFinal(s.digest, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Crypto error while computing HMAC request signature");
+            }
+            int pos = HmacSigner.this.userPrefix.length;
+            for (int i = 0; i < s.digest.length; i++) {
+                int v = s.digest[i] & 0xFF;
+                s.auth[pos++] = HEX[v >>> 4];
+                s.auth[pos++] = HEX[v & 0x0F];
+            }
+            int n = s.encoder.encode(s.auth, s.b64);
+            System.arraycopy(s.b64, 0, s.header, BASIC.length, n);
+            this.req.setHeader("Date", this.date);
+            this.req.setHeader("Authorization", new String(s.header, 0, BASIC.length + n, StandardCharsets.US_ASCII));
+            this.req.setHeader("Content-Type",  "application/json");
+            this.req = null;
+        }
+    }
+
+    /**
+     * Per-thread signing state
+     */
+    private final class State {
+
+        final Mac     mac;
+        final byte[]  digest;
+        final byte[]  auth;
+        final byte[]  b64;
+        final byte[]  header;
+        final Base64.Encoder encoder = Base64.getEncoder();
+        final Session session;
+
+        State(final Mac mac) {
+            this.mac    = mac;
+            this.digest = new byte[mac.getMacLength()];
+            this.auth   = new byte[HmacSigner.this.userPrefix.length + this.digest.length * 2];
+            System.arraycopy(HmacSigner.this.userPrefix, 0, this.auth, 0, HmacSigner.this.userPrefix.length);
+            this.b64     = new byte[(this.auth.length + 2) / 3 * 4];
+            this.header  = new byte[BASIC.length + this.b64.length];
+            System.arraycopy(BASIC, 0, this.header, 0, BASIC.length);
+            this.session = new Session(this);
+        }
+    }
+
+    /**
+     * Date header value for one second
+     */
+    private static final class CachedDate {
+
+        final long   second;
+        final String text;
+        final byte[] bytes;
+
+        CachedDate(final long second, final String text, final byte[] bytes) {
+            this.second = second;
+            this.text   = text;
+            this.bytes  = bytes;
+        }
+    }
+
+}
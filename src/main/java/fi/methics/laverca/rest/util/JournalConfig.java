@@ -0,0 +1,75 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Settings of a {@link TransactionJournal}.
+ * <p>By default appends never wait for the disk: a background thread forces all records
+ * written since the previous flush to disk together every flush interval. With sync commit,
+ * each append waits for the flush that covers it, so a transaction is durable once its
+ * request returns, at the cost of up to one flush interval of latency.
+ * <p>Usage:
+ * <pre>
+ * JournalConfig config = new JournalConfig().withCapacity(64 * 1024 * 1024)
+ *                                           .withFlushInterval(5);
+ * </pre>
+ * All time values are in milliseconds.
+ */
+public class JournalConfig {
+
+    public static final int  DEFAULT_CAPACITY       = 16 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 10;
+
+    private int     capacity      = DEFAULT_CAPACITY;
+    private long    flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private boolean syncCommit;
+
+    public JournalConfig() {
+
+    }
+
+    /**
+     * Set the initial size of the mapped journal file. The journal is compacted when half full,
+     * and grows if the pending transactions alone fill a quarter of it.
+     * @param capacity size in bytes
+     * @return this config
+     */
+    public JournalConfig withCapacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    /**
+     * Set the interval of the background flushes (group commits)
+     * @param flushInterval interval in milliseconds
+     * @return this config
+     */
+    public JournalConfig withFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * Make each append wait for the flush that covers it. Off by default.
+     * @param syncCommit true to wait
+     * @return this config
+     */
+    public JournalConfig withSyncCommit(boolean syncCommit) {
+        this.syncCommit = syncCommit;
+        return this;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public long getFlushInterval() {
+        return this.flushInterval;
+    }
+
+    public boolean isSyncCommit() {
+        return this.syncCommit;
+    }
+
+}
@@ -0,0 +1,164 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Growable UTF-8 byte buffer for splicing JSON.
+ * <p>Strings are escaped exactly like Gson's default (HTML-safe) JsonWriter does,
+ * so spliced output is byte-identical to Gson output.
+ */
+final class JsonBuffer {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] ESCAPES = new byte[128][];
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = unicodeEscape(c);
+        }
+        ESCAPES['"']  = ascii("\\\"");
+        ESCAPES['\\'] = ascii("\\\\");
+        ESCAPES['\t'] = ascii("\\t");
+        ESCAPES['\b'] = ascii("\\b");
+        ESCAPES['\n'] = ascii("\\n");
+        ESCAPES['\r'] = ascii("\\r");
+        ESCAPES['\f'] = ascii("\\f");
+        ESCAPES['<']  = unicodeEscape('<');
+        ESCAPES['>']  = unicodeEscape('>');
+        ESCAPES['&']  = unicodeEscape('&');
+        ESCAPES['=']  = unicodeEscape('=');
+        ESCAPES['\''] = unicodeEscape('\'');
+    }
+
+    private byte[] buf;
+    private int    count;
+
+    JsonBuffer(final int size) {
+        this.buf = new byte[size];
+    }
+
+    /**
+     * Append pre-encoded bytes
+     * @param b bytes
+     * @return this buffer
+     */
+    JsonBuffer append(final byte[] b) {
+        this.put(b);
+        return this;
+    }
+
+    /**
+     * Append a string as escaped UTF-8 (without surrounding quotes)
+     * @param s string
+     * @return this buffer
+     */
+    JsonBuffer appendEscaped(final String s) {
+        this.ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                byte[] esc = ESCAPES[c];
+                if (esc == null) {
+                    this.put((byte) c);
+                } else {
+                    this.put(esc);
+                }
+            } else if (c < 0x800) {
+                this.put((byte) (0xC0 | (c >> 6)));
+                this.put((byte) (0x80 | (c & 0x3F)));
+            } else if (c == 0x2028 || c == 0x2029) {
+                this.put(unicodeEscape(c));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                this.put((byte) (0xF0 | (cp >> 18)));
+                this.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                this.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                this.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                this.put((byte) '?'); // same replacement as the UTF-8 encoder
+            } else {
+                this.put((byte) (0xE0 | (c >> 12)));
+                this.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                this.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append bytes as escaped Base64 (without surrounding quotes)
+     * @param data binary data
+     * @return this buffer
+     */
+    JsonBuffer appendBase64(final byte[] data) {
+        byte[] b64 = Base64.getEncoder().encode(data);
+        this.ensure(b64.length + 12);
+        for (byte b : b64) {
+            if (b == '=') {
+                this.put(ESCAPES['=']);
+            } else {
+                this.put(b);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    int size() {
+        return this.count;
+    }
+
+    /**
+     * @return copy of the buffer contents
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(this.buf, this.count);
+    }
+
+    private void put(final byte b) {
+        if (this.count == this.buf.length) {
+            this.ensure(1);
+        }
+        this.buf[this.count++] = b;
+    }
+
+    private void put(final byte[] b) {
+        this.ensure(b.length);
+        System.arraycopy(b, 0, this.buf, this.count, b.length);
+        this.count += b.length;
+    }
+
+    private void ensure(final int extra) {
+        if (this.count + extra > this.buf.length) {
+            this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.count + extra));
+        }
+    }
+
+    /**
+     * Encode a JSON string value with quotes
+     * @param s string
+     * @return UTF-8 bytes
+     */
+    static byte[] quoted(final String s) {
+        JsonBuffer b = new JsonBuffer(s.length() + 2);
+        b.put((byte) '"');
+        b.appendEscaped(s);
+        b.put((byte) '"');
+        return b.toByteArray();
+    }
+
+    static byte[] ascii(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] unicodeEscape(final int c) {
+        return new byte[] { '\\', 'u', HEX[(c >> 12) & 0xF], HEX[(c >> 8) & 0xF], HEX[(c >> 4) & 0xF], HEX[c & 0xF] };
+    }
+
+}
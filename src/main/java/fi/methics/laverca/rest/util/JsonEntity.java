@@ -0,0 +1,104 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+
+/**
+ * HTTP entity that serializes a {@link JsonRequest} directly to the connection output stream.
+ * <p>The content length is not known in advance, so the request is sent chunked.
+ * <p>The non-blocking client takes the entity as its content producer: the request is serialized
+ * once and written from the serializer's own buffer as fast as the connection accepts it.
+ */
+public class JsonEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    private final JsonRequest req;
+
+    private ByteBuffer pending; // serialized body not yet written by the non-blocking client
+
+    public JsonEntity(final JsonRequest req) {
+        this.req = req;
+        this.setContentType(ContentType.APPLICATION_JSON.toString());
+        this.setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Get the serialized request as a stream
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        Body body = new Body();
+        this.req.writeTo(body);
+        return new ByteArrayInputStream(body.array(), 0, body.size());
+    }
+
+    @Override
+    public void writeTo(final OutputStream os) throws IOException {
+        this.req.writeTo(os);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void produceContent(final ContentEncoder encoder, final IOControl ioctrl) throws IOException {
+        if (this.pending == null) {
+            Body body = new Body();
+            this.req.writeTo(body);
+            this.pending = ByteBuffer.wrap(body.array(), 0, body.size());
+        }
+        encoder.write(this.pending);
+        if (!this.pending.hasRemaining()) {
+            encoder.complete();
+        }
+    }
+
+    /**
+     * Forget the written content, so that a retry serializes the request again
+     */
+    @Override
+    public void close() {
+        this.pending = null;
+    }
+
+    /**
+     * Byte buffer whose content is read without copying
+     */
+    private static class Body extends ByteArrayOutputStream {
+
+        Body() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return this.buf;
+        }
+    }
+
+}
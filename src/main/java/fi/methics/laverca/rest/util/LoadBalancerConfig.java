@@ -0,0 +1,164 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Settings of the client-side load balancing done by {@link RestClient}
+ * when several REST URLs are configured.
+ * <p>Usage:
+ * <pre>
+ * LoadBalancerConfig config = new LoadBalancerConfig().withPolicy(LoadBalancingPolicy.peakEwma())
+ *                                                     .withOutlierLatencyFactor(3)
+ *                                                     .withEjectionTime(30000);
+ * </pre>
+ * <p>Outlier ejection removes an endpoint from rotation for {@link #getEjectionTime()} when its
+ * latency EWMA is more than {@link #getOutlierLatencyFactor()} times the median of the endpoints.
+ * Failing endpoints are handled by the {@link CircuitBreaker CircuitBreakers}.
+ * <p>All time values are in milliseconds.
+ */
+public class LoadBalancerConfig {
+
+    public static final long   DEFAULT_EWMA_DECAY             = 10000;  // 10 s
+    public static final double DEFAULT_OUTLIER_LATENCY_FACTOR = 3.0;
+    public static final long   DEFAULT_EJECTION_TIME          = 30000;  // 30 s
+    public static final int    DEFAULT_MAX_EJECTION_PERCENT   = 50;
+    public static final int    DEFAULT_MIN_REQUESTS           = 20;
+    public static final long   DEFAULT_OUTLIER_INTERVAL       = 1000;   // 1 s
+
+    private LoadBalancingPolicy policy = LoadBalancingPolicy.failover();
+
+    private long   ewmaDecay            = DEFAULT_EWMA_DECAY;
+    private double outlierLatencyFactor = DEFAULT_OUTLIER_LATENCY_FACTOR;
+    private long   ejectionTime         = DEFAULT_EJECTION_TIME;
+    private int    maxEjectionPercent   = DEFAULT_MAX_EJECTION_PERCENT;
+    private int    minRequests          = DEFAULT_MIN_REQUESTS;
+    private long   outlierInterval      = DEFAULT_OUTLIER_INTERVAL;
+
+    public LoadBalancerConfig() {
+
+    }
+
+    /**
+     * Copy these settings, e.g. to change them without touching a config shared with others.
+     * The policy is shared.
+     * @return new LoadBalancerConfig
+     */
+    public LoadBalancerConfig copy() {
+        LoadBalancerConfig copy = new LoadBalancerConfig();
+        copy.policy               = this.policy;
+        copy.ewmaDecay            = this.ewmaDecay;
+        copy.outlierLatencyFactor = this.outlierLatencyFactor;
+        copy.ejectionTime         = this.ejectionTime;
+        copy.maxEjectionPercent   = this.maxEjectionPercent;
+        copy.minRequests          = this.minRequests;
+        copy.outlierInterval      = this.outlierInterval;
+        return copy;
+    }
+
+    /**
+     * Set the policy that picks the endpoint of each request.
+     * Default is {@link LoadBalancingPolicy#failover()}.
+     * @param policy load balancing policy
+     * @return this config
+     */
+    public LoadBalancerConfig withPolicy(LoadBalancingPolicy policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    /**
+     * Set the decay time of the latency EWMA. Older samples lose weight
+     * with <code>exp(-elapsed/decay)</code>.
+     * @param ewmaDecay decay time in milliseconds
+     * @return this config
+     */
+    public LoadBalancerConfig withEwmaDecay(long ewmaDecay) {
+        this.ewmaDecay = ewmaDecay;
+        return this;
+    }
+
+    /**
+     * Set the latency factor over the median that makes an endpoint an outlier.
+     * Zero or negative disables outlier ejection.
+     * @param outlierLatencyFactor latency factor
+     * @return this config
+     */
+    public LoadBalancerConfig withOutlierLatencyFactor(double outlierLatencyFactor) {
+        this.outlierLatencyFactor = outlierLatencyFactor;
+        return this;
+    }
+
+    /**
+     * Set how long an outlier is kept out of rotation
+     * @param ejectionTime ejection time in milliseconds
+     * @return this config
+     */
+    public LoadBalancerConfig withEjectionTime(long ejectionTime) {
+        this.ejectionTime = ejectionTime;
+        return this;
+    }
+
+    /**
+     * Set the maximum share of endpoints that may be ejected at the same time
+     * @param maxEjectionPercent percentage of endpoints
+     * @return this config
+     */
+    public LoadBalancerConfig withMaxEjectionPercent(int maxEjectionPercent) {
+        this.maxEjectionPercent = maxEjectionPercent;
+        return this;
+    }
+
+    /**
+     * Set the number of latency samples an endpoint needs before it can be judged an outlier
+     * @param minRequests minimum samples
+     * @return this config
+     */
+    public LoadBalancerConfig withMinRequests(int minRequests) {
+        this.minRequests = minRequests;
+        return this;
+    }
+
+    /**
+     * Set the minimum interval between outlier checks
+     * @param outlierInterval interval in milliseconds
+     * @return this config
+     */
+    public LoadBalancerConfig withOutlierInterval(long outlierInterval) {
+        this.outlierInterval = outlierInterval;
+        return this;
+    }
+
+    public LoadBalancingPolicy getPolicy() {
+        return this.policy;
+    }
+
+    public long getEwmaDecay() {
+        return this.ewmaDecay;
+    }
+
+    public boolean isOutlierEjectionEnabled() {
+        return this.outlierLatencyFactor > 0;
+    }
+
+    public double getOutlierLatencyFactor() {
+        return this.outlierLatencyFactor;
+    }
+
+    public long getEjectionTime() {
+        return this.ejectionTime;
+    }
+
+    public int getMaxEjectionPercent() {
+        return this.maxEjectionPercent;
+    }
+
+    public int getMinRequests() {
+        return this.minRequests;
+    }
+
+    public long getOutlierInterval() {
+        return this.outlierInterval;
+    }
+
+}
@@ -0,0 +1,121 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the REST endpoint of a new request.
+ * <p>Implementations must be thread-safe. The remaining endpoints are tried
+ * in configured order if the chosen endpoint fails.
+ */
+public interface LoadBalancingPolicy {
+
+    /**
+     * Choose the endpoint of a new request
+     * @param endpoints Available endpoints in configured order. Never empty.
+     * @return chosen endpoint
+     */
+    public Endpoint choose(List<Endpoint> endpoints);
+
+    /**
+     * Always pick the first available endpoint. Other endpoints only get traffic
+     * when the ones before them are failing. This is the default.
+     * @return failover policy
+     */
+    public static LoadBalancingPolicy failover() {
+        return endpoints -> endpoints.get(0);
+    }
+
+    /**
+     * Pick endpoints in turn
+     * @return round robin policy
+     */
+    public static LoadBalancingPolicy roundRobin() {
+        return new RoundRobin();
+    }
+
+    /**
+     * Pick the endpoint with the fewest requests in flight
+     * @return least outstanding requests policy
+     */
+    public static LoadBalancingPolicy leastOutstanding() {
+        return new LeastOutstanding();
+    }
+
+    /**
+     * Pick the cheaper of two random endpoints. The cost of an endpoint is its peak EWMA
+     * latency multiplied by the requests in flight. Reacts to slow endpoints faster than
+     * {@link #leastOutstanding()}.
+     * @return peak EWMA policy
+     */
+    public static LoadBalancingPolicy peakEwma() {
+        return new PeakEwma();
+    }
+
+    public static class RoundRobin implements LoadBalancingPolicy {
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public Endpoint choose(final List<Endpoint> endpoints) {
+            int i = this.next.getAndIncrement() & Integer.MAX_VALUE;
+            return endpoints.get(i % endpoints.size());
+        }
+
+    }
+
+    public static class LeastOutstanding implements LoadBalancingPolicy {
+
+        @Override
+        public Endpoint choose(final List<Endpoint> endpoints) {
+            // Start from a random index so that ties are spread evenly
+            int size  = endpoints.size();
+            int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+            Endpoint best = null;
+            int least = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                Endpoint endpoint = endpoints.get((start + i) % size);
+                int n = endpoint.getOutstanding();
+                if (n < least) {
+                    best  = endpoint;
+                    least = n;
+                }
+            }
+            return best;
+        }
+
+    }
+
+    public static class PeakEwma implements LoadBalancingPolicy {
+
+        @Override
+        public Endpoint choose(final List<Endpoint> endpoints) {
+            int size = endpoints.size();
+            if (size == 1) {
+                return endpoints.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(size);
+            int b = random.nextInt(size - 1);
+            if (b >= a) b++;
+            Endpoint ea = endpoints.get(a);
+            Endpoint eb = endpoints.get(b);
+            return cost(ea) <= cost(eb) ? ea : eb;
+        }
+
+        /**
+         * Endpoints without samples get a cost of 1 ms per request, so that they are tried
+         * but not flooded.
+         */
+        private static double cost(final Endpoint endpoint) {
+            double latency = Math.max(endpoint.getLatencyEwma(), 1.0);
+            return latency * (endpoint.getOutstanding() + 1);
+        }
+
+    }
+
+}
@@ -6,6 +6,7 @@ package fi.methics.laverca.rest.util;
 import java.util.UUID;
 
 import fi.methics.laverca.rest.MssClient;
+import fi.methics.laverca.rest.json.AP_Info;
 import fi.methics.laverca.rest.json.MSS_SignatureReq;
 
 /**
@@ -27,8 +28,9 @@ public class MSS_SignatureReqBuilder {
     
     private String signatureprofile;
     private String apid;
-    private String appwd = "x";
+    private String appwd = AP_Info.DEFAULT_APPWD;
     private String mssFormat;
+    private String messagingMode = MSS_SignatureReq.MODE_SYNCH;
     private int timeout;
     
     public MSS_SignatureReqBuilder() {
@@ -43,6 +45,7 @@ public class MSS_SignatureReqBuilder {
         MSS_SignatureReq req = new MSS_SignatureReq(this.msisdn, this.dtbs, this.dtbd);
         req.SignatureProfile = this.signatureprofile;
         req.MSS_Format       = this.mssFormat;
+        req.MessagingMode    = this.messagingMode;
         req.AP_Info.AP_ID    = this.apid;
         req.AP_Info.AP_PWD   = this.appwd;
         req.AP_Info.AP_TransID = "A" + UUID.randomUUID().toString();
@@ -64,7 +67,7 @@ public class MSS_SignatureReqBuilder {
     
     /**
      * Set AP_PWD to the request
-     * <p>This defaults to "x" if not set.
+     * <p>This defaults to {@link AP_Info#DEFAULT_APPWD} if not set.
      * @param appwd AP_PWD
      * @return this builder
      */
@@ -93,6 +96,18 @@ public class MSS_SignatureReqBuilder {
         return this;
     }
     
+    /**
+     * Set MessagingMode. Defaults to {@link MSS_SignatureReq#MODE_SYNCH}.
+     * <p>With {@link MSS_SignatureReq#MODE_ASYNCH_CLIENT_SERVER} the MSSP acknowledges the request at once,
+     * and {@link MssClient} polls the result with MSS_StatusReq.
+     * @param messagingMode MessagingMode
+     * @return this builder
+     */
+    public MSS_SignatureReqBuilder withMessagingMode(String messagingMode) {
+        this.messagingMode = messagingMode;
+        return this;
+    }
+    
     /**
      * Set MSISDN
      * @param msisdn MSISDN
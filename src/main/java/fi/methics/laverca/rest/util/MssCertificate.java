@@ -5,6 +5,7 @@ package fi.methics.laverca.rest.util;
 
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -12,34 +13,39 @@ import java.util.stream.Collectors;
  * End-user certificate object.
  * <p>Contains both the chain and the end-user certificate.
  * <p>Additionally can be used to check which SignatureProfiles use this certificate.
+ * <p>An MssCertificate read from JSON keeps the base64 encoded chain and decodes it
+ * on the first call of {@link #getCertificate()} or {@link #getCertificateChain()}.
  */
 public class MssCertificate {
 
-    private X509Certificate        cert;
-    private List<X509Certificate>  chain;
+    private final Chain            chain;
     private List<SignatureProfile> sigprofs;
     
-    public static final MssCertificate EMPTY = new MssCertificate();
+    /**
+     * Certificate of a SignatureProfile the user does not have. It can not be modified.
+     */
+    public static final MssCertificate EMPTY = new MssCertificate(new Chain(null, Collections.emptyList()), Collections.emptyList());
     
     /**
-     * Create a new MssCertificate from a JSON response
+     * Create a new MssCertificate from a JSON response.
+     * The chain is decoded when first used.
      * @param chain CertificateChain
      * @return new MssCertificate
      */
     public static MssCertificate fromJson(final List<String> chain) {
-        MssCertificate cert = new MssCertificate();
         if (chain == null || chain.isEmpty()) {
-            cert.cert  = null;
-            cert.chain = new ArrayList<>();
-        } else {
-            cert.cert  = X509Util.parseCertificate(chain.get(0));
-            cert.chain = chain.stream().map(c -> X509Util.parseCertificate(c)).collect(Collectors.toList());
+            return new MssCertificate();
         }
-        return cert;
+        return new MssCertificate(new Chain(new ArrayList<>(chain), null), new ArrayList<>());
     }
     
     private MssCertificate() {
-        this.sigprofs = new ArrayList<>();
+        this(new Chain(null, new ArrayList<>()), new ArrayList<>());
+    }
+    
+    private MssCertificate(final Chain chain, final List<SignatureProfile> sigprofs) {
+        this.chain    = chain;
+        this.sigprofs = sigprofs;
     }
     
     /**
@@ -48,14 +54,19 @@ public class MssCertificate {
      * @return new MssCertificate
      */
     public MssCertificate(final List<X509Certificate> chain) {
-        if (chain == null || chain.isEmpty()) {
-            this.cert  = null;
-            this.chain = new ArrayList<>();
-        } else {
-            this.cert  = chain.get(0);
-            this.chain = chain;
+        this(new Chain(null, chain == null || chain.isEmpty() ? new ArrayList<>() : chain), new ArrayList<>());
+    }
+    
+    /**
+     * Copy this certificate, e.g. to hand a cached certificate to a caller who may modify it.
+     * The copy has its own SignatureProfiles. The chain is shared and decoded only once.
+     * @return new MssCertificate, or {@link #EMPTY} itself
+     */
+    public MssCertificate copy() {
+        if (this == EMPTY) {
+            return this;
         }
-        this.sigprofs = new ArrayList<>();
+        return new MssCertificate(this.chain, new ArrayList<>(this.sigprofs));
     }
     
     /**
@@ -64,6 +75,7 @@ public class MssCertificate {
      */
     public void addSignatureProfiles(List<String> sigprofs) {
         if (sigprofs == null) return;
+        if (this == EMPTY) throw new UnsupportedOperationException("MssCertificate.EMPTY can not be modified");
         this.sigprofs = new ArrayList<>(sigprofs.stream().map(s -> SignatureProfile.of(s)).collect(Collectors.toList()));
     }
     
@@ -89,15 +101,55 @@ public class MssCertificate {
      * @return certificate
      */
     public X509Certificate getCertificate() {
-        return this.cert;
+        List<X509Certificate> chain = this.chain.get();
+        return chain.isEmpty() ? null : chain.get(0);
     }
     
     /**
      * Get Certificate chain
-     * @return chain
+     * @return chain. The chain of a certificate read from JSON can not be modified.
      */
     public List<X509Certificate> getCertificateChain() {
-        return this.chain;
+        return this.chain.get();
+    }
+    
+    /**
+     * Certificate chain that copies of an MssCertificate share
+     */
+    private static class Chain {
+
+        private volatile List<String>  encoded;
+        private List<X509Certificate>  decoded;
+
+        Chain(final List<String> encoded, final List<X509Certificate> decoded) {
+            this.encoded = encoded;
+            this.decoded = decoded;
+        }
+
+        List<X509Certificate> get() {
+            if (this.encoded != null) {
+                this.decode();
+            }
+            return this.decoded;
+        }
+
+        /**
+         * Decode the base64 chain. Equal certificates share one instance from {@link CertificateStore#getDefault()}.
+         */
+        private synchronized void decode() {
+            final List<String> encoded = this.encoded;
+            if (encoded == null) {
+                return; // decoded by another thread
+            }
+            final CertificateStore store = CertificateStore.getDefault();
+            final List<X509Certificate> chain = new ArrayList<>(encoded.size());
+            for (String c : encoded) {
+                chain.add(store.intern(c));
+            }
+            this.decoded = Collections.unmodifiableList(chain);
+            this.encoded = null;
+        }
+
     }
     
 }
@@ -19,6 +19,13 @@ public class MssRestException extends RuntimeException {
     public static final String UNABLE_TO_PROVIDE_SERVICES = "780";
     public static final String INTERNAL_ERROR             = "900";
 
+    /** Client side: request rejected by the concurrency limit of {@link RestClient}. Not an MSSP fault code. */
+    public static final String TOO_MANY_REQUESTS          = "429";
+    /** Client side: the {@link Deadline} of the request passed before a response. Not an MSSP fault code. */
+    public static final String DEADLINE_EXCEEDED          = "408";
+    /** Client side: the request was cancelled with {@link Deadline#cancel()}. Not an MSSP fault code. */
+    public static final String CANCELLED                  = "499";
+
     private final String code;
     
     public MssRestException(String code, String msg) {
@@ -0,0 +1,143 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Settings of the {@link NotificationReceiver} of asynchServerServer signatures.
+ * <p>Usage:
+ * <pre>
+ * NotificationConfig config = new NotificationConfig().withPath("/mssp/notify")
+ *                                                     .withCredentials("mssp", "secret");
+ * </pre>
+ * All time values are in milliseconds.
+ */
+public class NotificationConfig {
+
+    public static final String DEFAULT_PATH          = "/notification";
+    public static final long   DEFAULT_MAX_WAIT_TIME = 300000; // 5 min
+    public static final long   DEFAULT_EARLY_TTL     = 30000;
+    public static final int    DEFAULT_MAX_EARLY     = 10000;
+    public static final int    DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+    private String path        = DEFAULT_PATH;
+    private String username;
+    private String password;
+    private long   maxWaitTime = DEFAULT_MAX_WAIT_TIME;
+    private long   earlyTtl    = DEFAULT_EARLY_TTL;
+    private int    maxEarly    = DEFAULT_MAX_EARLY;
+    private int    maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private boolean unauthenticated;
+
+    public NotificationConfig() {
+
+    }
+
+    /**
+     * Set the path of the endpoint when the receiver runs its own HTTP server
+     * @param path URL path (e.g. "/notification")
+     * @return this config
+     */
+    public NotificationConfig withPath(String path) {
+        this.path = path;
+        return this;
+    }
+
+    /**
+     * Require HTTP Basic authentication from the MSSP.
+     * The receiver refuses all notifications unless credentials are set or {@link #withUnauthenticated(boolean)} is enabled.
+     * @param username Username the MSSP sends
+     * @param password Password the MSSP sends
+     * @return this config
+     */
+    public NotificationConfig withCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Accept notifications without HTTP Basic authentication. Default is false.
+     * <p>Only enable this when the endpoint is protected otherwise, e.g. by TLS client authentication
+     * at a reverse proxy: anyone who can POST to it and knows a transaction ID could complete the transaction.
+     * @param unauthenticated true to accept notifications without credentials
+     * @return this config
+     */
+    public NotificationConfig withUnauthenticated(boolean unauthenticated) {
+        this.unauthenticated = unauthenticated;
+        return this;
+    }
+
+    /**
+     * Set how long a transaction without a deadline waits for its notification
+     * @param maxWaitTime time in milliseconds
+     * @return this config
+     */
+    public NotificationConfig withMaxWaitTime(long maxWaitTime) {
+        this.maxWaitTime = maxWaitTime;
+        return this;
+    }
+
+    /**
+     * Set how long a notification that arrives before the acknowledgement of its request is kept
+     * @param earlyTtl time in milliseconds
+     * @return this config
+     */
+    public NotificationConfig withEarlyTtl(long earlyTtl) {
+        this.earlyTtl = earlyTtl;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of early notifications kept. Further ones are refused with HTTP 503.
+     * @param maxEarly notifications
+     * @return this config
+     */
+    public NotificationConfig withMaxEarly(int maxEarly) {
+        this.maxEarly = maxEarly;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of a notification. Larger ones are refused with HTTP 413.
+     * @param maxBodySize size in bytes
+     * @return this config
+     */
+    public NotificationConfig withMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public String getPassword() {
+        return this.password;
+    }
+
+    public boolean isUnauthenticated() {
+        return this.unauthenticated;
+    }
+
+    public long getMaxWaitTime() {
+        return this.maxWaitTime;
+    }
+
+    public long getEarlyTtl() {
+        return this.earlyTtl;
+    }
+
+    public int getMaxEarly() {
+        return this.maxEarly;
+    }
+
+    public int getMaxBodySize() {
+        return this.maxBodySize;
+    }
+
+}
@@ -0,0 +1,624 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.Cancellable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.json.MSS_StatusResp;
+import fi.methics.laverca.rest.json.Status;
+
+/**
+ * Embedded endpoint for the notifications the MSSP pushes in asynchServerServer mode.
+ * <p>The MSSP acknowledges an asynchServerServer MSS_SignatureReq at once with an MSSP_TransID,
+ * and POSTs the result as an MSS_StatusResp or MSS_SignatureResp to the notification URL of the AP
+ * when the user has answered. {@link RestClient} hands each acknowledgement to the receiver instead
+ * of a {@link StatusPoller}, so no MSS_StatusReq is ever sent. The receiver parses each notification,
+ * verifies it and completes the pending request by MSSP_TransID or AP_TransID.
+ * <p>A notification is accepted only if
+ * <ul>
+ * <li>the MSSP authenticated with the configured HTTP Basic credentials,
+ * <li>its MSSP_TransID or AP_TransID equals that of the pending request,
+ * <li>its other MSSP_TransID, AP_TransID, AP_ID and MSISDN agree with the pending request, as far as both carry them, and
+ * <li>a successful status carries an MSS_Signature.
+ * </ul>
+ * Without credentials, all notifications are refused unless {@link NotificationConfig#withUnauthenticated(boolean)}
+ * is enabled. Failed checks are answered with HTTP 401 or 400 and leave the request pending. A notification that
+ * arrives before the acknowledgement of its request is kept for a while and matched when the
+ * acknowledgement comes.
+ * <p>The receiver can run its own HTTP server with {@link #start(InetSocketAddress)}, be mounted as the
+ * {@link HttpHandler} of an existing {@link HttpServer}, or be called from any servlet with
+ * {@link #receive(String, InputStream)}. The notification URL is configured at the MSSP.
+ * <p>Usage:
+ * <pre>
+ * NotificationReceiver receiver = new NotificationReceiver(new NotificationConfig().withCredentials("mssp", "secret"));
+ * receiver.start(new InetSocketAddress(8443));
+ * MssClient client = new MssClient.Builder().withRestUrl(url)
+ *                                           .withApiKey(apid, apikey)
+ *                                           .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_SERVER_SERVER)
+ *                                           .withNotificationReceiver(receiver)
+ *                                           .build();
+ * </pre>
+ */
+public class NotificationReceiver implements HttpHandler {
+
+    private static final Log log = LogFactory.getLog(NotificationReceiver.class);
+
+    private final NotificationConfig config;
+    private final TimingWheel        wheel;
+    private final byte[]             authorization;
+
+    // keyed by "M" + MSSP_TransID and "A" + AP_TransID
+    private final ConcurrentHashMap<String, Waiter> waiters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Early>  early   = new ConcurrentHashMap<>();
+    private final AtomicInteger pending    = new AtomicInteger();
+    private final AtomicInteger earlyCount = new AtomicInteger();
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder matched  = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired  = new LongAdder();
+
+    private HttpServer      server;
+    private ExecutorService executor;
+    private volatile boolean closed;
+
+    public NotificationReceiver() {
+        this(new NotificationConfig());
+    }
+
+    /**
+     * Create a receiver that keeps its timers in the shared {@link TimingWheel#getDefault()}
+     * @param config Receiver settings
+     */
+    public NotificationReceiver(final NotificationConfig config) {
+        this(config, TimingWheel.getDefault());
+    }
+
+    /**
+     * Create a receiver
+     * @param config Receiver settings
+     * @param wheel  Timing wheel of the deadline and expiry timers
+     */
+    public NotificationReceiver(final NotificationConfig config, final TimingWheel wheel) {
+        this.config = config;
+        this.wheel  = wheel;
+        if (config.getUsername() != null) {
+            String credentials = config.getUsername() + ":" + (config.getPassword() != null ? config.getPassword() : "");
+            this.authorization = ("Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)))
+                                 .getBytes(StandardCharsets.UTF_8);
+        } else {
+            this.authorization = null;
+        }
+    }
+
+    public NotificationConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * @return number of requests waiting for their notification
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * @return number of notifications received
+     */
+    public long getReceivedCount() {
+        return this.received.sum();
+    }
+
+    /**
+     * @return number of notifications that completed a request
+     */
+    public long getMatchedCount() {
+        return this.matched.sum();
+    }
+
+    /**
+     * @return number of notifications refused as unauthenticated, malformed or not matching their request
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * @return number of notifications of unknown transactions dropped after the early TTL
+     */
+    public long getExpiredCount() {
+        return this.expired.sum();
+    }
+
+    /**
+     * Run an HTTP server of this receiver at {@link NotificationConfig#getPath()}
+     * @param address Local address and port. Port 0 picks a free port.
+     * @return the started server
+     * @throws IOException if the server cannot be bound
+     * @throws IllegalStateException if no credentials are configured and unauthenticated notifications are not allowed
+     */
+    public synchronized HttpServer start(final InetSocketAddress address) throws IOException {
+        if (this.server != null) {
+            throw new IllegalStateException("Notification receiver already started");
+        }
+        if (this.authorization == null && !this.config.isUnauthenticated()) {
+            throw new IllegalStateException("Notification receiver requires credentials, or explicitly allowed unauthenticated notifications");
+        }
+        HttpServer s = HttpServer.create(address, 0);
+        s.createContext(this.config.getPath(), this);
+        this.executor = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "laverca-notification");
+            thread.setDaemon(true);
+            return thread;
+        });
+        s.setExecutor(this.executor);
+        s.start();
+        this.server = s;
+        log.info("Receiving MSSP notifications at " + s.getAddress() + this.config.getPath());
+        return s;
+    }
+
+    /**
+     * Stop the HTTP server, if started. Pending requests fail with {@link MssRestException#INTERNAL_ERROR}.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        if (this.server != null) {
+            this.server.stop(0);
+            this.executor.shutdown();
+            this.server = null;
+        }
+        for (Waiter w : this.waiters.values()) {
+            w.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, "Notification receiver closed"));
+        }
+    }
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            int status = this.receive(exchange.getRequestHeaders().getFirst("Authorization"), exchange.getRequestBody());
+            if (status == 401) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"laverca\"");
+            }
+            exchange.sendResponseHeaders(status, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Handle one notification
+     * @param authorization Value of the HTTP "Authorization" header, or null
+     * @param body          Request body. The stream is not closed.
+     * @return HTTP status to answer with: 200 if accepted, 400 if malformed or not matching its request,
+     *         401 if not authenticated, 413 if too large, 503 if too many early notifications are kept
+     */
+    public int receive(final String authorization, final InputStream body) {
+        this.received.increment();
+        if (!this.isAuthorized(authorization)) {
+            this.rejected.increment();
+            log.warn("Refused unauthenticated MSSP notification");
+            return 401;
+        }
+        Notification n;
+        try {
+            byte[] bytes = read(body, this.config.getMaxBodySize());
+            if (bytes == null) {
+                this.rejected.increment();
+                return 413;
+            }
+            n = Notification.of(JsonResponse.fromString(new String(bytes, StandardCharsets.UTF_8)));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Refused malformed MSSP notification: " + e.getMessage());
+            n = null;
+        }
+        if (n == null) {
+            this.rejected.increment();
+            return 400;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Received notification of " + n);
+        }
+        if (!n.isFinal()) {
+            return 200;
+        }
+        Waiter w = this.findWaiter(n);
+        if (w != null) {
+            return this.deliver(w, n) ? 200 : 400;
+        }
+
+        // The acknowledgement of the request has not been handled yet
+        if (this.earlyCount.incrementAndGet() > this.config.getMaxEarly()) {
+            this.earlyCount.decrementAndGet();
+            log.warn("Too many MSSP notifications of unknown transactions");
+            return 503;
+        }
+        final Early e = new Early(n);
+        for (String key : n.keys()) {
+            this.early.put(key, e);
+        }
+        try {
+            this.wheel.schedule(() -> {
+                if (this.take(e)) {
+                    this.expired.increment();
+                    log.warn("Dropped MSSP notification of unknown transaction " + e.notification);
+                }
+            }, this.config.getEarlyTtl(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException re) {
+            this.take(e);
+            return 503;
+        }
+        w = this.findWaiter(n);
+        if (w != null && this.take(e)) {
+            return this.deliver(w, n) ? 200 : 400;
+        }
+        return 200;
+    }
+
+    /**
+     * Wait for the notification of an acknowledged request
+     * @param ack       Acknowledgement of the MSS_SignatureReq
+     * @param apTransId AP_TransID of the request (may be null)
+     * @param msisdn    MSISDN of the request (may be null)
+     * @param apid      AP_ID of the request (may be null)
+     * @param deadline  Deadline of the request, or null for {@link NotificationConfig#getMaxWaitTime()}
+     * @return Future that completes with an MSS_SignatureResp made from the notification, or with a {@link MssRestException}
+     */
+    CompletableFuture<JsonResponse> await(final MSS_SignatureResp ack,
+                                          final String apTransId,
+                                          final String msisdn,
+                                          final String apid,
+                                          final Deadline deadline)
+    {
+        final Deadline d = deadline != null ? deadline : Deadline.after(this.config.getMaxWaitTime(), TimeUnit.MILLISECONDS);
+        final Waiter   w = new Waiter(ack, apTransId, msisdn, apid, d);
+        this.pending.incrementAndGet();
+        for (String key : w.keys()) {
+            this.waiters.put(key, w);
+        }
+        if (this.closed) {
+            w.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, "Notification receiver closed"));
+            return w.result;
+        }
+        d.attach(w);
+        try {
+            w.timer = this.wheel.schedule(() -> w.finish(null, d.toException()), d.remaining(), TimeUnit.MILLISECONDS);
+            if (w.done.get()) {
+                w.timer.cancel();
+            }
+        } catch (RejectedExecutionException e) {
+            w.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, "Timing wheel closed"));
+            return w.result;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Waiting for notification of " + ack.MSSP_TransID);
+        }
+
+        // The notification may have come before the acknowledgement
+        for (String key : w.keys()) {
+            Early e = this.early.get(key);
+            if (e != null && this.take(e)) {
+                this.deliver(w, e.notification);
+                break;
+            }
+        }
+        return w.result;
+    }
+
+    private boolean isAuthorized(final String header) {
+        if (this.authorization == null) {
+            return this.config.isUnauthenticated();
+        }
+        return header != null && MessageDigest.isEqual(this.authorization, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Waiter findWaiter(final Notification n) {
+        for (String key : n.keys()) {
+            Waiter w = this.waiters.get(key);
+            if (w != null) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take an early notification out of the map. Only one caller wins.
+     * @param e Early notification
+     * @return true if the caller took it
+     */
+    private boolean take(final Early e) {
+        if (!e.taken.compareAndSet(false, true)) {
+            return false;
+        }
+        for (String key : e.notification.keys()) {
+            this.early.remove(key, e);
+        }
+        this.earlyCount.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Verify a notification against the pending request and complete the request
+     * @param w Pending request
+     * @param n Notification
+     * @return true if the notification was accepted
+     */
+    private boolean deliver(final Waiter w, final Notification n) {
+        String problem = w.verify(n);
+        if (problem != null) {
+            this.rejected.increment();
+            log.warn("Refused MSSP notification of " + n + ": " + problem);
+            return false;
+        }
+        w.finish(n.toSignatureResp(w.ack), null);
+        return true;
+    }
+
+    /**
+     * Read a request body
+     * @param is  Body stream
+     * @param max Maximum size
+     * @return body, or null if it is larger than the maximum
+     * @throws IOException if reading fails
+     */
+    private static byte[] read(final InputStream is, final int max) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) >= 0) {
+            if (out.size() + n > max) {
+                return null;
+            }
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean differ(final String a, final String b) {
+        return a != null && b != null && !a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationReceiver [pending=" + this.getPendingCount() + ", received=" + this.getReceivedCount()
+             + ", matched=" + this.getMatchedCount() + ", rejected=" + this.getRejectedCount() + "]";
+    }
+
+    /**
+     * Parsed notification
+     */
+    private static final class Notification {
+
+        final MSS_SignatureResp signature;
+        final MSS_StatusResp    status;
+        final String msspTransId;
+        final String apTransId;
+        final String apid;
+        final String msisdn;
+        final String code;
+
+        private Notification(final MSS_SignatureResp signature, final MSS_StatusResp status) {
+            this.signature = signature;
+            this.status    = status;
+            if (signature != null) {
+                this.msspTransId = signature.MSSP_TransID;
+                this.apTransId   = signature.AP_Info != null ? signature.AP_Info.AP_TransID : null;
+                this.apid        = signature.AP_Info != null ? signature.AP_Info.AP_ID : null;
+                this.msisdn      = signature.getMsisdn();
+                this.code        = code(signature.Status);
+            } else {
+                this.msspTransId = null;
+                this.apTransId   = status.AP_Info != null ? status.AP_Info.AP_TransID : null;
+                this.apid        = status.AP_Info != null ? status.AP_Info.AP_ID : null;
+                this.msisdn      = status.MobileUser != null ? status.MobileUser.MSISDN : null;
+                this.code        = code(status.Status);
+            }
+        }
+
+        /**
+         * @param resp Parsed JSON
+         * @return notification, or null if the JSON is not an MSS_SignatureResp or MSS_StatusResp with a transaction ID
+         */
+        static Notification of(final JsonResponse resp) {
+            if (resp == null) {
+                return null;
+            }
+            Notification n;
+            if (resp.MSS_SignatureResp != null) {
+                n = new Notification(resp.MSS_SignatureResp, null);
+            } else if (resp.MSS_StatusResp != null) {
+                n = new Notification(null, resp.MSS_StatusResp);
+            } else {
+                return null;
+            }
+            return n.msspTransId != null || n.apTransId != null ? n : null;
+        }
+
+        private static String code(final Status status) {
+            return status != null && status.StatusCode != null ? status.StatusCode.Value : null;
+        }
+
+        String[] keys() {
+            if (this.msspTransId != null && this.apTransId != null) {
+                return new String[] {"M" + this.msspTransId, "A" + this.apTransId};
+            }
+            return new String[] {this.msspTransId != null ? "M" + this.msspTransId : "A" + this.apTransId};
+        }
+
+        boolean hasSignature() {
+            return (this.signature != null ? this.signature.MSS_Signature : this.status.MSS_Signature) != null;
+        }
+
+        /**
+         * @return true unless the notification only tells that the transaction is still outstanding
+         */
+        boolean isFinal() {
+            return this.hasSignature()
+                || !(MSS_SignatureResp.STATUS_OUTSTANDING.equals(this.code) || MSS_SignatureResp.STATUS_REQUEST_OK.equals(this.code));
+        }
+
+        JsonResponse toSignatureResp(final MSS_SignatureResp ack) {
+            if (this.status != null) {
+                return StatusPoller.toSignatureResp(ack, this.status);
+            }
+            if (this.signature.MSSP_TransID == null) {
+                this.signature.MSSP_TransID = ack.MSSP_TransID;
+            }
+            if (this.signature.SignatureProfile == null) {
+                this.signature.SignatureProfile = ack.SignatureProfile;
+            }
+            JsonResponse resp = new JsonResponse();
+            resp.MSS_SignatureResp = this.signature;
+            return resp;
+        }
+
+        @Override
+        public String toString() {
+            return "MSSP_TransID=" + this.msspTransId + ", AP_TransID=" + this.apTransId + ", status=" + this.code;
+        }
+
+    }
+
+    /**
+     * Notification that came before the acknowledgement of its request
+     */
+    private static final class Early {
+
+        final Notification  notification;
+        final AtomicBoolean taken = new AtomicBoolean();
+
+        Early(final Notification notification) {
+            this.notification = notification;
+        }
+
+    }
+
+    /**
+     * Request waiting for its notification. Cancelling the deadline of the request ends the wait at once.
+     */
+    private class Waiter implements Cancellable {
+
+        final MSS_SignatureResp ack;
+        final String   apTransId;
+        final String   msisdn;
+        final String   apid;
+        final Deadline deadline;
+        final CompletableFuture<JsonResponse> result = new CompletableFuture<>();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        volatile TimingWheel.Timeout timer;
+
+        Waiter(final MSS_SignatureResp ack, final String apTransId, final String msisdn, final String apid, final Deadline deadline) {
+            this.ack       = ack;
+            this.apTransId = apTransId;
+            this.msisdn    = msisdn != null ? msisdn : ack.getMsisdn();
+            this.apid      = apid;
+            this.deadline  = deadline;
+        }
+
+        String[] keys() {
+            if (this.apTransId != null) {
+                return new String[] {"M" + this.ack.MSSP_TransID, "A" + this.apTransId};
+            }
+            return new String[] {"M" + this.ack.MSSP_TransID};
+        }
+
+        /**
+         * @param n Notification
+         * @return reason to refuse the notification, or null if it belongs to this request
+         */
+        String verify(final Notification n) {
+            boolean mssp = n.msspTransId != null && n.msspTransId.equals(this.ack.MSSP_TransID);
+            boolean ap   = n.apTransId   != null && n.apTransId.equals(this.apTransId);
+            if (!mssp && !ap) {
+                return "Neither MSSP_TransID nor AP_TransID matches";
+            }
+            if (differ(n.msspTransId, this.ack.MSSP_TransID)) {
+                return "MSSP_TransID does not match";
+            }
+            if (differ(n.apTransId, this.apTransId)) {
+                return "AP_TransID does not match";
+            }
+            if (differ(n.apid, this.apid)) {
+                return "AP_ID does not match";
+            }
+            if (differ(n.msisdn, this.msisdn)) {
+                return "MSISDN does not match";
+            }
+            if ((MSS_SignatureResp.STATUS_SIGNATURE.equals(n.code) || MSS_SignatureResp.STATUS_VALID_SIGNATURE.equals(n.code)) && !n.hasSignature()) {
+                return "Status " + n.code + " without MSS_Signature";
+            }
+            return null;
+        }
+
+        /**
+         * End the wait and complete the result. Only the first call has an effect.
+         * @param resp Final response, or null
+         * @param e    Failure, or null
+         * @return true if this call completed the request
+         */
+        boolean finish(final JsonResponse resp, final Throwable e) {
+            if (!this.done.compareAndSet(false, true)) {
+                return false;
+            }
+            for (String key : this.keys()) {
+                NotificationReceiver.this.waiters.remove(key, this);
+            }
+            NotificationReceiver.this.pending.decrementAndGet();
+            TimingWheel.Timeout t = this.timer;
+            if (t != null) {
+                t.cancel();
+            }
+            this.deadline.detach(this);
+            if (e == null) {
+                NotificationReceiver.this.matched.increment();
+                this.result.complete(resp);
+            } else {
+                if (log.isDebugEnabled()) {
+                    log.debug("Stopped waiting for notification of " + this.ack.MSSP_TransID + ": " + e.getMessage());
+                }
+                this.result.completeExceptionally(e);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean cancel() {
+            this.finish(null, this.deadline.toException());
+            return true;
+        }
+
+    }
+
+}
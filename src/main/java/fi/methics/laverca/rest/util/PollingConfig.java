@@ -0,0 +1,157 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Settings of the MSS_StatusReq polling done by {@link StatusPoller} for asynchClientServer signatures.
+ * <p>The first status query is sent after the initial delay. Each "outstanding" answer grows the interval
+ * by the backoff factor, between the minimum and maximum interval.
+ * <p>With adaptive polling, once enough transactions have completed, queries are instead spread over the
+ * observed distribution of the time users take to confirm: the next query of a transaction is sent when
+ * another quantile step of users would have answered. Queries are dense where users typically answer,
+ * and sparse early on and in the long tail.
+ * <p>Usage:
+ * <pre>
+ * PollingConfig config = new PollingConfig().withInitialDelay(3000)
+ *                                           .withMaxInterval(5000);
+ * </pre>
+ * All time values are in milliseconds.
+ */
+public class PollingConfig {
+
+    public static final long   DEFAULT_INITIAL_DELAY = 2000;
+    public static final long   DEFAULT_MIN_INTERVAL  = 1000;
+    public static final long   DEFAULT_MAX_INTERVAL  = 5000;
+    public static final double DEFAULT_BACKOFF       = 1.5;
+    public static final int    DEFAULT_MIN_SAMPLES   = 20;
+    public static final double DEFAULT_QUANTILE_STEP = 0.1;
+    public static final long   DEFAULT_MAX_POLL_TIME = 300000; // 5 min
+
+    private long    initialDelay = DEFAULT_INITIAL_DELAY;
+    private long    minInterval  = DEFAULT_MIN_INTERVAL;
+    private long    maxInterval  = DEFAULT_MAX_INTERVAL;
+    private double  backoff      = DEFAULT_BACKOFF;
+    private boolean adaptive     = true;
+    private int     minSamples   = DEFAULT_MIN_SAMPLES;
+    private double  quantileStep = DEFAULT_QUANTILE_STEP;
+    private long    maxPollTime  = DEFAULT_MAX_POLL_TIME;
+
+    public PollingConfig() {
+
+    }
+
+    /**
+     * Set the wait between the acknowledgement and the first status query
+     * @param initialDelay delay in milliseconds
+     * @return this config
+     */
+    public PollingConfig withInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+        return this;
+    }
+
+    /**
+     * Set the shortest wait between two status queries of a transaction
+     * @param minInterval interval in milliseconds
+     * @return this config
+     */
+    public PollingConfig withMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+        return this;
+    }
+
+    /**
+     * Set the longest wait between two status queries of a transaction
+     * @param maxInterval interval in milliseconds
+     * @return this config
+     */
+    public PollingConfig withMaxInterval(long maxInterval) {
+        this.maxInterval = maxInterval;
+        return this;
+    }
+
+    /**
+     * Set the factor the interval grows by after each "outstanding" answer. 1 polls at a fixed interval.
+     * @param backoff backoff factor
+     * @return this config
+     */
+    public PollingConfig withBackoff(double backoff) {
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * Enable or disable adapting the poll times to the observed confirmation times
+     * @param adaptive true to adapt
+     * @return this config
+     */
+    public PollingConfig withAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
+    /**
+     * Set the number of completed transactions needed before the poll times adapt
+     * @param minSamples number of samples
+     * @return this config
+     */
+    public PollingConfig withMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * Set the time after which polling of a transaction without a deadline gives up
+     * @param maxPollTime time in milliseconds
+     * @return this config
+     */
+    public PollingConfig withMaxPollTime(long maxPollTime) {
+        this.maxPollTime = maxPollTime;
+        return this;
+    }
+
+    /**
+     * Set the share of users expected to confirm between two adaptive status queries.
+     * E.g. 0.1 polls about ten times over the typical range of confirmation times.
+     * @param quantileStep share of users between 0 and 1
+     * @return this config
+     */
+    public PollingConfig withQuantileStep(double quantileStep) {
+        this.quantileStep = quantileStep;
+        return this;
+    }
+
+    public long getInitialDelay() {
+        return this.initialDelay;
+    }
+
+    public long getMinInterval() {
+        return this.minInterval;
+    }
+
+    public long getMaxInterval() {
+        return this.maxInterval;
+    }
+
+    public double getBackoff() {
+        return this.backoff;
+    }
+
+    public boolean isAdaptive() {
+        return this.adaptive;
+    }
+
+    public int getMinSamples() {
+        return this.minSamples;
+    }
+
+    public double getQuantileStep() {
+        return this.quantileStep;
+    }
+
+    public long getMaxPollTime() {
+        return this.maxPollTime;
+    }
+
+}
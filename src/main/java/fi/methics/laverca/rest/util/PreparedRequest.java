@@ -0,0 +1,98 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+
+/**
+ * JSON request whose body has already been encoded as UTF-8 by a
+ * {@link SignatureReqTemplate} or {@link ProfileReqTemplate}.
+ * <p>The request object fields of {@link JsonRequest} are not set.
+ * The body is written as is, so the HMAC signature is computed over the exact bytes sent.
+ */
+public class PreparedRequest extends JsonRequest {
+
+    private final transient RequestType type;
+    private final transient byte[] body;
+    private final transient String msisdn;
+    private final transient String transId;
+    private final transient long timeout;
+    private final transient int  keyLength;
+
+    PreparedRequest(final RequestType type, final byte[] body, final String msisdn, final String transId) {
+        this(type, body, msisdn, transId, 0, 0);
+    }
+
+    /**
+     * @param keyLength Length of the body prefix that identifies the signature, i.e. everything before the AP_TransID.
+     *                  0 if the request is not an MSS_SignatureReq.
+     */
+    PreparedRequest(final RequestType type, final byte[] body, final String msisdn, final String transId, final long timeout, final int keyLength) {
+        this.type      = type;
+        this.body      = body;
+        this.msisdn    = msisdn;
+        this.transId   = transId;
+        this.timeout   = timeout;
+        this.keyLength = keyLength;
+    }
+
+    @Override
+    public RequestType getRequestType() {
+        return this.type;
+    }
+
+    @Override
+    public long getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Get the encoded request body. The returned array must not be modified.
+     * @return UTF-8 JSON
+     */
+    public byte[] getBytes() {
+        return this.body;
+    }
+
+    /**
+     * @return MSISDN of the request
+     */
+    @Override
+    public String getMsisdn() {
+        return this.msisdn;
+    }
+
+    /**
+     * @return AP_TransID of the request or null if the request has none
+     */
+    @Override
+    public String getApTransId() {
+        return this.transId;
+    }
+
+    /**
+     * The key is the encoded body up to the AP_TransID, which covers the AP, MSISDN,
+     * SignatureProfile, MSS_Format, DTBS and DTBD.
+     */
+    @Override
+    public String getSignatureKey() {
+        return this.keyLength > 0 ? new String(this.body, 0, this.keyLength, StandardCharsets.UTF_8) : null;
+    }
+
+    @Override
+    public String toJson() {
+        return new String(this.body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void writeTo(final OutputStream os) throws IOException {
+        os.write(this.body);
+        os.flush();
+    }
+
+}
@@ -0,0 +1,56 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * Pre-serialized MSS_ProfileReq.
+ * <p>AP_ID and AP_PWD are encoded once as UTF-8 bytes and each request only splices in the MSISDN.
+ * The result is byte-identical to serializing a {@link fi.methics.laverca.rest.json.MSS_ProfileReq}.
+ * <p>Templates are immutable and thread-safe.
+ */
+public class ProfileReqTemplate {
+
+    private static final byte[] HEAD        = JsonBuffer.ascii("{\"MSS_ProfileReq\":{\"MobileUser\":{");
+    private static final byte[] MSISDN      = JsonBuffer.ascii("\"MSISDN\":\"");
+    private static final byte[] MSISDN_END  = JsonBuffer.ascii("\"");
+
+    private final byte[] apInfo;
+
+    /**
+     * Create a new template
+     * @param apid  AP_ID (may be null)
+     * @param appwd AP_PWD (may be null)
+     */
+    public ProfileReqTemplate(final String apid, final String appwd) {
+        JsonBuffer b = new JsonBuffer(64);
+        b.append(JsonBuffer.ascii("},\"AP_Info\":{"));
+        if (apid != null) {
+            b.append(JsonBuffer.ascii("\"AP_ID\":")).append(JsonBuffer.quoted(apid));
+        }
+        if (appwd != null) {
+            if (apid != null) b.append(JsonBuffer.ascii(","));
+            b.append(JsonBuffer.ascii("\"AP_PWD\":")).append(JsonBuffer.quoted(appwd));
+        }
+        b.append(JsonBuffer.ascii("}}}"));
+        this.apInfo = b.toByteArray();
+    }
+
+    /**
+     * Prepare a request
+     * @param msisdn Phone number of the user
+     * @return request ready to be sent
+     */
+    public PreparedRequest prepare(final String msisdn) {
+        JsonBuffer b = new JsonBuffer(HEAD.length + this.apInfo.length + (msisdn == null ? 0 : msisdn.length() + 12));
+        b.append(HEAD);
+        if (msisdn != null) {
+            b.append(MSISDN).appendEscaped(msisdn).append(MSISDN_END);
+        }
+        b.append(this.apInfo);
+        return new PreparedRequest(RequestType.MSS_ProfileReq, b.toByteArray(), msisdn, null);
+    }
+
+}
@@ -0,0 +1,87 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+/**
+ * Token bucket settings of one AP_ID in a {@link TenantScheduler}.
+ * <p>The bucket holds up to {@link #getBurst()} tokens and is refilled with
+ * {@link #getRate()} tokens per second. Every request sent to the MSSP takes a token.
+ * The weight sets the AP's share of a shared global limit when several APs wait for it.
+ * <p>Usage:
+ * <pre>
+ * RateLimitConfig config = new RateLimitConfig().withRate(50)
+ *                                               .withBurst(100)
+ *                                               .withWeight(2);
+ * </pre>
+ */
+public class RateLimitConfig {
+
+    public static final double DEFAULT_RATE   = 10;
+    public static final int    DEFAULT_BURST  = 20;
+    public static final double DEFAULT_WEIGHT = 1;
+
+    private double rate   = DEFAULT_RATE;
+    private int    burst  = DEFAULT_BURST;
+    private double weight = DEFAULT_WEIGHT;
+
+    public RateLimitConfig() {
+
+    }
+
+    /**
+     * Create a config without a rate limit
+     * @return unlimited config
+     */
+    public static RateLimitConfig unlimited() {
+        return new RateLimitConfig().withRate(0);
+    }
+
+    /**
+     * Set the sustained request rate. Zero or negative means no limit.
+     * @param rate requests per second
+     * @return this config
+     */
+    public RateLimitConfig withRate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * Set the bucket size, i.e. how many requests may be sent at once after a quiet period
+     * @param burst requests
+     * @return this config
+     */
+    public RateLimitConfig withBurst(int burst) {
+        this.burst = burst;
+        return this;
+    }
+
+    /**
+     * Set the weight of this AP in fair queuing. An AP with weight 2 gets twice the share
+     * of the global limit of an AP with weight 1.
+     * @param weight positive weight
+     * @return this config
+     */
+    public RateLimitConfig withWeight(double weight) {
+        this.weight = weight;
+        return this;
+    }
+
+    public boolean isLimited() {
+        return this.rate > 0;
+    }
+
+    public double getRate() {
+        return this.rate;
+    }
+
+    public int getBurst() {
+        return this.burst;
+    }
+
+    public double getWeight() {
+        return this.weight;
+    }
+
+}
@@ -0,0 +1,163 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Settings of the background MSS_ReceiptReq pipeline of {@link ReceiptDispatcher}.
+ * <p>Receipts wait in a bounded queue. When the queue is full, a new receipt waits for room at most
+ * the max wait and is then rejected with {@link MssRestException#TOO_MANY_REQUESTS}. Each worker takes
+ * everything queued, up to the batch size, and sends it at once. Failed receipts are sent again
+ * after a doubling retry delay.
+ * <p>Usage:
+ * <pre>
+ * ReceiptConfig config = new ReceiptConfig().withQueueSize(50000)
+ *                                           .withThreads(2)
+ *                                           .withMaxAttempts(5);
+ * </pre>
+ * All time values are in milliseconds.
+ */
+public class ReceiptConfig {
+
+    public static final int  DEFAULT_QUEUE_SIZE   = 10000;
+    public static final int  DEFAULT_THREADS      = 1;
+    public static final int  DEFAULT_BATCH_SIZE   = 50;
+    public static final long DEFAULT_MAX_WAIT     = 0;
+    public static final int  DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_DELAY  = 1000;
+    public static final long DEFAULT_DRAIN_TIME   = 5000;
+
+    private int  queueSize   = DEFAULT_QUEUE_SIZE;
+    private int  threads     = DEFAULT_THREADS;
+    private int  batchSize   = DEFAULT_BATCH_SIZE;
+    private long maxWait     = DEFAULT_MAX_WAIT;
+    private int  maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long retryDelay  = DEFAULT_RETRY_DELAY;
+    private long drainTime   = DEFAULT_DRAIN_TIME;
+
+    private Set<String> retryableCodes = new HashSet<>(Arrays.asList(MssRestException.TOO_MANY_REQUESTS,
+                                                                     MssRestException.UNABLE_TO_PROVIDE_SERVICES,
+                                                                     MssRestException.INTERNAL_ERROR));
+
+    public ReceiptConfig() {
+
+    }
+
+    /**
+     * Set the maximum number of receipts waiting to be sent, retries included
+     * @param queueSize receipts
+     * @return this config
+     */
+    public ReceiptConfig withQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Set the number of worker threads
+     * @param threads threads
+     * @return this config
+     */
+    public ReceiptConfig withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of receipts a worker sends at once
+     * @param batchSize receipts
+     * @return this config
+     */
+    public ReceiptConfig withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Set how long a new receipt waits for room in a full queue. 0 rejects at once without blocking.
+     * @param maxWait wait in milliseconds
+     * @return this config
+     */
+    public ReceiptConfig withMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of times a receipt is sent. 1 disables retries.
+     * @param maxAttempts attempts
+     * @return this config
+     */
+    public ReceiptConfig withMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Set the pause before the first retry. The pause doubles on each further retry.
+     * @param retryDelay delay in milliseconds
+     * @return this config
+     */
+    public ReceiptConfig withRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+        return this;
+    }
+
+    /**
+     * Set how long {@link ReceiptDispatcher#close()} waits for queued receipts to be sent
+     * @param drainTime time in milliseconds
+     * @return this config
+     */
+    public ReceiptConfig withDrainTime(long drainTime) {
+        this.drainTime = drainTime;
+        return this;
+    }
+
+    /**
+     * Set the fault codes that are retried. Connection failures are always retried.
+     * @param codes Error codes (e.g. {@link MssRestException#INTERNAL_ERROR})
+     * @return this config
+     */
+    public ReceiptConfig withRetryableCodes(String... codes) {
+        this.retryableCodes = new HashSet<>(Arrays.asList(codes));
+        return this;
+    }
+
+    public int getQueueSize() {
+        return this.queueSize;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    public long getMaxWait() {
+        return this.maxWait;
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    public long getRetryDelay() {
+        return this.retryDelay;
+    }
+
+    public long getDrainTime() {
+        return this.drainTime;
+    }
+
+    public Set<String> getRetryableCodes() {
+        return Collections.unmodifiableSet(this.retryableCodes);
+    }
+
+}
@@ -0,0 +1,369 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_ReceiptReq;
+import fi.methics.laverca.rest.json.MSS_ReceiptResp;
+
+/**
+ * Fire-and-forget pipeline of MSS_ReceiptReqs.
+ * <p>{@link #send(MSS_ReceiptReq)} only puts the receipt in a bounded queue and returns, so the
+ * receipt round trip never adds to the latency of the signing caller. A small pool of worker
+ * threads takes the queued receipts in batches and sends each batch at once with the non-blocking
+ * HTTP client. A burst of receipts is thus sent as a few batches, and a receipt of a transaction
+ * that already has one waiting in the queue shares the queued one instead of being sent twice.
+ * <p>Failed receipts are retried in the background after a doubling delay kept in a {@link TimingWheel}.
+ * When the queue is full, new receipts are rejected with {@link MssRestException#TOO_MANY_REQUESTS},
+ * optionally after waiting for room. See {@link ReceiptConfig}.
+ * <p>Futures returned by {@link #send(MSS_ReceiptReq)} complete on an I/O thread, so callbacks must not block.
+ * <p>Usage:
+ * <pre>
+ * MssClient client = new MssClient.Builder().withRestUrl(url)
+ *                                           .withApiKey(apid, apikey)
+ *                                           .withReceipts(new ReceiptConfig().withThreads(2))
+ *                                           .build();
+ * MSS_SignatureResp resp = client.authenticate(msisdn, message, profile);
+ * client.sendReceipt(resp, "Logged in");
+ * </pre>
+ */
+public class ReceiptDispatcher {
+
+    private static final Log log = LogFactory.getLog(ReceiptDispatcher.class);
+
+    private final ReceiptConfig config;
+    private final Function<JsonRequest, CompletableFuture<JsonResponse>> sender;
+    private final TimingWheel   wheel;
+    private final BlockingQueue<Receipt> queue;
+    private final Map<String, Receipt>   queued = new ConcurrentHashMap<>(); // by MSSP_TransID
+    private final Thread[]      workers;
+
+    private final LongAdder sent      = new LongAdder();
+    private final LongAdder batches   = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder retried   = new LongAdder();
+    private final LongAdder failed    = new LongAdder();
+    private final LongAdder rejected  = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * Create a dispatcher that keeps its retry timers in the shared {@link TimingWheel#getDefault()}
+     * @param config Receipt settings
+     * @param sender Function that sends a request without blocking, e.g. {@link RestClient#sendReqAsync(JsonRequest)}
+     */
+    public ReceiptDispatcher(final ReceiptConfig config, final Function<JsonRequest, CompletableFuture<JsonResponse>> sender) {
+        this(config, sender, TimingWheel.getDefault());
+    }
+
+    /**
+     * Create a dispatcher and start its worker threads
+     * @param config Receipt settings
+     * @param sender Function that sends a request without blocking, e.g. {@link RestClient#sendReqAsync(JsonRequest)}
+     * @param wheel  Timing wheel of the retry timers
+     */
+    public ReceiptDispatcher(final ReceiptConfig config,
+                             final Function<JsonRequest, CompletableFuture<JsonResponse>> sender,
+                             final TimingWheel wheel)
+    {
+        this.config  = config;
+        this.sender  = sender;
+        this.wheel   = wheel;
+        this.queue   = new ArrayBlockingQueue<>(Math.max(config.getQueueSize(), 1));
+        this.workers = new Thread[Math.max(config.getThreads(), 1)];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Thread(this::work, "laverca-receipt-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    public ReceiptConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * @return number of receipts waiting to be sent
+     */
+    public int getQueuedCount() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return number of receipts the MSSP accepted
+     */
+    public long getSentCount() {
+        return this.sent.sum();
+    }
+
+    /**
+     * @return number of batches sent by the workers
+     */
+    public long getBatchCount() {
+        return this.batches.sum();
+    }
+
+    /**
+     * @return number of receipts that shared an already queued receipt of the same transaction
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * @return number of retries
+     */
+    public long getRetryCount() {
+        return this.retried.sum();
+    }
+
+    /**
+     * @return number of receipts that failed after all attempts
+     */
+    public long getFailedCount() {
+        return this.failed.sum();
+    }
+
+    /**
+     * @return number of receipts rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Queue a receipt for sending. Returns without waiting for the MSSP, and without blocking
+     * unless {@link ReceiptConfig#withMaxWait(long)} is set and the queue is full.
+     * @param req Receipt
+     * @return Future that completes with the MSSP's response, or with a {@link MssRestException}
+     *         with code {@link MssRestException#TOO_MANY_REQUESTS} if the queue was full
+     */
+    public CompletableFuture<MSS_ReceiptResp> send(final MSS_ReceiptReq req) {
+        final Receipt receipt = new Receipt(req);
+        if (this.closed) {
+            this.rejected.increment();
+            receipt.result.completeExceptionally(new MssRestException(MssRestException.INTERNAL_ERROR, "Receipt dispatcher closed"));
+            return receipt.result;
+        }
+        if (receipt.key != null) {
+            Receipt prev = this.queued.putIfAbsent(receipt.key, receipt);
+            if (prev != null) {
+                this.coalesced.increment();
+                return prev.result;
+            }
+        }
+        if (!this.offer(receipt, this.config.getMaxWait())) {
+            if (receipt.key != null) {
+                this.queued.remove(receipt.key, receipt);
+            }
+            this.rejected.increment();
+            receipt.result.completeExceptionally(new MssRestException(MssRestException.TOO_MANY_REQUESTS, "Receipt queue is full"));
+        }
+        return receipt.result;
+    }
+
+    /**
+     * Stop accepting receipts and wait at most the drain time for the queued ones to be sent.
+     * Receipts still queued after that, or waiting for a retry, fail.
+     */
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        long end = System.currentTimeMillis() + this.config.getDrainTime();
+        try {
+            for (Thread worker : this.workers) {
+                worker.join(Math.max(end - System.currentTimeMillis(), 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread worker : this.workers) {
+            worker.interrupt();
+        }
+        Receipt r;
+        while ((r = this.queue.poll()) != null) {
+            this.fail(r, new MssRestException(MssRestException.INTERNAL_ERROR, "Receipt dispatcher closed"));
+        }
+    }
+
+    private boolean offer(final Receipt receipt, final long maxWait) {
+        try {
+            if (maxWait > 0) {
+                return this.queue.offer(receipt, maxWait, TimeUnit.MILLISECONDS);
+            }
+            return this.queue.offer(receipt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Worker loop: take everything queued, up to the batch size, send it at once and wait for the batch
+     * to complete. The number of receipts in flight is thus bounded by threads times batch size.
+     */
+    private void work() {
+        final List<Receipt> batch = new ArrayList<>(this.config.getBatchSize());
+        while (true) {
+            Receipt first;
+            try {
+                first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (this.closed) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            this.queue.drainTo(batch, Math.max(this.config.getBatchSize() - 1, 0));
+            this.batches.increment();
+
+            CompletableFuture<?>[] sends = new CompletableFuture<?>[batch.size()];
+            for (int i = 0; i < sends.length; i++) {
+                Receipt r = batch.get(i);
+                if (r.key != null) {
+                    this.queued.remove(r.key, r);
+                }
+                sends[i] = this.sendOnce(r);
+            }
+            batch.clear();
+            CompletableFuture.allOf(sends).join();
+        }
+    }
+
+    /**
+     * Send one attempt of a receipt
+     * @param receipt Receipt
+     * @return Future that completes (never exceptionally) when the attempt is handled
+     */
+    private CompletableFuture<Void> sendOnce(final Receipt receipt) {
+        receipt.attempts++;
+        JsonRequest jReq = new JsonRequest();
+        jReq.MSS_ReceiptReq = receipt.req;
+        CompletableFuture<JsonResponse> resp;
+        try {
+            resp = this.sender.apply(jReq);
+        } catch (RuntimeException e) {
+            resp = new CompletableFuture<>();
+            resp.completeExceptionally(e);
+        }
+        return resp.handle((r, e) -> {
+            this.handle(receipt, r, e);
+            return null;
+        });
+    }
+
+    private void handle(final Receipt receipt, final JsonResponse resp, final Throwable t) {
+        if (t == null && resp != null && resp.MSS_ReceiptResp != null) {
+            this.sent.increment();
+            receipt.result.complete(resp.MSS_ReceiptResp);
+            return;
+        }
+        MssRestException e;
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause == null) {
+            e = resp != null && resp.isFault() ? new MssRestException(resp.getFaultCode(), resp.getFaultDetail())
+                                               : new MssRestException(MssRestException.INTERNAL_ERROR, "No MSS_ReceiptResp");
+        } else if (cause instanceof MssRestException) {
+            e = (MssRestException) cause;
+        } else {
+            e = new MssRestException(cause);
+        }
+        if (this.closed || receipt.attempts >= this.config.getMaxAttempts() || !this.isRetryable(e)) {
+            this.fail(receipt, e);
+            return;
+        }
+        if (receipt.key != null) {
+            // A receipt of the same transaction sent meanwhile shares the retry, or the retry shares it
+            Receipt other = this.queued.putIfAbsent(receipt.key, receipt);
+            if (other != null) {
+                this.coalesced.increment();
+                other.result.whenComplete((r, x) -> {
+                    if (x == null) {
+                        receipt.result.complete(r);
+                    } else {
+                        receipt.result.completeExceptionally(x);
+                    }
+                });
+                return;
+            }
+        }
+        long delay = this.config.getRetryDelay() << Math.min(receipt.attempts - 1, 16);
+        if (log.isDebugEnabled()) {
+            log.debug("Retrying receipt of " + receipt.key + " in " + delay + " ms: " + e.getMessage());
+        }
+        this.retried.increment();
+        try {
+            this.wheel.schedule(() -> {
+                if (this.closed || !this.queue.offer(receipt)) {
+                    this.fail(receipt, e);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException re) {
+            this.fail(receipt, e);
+        }
+    }
+
+    private boolean isRetryable(final MssRestException e) {
+        return e instanceof ConnectionFailedException || this.config.getRetryableCodes().contains(e.getErrorCode());
+    }
+
+    private void fail(final Receipt receipt, final MssRestException e) {
+        if (receipt.key != null) {
+            this.queued.remove(receipt.key, receipt);
+        }
+        this.failed.increment();
+        log.warn("Receipt of " + receipt.key + " failed after " + receipt.attempts + " attempts: " + e.getMessage());
+        receipt.result.completeExceptionally(e);
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiptDispatcher [queued=" + this.getQueuedCount() + ", sent=" + this.getSentCount()
+             + ", coalesced=" + this.getCoalescedCount() + ", retried=" + this.getRetryCount()
+             + ", failed=" + this.getFailedCount() + ", rejected=" + this.getRejectedCount() + "]";
+    }
+
+    /**
+     * One queued receipt
+     */
+    private static final class Receipt {
+
+        final MSS_ReceiptReq req;
+        final String         key;
+        final CompletableFuture<MSS_ReceiptResp> result = new CompletableFuture<>();
+
+        // only touched by the thread handling the current attempt
+        int attempts;
+
+        Receipt(final MSS_ReceiptReq req) {
+            this.req = req;
+            this.key = req.MSSP_TransID;
+        }
+
+    }
+
+}
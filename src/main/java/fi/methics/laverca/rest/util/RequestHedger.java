@@ -0,0 +1,183 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * Hedging state of a {@link RestClient}: recent latencies of idempotent requests,
+ * the resulting hedge delay and hedging metrics.
+ * <p>Only MSS_ProfileReq and MSS_StatusReq are hedged. Requests that change state,
+ * such as MSS_SignatureReq or MSS_RegistrationReq, are never sent twice.
+ */
+public class RequestHedger {
+
+    private static final long TOKEN = 1000; // budget in thousandths of a hedge
+
+    private final HedgingConfig config;
+
+    private final long[] window;  // guarded by this
+    private int  next;            // guarded by this
+    private int  size;            // guarded by this
+    private int  sinceUpdate;     // guarded by this
+    private volatile long delay = -1;
+
+    private final AtomicLong budget = new AtomicLong();
+    private final long maxBudget;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges   = new LongAdder();
+    private final LongAdder wins     = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Create a new hedger
+     * @param config Hedging settings
+     */
+    public RequestHedger(final HedgingConfig config) {
+        this.config = config;
+        this.window = new long[Math.max(config.getWindowSize(), 1)];
+        this.maxBudget = Math.max(config.getMaxHedgeBurst(), 1) * TOKEN;
+    }
+
+    /**
+     * Check if a request type may be sent twice
+     * @param type Request type
+     * @return true for MSS_ProfileReq and MSS_StatusReq
+     */
+    public static boolean isHedgeable(final RequestType type) {
+        return type == RequestType.MSS_ProfileReq || type == RequestType.MSS_StatusReq;
+    }
+
+    /**
+     * Check if given request should be hedged
+     * @param type Request type
+     * @return true if hedging is enabled and the request type is idempotent
+     */
+    public boolean appliesTo(final RequestType type) {
+        return this.config.isEnabled() && isHedgeable(type);
+    }
+
+    /**
+     * Get the time to wait for a response before sending a hedge
+     * @return delay in milliseconds, or -1 if there are not enough latency samples yet
+     */
+    public long getDelay() {
+        return this.delay;
+    }
+
+    /**
+     * Add the latency of one attempt of a hedgeable request
+     * @param latency latency in milliseconds
+     */
+    public synchronized void record(final long latency) {
+        this.window[this.next] = latency;
+        this.next = (this.next + 1) % this.window.length;
+        if (this.size < this.window.length) this.size++;
+        if (this.size < this.config.getMinSamples()) {
+            return;
+        }
+        // Sorting the window is cheap, but not needed after every sample
+        if (this.delay < 0 || ++this.sinceUpdate >= Math.max(this.window.length / 10, 1)) {
+            long[] sorted = Arrays.copyOf(this.window, this.size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(this.config.getPercentile() / 100 * sorted.length) - 1;
+            index = Math.min(Math.max(index, 0), sorted.length - 1);
+            this.delay       = Math.max(sorted[index], this.config.getMinDelay());
+            this.sinceUpdate = 0;
+        }
+    }
+
+    /**
+     * Count a new hedgeable request. Each request adds its share of a hedge to the budget,
+     * up to the maximum burst, so a long healthy run cannot save up hedges for a later slowdown.
+     */
+    void recordRequest() {
+        this.requests.increment();
+        long deposit = this.config.getMaxHedgePercent() * TOKEN / 100;
+        this.budget.getAndUpdate(b -> Math.min(b + deposit, this.maxBudget));
+    }
+
+    /**
+     * Reserve a hedge within the hedge budget. A reserved hedge is in flight until {@link #hedgeDone()}.
+     * @return true if a hedge may be sent
+     */
+    boolean tryHedge() {
+        long b;
+        do {
+            b = this.budget.get();
+            if (b < TOKEN) {
+                return false;
+            }
+        } while (!this.budget.compareAndSet(b, b - TOKEN));
+        this.hedges.increment();
+        this.inFlight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Count a hedge that got a response or failed
+     */
+    void hedgeDone() {
+        this.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Count a request answered first by its hedge
+     */
+    void recordWin() {
+        this.wins.increment();
+    }
+
+    /**
+     * @return number of hedgeable requests
+     */
+    public long getRequestCount() {
+        return this.requests.sum();
+    }
+
+    /**
+     * @return number of hedges sent
+     */
+    public long getHedgeCount() {
+        return this.hedges.sum();
+    }
+
+    /**
+     * @return number of hedges waiting for a response, including hedges that lost to the first copy
+     */
+    public int getInFlightCount() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * @return number of requests answered first by the hedge
+     */
+    public long getHedgeWinCount() {
+        return this.wins.sum();
+    }
+
+    /**
+     * @return share of hedgeable requests that were hedged (0.0 - 1.0)
+     */
+    public double getHedgeRate() {
+        long n = this.requests.sum();
+        return n == 0 ? 0 : (double) this.hedges.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestHedger [delay=" + this.delay
+             + ", requests=" + this.getRequestCount()
+             + ", hedges=" + this.getHedgeCount()
+             + ", wins=" + this.getHedgeWinCount()
+             + ", inFlight=" + this.getInFlightCount() + "]";
+    }
+
+}
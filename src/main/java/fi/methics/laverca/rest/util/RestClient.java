@@ -5,43 +5,99 @@ package fi.methics.laverca.rest.util;
 
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 
+import fi.methics.laverca.rest.json.AP_Info;
 import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
 import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.json.MobileUser;
 
 public class RestClient {
 
     private static final Log log = LogFactory.getLog(RestClient.class);
     
-    private HttpClient httpClient;
+    /** Name of the connection pool used by request types outside all bulkheads */
+    public static final String DEFAULT_BULKHEAD = "default";
+    
+    private ConnectionPoolConfig poolConfig;
+    private volatile List<BulkheadConfig> bulkheadConfigs = Collections.emptyList();
+    private volatile Map<RequestType, Bulkhead> bulkheads = Collections.emptyMap();
 
     private String resturl;
     private String secondaryUrl;
+    private List<String> otherUrls = Collections.emptyList();
+    
+    private final CircuitBreakerConfig breakerConfig;
+    private final LoadBalancerConfig   balancerConfig;
+    private final AtomicLong lastOutlierCheck = new AtomicLong();
+    private volatile List<Endpoint> endpoints = Collections.emptyList();
+    private volatile ScheduledExecutorService prober;
+    private volatile ScheduledExecutorService timer;
+    private volatile RequestHedger hedger = new RequestHedger(HedgingConfig.disabled());
+    private volatile Retrier retrier = new Retrier(RetryConfig.disabled());
+    private volatile ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimitConfig.disabled());
+    private volatile TenantScheduler scheduler;
+    private volatile TransactionRegistry registry;
+    private volatile StatusPoller poller;
+    private volatile NotificationReceiver receiver;
+    private volatile TransactionJournal journal;
     
     private String apid;
+    private String appwd = AP_Info.DEFAULT_APPWD;
     private String apikey;
+    private volatile HmacSigner signer;
     
     private String apname;
     private String password;
@@ -49,16 +105,58 @@ public class RestClient {
     private AuthnMode mode;
     
     public RestClient() {
-        this.httpClient = RestSocketFactory.getNewHttpClient();
+        this(new ConnectionPoolConfig());
+    }
+    
+    /**
+     * Create a new RestClient with given connection pool settings
+     * @param poolConfig Connection pool settings
+     */
+    public RestClient(final ConnectionPoolConfig poolConfig) {
+        this(poolConfig, new CircuitBreakerConfig());
+    }
+    
+    /**
+     * Create a new RestClient with given connection pool and circuit breaker settings
+     * @param poolConfig    Connection pool settings
+     * @param breakerConfig Circuit breaker settings of the REST URLs
+     */
+    public RestClient(final ConnectionPoolConfig poolConfig, final CircuitBreakerConfig breakerConfig) {
+        this(poolConfig, breakerConfig, new LoadBalancerConfig());
+    }
+    
+    /**
+     * Create a new RestClient with given connection pool, circuit breaker and load balancer settings
+     * @param poolConfig     Connection pool settings of each REST URL
+     * @param breakerConfig  Circuit breaker settings of the REST URLs
+     * @param balancerConfig Load balancing settings
+     */
+    public RestClient(final ConnectionPoolConfig poolConfig,
+                      final CircuitBreakerConfig breakerConfig,
+                      final LoadBalancerConfig   balancerConfig)
+    {
+        this.poolConfig     = poolConfig;
+        this.breakerConfig  = breakerConfig;
+        this.balancerConfig = balancerConfig;
         this.mode = AuthnMode.APIKEY; // default mode
     }
     
     public void setApId(final String apid) {
-        this.apid = apid;
+        this.apid   = apid;
+        this.signer = null;
+    }
+    
+    /**
+     * Set the AP_PWD of the MSS_StatusReqs this client sends when polling asynchClientServer signatures
+     * @param appwd AP_PWD
+     */
+    public void setAppwd(final String appwd) {
+        this.appwd = appwd;
     }
     
     public void setApiKey(final String apikey) {
         this.apikey = apikey;
+        this.signer = null;
     }
     
     public void setApName(final String apname) {
@@ -69,12 +167,27 @@ public class RestClient {
         this.password = password;
     }
     
-    public void setRestUrl(final String resturl) {
-        this.resturl = resturl;
+    public synchronized void setRestUrl(final String resturl) {
+        this.resturl   = resturl;
+        this.endpoints = this.createEndpoints();
     }
     
-    public void setSecondaryUrl(final String secondaryUrl) {
+    public synchronized void setSecondaryUrl(final String secondaryUrl) {
         this.secondaryUrl = secondaryUrl;
+        this.endpoints    = this.createEndpoints();
+    }
+    
+    /**
+     * Set all REST URLs of a MSSP cluster. The first URL replaces the primary URL
+     * and the second one the secondary URL.
+     * Requests are spread over the URLs with the {@link LoadBalancingPolicy} of this client.
+     * @param urls REST URLs
+     */
+    public synchronized void setRestUrls(final List<String> urls) {
+        this.resturl      = urls.size() > 0 ? urls.get(0) : null;
+        this.secondaryUrl = urls.size() > 1 ? urls.get(1) : null;
+        this.otherUrls    = urls.size() > 2 ? new ArrayList<>(urls.subList(2, urls.size())) : Collections.<String>emptyList();
+        this.endpoints    = this.createEndpoints();
     }
     
     public void setAuthnMode(final AuthnMode mode) {
@@ -82,105 +195,1238 @@ public class RestClient {
     }
     
     /**
-     * Send REST JSON request
+     * Enable or disable hedging of idempotent requests (MSS_ProfileReq and MSS_StatusReq).
+     * Hedging is disabled by default.
+     * @param hedgingConfig Hedging settings
+     */
+    public void setHedging(final HedgingConfig hedgingConfig) {
+        this.hedger = new RequestHedger(hedgingConfig);
+    }
+    
+    /**
+     * Get the hedging state and metrics of this client
+     * @return request hedger
+     */
+    public RequestHedger getHedger() {
+        return this.hedger;
+    }
+    
+    /**
+     * Enable or disable retries of failed requests. Retries are disabled by default.
+     * @param retryConfig Retry settings
+     */
+    public void setRetry(final RetryConfig retryConfig) {
+        this.retrier = new Retrier(retryConfig);
+    }
+    
+    /**
+     * Get the retry budget and metrics of this client
+     * @return retrier
+     */
+    public Retrier getRetrier() {
+        return this.retrier;
+    }
+    
+    /**
+     * Set the adaptive limit of requests in flight
+     * @param limitConfig Concurrency limit settings
+     */
+    public void setConcurrencyLimit(final ConcurrencyLimitConfig limitConfig) {
+        this.limiter = new ConcurrencyLimiter(limitConfig);
+    }
+    
+    /**
+     * Get the current concurrency limits and rejection counts
+     * @return concurrency limiter
+     */
+    public ConcurrencyLimiter getLimiter() {
+        return this.limiter;
+    }
+    
+    /**
+     * Set the rate limiter of the AP. The scheduler may be shared with the clients of other APs.
+     * @param scheduler Rate limiter and fair scheduler, or null for no rate limit
+     */
+    public void setScheduler(final TenantScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+    
+    public TenantScheduler getScheduler() {
+        return this.scheduler;
+    }
+    
+    /**
+     * Set the registry of signature requests in flight. The registry may be shared with other clients.
+     * @param registry Transaction registry, or null to send requests without coalescing and per-user queueing
+     */
+    public void setTransactionRegistry(final TransactionRegistry registry) {
+        this.registry = registry;
+    }
+    
+    public TransactionRegistry getTransactionRegistry() {
+        return this.registry;
+    }
+    
+    /**
+     * Set the poller of asynchClientServer signatures. The poller may be shared with other clients.
+     * <p>Retries of requests sent without blocking are timed in the {@link TimingWheel} of the poller.
+     * @param poller Status poller, or null for {@link StatusPoller#getDefault()}
+     */
+    public void setStatusPoller(final StatusPoller poller) {
+        this.poller = poller;
+    }
+    
+    public StatusPoller getStatusPoller() {
+        final StatusPoller p = this.poller;
+        return p != null ? p : StatusPoller.getDefault();
+    }
+    
+    /**
+     * Set the receiver of asynchServerServer notifications. Acknowledged signatures then wait
+     * for the MSSP to push their result instead of being polled.
+     * @param receiver Notification receiver, or null to poll
+     */
+    public void setNotificationReceiver(final NotificationReceiver receiver) {
+        this.receiver = receiver;
+    }
+    
+    public NotificationReceiver getNotificationReceiver() {
+        return this.receiver;
+    }
+    
+    /**
+     * Set the journal of pending asynchronous signatures. Acknowledged signatures are written to
+     * the journal until their final status is known, so that they can be resumed after a restart
+     * with {@link #resume(TransactionJournal.Entry)}.
+     * @param journal Transaction journal, or null for none
+     */
+    public void setTransactionJournal(final TransactionJournal journal) {
+        this.journal = journal;
+    }
+    
+    public TransactionJournal getTransactionJournal() {
+        return this.journal;
+    }
+    
+    /**
+     * Set the bulkheads of this client. Each bulkhead gets its own connection pools,
+     * so existing pools are closed and the endpoints are created again.
+     * @param configs Bulkhead settings. A request type may belong to one bulkhead only.
+     */
+    public synchronized void setBulkheads(final List<BulkheadConfig> configs) {
+        Map<RequestType, Bulkhead> map = new EnumMap<>(RequestType.class);
+        Set<String> names = new HashSet<>();
+        for (BulkheadConfig config : configs) {
+            if (!names.add(config.getName())) {
+                throw new IllegalArgumentException("Bulkhead name " + config.getName() + " is used twice");
+            }
+            Bulkhead bulkhead = new Bulkhead(config);
+            for (RequestType type : config.getRequestTypes()) {
+                if (map.put(type, bulkhead) != null) {
+                    throw new IllegalArgumentException(type + " is in more than one bulkhead");
+                }
+            }
+        }
+        this.bulkheadConfigs = new ArrayList<>(configs);
+        this.bulkheads       = map;
+        for (Endpoint endpoint : this.endpoints) {
+            endpoint.close();
+        }
+        this.endpoints = Collections.emptyList();
+        this.endpoints = this.createEndpoints();
+    }
+    
+    /**
+     * Get the bulkheads with their load and rejection counts
+     * @return bulkheads
+     */
+    public Collection<Bulkhead> getBulkheads() {
+        return new LinkedHashSet<>(this.bulkheads.values());
+    }
+    
+    /**
+     * Get current connection pool statistics summed over all REST URLs
+     * @return pool statistics (leased, pending, available and max connections)
+     */
+    public PoolStats getPoolStats() {
+        int leased = 0, pending = 0, available = 0, max = 0;
+        for (Endpoint endpoint : this.endpoints) {
+            PoolStats stats = endpoint.getPoolStats();
+            leased    += stats.getLeased();
+            pending   += stats.getPending();
+            available += stats.getAvailable();
+            max       += stats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+    
+    /**
+     * Get the endpoints of the REST URLs (primary first)
+     * @return endpoints
+     */
+    public List<Endpoint> getEndpoints() {
+        return this.endpoints;
+    }
+    
+    /**
+     * Get the circuit breakers of the REST URLs (primary first)
+     * @return circuit breakers
+     */
+    public List<CircuitBreaker> getCircuitBreakers() {
+        List<CircuitBreaker> result = new ArrayList<>();
+        for (Endpoint endpoint : this.endpoints) {
+            result.add(endpoint.getCircuitBreaker());
+        }
+        return result;
+    }
+    
+    /**
+     * Open and handshake given number of pooled connections to every REST URL,
+     * so that the first requests find ready connections.
+     * <p>Unreachable URLs are skipped. The connect timeout is the circuit breaker probe timeout.
+     * @param connections Number of connections per REST URL
+     * @return total number of connections opened
+     */
+    public int warmUp(final int connections) {
+        int count = 0;
+        for (Endpoint endpoint : this.endpoints) {
+            count += endpoint.warmUp(connections, this.breakerConfig.getProbeTimeout());
+        }
+        log.info("Warmed up " + count + " connections, TLS handshakes full="
+                 + RestSocketFactory.getFullHandshakeCount() + " resumed=" + RestSocketFactory.getResumedHandshakeCount());
+        return count;
+    }
+    
+    /**
+     * Close the underlying HTTP client and all pooled connections
+     */
+    public void close() {
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        if (this.prober != null) {
+            this.prober.shutdownNow();
+        }
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+        }
+        for (Endpoint endpoint : this.endpoints) {
+            endpoint.close();
+        }
+    }
+    
+    /**
+     * Send REST JSON request.
+     * <p>Failed requests are retried as configured with {@link #setRetry(RetryConfig)}.
+     * A request with a TimeOut gets the deadline {@link Deadline#of(JsonRequest)}.
      * @param jReq JSON request
      * @return JSON response
      * @throws MssRestException 
      */
     public JsonResponse sendReq(final JsonRequest jReq) throws MssRestException {
-        final String req  = jReq.toJson();
-        final String resp = this.sendReq(req);
+        return this.sendReq(jReq, Deadline.of(jReq));
+    }
+    
+    /**
+     * Send REST JSON request within a deadline.
+     * <p>Connect, socket and connection lease timeouts are cut to the remaining budget, and the request
+     * is dropped unsent if the deadline passes while it waits for a rate limit token or a bulkhead.
+     * {@link Deadline#cancel()} aborts the request in flight.
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null for none
+     * @return JSON response
+     * @throws MssRestException with code {@link MssRestException#DEADLINE_EXCEEDED} or {@link MssRestException#CANCELLED}
+     *                          if the deadline ends the request
+     */
+    public JsonResponse sendReq(final JsonRequest jReq, final Deadline deadline) throws MssRestException {
+        log.debug("Connecting to " + this.resturl);
+        if (log.isDebugEnabled()) {
+            log.debug("Sending request " + jReq);
+        }
+        final TransactionRegistry registry = this.registry;
+        if (registry != null && registry.tracks(jReq)) {
+            return registry.send(jReq, deadline, () -> this.sendPolling(jReq, deadline));
+        }
+        return this.sendPolling(jReq, deadline);
+    }
+    
+    /**
+     * Send REST JSON request and wait for the final status of an asynchClientServer signature.
+     * <p>The status is polled by the shared {@link StatusPoller}, so no connection is held while the user confirms.
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null
+     * @return JSON response
+     * @throws MssRestException if the request or polling fails
+     */
+    private JsonResponse sendPolling(final JsonRequest jReq, final Deadline deadline) throws MssRestException {
+        JsonResponse resp = this.sendRetrying(jReq, deadline);
+        if (!isPending(jReq, resp)) {
+            return resp;
+        }
+        return this.await(this.poll(jReq, resp, deadline));
+    }
+    
+    /**
+     * Send REST JSON request and retry it as configured
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null
+     * @return JSON response
+     * @throws MssRestException if the request and its retries fail
+     */
+    private JsonResponse sendRetrying(final JsonRequest jReq, final Deadline deadline) throws MssRestException {
+        final Retrier       retrier = this.retrier;
+        final Retrier.State state   = retrier.begin(jReq);
+        while (true) {
+            try {
+                return this.sendOnce(jReq, deadline);
+            } catch (MssRestException e) {
+                long delay = retrier.nextDelay(state, e);
+                if (delay < 0) {
+                    throw e;
+                }
+                if (deadline != null && delay >= deadline.remaining()) {
+                    log.debug("Not retrying " + jReq.getRequestType() + ": deadline would pass");
+                    throw e;
+                }
+                log.debug("Retrying " + jReq.getRequestType() + " in " + delay + " ms after " + e.getErrorCode() + ": " + e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Send REST JSON request once, with failover and hedging but without retries
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null
+     * @return JSON response
+     * @throws MssRestException if the request fails, the response is a Fault or the concurrency limit is reached
+     */
+    private JsonResponse sendOnce(final JsonRequest jReq, final Deadline deadline) throws MssRestException {
+        if (deadline != null) {
+            deadline.check();
+        }
+        final Bulkhead bulkhead = this.bulkheads.get(jReq.getRequestType());
         try {
-            JsonResponse jResp = JsonResponse.fromString(resp);
-            if (jResp.isFault()) {
-                throw new MssRestException(jResp.getFaultCode(), jResp.getFaultDetail());
+            this.checkRate(true, deadline);
+            if (bulkhead != null) {
+                bulkhead.enter(true, deadline != null ? deadline.remaining() : Long.MAX_VALUE);
             }
-            return jResp;
         } catch (MssRestException e) {
+            if (deadline != null && deadline.isDone()) {
+                throw deadline.toException(); // the wait was cut short by the deadline
+            }
+            throw e;
+        }
+        try {
+            if (deadline != null) {
+                deadline.check(); // drop work that waited past its deadline
+            }
+            return this.sendLimited(jReq, deadline);
+        } finally {
+            if (bulkhead != null) {
+                bulkhead.leave();
+            }
+        }
+    }
+    
+    /**
+     * Send REST JSON request once within the concurrency limit
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null
+     * @return JSON response
+     * @throws MssRestException if the request fails, the response is a Fault or the concurrency limit is reached
+     */
+    private JsonResponse sendLimited(final JsonRequest jReq, final Deadline deadline) throws MssRestException {
+        final ConcurrencyLimiter.Permit permit;
+        try {
+            permit = this.limiter.acquire(jReq.getRequestType(), true, deadline);
+        } catch (MssRestException e) {
+            if (deadline != null && deadline.isDone()) {
+                throw deadline.toException(); // the wait was cut short by the deadline
+            }
+            throw e;
+        }
+        if (deadline != null && deadline.isDone()) {
+            permit.cancel(); // drop work that waited past its deadline
+            throw deadline.toException();
+        }
+        try {
+            JsonResponse resp;
+            if (this.hedger.appliesTo(jReq.getRequestType())) {
+                resp = this.checkResponse(this.await(this.sendHedged(jReq, deadline)));
+            } else {
+                resp = this.checkResponse(this.send(jReq, deadline));
+            }
+            permit.release(null);
+            return resp;
+        } catch (MssRestException e) {
+            permit.release(e);
             throw e;
         } catch (Exception e) {
-            throw new MssRestException(MssRestException.INTERNAL_ERROR, e.getMessage());
+            MssRestException me = new MssRestException(MssRestException.INTERNAL_ERROR, e.getMessage());
+            permit.release(me);
+            throw me;
         }
     }
     
     /**
-     * Send HTTP Post request (multipart)
-     * @param jReq JSON Request
-     * @return String Response
-     * @throws MssRestException 
+     * Take a rate limit token of this AP
+     * @param block    true to wait up to the scheduler's max wait
+     * @param deadline Deadline of the request that also bounds the wait, or null
+     * @throws MssRestException with code {@link MssRestException#TOO_MANY_REQUESTS} if the AP is over its rate
      */
-    private String sendReq(final String jReq) throws MssRestException {
-        log.debug("Connecting to " + this.resturl);
-        log.debug("Sending request " + jReq);
-        
-        switch (this.mode) {
-        case APIKEY:
-            return this.sendHmacReq(jReq);
-        case PASSWORD:
-        default:
-            return this.sendBasicReq(jReq);
+    private void checkRate(final boolean block, final Deadline deadline) throws MssRestException {
+        final TenantScheduler scheduler = this.scheduler;
+        if (scheduler == null) {
+            return;
+        }
+        final String ap = this.apid != null ? this.apid : this.apname;
+        final long maxWait = deadline != null ? Math.min(scheduler.getMaxWait(), deadline.remaining()) : scheduler.getMaxWait();
+        if (!(block ? scheduler.acquire(ap, maxWait) : scheduler.tryAcquire(ap))) {
+            throw new MssRestException(MssRestException.TOO_MANY_REQUESTS, "Rate limit of " + ap + " reached, next token in "
+                                       + scheduler.getDelay(ap) + " ms");
         }
     }
     
     /**
-     * Send HTTP Post request using HMAC authn
-     * @param req       Req as raw String
-     * @param targetUrl Target URL as String
-     * @param userId    AP UserID
-     * @param apiKey    AP API_KEY
-     * @return String Response
-     * @throws MssRestException 
+     * Send REST JSON request without blocking the calling thread.
+     * <p>The request is sent with the non-blocking HTTP client. HMAC or Basic authentication,
+     * failover, hedging and retries work as in {@link #sendReq(JsonRequest)}.
+     * 
+     * @param jReq JSON request
+     * @return Future that completes with the JSON response, or with a {@link MssRestException}
      */
-    private String sendHmacReq(final String req) throws MssRestException {
-        
-        String userid = this.getUserId(this.apid);
-        String apikey = this.apikey;
+    public CompletableFuture<JsonResponse> sendReqAsync(final JsonRequest jReq) {
+        return this.sendReqAsync(jReq, Deadline.of(jReq));
+    }
+    
+    /**
+     * Send REST JSON request within a deadline without blocking the calling thread.
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null for none
+     * @return Future that completes with the JSON response, or with a {@link MssRestException}
+     * @see #sendReq(JsonRequest, Deadline)
+     */
+    public CompletableFuture<JsonResponse> sendReqAsync(final JsonRequest jReq, final Deadline deadline) {
+        if (log.isDebugEnabled()) {
+            log.debug("Sending async request " + jReq);
+        }
+        final TransactionRegistry registry = this.registry;
+        if (registry != null && registry.tracks(jReq)) {
+            return registry.sendAsync(jReq, deadline, this.getStatusPoller().getTimingWheel(), () -> this.sendAsyncPolling(jReq, deadline));
+        }
+        return this.sendAsyncPolling(jReq, deadline);
+    }
+    
+    /**
+     * Send a request with the non-blocking client and poll the final status of an asynchClientServer signature
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null
+     * @return Future that completes with the JSON response, or with a {@link MssRestException}
+     */
+    private CompletableFuture<JsonResponse> sendAsyncPolling(final JsonRequest jReq, final Deadline deadline) {
+        return this.sendAsyncRetrying(jReq, deadline).thenCompose(resp -> {
+            if (!isPending(jReq, resp)) {
+                return CompletableFuture.completedFuture(resp);
+            }
+            return this.poll(jReq, resp, deadline);
+        });
+    }
+    
+    /**
+     * Check if a response acknowledges an asynchClientServer signature whose result must be polled
+     * @param jReq JSON request
+     * @param resp JSON response
+     * @return true if the response is a pending MSS_SignatureResp
+     */
+    private static boolean isPending(final JsonRequest jReq, final JsonResponse resp) {
+        return jReq.getRequestType() == RequestType.MSS_SignatureReq
+            && resp.MSS_SignatureResp != null
+            && resp.MSS_SignatureResp.isPending();
+    }
+    
+    /**
+     * Hand an acknowledged signature to the notification receiver, if there is one, or else
+     * to the status poller. Status queries go through the same rate limits, bulkheads,
+     * failover and retries as other requests.
+     * @param jReq     MSS_SignatureReq
+     * @param ack      Acknowledgement with the MSSP_TransID
+     * @param deadline Deadline of the signature, or null
+     * @return Future that completes with the final MSS_SignatureResp
+     */
+    private CompletableFuture<JsonResponse> poll(final JsonRequest jReq, final JsonResponse ack, final Deadline deadline) {
+        final MSS_SignatureResp signature = ack.MSS_SignatureResp;
+        final TransactionRegistry registry = this.registry;
+        if (registry != null) {
+            registry.bind(jReq.getApTransId(), signature.MSSP_TransID);
+        }
+        final String apid = signature.AP_Info != null && signature.AP_Info.AP_ID != null ? signature.AP_Info.AP_ID : this.apid;
+        final TransactionJournal journal = this.journal;
+        if (journal != null) {
+            journal.begin(new TransactionJournal.Entry(signature.MSSP_TransID,
+                                                       jReq.getApTransId(),
+                                                       apid,
+                                                       jReq.getMsisdn(),
+                                                       signature.SignatureProfile,
+                                                       deadline != null ? System.currentTimeMillis() + deadline.remaining() : 0));
+        }
+        return this.track(signature, jReq.getApTransId(), jReq.getMsisdn(), apid, deadline);
+    }
+    
+    /**
+     * Resume tracking a signature that was pending when the application stopped.
+     * The signature is not requested again: its status is polled, or its notification awaited.
+     * @param entry Journaled transaction, see {@link TransactionJournal#getRecovered()}
+     * @return Future that completes with the final MSS_SignatureResp
+     */
+    public CompletableFuture<JsonResponse> resume(final TransactionJournal.Entry entry) {
+        final MSS_SignatureResp ack = new MSS_SignatureResp();
+        ack.MSSP_TransID       = entry.getMsspTransId();
+        ack.AP_Info            = new AP_Info(entry.getApId(), null);
+        ack.AP_Info.AP_TransID = entry.getApTransId();
+        ack.MobileUser         = new MobileUser(entry.getMsisdn());
+        ack.SignatureProfile   = entry.getSignatureProfile();
+        final String apid = entry.getApId() != null ? entry.getApId() : this.apid;
+        Deadline deadline = null;
+        if (entry.getDeadline() > 0) {
+            deadline = Deadline.after(entry.getDeadline() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        return this.track(ack, entry.getApTransId(), entry.getMsisdn(), apid, deadline);
+    }
+    
+    /**
+     * Wait for the final status of an acknowledged signature, and remove it from the journal when known
+     * @param ack       Acknowledgement with the MSSP_TransID
+     * @param apTransId AP_TransID of the request
+     * @param msisdn    MSISDN of the request
+     * @param apid      AP_ID
+     * @param deadline  Deadline of the signature, or null
+     * @return Future that completes with the final MSS_SignatureResp
+     */
+    private CompletableFuture<JsonResponse> track(final MSS_SignatureResp ack,
+                                                  final String apTransId,
+                                                  final String msisdn,
+                                                  final String apid,
+                                                  final Deadline deadline)
+    {
+        final CompletableFuture<JsonResponse> result;
+        final NotificationReceiver receiver = this.receiver;
+        if (receiver != null) {
+            result = receiver.await(ack, apTransId, msisdn, apid, deadline);
+        } else {
+            result = this.getStatusPoller().poll(ack, apid, this.appwd, deadline, req -> this.sendAsyncRetrying(req, deadline));
+        }
+        final TransactionJournal journal = this.journal;
+        if (journal == null) {
+            return result;
+        }
+        return result.whenComplete((resp, e) -> journal.end(ack.MSSP_TransID));
+    }
+    
+    /**
+     * Send a request with the non-blocking client and retry it as configured
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null
+     * @return Future that completes with the JSON response, or with a {@link MssRestException}
+     */
+    private CompletableFuture<JsonResponse> sendAsyncRetrying(final JsonRequest jReq, final Deadline deadline) {
+        final CompletableFuture<JsonResponse> result = new CompletableFuture<>();
+        final Retrier retrier = this.retrier;
+        this.sendAsyncRetrying(jReq, deadline, retrier, retrier.begin(jReq), result);
+        return result;
+    }
+    
+    /**
+     * Send a request with the non-blocking client and schedule a retry if it fails
+     * @param jReq     JSON request
+     * @param deadline Deadline of the request, or null
+     * @param retrier  Retrier of the request
+     * @param state    Retry state of the request
+     * @param result   Future to complete with the checked response
+     */
+    private void sendAsyncRetrying(final JsonRequest jReq,
+                                   final Deadline deadline,
+                                   final Retrier retrier,
+                                   final Retrier.State state,
+                                   final CompletableFuture<JsonResponse> result)
+    {
+        CompletableFuture<JsonResponse> resp;
+        ConcurrencyLimiter.Permit permit = null;
+        Bulkhead bulkhead = null;
+        try {
+            if (deadline != null) {
+                deadline.check();
+            }
+            this.checkRate(false, deadline);
+            Bulkhead b = this.bulkheads.get(jReq.getRequestType());
+            if (b != null) {
+                b.enter(false);
+                bulkhead = b;
+            }
+            permit = this.limiter.acquire(jReq.getRequestType(), false, deadline);
+            if (this.hedger.appliesTo(jReq.getRequestType())) {
+                resp = this.sendHedged(jReq, deadline);
+            } else {
+                resp = new CompletableFuture<>();
+                this.sendAsync(jReq, deadline, this.route(), 0, resp, null, false);
+            }
+        } catch (MssRestException rejected) {
+            resp = new CompletableFuture<>();
+            resp.completeExceptionally(rejected);
+        }
+        final ConcurrencyLimiter.Permit held = permit;
+        final Bulkhead entered = bulkhead;
+        resp.whenComplete((r, t) -> {
+            if (entered != null) {
+                entered.leave();
+            }
+            MssRestException e;
+            if (t == null) {
+                try {
+                    JsonResponse checked = this.checkResponse(r);
+                    held.release(null);
+                    result.complete(checked);
+                    return;
+                } catch (MssRestException fault) {
+                    e = fault;
+                }
+            } else if (t instanceof MssRestException) {
+                e = (MssRestException) t;
+            } else {
+                e = new MssRestException(MssRestException.INTERNAL_ERROR, t.getMessage());
+            }
+            if (held != null) {
+                held.release(e);
+            }
+            long delay = retrier.nextDelay(state, e);
+            if (delay < 0 || deadline != null && delay >= deadline.remaining()) {
+                result.completeExceptionally(e);
+                return;
+            }
+            log.debug("Retrying " + jReq.getRequestType() + " in " + delay + " ms after " + e.getErrorCode() + ": " + e.getMessage());
+            try {
+                // Backoff timers of thousands of pending requests are cheap in the timing wheel
+                this.getStatusPoller().getTimingWheel().schedule(() -> this.sendAsyncRetrying(jReq, deadline, retrier, state, result), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException re) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+    
+    /**
+     * Read a JSON response directly from the HTTP response stream.
+     * <p>The response body is never materialized as a String. Closing the stream
+     * releases the connection back to the pool.
+     * @param resp HTTP response
+     * @return parsed response or null if there is no body
+     * @throws IOException if reading fails
+     */
+    static JsonResponse readResponse(final HttpResponse resp) throws IOException {
+        if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            log.warn("Got HTTP status " + resp.getStatusLine().getStatusCode());
+        }
+        HttpEntity entity = resp.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        try (InputStream is = entity.getContent()) {
+            JsonResponse jResp = JsonResponse.fromStream(is);
+            if (log.isDebugEnabled()) {
+                log.debug("Got response " + jResp);
+            }
+            return jResp;
+        }
+    }
+    
+    /**
+     * Convert Fault responses to exceptions
+     * @param jResp JSON response
+     * @return the same JSON response
+     * @throws MssRestException if the response is a Fault or missing
+     */
+    private JsonResponse checkResponse(final JsonResponse jResp) throws MssRestException {
+        if (jResp == null) {
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, "Empty response");
+        }
+        if (jResp.isFault()) {
+            throw new MssRestException(jResp.getFaultCode(), jResp.getFaultDetail());
+        }
+        return jResp;
+    }
+    
+    /**
+     * Wait for the response of a request sent with the non-blocking client
+     * @param future Response future
+     * @return JSON response
+     * @throws MssRestException if the request failed
+     */
+    private JsonResponse await(final CompletableFuture<JsonResponse> future) throws MssRestException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MssRestException) {
+                throw (MssRestException) e.getCause();
+            }
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, e.getCause().getMessage());
+        }
+    }
+    
+    /**
+     * Send an idempotent request with the non-blocking client. If there is no response within
+     * the hedge delay, a second copy is sent to the next endpoint and the first response wins.
+     * The request fails only if both copies fail.
+     * @param req      JSON request (MSS_ProfileReq or MSS_StatusReq)
+     * @param deadline Deadline of the request, or null
+     * @return Future that completes with the unchecked response
+     */
+    private CompletableFuture<JsonResponse> sendHedged(final JsonRequest req, final Deadline deadline) {
+        final CompletableFuture<JsonResponse> result  = new CompletableFuture<>();
+        final RequestHedger                   hedger  = this.hedger;
+        final List<Endpoint>                  route   = this.route();
+        final AtomicInteger                   pending = new AtomicInteger(1);
+        final AtomicBoolean                   done    = new AtomicBoolean();
+        final long                            delay   = hedger.getDelay();
         
+        hedger.recordRequest();
+        this.sendAttempt(req, deadline, route, hedger, result, pending, done, false);
+        if (route.size() < 2 || delay < 0) {
+            return result;
+        }
+        final List<Endpoint> hedgeRoute = new ArrayList<>(route.size());
+        hedgeRoute.addAll(route.subList(1, route.size()));
+        hedgeRoute.add(route.get(0));
         try {
-            HmacHttpClient client = new HmacHttpClient(this.httpClient, userid, apikey);
-            return client.send(req, this.resturl);
-        } catch (IOException e) {
-            log.error("Connection to " + this.resturl + " failed: " + e.getMessage());
+            this.getTimer().schedule(() -> {
+                if (!done.get() && (deadline == null || !deadline.isDone()) && hedger.tryHedge()) {
+                    log.debug("No response in " + delay + " ms, hedging to " + hedgeRoute.get(0));
+                    pending.incrementAndGet();
+                    this.sendAttempt(req, deadline, hedgeRoute, hedger, result, pending, done, true);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Client closed, not hedging");
+        }
+        return result;
+    }
+    
+    /**
+     * Send one copy of a hedged request
+     * @param req      JSON request
+     * @param deadline Deadline of the request, or null
+     * @param route   Endpoints to try
+     * @param hedger  Hedging state
+     * @param result  Future shared by all copies. The first response completes it.
+     * @param pending Number of copies not yet failed
+     * @param done    Set by the copy that completes the result
+     * @param hedge   true if this is the hedge copy
+     */
+    private void sendAttempt(final JsonRequest req,
+                             final Deadline deadline,
+                             final List<Endpoint> route,
+                             final RequestHedger hedger,
+                             final CompletableFuture<JsonResponse> result,
+                             final AtomicInteger pending,
+                             final AtomicBoolean done,
+                             final boolean hedge)
+    {
+        final long start = System.nanoTime();
+        final CompletableFuture<JsonResponse> attempt = new CompletableFuture<>();
+        this.sendAsync(req, deadline, route, 0, attempt, null, false);
+        // Once the other copy has won, abort this one so it frees its connection on the slow node
+        result.whenComplete((r, e) -> attempt.cancel(true));
+        attempt.whenComplete((resp, e) -> {
+            if (hedge) {
+                hedger.hedgeDone();
+            }
+            if (attempt.isCancelled()) {
+                // The lost copy took at least this long, which keeps slow answers in the window
+                hedger.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } else if (e == null) {
+                hedger.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                // Count the win before completing, so that it is visible to the caller
+                if (done.compareAndSet(false, true)) {
+                    if (hedge) hedger.recordWin();
+                    result.complete(resp);
+                }
+            } else if (pending.decrementAndGet() == 0 && done.compareAndSet(false, true)) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+    
+    /**
+     * Send a request to the endpoints of a route in order until one of them responds
+     * @param req      JSON request
+     * @param deadline Deadline of the request, or null
+     * @param route  Endpoints to try
+     * @param index  Index of the endpoint to try next
+     * @param result    Future to complete with the unchecked response
+     * @param last      Failure of the previous endpoint
+     * @param delivered true if a previous endpoint may have received the request
+     */
+    private void sendAsync(final JsonRequest req,
+                           final Deadline deadline,
+                           final List<Endpoint> route,
+                           final int index,
+                           final CompletableFuture<JsonResponse> result,
+                           final Throwable last,
+                           final boolean delivered)
+    {
+        if (index >= route.size()) {
+            result.completeExceptionally(new ConnectionFailedException(last == null ? "No REST URL configured" : last.getMessage(), delivered));
+            return;
+        }
+        final Endpoint endpoint = route.get(index);
+        final long     start    = endpoint.begin();
+        final CompletableFuture<JsonResponse> call = this.sendAsync(req, endpoint, deadline);
+        result.whenComplete((r, e) -> call.cancel(true));
+        call.whenComplete((resp, e) -> {
+            if (e == null) {
+                this.recordSuccess(endpoint, req, start);
+                result.complete(resp);
+                return;
+            }
+            if (result.isCancelled()) {
+                // Aborted by the caller, which says nothing about the health of the endpoint
+                endpoint.end(start, false);
+                return;
+            }
+            if (deadline != null && deadline.isDone()) {
+                // Our own budget ran out, which says nothing about the health of the endpoint
+                endpoint.end(start, false);
+                result.completeExceptionally(deadline.toException());
+                return;
+            }
+            log.error("Connection to " + endpoint.getUrl() + " failed: " + e.getMessage());
+            this.recordFailure(endpoint, start);
+            this.sendAsync(req, deadline, route, index + 1, result, e, delivered || !ConnectionFailedException.isConnectFailure(e));
+        });
+    }
+    
+    /**
+     * Send HTTP Post request to given endpoint with the non-blocking client
+     * @param req      JSON request
+     * @param endpoint Target endpoint
+     * @param deadline Deadline of the request, or null
+     * @return Future that completes with the parsed response, or fails with an IOException
+     */
+    private CompletableFuture<JsonResponse> sendAsync(final JsonRequest req, final Endpoint endpoint, final Deadline deadline) {
+        final CompletableFuture<JsonResponse> result = new CompletableFuture<>();
+        final String url = endpoint.getUrl();
+        try {
+            final HttpPost post;
+            final HttpClientContext ctx;
+            if (this.mode == AuthnMode.APIKEY) {
+                post = HmacHttpClient.createPost(this.getSigner(), req, url);
+                ctx  = HttpClientContext.create();
+            } else {
+                post = this.createPost(req, url);
+                ctx  = this.createContext(url);
+            }
+            if (deadline != null) {
+                post.setConfig(deadline.toRequestConfig(this.getPoolConfig(req.getRequestType()).getLeaseTimeout()));
+            }
+            Future<HttpResponse> future = endpoint.getAsyncClient(req.getRequestType()).execute(post, ctx, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(final HttpResponse resp) {
+                    try {
+                        result.complete(readResponse(resp));
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(final Exception e) {
+                    result.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    result.completeExceptionally(new IOException("Request cancelled"));
+                }
+            });
+            if (deadline != null) {
+                Cancellable abort = () -> future.cancel(true);
+                deadline.attach(abort);
+                result.whenComplete((r, e) -> deadline.detach(abort));
+            }
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled()) future.cancel(true);
+            });
+        } catch (IOException | MssRestException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+    
+    /**
+     * Get the connection pool settings of the bulkhead of a request type
+     * @param type Request type
+     * @return pool settings
+     */
+    private ConnectionPoolConfig getPoolConfig(final RequestType type) {
+        final Bulkhead bulkhead = this.bulkheads.get(type);
+        final ConnectionPoolConfig config = bulkhead != null ? bulkhead.getConfig().getPoolConfig() : null;
+        return config != null ? config : this.poolConfig;
+    }
+    
+    /**
+     * Send a request to the endpoints in routing order until one of them responds.
+     * <p>Endpoints whose circuit breaker is open are skipped as long as another endpoint is available.
+     * @param req      JSON request
+     * @param deadline Deadline of the request, or null
+     * @return JSON Response
+     * @throws ConnectionFailedException if no endpoint responds
+     */
+    private JsonResponse send(final JsonRequest req, final Deadline deadline) throws MssRestException {
+        IOException last = null;
+        boolean delivered = false;
+        for (Endpoint endpoint : this.route()) {
+            if (deadline != null) {
+                deadline.check();
+            }
+            long start = endpoint.begin();
             try {
-                if (this.secondaryUrl != null) {
-                    HmacHttpClient client = new HmacHttpClient(this.httpClient, userid, apikey);
-                    return client.send(req, this.secondaryUrl);
+                HttpPost          post;
+                HttpClientContext ctx;
+                if (this.mode == AuthnMode.APIKEY) {
+                    post = HmacHttpClient.createPost(this.getSigner(), req, endpoint.getUrl());
+                    ctx  = HttpClientContext.create();
+                } else {
+                    post = this.createPost(req, endpoint.getUrl());
+                    ctx  = this.createContext(endpoint.getUrl());
+                }
+                JsonResponse resp = this.execute(req, endpoint, post, ctx, deadline);
+                this.recordSuccess(endpoint, req, start);
+                return resp;
+            } catch (IOException e) {
+                if (deadline != null && deadline.isDone()) {
+                    // Our own budget ran out, which says nothing about the health of the endpoint
+                    endpoint.end(start, false);
+                    throw deadline.toException();
                 }
-            } catch (IOException e2) {
-                log.error("Connection to " + this.secondaryUrl + " failed: " + e.getMessage());
-                throw new MssRestException(MssRestException.UNABLE_TO_PROVIDE_SERVICES, e2.getMessage());
+                log.error("Connection to " + endpoint.getUrl() + " failed: " + e.getMessage());
+                this.recordFailure(endpoint, start);
+                delivered |= !ConnectionFailedException.isConnectFailure(e);
+                last = e;
+            } catch (RuntimeException e) {
+                endpoint.end(start, false);
+                throw e;
             }
-            throw new MssRestException(MssRestException.UNABLE_TO_PROVIDE_SERVICES, e.getMessage());
         }
+        throw new ConnectionFailedException(last == null ? "No REST URL configured" : last.getMessage(), delivered);
     }
     
     /**
-     * Send HTTP Post request using BASIC username/password authn
-     * @param req       Req as raw String
-     * @param targetUrl Target URL as String
-     * @param username  AP UserID
-     * @param password  AP RestPassword
-     * @return String Response
-     * @throws MssRestException 
+     * Execute a HTTP Post with the blocking client of the endpoint.
+     * <p>With a deadline, the timeouts of the post are cut to the remaining budget and
+     * {@link Deadline#cancel()} aborts the post, which closes its connection and frees the pool slot.
+     * @param req      JSON request
+     * @param endpoint Target endpoint
+     * @param post     HTTP Post with authentication headers
+     * @param ctx      HTTP context
+     * @param deadline Deadline of the request, or null
+     * @return JSON Response
+     * @throws IOException if the connection fails or the post is aborted
      */
-    private String sendBasicReq(final String req) throws MssRestException {
+    private JsonResponse execute(final JsonRequest req,
+                                 final Endpoint endpoint,
+                                 final HttpPost post,
+                                 final HttpClientContext ctx,
+                                 final Deadline deadline)
+        throws IOException
+    {
+        final CloseableHttpClient client = endpoint.getHttpClient(req.getRequestType());
+        if (deadline == null) {
+            return readResponse(client.execute(post, ctx));
+        }
+        post.setConfig(deadline.toRequestConfig(this.getPoolConfig(req.getRequestType()).getLeaseTimeout()));
+        final Cancellable abort = () -> {
+            post.abort();
+            return true;
+        };
+        deadline.attach(abort);
+        try {
+            return readResponse(client.execute(post, ctx));
+        } finally {
+            deadline.detach(abort);
+        }
+    }
+    
+    /**
+     * Get the endpoints to try for a new request.
+     * <p>The endpoint picked by the {@link LoadBalancingPolicy} comes first, followed by the other
+     * available endpoints in configured order. Endpoints with an open circuit breaker or ejected
+     * as latency outliers are skipped. If no endpoint is available, all endpoints are returned,
+     * so that requests still go out.
+     * @return endpoints in routing order
+     */
+    private List<Endpoint> route() {
+        List<Endpoint> all = this.endpoints;
+        if (all.size() < 2) {
+            return all;
+        }
+        long now = System.currentTimeMillis();
+        this.checkOutliers(all, now);
         
+        List<Endpoint> available = new ArrayList<>(all.size());
+        for (Endpoint endpoint : all) {
+            if (endpoint.isAvailable(now)) {
+                available.add(endpoint);
+            }
+        }
+        if (available.isEmpty()) {
+            return all;
+        }
+        Endpoint chosen = this.balancerConfig.getPolicy().choose(available);
+        // Only an open breaker ahead of the chosen endpoint made this request go elsewhere
+        for (Endpoint endpoint : all) {
+            if (endpoint == chosen) {
+                break;
+            }
+            if (!endpoint.getCircuitBreaker().isCallPermitted()) {
+                endpoint.getCircuitBreaker().recordShortCircuit();
+            }
+        }
+        if (available.get(0) != chosen) {
+            available.remove(chosen);
+            available.add(0, chosen);
+        }
+        return available;
+    }
+    
+    /**
+     * Eject endpoints whose latency EWMA is far above the median of the endpoints.
+     * Runs at most once per {@link LoadBalancerConfig#getOutlierInterval()}.
+     * @param all All endpoints
+     * @param now Current time (epoch millis)
+     */
+    private void checkOutliers(final List<Endpoint> all, final long now) {
+        if (!this.balancerConfig.isOutlierEjectionEnabled()) {
+            return;
+        }
+        long last = this.lastOutlierCheck.get();
+        if (now - last < this.balancerConfig.getOutlierInterval() || !this.lastOutlierCheck.compareAndSet(last, now)) {
+            return;
+        }
+        int ejected = 0;
+        List<Endpoint> candidates = new ArrayList<>(all.size());
+        for (Endpoint endpoint : all) {
+            if (endpoint.isEjected(now)) {
+                ejected++;
+            } else if (endpoint.getLatencySamples() >= this.balancerConfig.getMinRequests()) {
+                candidates.add(endpoint);
+            }
+        }
+        if (candidates.size() < 2) {
+            return;
+        }
+        double[] latencies = new double[candidates.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = candidates.get(i).getLatencyEwma();
+        }
+        Arrays.sort(latencies);
+        double limit = latencies[(latencies.length - 1) / 2] * this.balancerConfig.getOutlierLatencyFactor();
+        int    max   = all.size() * this.balancerConfig.getMaxEjectionPercent() / 100;
+        for (Endpoint endpoint : candidates) {
+            if (ejected >= max) {
+                break;
+            }
+            if (endpoint.getLatencyEwma() > limit) {
+                endpoint.eject(now + this.balancerConfig.getEjectionTime());
+                ejected++;
+            }
+        }
+    }
+    
+    /**
+     * Record a successful call. The latency SLO and EWMA are not applied to MSS_SignatureReq,
+     * since the MSSP responds only after the user has answered.
+     * @param endpoint Called endpoint
+     * @param req      Sent request
+     * @param start    Value returned by {@link Endpoint#begin()}
+     */
+    private void recordSuccess(final Endpoint endpoint, final JsonRequest req, final long start) {
+        boolean checkSlo = req.getRequestType() != RequestType.MSS_SignatureReq;
+        long    latency  = endpoint.end(start, checkSlo);
+        if (endpoint.getCircuitBreaker().recordSuccess(latency, checkSlo)) {
+            this.scheduleProbe(endpoint);
+        }
+    }
+    
+    /**
+     * Record a failed call
+     * @param endpoint Called endpoint
+     * @param start    Value returned by {@link Endpoint#begin()}
+     */
+    private void recordFailure(final Endpoint endpoint, final long start) {
+        endpoint.end(start, false);
+        if (endpoint.getCircuitBreaker().recordFailure()) {
+            this.scheduleProbe(endpoint);
+        }
+    }
+    
+    /**
+     * Schedule a background probe of an open endpoint
+     * @param endpoint Endpoint to probe
+     */
+    private void scheduleProbe(final Endpoint endpoint) {
         try {
-            HttpPost post = this.createPost(req, this.resturl);
-            return this.getResponseBody(this.httpClient.execute(post, this.createContext(this.resturl)));
-        } catch (IOException e) {
-            log.error("Connection to " + this.resturl + " failed: " + e.getMessage());
-            if (this.secondaryUrl != null) {
-                try {
-                    HttpPost post = this.createPost(req, this.secondaryUrl);
-                    return this.getResponseBody(this.httpClient.execute(post, this.createContext(this.secondaryUrl)));
-                } catch (IOException e2) {
-                    log.error("Connection to " + this.secondaryUrl + " failed: " + e.getMessage());
-                    throw new MssRestException(MssRestException.UNABLE_TO_PROVIDE_SERVICES, e.getMessage());
+            this.getProber().schedule(() -> this.probe(endpoint), this.breakerConfig.getProbeInterval(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Client closed, not probing " + endpoint);
+        }
+    }
+    
+    /**
+     * Probe an open endpoint. Closes the breaker if the endpoint responds, otherwise probes again later.
+     * @param endpoint Endpoint to probe
+     */
+    private void probe(final Endpoint endpoint) {
+        CircuitBreaker breaker = endpoint.getCircuitBreaker();
+        if (!breaker.tryHalfOpen()) {
+            return;
+        }
+        boolean success = this.isResponding(endpoint);
+        breaker.recordProbe(success);
+        if (!success) {
+            this.scheduleProbe(endpoint);
+        }
+    }
+    
+    /**
+     * Check if a REST URL answers to a HTTP GET within the probe timeout and latency SLO.
+     * Any HTTP status counts as an answer.
+     * @param endpoint Endpoint to probe
+     * @return true if the URL answered
+     */
+    private boolean isResponding(final Endpoint endpoint) {
+        String url = endpoint.getUrl();
+        int  timeout = this.breakerConfig.getProbeTimeout();
+        long slo     = this.breakerConfig.getLatencySlo();
+        HttpGet get = new HttpGet(url);
+        // Probe connections are not pooled, so that a request never reuses a connection the server has dropped
+        get.setHeader(HttpHeaders.CONNECTION, "close");
+        get.setConfig(RequestConfig.custom()
+                                   .setConnectTimeout(timeout)
+                                   .setSocketTimeout(timeout)
+                                   .setConnectionRequestTimeout(timeout)
+                                   .build());
+        long start = System.nanoTime();
+        try (CloseableHttpResponse resp = endpoint.getHttpClient().execute(get)) {
+            EntityUtils.consume(resp.getEntity());
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return slo < 0 || latency <= slo;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Probe of " + url + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Get the timer of hedged requests. The timer thread is created on first use.
+     * <p>Hedge delays need a finer resolution than the {@link TimingWheel} of retries and status polls,
+     * and probes block on HTTP, so they use schedulers of their own.
+     * @return timer
+     */
+    private ScheduledExecutorService getTimer() {
+        ScheduledExecutorService t = this.timer;
+        if (t == null) {
+            synchronized (this) {
+                t = this.timer;
+                if (t == null) {
+                    t = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "laverca-rest-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    this.timer = t;
                 }
             }
-            throw new MssRestException(MssRestException.UNABLE_TO_PROVIDE_SERVICES, e.getMessage());
         }
+        return t;
+    }
+    
+    /**
+     * Get the scheduler of background probes. The scheduler thread is created on first use.
+     * @return probe scheduler
+     */
+    private ScheduledExecutorService getProber() {
+        ScheduledExecutorService p = this.prober;
+        if (p == null) {
+            synchronized (this) {
+                p = this.prober;
+                if (p == null) {
+                    p = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "laverca-endpoint-probe");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    this.prober = p;
+                }
+            }
+        }
+        return p;
+    }
+    
+    /**
+     * Create endpoints of the configured REST URLs. Endpoints of unchanged URLs are kept
+     * with their connection pools and state, and endpoints of removed URLs are closed.
+     * @return endpoints
+     */
+    private List<Endpoint> createEndpoints() {
+        List<String> urls = new ArrayList<>(2 + this.otherUrls.size());
+        if (this.resturl != null) {
+            urls.add(this.resturl);
+        }
+        if (this.secondaryUrl != null) {
+            urls.add(this.secondaryUrl);
+        }
+        urls.addAll(this.otherUrls);
+        
+        List<Endpoint> old    = new ArrayList<>(this.endpoints);
+        List<Endpoint> result = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            Endpoint endpoint = null;
+            for (Endpoint e : old) {
+                if (e.getUrl().equals(url)) {
+                    endpoint = e;
+                    break;
+                }
+            }
+            if (endpoint != null) {
+                old.remove(endpoint);
+            } else {
+                endpoint = new Endpoint(url, this.poolConfig, this.breakerConfig, this.balancerConfig, this.bulkheadConfigs);
+            }
+            result.add(endpoint);
+        }
+        for (Endpoint e : old) {
+            e.close();
+        }
+        return Collections.unmodifiableList(result);
+    }
+    
+    /**
+     * Get the HMAC signer of this client. The signer is created on first use.
+     * @return HMAC signer
+     */
+    private HmacSigner getSigner() {
+        HmacSigner s = this.signer;
+        if (s == null) {
+            s = new HmacSigner(this.getUserId(this.apid), this.apikey);
+            this.signer = s;
+        }
+        return s;
     }
     
     /**
@@ -224,32 +1470,21 @@ public class RestClient {
     }
     
     /**
-     * Create a HTTP Post
-     * @param req Request as String
+     * Create a HTTP Post that streams the JSON request
+     * @param req JSON request
      * @param url Request URL
      * @return HTTP Post
-     * @throws IOException
      */
-    private HttpPost createPost(final String req, final String url) throws IOException {
+    private HttpPost createPost(final JsonRequest req, final String url) {
         final HttpPost post = new HttpPost(url);
-        final String body = req;
-        if (!body.isEmpty()) {
-            post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        if (req instanceof PreparedRequest) {
+            post.setEntity(new ByteArrayEntity(((PreparedRequest) req).getBytes(), ContentType.APPLICATION_JSON));
+        } else {
+            post.setEntity(new JsonEntity(req));
         }
         return post;
     }
     
-    /**
-     * Get response body
-     * @param resp HTTP Response
-     * @return Body as UTF-8 String
-     * @throws ParseException if body fails to parse
-     * @throws IOException if body fails to parse
-     */
-    private String getResponseBody(final HttpResponse resp) throws ParseException, IOException {
-        return resp.getEntity() != null ? EntityUtils.toString(resp.getEntity(), "UTF-8") : "";
-    }
-    
     public static enum AuthnMode {
         APIKEY,
         PASSWORD
@@ -1,93 +1,291 @@
 //
-//  (c) Copyright 2003-2023 Methics Oy. All rights reserved. 
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
 //
 package fi.methics.laverca.rest.util;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.net.UnknownHostException;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.net.ssl.SSLContext;
-
-import org.apache.http.HttpVersion;
-import org.apache.http.client.HttpClient;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.HTTP;
-
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-@SuppressWarnings("deprecation")
-public class RestSocketFactory extends SSLSocketFactory {
-    SSLContext sslContext = SSLContext.getInstance("TLS");
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+import org.apache.http.protocol.HttpContext;
 
-    public RestSocketFactory(KeyStore truststore) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException {
-        super(truststore);
+/**
+ * Factory for pooled HTTP clients used by {@link RestClient}
+ * <p>All clients share one {@link SSLContext}, so TLS sessions negotiated by one client
+ * or connection are resumed by the others. A resumed handshake skips the key exchange
+ * and certificate checks of a full handshake.
+ */
+public class RestSocketFactory {
 
-        TrustManager tm = new X509TrustManager() {
-            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            }
+    private static final Log log = LogFactory.getLog(RestSocketFactory.class);
 
-            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            }
+    /** Maximum number of TLS sessions kept for resumption */
+    public static final int SESSION_CACHE_SIZE = 1000;
+    /** Time a TLS session can be resumed, in seconds */
+    public static final int SESSION_TIMEOUT    = 8 * 60 * 60; // 8 h
 
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
+    private static final String HANDSHAKE_START = "laverca.handshake.start";
+
+    private static final LongAdder fullHandshakes    = new LongAdder();
+    private static final LongAdder resumedHandshakes = new LongAdder();
+
+    private static volatile SSLContext sslContext;
+
+    /**
+     * Get the number of full TLS handshakes made by all clients
+     * @return full handshake count
+     */
+    public static long getFullHandshakeCount() {
+        return fullHandshakes.sum();
+    }
+
+    /**
+     * Get the number of TLS handshakes that resumed an earlier session
+     * @return resumed handshake count
+     */
+    public static long getResumedHandshakeCount() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * Get the SSLContext shared by all clients. The context is created on first use.
+     * @return SSLContext
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    public static SSLContext getSslContext() throws NoSuchAlgorithmException, KeyManagementException {
+        SSLContext ctx = sslContext;
+        if (ctx == null) {
+            synchronized (RestSocketFactory.class) {
+                ctx = sslContext;
+                if (ctx == null) {
+                    ctx = createSslContext();
+                    SSLSessionContext sessions = ctx.getClientSessionContext();
+                    sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                    sessions.setSessionTimeout(SESSION_TIMEOUT);
+                    sslContext = ctx;
+                }
             }
-        };
+        }
+        return ctx;
+    }
 
-        this.sslContext.init(null, new TrustManager[] { tm }, null);
+    /**
+     * Count a completed handshake. A session created before the handshake started was resumed.
+     * This holds for TLS 1.2 session IDs and TLS 1.3 session tickets alike.
+     * @param session Negotiated session
+     * @param start   Start of the handshake (epoch millis)
+     */
+    private static void countHandshake(final SSLSession session, final long start) {
+        if (session.getCreationTime() < start) {
+            resumedHandshakes.increment();
+        } else {
+            fullHandshakes.increment();
+        }
+    }
+
+    /**
+     * Create a new HTTP client with default pool settings
+     * @return HTTP client
+     */
+    public static CloseableHttpClient getNewHttpClient() {
+        ConnectionPoolConfig config = new ConnectionPoolConfig();
+        return getNewHttpClient(getNewConnectionManager(config), config);
     }
 
-    @Override
-    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
-        return this.sslContext.getSocketFactory().createSocket(socket, host, port, autoClose);
+    /**
+     * Create a new HTTP client on top of the given connection manager
+     * @param cm     Connection manager
+     * @param config Pool settings
+     * @return HTTP client
+     */
+    public static CloseableHttpClient getNewHttpClient(final PoolingHttpClientConnectionManager cm,
+                                                       final ConnectionPoolConfig config)
+    {
+        RequestConfig.Builder reqConfig = RequestConfig.custom();
+        if (config.getLeaseTimeout() >= 0) {
+            reqConfig.setConnectionRequestTimeout(config.getLeaseTimeout());
+        }
+
+        HttpClientBuilder builder = HttpClientBuilder.create();
+        builder.setConnectionManager(cm);
+        builder.setDefaultRequestConfig(reqConfig.build());
+        if (config.getMaxIdleTime() >= 0) {
+            builder.evictIdleConnections(config.getMaxIdleTime(), TimeUnit.MILLISECONDS);
+        }
+        if (config.getConnectionTtl() >= 0) {
+            builder.evictExpiredConnections();
+        }
+        return builder.build();
     }
 
-    @Override
-    public Socket createSocket() throws IOException {
-        return this.sslContext.getSocketFactory().createSocket();
+    /**
+     * Create a new pooling connection manager
+     * @param config Pool settings
+     * @return connection manager
+     */
+    public static PoolingHttpClientConnectionManager getNewConnectionManager(final ConnectionPoolConfig config) {
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(createRegistry(), null, null, null,
+                                                                                       config.getConnectionTtl(), TimeUnit.MILLISECONDS);
+        cm.setMaxTotal(config.getMaxTotal());
+        cm.setDefaultMaxPerRoute(config.getMaxPerRoute());
+        cm.setValidateAfterInactivity(config.getValidateAfterInactivity());
+        return cm;
     }
-    
-    public static HttpClient getNewHttpClient() {
+
+    /**
+     * Create and start a new non-blocking HTTP client.
+     * <p>Requests are multiplexed over {@link ConnectionPoolConfig#getIoThreads()} I/O threads.
+     * @param config Pool settings
+     * @return started asynchronous HTTP client
+     * @throws MssRestException if the I/O reactor cannot be created
+     */
+    public static CloseableHttpAsyncClient getNewAsyncHttpClient(final ConnectionPoolConfig config) throws MssRestException {
+        PoolingNHttpClientConnectionManager cm;
         try {
-            KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            trustStore.load(null, null);
+            IOReactorConfig ioConfig = IOReactorConfig.custom().setIoThreadCount(config.getIoThreads()).build();
+            cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig), null, createAsyncRegistry(), null, null,
+                                                         config.getConnectionTtl(), TimeUnit.MILLISECONDS);
+        } catch (IOReactorException e) {
+            log.error("Failed to initialize I/O reactor: " + e.getMessage());
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, e);
+        }
+        cm.setMaxTotal(config.getMaxTotal());
+        cm.setDefaultMaxPerRoute(config.getMaxPerRoute());
 
-            RestSocketFactory sf = new RestSocketFactory(trustStore);
-            sf.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        RequestConfig.Builder reqConfig = RequestConfig.custom();
+        if (config.getLeaseTimeout() >= 0) {
+            reqConfig.setConnectionRequestTimeout(config.getLeaseTimeout());
+        }
 
-            HttpParams params = new BasicHttpParams();
-            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        CloseableHttpAsyncClient client = HttpAsyncClientBuilder.create()
+                                                                .setConnectionManager(cm)
+                                                                .setDefaultRequestConfig(reqConfig.build())
+                                                                .build();
+        client.start();
+        return client;
+    }
 
-            SchemeRegistry registry = new SchemeRegistry();
-            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-            registry.register(new Scheme("https", sf, 443));
+    /**
+     * Create the I/O session strategy registry for http and https
+     * @return registry
+     */
+    private static Registry<SchemeIOSessionStrategy> createAsyncRegistry() {
+        SchemeIOSessionStrategy ss;
+        try {
+            ss = new SSLIOSessionStrategy(getSslContext(), NoopHostnameVerifier.INSTANCE) {
+                @Override
+                public SSLIOSession upgrade(final HttpHost host, final IOSession iosession) throws IOException {
+                    iosession.setAttribute(HANDSHAKE_START, System.currentTimeMillis());
+                    return super.upgrade(host, iosession);
+                }
 
-            ClientConnectionManager ccm = new ThreadSafeClientConnManager(params, registry);
+                @Override
+                protected void verifySession(final HttpHost host, final IOSession iosession, final SSLSession session) throws SSLException {
+                    super.verifySession(host, iosession, session);
+                    Object start = iosession.getAttribute(HANDSHAKE_START);
+                    if (start instanceof Long) {
+                        countHandshake(session, (Long) start);
+                    }
+                }
+            };
+        } catch (Exception e) {
+            log.error("Failed to initialize SSLContext: " + e.getMessage());
+            ss = SSLIOSessionStrategy.getDefaultStrategy();
+        }
+        return RegistryBuilder.<SchemeIOSessionStrategy>create()
+                              .register("http",  NoopIOSessionStrategy.INSTANCE)
+                              .register("https", ss)
+                              .build();
+    }
 
-            return new DefaultHttpClient(ccm, params);
+    /**
+     * Create the socket factory registry for http and https
+     * @return registry
+     */
+    private static Registry<ConnectionSocketFactory> createRegistry() {
+        SSLConnectionSocketFactory sf;
+        try {
+            sf = new SSLConnectionSocketFactory(getSslContext(), NoopHostnameVerifier.INSTANCE) {
+                @Override
+                public Socket createLayeredSocket(final Socket socket, final String target, final int port, final HttpContext context) throws IOException {
+                    long   start  = System.currentTimeMillis();
+                    Socket result = super.createLayeredSocket(socket, target, port, context);
+                    if (result instanceof SSLSocket) {
+                        countHandshake(((SSLSocket) result).getSession(), start);
+                    }
+                    return result;
+                }
+            };
         } catch (Exception e) {
-            return new DefaultHttpClient();
+            log.error("Failed to initialize SSLContext: " + e.getMessage());
+            sf = SSLConnectionSocketFactory.getSocketFactory();
         }
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                              .register("http",  PlainConnectionSocketFactory.getSocketFactory())
+                              .register("https", sf)
+                              .build();
     }
-    
-    
-}
\ No newline at end of file
+
+    /**
+     * Create a new SSLContext that accepts any server certificate
+     * @return SSLContext
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    private static SSLContext createSslContext() throws NoSuchAlgorithmException, KeyManagementException {
+        TrustManager tm = new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return null;
+            }
+        };
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] { tm }, null);
+        return sslContext;
+    }
+
+}
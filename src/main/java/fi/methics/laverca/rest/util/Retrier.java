@@ -0,0 +1,192 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * Retry decisions, retry budget and retry metrics of a {@link RestClient}.
+ * <p>The budget is shared by all requests of the client. Every request adds
+ * {@link RetryConfig#getBudgetPercent()}/100 retries to it, and every retry takes one.
+ * During an outage retries are therefore capped at a fixed share of live traffic.
+ * The budget starts full and never holds more than {@link RetryConfig#getMaxRetryBurst()} retries.
+ * @see RetryConfig
+ */
+public class Retrier {
+
+    private static final Log log = LogFactory.getLog(Retrier.class);
+
+    private static final long TOKEN = 1000; // budget is kept in thousandths of a retry
+
+    private final RetryConfig config;
+    private final AtomicLong  budget;
+    private final long        maxBudget;
+
+    private final LongAdder requests        = new LongAdder();
+    private final LongAdder retries         = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+    private final LongAdder deadlineReached = new LongAdder();
+
+    /**
+     * Create a new retrier
+     * @param config Retry settings
+     */
+    public Retrier(final RetryConfig config) {
+        this.config    = config;
+        this.maxBudget = Math.max(config.getMaxRetryBurst(), 0) * TOKEN;
+        this.budget    = new AtomicLong(this.maxBudget);
+    }
+
+    /**
+     * Start tracking the attempts of a new request
+     * @param req JSON request
+     * @return retry state of the request
+     */
+    State begin(final JsonRequest req) {
+        this.requests.increment();
+        if (this.config.isEnabled()) {
+            long deposit = this.config.getBudgetPercent() * TOKEN / 100;
+            this.budget.getAndUpdate(b -> Math.min(b + deposit, this.maxBudget));
+        }
+        long timeout = req.getTimeout();
+        return new State(req.getRequestType(), System.currentTimeMillis() + (timeout > 0 ? timeout : this.config.getMaxRetryTime()));
+    }
+
+    /**
+     * Decide if a failed attempt is retried
+     * @param state Retry state of the request
+     * @param e     Failure of the latest attempt
+     * @return pause before the next attempt in milliseconds, or -1 if the request is not retried
+     */
+    long nextDelay(final State state, final MssRestException e) {
+        if (!this.config.isEnabled() || state.attempts >= this.config.getMaxAttempts() || !this.isRetryable(state.type, e)) {
+            return -1;
+        }
+        long delay = this.backoff(state.delay);
+        if (System.currentTimeMillis() + delay >= state.deadline) {
+            this.deadlineReached.increment();
+            log.debug("Not retrying " + state.type + ": TimeOut would pass");
+            return -1;
+        }
+        if (!this.withdraw()) {
+            this.budgetExhausted.increment();
+            log.debug("Not retrying " + state.type + ": retry budget exhausted");
+            return -1;
+        }
+        this.retries.increment();
+        state.attempts++;
+        state.delay = delay;
+        return delay;
+    }
+
+    /**
+     * Check if a failure may be retried
+     * @param type Request type
+     * @param e    Failure
+     * @return true if the failure is retryable
+     */
+    boolean isRetryable(final RequestType type, final MssRestException e) {
+        if (e instanceof ConnectionFailedException) {
+            if (!((ConnectionFailedException) e).isDelivered()) {
+                return true; // never sent
+            }
+            return type != RequestType.MSS_SignatureReq && this.config.getRetryableTypes().contains(type);
+        }
+        return type != RequestType.MSS_SignatureReq
+            && this.config.getRetryableTypes().contains(type)
+            && this.config.getRetryableCodes().contains(e.getErrorCode());
+    }
+
+    /**
+     * Decorrelated jitter: a random pause between the base delay and three times the previous pause
+     * @param prev Previous pause, or 0 before the first retry
+     * @return next pause
+     */
+    private long backoff(final long prev) {
+        long base  = Math.max(this.config.getBaseDelay(), 0);
+        long upper = Math.max(prev * 3, base);
+        long delay = upper > base ? ThreadLocalRandom.current().nextLong(base, upper + 1) : base;
+        return Math.min(delay, this.config.getMaxDelay());
+    }
+
+    private boolean withdraw() {
+        long b;
+        do {
+            b = this.budget.get();
+            if (b < TOKEN) {
+                return false;
+            }
+        } while (!this.budget.compareAndSet(b, b - TOKEN));
+        return true;
+    }
+
+    /**
+     * @return number of requests
+     */
+    public long getRequestCount() {
+        return this.requests.sum();
+    }
+
+    /**
+     * @return number of retries sent
+     */
+    public long getRetryCount() {
+        return this.retries.sum();
+    }
+
+    /**
+     * @return number of retries refused because the budget was empty
+     */
+    public long getBudgetExhaustedCount() {
+        return this.budgetExhausted.sum();
+    }
+
+    /**
+     * @return number of retries refused because the request TimeOut would pass
+     */
+    public long getDeadlineReachedCount() {
+        return this.deadlineReached.sum();
+    }
+
+    /**
+     * @return retries currently available in the budget
+     */
+    public double getAvailableBudget() {
+        return (double) this.budget.get() / TOKEN;
+    }
+
+    @Override
+    public String toString() {
+        return "Retrier [requests=" + this.getRequestCount()
+             + ", retries=" + this.getRetryCount()
+             + ", budgetExhausted=" + this.getBudgetExhaustedCount()
+             + ", deadlineReached=" + this.getDeadlineReachedCount() + "]";
+    }
+
+    /**
+     * Retry state of one request
+     */
+    static class State {
+
+        private final RequestType type;
+        private final long deadline;
+        private int  attempts = 1;
+        private long delay;
+
+        State(final RequestType type, final long deadline) {
+            this.type     = type;
+            this.deadline = deadline;
+        }
+
+    }
+
+}
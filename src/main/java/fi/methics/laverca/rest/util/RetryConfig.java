@@ -0,0 +1,183 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+
+/**
+ * Settings of request retries done by {@link RestClient}.
+ * <p>Usage:
+ * <pre>
+ * RetryConfig config = new RetryConfig().withMaxAttempts(3)
+ *                                       .withBackoff(50, 2000)
+ *                                       .withBudgetPercent(10);
+ * </pre>
+ * A request is retried when
+ * <ul>
+ * <li>no endpoint could be connected, so the request never left the client. This applies to every request type.
+ * <li>the request type is idempotent and the request failed on a connection error
+ *     or with one of the retryable MSSP fault codes.
+ * </ul>
+ * An MSS_SignatureReq that may have reached the MSSP is never sent again, since the MSSP
+ * may already have sent it to the phone.
+ * <p>Retries are paused with exponential backoff and decorrelated jitter, and limited
+ * by a client-wide retry budget. Retries are off by default.
+ * <p>All time values are in milliseconds.
+ */
+public class RetryConfig {
+
+    public static final int  DEFAULT_MAX_ATTEMPTS   = 3;
+    public static final long DEFAULT_BASE_DELAY     = 50;
+    public static final long DEFAULT_MAX_DELAY      = 2000;
+    public static final int  DEFAULT_BUDGET_PERCENT = 10;
+    public static final int  DEFAULT_MAX_BURST      = 10;
+    public static final long DEFAULT_MAX_RETRY_TIME = 10000; // 10 s
+
+    private int  maxAttempts   = DEFAULT_MAX_ATTEMPTS;
+    private long baseDelay     = DEFAULT_BASE_DELAY;
+    private long maxDelay      = DEFAULT_MAX_DELAY;
+    private int  budgetPercent = DEFAULT_BUDGET_PERCENT;
+    private int  maxBurst      = DEFAULT_MAX_BURST;
+    private long maxRetryTime  = DEFAULT_MAX_RETRY_TIME;
+
+    private Set<RequestType> retryableTypes = EnumSet.of(RequestType.MSS_ProfileReq, RequestType.MSS_StatusReq);
+    private Set<String>      retryableCodes = new HashSet<>(Arrays.asList(MssRestException.UNABLE_TO_PROVIDE_SERVICES,
+                                                                          MssRestException.INTERNAL_ERROR));
+
+    public RetryConfig() {
+
+    }
+
+    /**
+     * Create a config that never retries. This is the default of {@link RestClient}.
+     * @return disabled config
+     */
+    public static RetryConfig disabled() {
+        return new RetryConfig().withMaxAttempts(1);
+    }
+
+    /**
+     * Set the maximum number of attempts, including the first one.
+     * 1 or less disables retries.
+     * @param maxAttempts attempts per request
+     * @return this config
+     */
+    public RetryConfig withMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Set the backoff limits. Each pause is a random value between the base delay
+     * and three times the previous pause, capped at the max delay.
+     * @param baseDelay first pause in milliseconds
+     * @param maxDelay  longest pause in milliseconds
+     * @return this config
+     */
+    public RetryConfig withBackoff(long baseDelay, long maxDelay) {
+        this.baseDelay = baseDelay;
+        this.maxDelay  = maxDelay;
+        return this;
+    }
+
+    /**
+     * Set the retry budget as a percentage of requests.
+     * Every request adds this share of a retry to the budget and every retry takes one.
+     * @param budgetPercent retries per 100 requests
+     * @return this config
+     */
+    public RetryConfig withBudgetPercent(int budgetPercent) {
+        this.budgetPercent = budgetPercent;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of retries the budget can save up. The budget starts full,
+     * so a burst of this many retries is allowed at once. After that, only
+     * {@link #withBudgetPercent(int)} of new requests are retried.
+     * @param maxBurst number of retries
+     * @return this config
+     */
+    public RetryConfig withMaxRetryBurst(int maxBurst) {
+        this.maxBurst = maxBurst;
+        return this;
+    }
+
+    /**
+     * Set the time after which a request without its own TimeOut is no longer retried
+     * @param maxRetryTime time from the first attempt in milliseconds
+     * @return this config
+     */
+    public RetryConfig withMaxRetryTime(long maxRetryTime) {
+        this.maxRetryTime = maxRetryTime;
+        return this;
+    }
+
+    /**
+     * Set the idempotent request types that may be retried after reaching the MSSP.
+     * MSS_SignatureReq is ignored.
+     * @param types request types
+     * @return this config
+     */
+    public RetryConfig withRetryableTypes(RequestType... types) {
+        Set<RequestType> set = EnumSet.noneOf(RequestType.class);
+        set.addAll(Arrays.asList(types));
+        set.remove(RequestType.MSS_SignatureReq);
+        this.retryableTypes = set;
+        return this;
+    }
+
+    /**
+     * Set the MSSP fault codes that are retried for idempotent request types
+     * @param codes fault codes (e.g. "780", "900")
+     * @return this config
+     */
+    public RetryConfig withRetryableCodes(String... codes) {
+        this.retryableCodes = new HashSet<>(Arrays.asList(codes));
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return this.maxAttempts > 1;
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    public long getBaseDelay() {
+        return this.baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return this.maxDelay;
+    }
+
+    public int getBudgetPercent() {
+        return this.budgetPercent;
+    }
+
+    public int getMaxRetryBurst() {
+        return this.maxBurst;
+    }
+
+    public long getMaxRetryTime() {
+        return this.maxRetryTime;
+    }
+
+    public Set<RequestType> getRetryableTypes() {
+        return Collections.unmodifiableSet(this.retryableTypes);
+    }
+
+    public Set<String> getRetryableCodes() {
+        return Collections.unmodifiableSet(this.retryableCodes);
+    }
+
+}
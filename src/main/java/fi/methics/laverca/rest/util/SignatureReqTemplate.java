@@ -0,0 +1,172 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.UUID;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+
+/**
+ * Pre-serialized MSS_SignatureReq.
+ * <p>All fields that stay constant for a client and SignatureProfile (AP_ID, AP_PWD, MessagingMode,
+ * SignatureProfile, MSS_Format, DTBS MimeType and Encoding) are encoded once as UTF-8 bytes.
+ * Each request only splices in MSISDN, DTBS, DTBD, TimeOut and AP_TransID.
+ * The result is byte-identical to serializing the same request built with {@link MSS_SignatureReqBuilder}.
+ * <p>Templates are immutable and thread-safe.
+ * <p>Usage:
+ * <pre>
+ * SignatureReqTemplate template = new SignatureReqTemplate(apid, appwd, SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS, null, DTBS.ENCODING_UTF8);
+ * JsonResponse resp = restClient.sendReq(template.prepare("35847001001", "Login".getBytes(StandardCharsets.UTF_8), null));
+ * </pre>
+ */
+public class SignatureReqTemplate {
+
+    private static final byte[] HEAD           = JsonBuffer.ascii("{\"MSS_SignatureReq\":{\"MessagingMode\":");
+    private static final byte[] HEAD_END       = JsonBuffer.ascii(",");
+    private static final byte[] TIMEOUT        = JsonBuffer.ascii("\"TimeOut\":\"");
+    private static final byte[] TIMEOUT_END    = JsonBuffer.ascii("\",");
+    private static final byte[] MSISDN         = JsonBuffer.ascii("\"MSISDN\":\"");
+    private static final byte[] QUOTE          = JsonBuffer.ascii("\"");
+    private static final byte[] DTBS_END       = JsonBuffer.ascii("\"}");
+    private static final byte[] DTBD           = JsonBuffer.ascii(",\"DataToBeDisplayed\":{\"Data\":\"");
+    private static final byte[] END            = JsonBuffer.ascii("\"}}}");
+
+    private final byte[] head;
+    private final byte[] profileAndUser;
+    private final byte[] dtbsStart;
+    private final byte[] apInfoStart;
+
+    /**
+     * Create a new template of synch requests
+     * @param apid             AP_ID (may be null)
+     * @param appwd            AP_PWD (may be null)
+     * @param signatureProfile SignatureProfile URI
+     * @param mssFormat        MSS_Format (e.g. {@link fi.methics.laverca.rest.MssClient#FORMAT_CMS})
+     * @param mimeType         DTBS MimeType (may be null)
+     * @param encoding         DTBS Encoding (e.g. {@link DTBS#ENCODING_BASE64})
+     */
+    public SignatureReqTemplate(final String apid,
+                                final String appwd,
+                                final String signatureProfile,
+                                final String mssFormat,
+                                final String mimeType,
+                                final String encoding)
+    {
+        this(apid, appwd, signatureProfile, mssFormat, mimeType, encoding, MSS_SignatureReq.MODE_SYNCH);
+    }
+
+    /**
+     * Create a new template
+     * @param apid             AP_ID (may be null)
+     * @param appwd            AP_PWD (may be null)
+     * @param signatureProfile SignatureProfile URI
+     * @param mssFormat        MSS_Format (e.g. {@link fi.methics.laverca.rest.MssClient#FORMAT_CMS})
+     * @param mimeType         DTBS MimeType (may be null)
+     * @param encoding         DTBS Encoding (e.g. {@link DTBS#ENCODING_BASE64})
+     * @param messagingMode    MessagingMode (e.g. {@link MSS_SignatureReq#MODE_ASYNCH_CLIENT_SERVER})
+     */
+    public SignatureReqTemplate(final String apid,
+                                final String appwd,
+                                final String signatureProfile,
+                                final String mssFormat,
+                                final String mimeType,
+                                final String encoding,
+                                final String messagingMode)
+    {
+        JsonBuffer b = new JsonBuffer(64);
+        b.append(HEAD).append(JsonBuffer.quoted(messagingMode != null ? messagingMode : MSS_SignatureReq.MODE_SYNCH)).append(HEAD_END);
+        this.head = b.toByteArray();
+
+        b = new JsonBuffer(128);
+        if (signatureProfile != null) {
+            b.append(JsonBuffer.ascii("\"SignatureProfile\":")).append(JsonBuffer.quoted(signatureProfile)).append(JsonBuffer.ascii(","));
+        }
+        b.append(JsonBuffer.ascii("\"MobileUser\":{"));
+        this.profileAndUser = b.toByteArray();
+
+        b = new JsonBuffer(128);
+        b.append(JsonBuffer.ascii("},\"DataToBeSigned\":{"));
+        if (mimeType != null) {
+            b.append(JsonBuffer.ascii("\"MimeType\":")).append(JsonBuffer.quoted(mimeType)).append(JsonBuffer.ascii(","));
+        }
+        if (encoding != null) {
+            b.append(JsonBuffer.ascii("\"Encoding\":")).append(JsonBuffer.quoted(encoding)).append(JsonBuffer.ascii(","));
+        }
+        b.append(JsonBuffer.ascii("\"Data\":\""));
+        this.dtbsStart = b.toByteArray();
+
+        b = new JsonBuffer(128);
+        b.append(JsonBuffer.ascii(",\"AdditionalServices\":[]"));
+        if (mssFormat != null) {
+            b.append(JsonBuffer.ascii(",\"MSS_Format\":")).append(JsonBuffer.quoted(mssFormat));
+        }
+        b.append(JsonBuffer.ascii(",\"AP_Info\":{"));
+        if (apid != null) {
+            b.append(JsonBuffer.ascii("\"AP_ID\":")).append(JsonBuffer.quoted(apid)).append(JsonBuffer.ascii(","));
+        }
+        if (appwd != null) {
+            b.append(JsonBuffer.ascii("\"AP_PWD\":")).append(JsonBuffer.quoted(appwd)).append(JsonBuffer.ascii(","));
+        }
+        b.append(JsonBuffer.ascii("\"AP_TransID\":\""));
+        this.apInfoStart = b.toByteArray();
+    }
+
+    /**
+     * Prepare a request with a random AP_TransID and the MSSP default timeout
+     * @param msisdn Phone number of the user
+     * @param dtbs   Data to be signed (raw bytes, sent as Base64)
+     * @param dtbd   Data to be displayed (may be null)
+     * @return request ready to be sent
+     */
+    public PreparedRequest prepare(final String msisdn, final byte[] dtbs, final String dtbd) {
+        return this.prepare(msisdn, dtbs, dtbd, 0, "A" + UUID.randomUUID().toString());
+    }
+
+    /**
+     * Prepare a request
+     * @param msisdn  Phone number of the user
+     * @param dtbs    Data to be signed (raw bytes, sent as Base64)
+     * @param dtbd    Data to be displayed (may be null)
+     * @param timeout TimeOut in milliseconds. Not sent if zero or negative.
+     * @param transId AP_TransID
+     * @return request ready to be sent
+     * @see MSS_SignatureReq
+     */
+    public PreparedRequest prepare(final String msisdn,
+                                   final byte[] dtbs,
+                                   final String dtbd,
+                                   final int    timeout,
+                                   final String transId)
+    {
+        if (dtbs == null) {
+            throw new MssRestException(MssRestException.MISSING_PARAM, "Missing DataToBeSigned in request");
+        }
+        if (transId == null) {
+            throw new MssRestException(MssRestException.MISSING_PARAM, "Missing AP_TransID in request");
+        }
+        int size = this.head.length + this.profileAndUser.length + this.dtbsStart.length + this.apInfoStart.length
+                 + dtbs.length * 4 / 3 + 64 + transId.length()
+                 + (msisdn == null ? 0 : msisdn.length() + 12)
+                 + (dtbd   == null ? 0 : dtbd.length() * 3 / 2 + 32);
+        JsonBuffer b = new JsonBuffer(size);
+        b.append(this.head);
+        if (timeout > 0) {
+            b.append(TIMEOUT).appendEscaped(Integer.toString(timeout)).append(TIMEOUT_END);
+        }
+        b.append(this.profileAndUser);
+        if (msisdn != null) {
+            b.append(MSISDN).appendEscaped(msisdn).append(QUOTE);
+        }
+        b.append(this.dtbsStart).appendBase64(dtbs).append(DTBS_END);
+        if (dtbd != null) {
+            b.append(DTBD).appendEscaped(dtbd).append(DTBS_END);
+        }
+        b.append(this.apInfoStart);
+        int keyLength = b.size();
+        b.appendEscaped(transId).append(END);
+        return new PreparedRequest(RequestType.MSS_SignatureReq, b.toByteArray(), msisdn, transId, Math.max(timeout, 0), keyLength);
+    }
+
+}
@@ -0,0 +1,99 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Single-flight execution of asynchronous calls: concurrent calls with the same key share
+ * one call in flight and its result. A call made after the shared one completed starts a new one.
+ * <p>E.g. threads that ask the certificates of the same user at the same time share one MSS_ProfileReq.
+ * <p>Joining a call in flight is lock-free: one map lookup. Each caller gets its own dependent
+ * future, so cancelling it does not affect the other callers.
+ * @param <K> Key type
+ * @param <V> Result type
+ */
+public class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder calls  = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    public SingleFlight() {
+
+    }
+
+    /**
+     * Run a call, or join the call with the same key in flight
+     * @param key  Key of the call
+     * @param call Starts the call if none is in flight
+     * @return Future result of the shared call
+     */
+    public CompletableFuture<V> run(final K key, final Function<K, CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = this.flights.get(key);
+        if (flight == null) {
+            final CompletableFuture<V> created = new CompletableFuture<>();
+            flight = this.flights.putIfAbsent(key, created);
+            if (flight == null) {
+                this.calls.increment();
+                this.start(key, call, created);
+                return created.thenApply(v -> v);
+            }
+        }
+        this.shared.increment();
+        return flight.thenApply(v -> v);
+    }
+
+    private void start(final K key, final Function<K, CompletableFuture<V>> call, final CompletableFuture<V> flight) {
+        CompletableFuture<V> result;
+        try {
+            result = call.apply(key);
+        } catch (RuntimeException e) {
+            this.flights.remove(key, flight);
+            flight.completeExceptionally(e);
+            return;
+        }
+        result.whenComplete((v, e) -> {
+            // Remove first, so that callers woken up by the result start a new call if they want a fresh one
+            this.flights.remove(key, flight);
+            if (e != null) {
+                flight.completeExceptionally(e);
+            } else {
+                flight.complete(v);
+            }
+        });
+    }
+
+    /**
+     * @return number of calls in flight
+     */
+    public int getInFlightCount() {
+        return this.flights.size();
+    }
+
+    /**
+     * @return number of calls started
+     */
+    public long getCallCount() {
+        return this.calls.sum();
+    }
+
+    /**
+     * @return number of callers that joined a call in flight
+     */
+    public long getSharedCount() {
+        return this.shared.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight [inFlight=" + this.getInFlightCount() + ", calls=" + this.getCallCount() + ", shared=" + this.getSharedCount() + "]";
+    }
+
+}
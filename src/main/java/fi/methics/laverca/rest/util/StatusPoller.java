@@ -0,0 +1,520 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.Cancellable;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.json.MSS_StatusReq;
+import fi.methics.laverca.rest.json.MSS_StatusResp;
+
+/**
+ * Shared scheduler that polls the result of asynchClientServer signatures with MSS_StatusReq.
+ * <p>The MSSP acknowledges an asynchClientServer MSS_SignatureReq at once with an MSSP_TransID.
+ * {@link RestClient} hands the acknowledgement to the poller, which queries the status of the
+ * transaction with the non-blocking HTTP client until the user has signed (status 500 or 502),
+ * the MSSP answers with a terminal fault, or the deadline passes. No thread or connection is held
+ * while the user is thinking. Poll timers live in a {@link TimingWheel}, so scheduling and
+ * cancelling them stays cheap with hundreds of thousands of pending signatures.
+ * <p>Poll times adapt to the age of each transaction and to the distribution of confirmation
+ * times seen so far. See {@link PollingConfig}.
+ * <p>One poller may be shared by any number of clients. {@link #getDefault()} is used by clients
+ * that were not given a poller of their own.
+ * <p>Usage:
+ * <pre>
+ * StatusPoller poller = new StatusPoller(new PollingConfig().withMaxInterval(3000));
+ * MssClient client = new MssClient.Builder().withRestUrl(url)
+ *                                           .withApiKey(apid, apikey)
+ *                                           .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_CLIENT_SERVER)
+ *                                           .withStatusPoller(poller)
+ *                                           .build();
+ * </pre>
+ */
+public class StatusPoller {
+
+    private static final Log log = LogFactory.getLog(StatusPoller.class);
+
+    private static volatile StatusPoller shared;
+
+    private final PollingConfig config;
+    private final TimingWheel   wheel;
+    private final Histogram     confirmations = new Histogram();
+    private final Set<Poll>     polls = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder sent      = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed    = new LongAdder();
+
+    private volatile boolean closed;
+
+    public StatusPoller() {
+        this(new PollingConfig());
+    }
+
+    /**
+     * Create a poller that keeps its timers in the shared {@link TimingWheel#getDefault()}
+     * @param config Polling settings
+     */
+    public StatusPoller(final PollingConfig config) {
+        this(config, TimingWheel.getDefault());
+    }
+
+    /**
+     * Create a poller
+     * @param config Polling settings
+     * @param wheel  Timing wheel of the poll timers
+     */
+    public StatusPoller(final PollingConfig config, final TimingWheel wheel) {
+        this.config = config;
+        this.wheel  = wheel;
+    }
+
+    /**
+     * Get the poller shared by all clients that were not given one. It is created on first use with default settings.
+     * @return shared poller
+     */
+    public static StatusPoller getDefault() {
+        StatusPoller p = shared;
+        if (p == null) {
+            synchronized (StatusPoller.class) {
+                p = shared;
+                if (p == null) {
+                    p = new StatusPoller();
+                    shared = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public PollingConfig getConfig() {
+        return this.config;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return this.wheel;
+    }
+
+    /**
+     * @return number of transactions being polled
+     */
+    public int getPendingCount() {
+        return this.polls.size();
+    }
+
+    /**
+     * @return number of status queries sent
+     */
+    public long getPollCount() {
+        return this.sent.sum();
+    }
+
+    /**
+     * @return number of transactions that got a final status
+     */
+    public long getCompletedCount() {
+        return this.completed.sum();
+    }
+
+    /**
+     * @return number of transactions that ended with a fault, a cancel or a passed deadline
+     */
+    public long getFailedCount() {
+        return this.failed.sum();
+    }
+
+    /**
+     * Get the median time from acknowledgement to final status
+     * @return time in milliseconds, or -1 before the first completed transaction
+     */
+    public long getConfirmationTime() {
+        return this.confirmations.getCount() > 0 ? this.confirmations.quantile(0.5) : -1;
+    }
+
+    /**
+     * Get a quantile of the time from acknowledgement to final status
+     * @param q Quantile between 0 and 1 (e.g. 0.9)
+     * @return time in milliseconds, or -1 before the first completed transaction
+     */
+    public long getConfirmationTime(final double q) {
+        return this.confirmations.getCount() > 0 ? this.confirmations.quantile(q) : -1;
+    }
+
+    /**
+     * Stop polling. Pending transactions fail with {@link MssRestException#INTERNAL_ERROR}.
+     * The timing wheel is not closed, as it may be shared.
+     */
+    public void close() {
+        this.closed = true;
+        for (Poll p : this.polls) {
+            p.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, "Status poller closed"));
+        }
+    }
+
+    /**
+     * Poll the result of an acknowledged asynchClientServer signature
+     * @param ack      Acknowledgement of the MSS_SignatureReq
+     * @param apid     AP_ID of the status queries (may be null)
+     * @param appwd    AP_PWD of the status queries (may be null)
+     * @param deadline Deadline of the signature, or null for {@link PollingConfig#getMaxPollTime()}
+     * @param sender   Sends a status query without blocking
+     * @return Future that completes with an MSS_SignatureResp made from the final status, or with a {@link MssRestException}
+     */
+    CompletableFuture<JsonResponse> poll(final MSS_SignatureResp ack,
+                                         final String apid,
+                                         final String appwd,
+                                         final Deadline deadline,
+                                         final Function<JsonRequest, CompletableFuture<JsonResponse>> sender)
+    {
+        JsonRequest req = new JsonRequest();
+        req.MSS_StatusReq = new MSS_StatusReq(apid, appwd, ack.MSSP_TransID);
+        Poll p = new Poll(ack, req, deadline != null ? deadline : Deadline.after(this.config.getMaxPollTime(), TimeUnit.MILLISECONDS), sender);
+        this.polls.add(p);
+        if (this.closed) {
+            p.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, "Status poller closed"));
+            return p.result;
+        }
+        p.deadline.attach(p);
+        if (log.isDebugEnabled()) {
+            log.debug("Polling status of " + ack.MSSP_TransID);
+        }
+        this.schedule(p, this.nextDelay(p));
+        return p.result;
+    }
+
+    /**
+     * Get the wait before the next status query of a transaction.
+     * <p>Until enough transactions have completed, the first query is sent after the initial delay
+     * and the interval then grows with the backoff factor. With adaptive polling, the next query is
+     * sent when the next quantile step of users would have confirmed, judging by the age of the
+     * transaction and the confirmation times seen so far. A transaction older than nearly all confirmed
+     * ones, e.g. of a user who never answers, backs off as without samples, never faster than before.
+     * @param p Transaction
+     * @return delay in milliseconds
+     */
+    private long nextDelay(final Poll p) {
+        p.delay = this.computeDelay(p);
+        return p.delay;
+    }
+
+    private long computeDelay(final Poll p) {
+        if (this.config.isAdaptive() && this.confirmations.getCount() >= this.config.getMinSamples()) {
+            long   age   = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - p.started);
+            double cdf   = this.confirmations.cdf(age);
+            if (cdf >= 1 - this.config.getQuantileStep()) {
+                p.interval = Math.max(p.interval, p.delay);
+                return Math.max(p.nextInterval(), p.delay);
+            }
+            long delay = this.confirmations.quantile(cdf + this.config.getQuantileStep()) - age;
+            if (p.queries == 0) {
+                return Math.max(delay, this.config.getMinInterval());
+            }
+            return Math.max(this.config.getMinInterval(), Math.min(this.config.getMaxInterval(), delay));
+        }
+        return p.queries == 0 ? this.config.getInitialDelay() : p.nextInterval();
+    }
+
+    /**
+     * Schedule the next status query of a transaction. The query is moved up to the deadline,
+     * so that a passed deadline is noticed on time.
+     * @param p     Transaction
+     * @param delay Delay in milliseconds
+     */
+    private void schedule(final Poll p, final long delay) {
+        if (p.result.isDone()) {
+            return;
+        }
+        try {
+            p.timer = this.wheel.schedule(() -> this.query(p), Math.min(delay, p.deadline.remaining()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            p.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, "Status poller closed"));
+        }
+    }
+
+    /**
+     * Send a status query
+     * @param p Transaction
+     */
+    private void query(final Poll p) {
+        if (p.result.isDone()) {
+            return;
+        }
+        if (p.deadline.isDone()) {
+            p.finish(null, p.deadline.toException());
+            return;
+        }
+        this.sent.increment();
+        p.queries++;
+        CompletableFuture<JsonResponse> status;
+        try {
+            status = p.sender.apply(p.request);
+        } catch (RuntimeException e) {
+            status = new CompletableFuture<>();
+            status.completeExceptionally(e);
+        }
+        status.whenComplete((resp, t) -> this.onStatus(p, resp, t));
+    }
+
+    /**
+     * Handle the answer to a status query
+     * @param p    Transaction
+     * @param resp Status response, or null if the query failed
+     * @param t    Failure, or null
+     */
+    private void onStatus(final Poll p, final JsonResponse resp, final Throwable t) {
+        if (p.result.isDone()) {
+            return;
+        }
+        if (t != null) {
+            Throwable e = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (p.deadline.isDone()) {
+                p.finish(null, p.deadline.toException());
+            } else if (e instanceof MssRestException && isTransient((MssRestException) e)) {
+                log.debug("Status query of " + p.ack.MSSP_TransID + " failed, polling again: " + e.getMessage());
+                this.schedule(p, this.nextDelay(p));
+            } else if (e instanceof MssRestException) {
+                p.finish(null, e);
+            } else {
+                p.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, e.getMessage()));
+            }
+            return;
+        }
+        MSS_StatusResp status = resp.MSS_StatusResp;
+        if (status == null) {
+            p.finish(null, new MssRestException(MssRestException.INTERNAL_ERROR, "Expected MSS_StatusResp, got " + resp.getResponseType()));
+            return;
+        }
+        String code = status.Status != null && status.Status.StatusCode != null ? status.Status.StatusCode.Value : null;
+        if (status.MSS_Signature == null && (MSS_SignatureResp.STATUS_OUTSTANDING.equals(code) || MSS_SignatureResp.STATUS_REQUEST_OK.equals(code))) {
+            this.schedule(p, this.nextDelay(p));
+            return;
+        }
+        this.confirmations.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - p.started));
+        p.finish(toSignatureResp(p.ack, status), null);
+    }
+
+    /**
+     * Check if a failed status query may be sent again
+     * @param e Failure
+     * @return true for connection failures, rate limits and MSSP overload
+     */
+    private static boolean isTransient(final MssRestException e) {
+        if (e instanceof ConnectionFailedException) {
+            return true;
+        }
+        String code = e.getErrorCode();
+        return MssRestException.TOO_MANY_REQUESTS.equals(code)
+            || MssRestException.UNABLE_TO_PROVIDE_SERVICES.equals(code)
+            || MssRestException.INTERNAL_ERROR.equals(code);
+    }
+
+    /**
+     * Create the signature response of a transaction from its final status
+     * @param ack    Acknowledgement of the MSS_SignatureReq
+     * @param status Final MSS_StatusResp
+     * @return JSON response with an MSS_SignatureResp
+     */
+    static JsonResponse toSignatureResp(final MSS_SignatureResp ack, final MSS_StatusResp status) {
+        MSS_SignatureResp resp = new MSS_SignatureResp();
+        resp.MajorVersion     = status.MajorVersion;
+        resp.MinorVersion     = status.MinorVersion;
+        resp.AP_Info          = status.AP_Info   != null ? status.AP_Info   : ack.AP_Info;
+        resp.MSSP_Info        = status.MSSP_Info != null ? status.MSSP_Info : ack.MSSP_Info;
+        resp.MSSP_TransID     = ack.MSSP_TransID;
+        resp.MobileUser       = status.MobileUser != null ? status.MobileUser : ack.MobileUser;
+        resp.SignatureProfile = ack.SignatureProfile;
+        resp.MSS_Signature    = status.MSS_Signature;
+        resp.Status           = status.Status;
+        resp.ServiceResponses = status.ServiceResponses;
+        JsonResponse jResp = new JsonResponse();
+        jResp.MSS_SignatureResp = resp;
+        return jResp;
+    }
+
+    @Override
+    public String toString() {
+        return "StatusPoller [pending=" + this.getPendingCount() + ", polls=" + this.getPollCount()
+             + ", completed=" + this.getCompletedCount() + ", confirmationTime=" + this.getConfirmationTime() + " ms]";
+    }
+
+    /**
+     * Polling state of one transaction. Cancelling the deadline of the transaction ends polling at once.
+     */
+    private class Poll implements Cancellable {
+
+        final MSS_SignatureResp ack;
+        final JsonRequest       request;
+        final Deadline          deadline;
+        final Function<JsonRequest, CompletableFuture<JsonResponse>> sender;
+        final CompletableFuture<JsonResponse> result = new CompletableFuture<>();
+        final long started = System.nanoTime();
+
+        volatile TimingWheel.Timeout timer;
+
+        // only touched by the query in progress
+        long interval;
+        long delay; // previous delay
+        int  queries;
+
+        Poll(final MSS_SignatureResp ack,
+             final JsonRequest request,
+             final Deadline deadline,
+             final Function<JsonRequest, CompletableFuture<JsonResponse>> sender)
+        {
+            this.ack      = ack;
+            this.request  = request;
+            this.deadline = deadline;
+            this.sender   = sender;
+        }
+
+        /**
+         * @return wait before the next status query: the minimum interval grown by the backoff factor, up to the maximum
+         */
+        long nextInterval() {
+            final PollingConfig c = StatusPoller.this.config;
+            if (this.interval <= 0) {
+                this.interval = c.getMinInterval();
+            } else {
+                this.interval = Math.max(c.getMinInterval(), Math.min(c.getMaxInterval(), (long) (this.interval * c.getBackoff())));
+            }
+            return this.interval;
+        }
+
+        /**
+         * End polling and complete the result. Only the first call has an effect.
+         * @param resp Final response, or null
+         * @param e    Failure, or null
+         */
+        void finish(final JsonResponse resp, final Throwable e) {
+            if (!StatusPoller.this.polls.remove(this)) {
+                return;
+            }
+            TimingWheel.Timeout t = this.timer;
+            if (t != null) {
+                t.cancel();
+            }
+            this.deadline.detach(this);
+            if (e == null) {
+                StatusPoller.this.completed.increment();
+                this.result.complete(resp);
+            } else {
+                StatusPoller.this.failed.increment();
+                if (log.isDebugEnabled()) {
+                    log.debug("Stopped polling " + this.ack.MSSP_TransID + ": " + e.getMessage());
+                }
+                this.result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            this.finish(null, this.deadline.toException());
+            return true;
+        }
+
+    }
+
+    /**
+     * Histogram of confirmation times with geometrically growing buckets. Counts are halved
+     * now and then, so the histogram follows changes in user behaviour.
+     */
+    private static final class Histogram {
+
+        private static final long[] BOUNDS;
+        private static final long   DECAY_AT = 10000;
+
+        static {
+            long[] bounds = new long[64];
+            int    n      = 0;
+            for (long b = 100; n < bounds.length && b < 3600000; b = b * 5 / 4 + 1) {
+                bounds[n++] = b;
+            }
+            BOUNDS = Arrays.copyOf(bounds, n);
+        }
+
+        private final long[] counts = new long[BOUNDS.length + 1];
+        private long total;
+
+        synchronized void add(final long time) {
+            this.counts[index(time)]++;
+            if (++this.total >= DECAY_AT) {
+                this.total = 0;
+                for (int i = 0; i < this.counts.length; i++) {
+                    this.counts[i] /= 2;
+                    this.total += this.counts[i];
+                }
+            }
+        }
+
+        synchronized long getCount() {
+            return this.total;
+        }
+
+        /**
+         * @param time Time in milliseconds
+         * @return share of samples at or below given time, interpolated within the bucket
+         */
+        synchronized double cdf(final long time) {
+            if (this.total == 0) {
+                return 0;
+            }
+            int  i     = index(time);
+            long below = 0;
+            for (int j = 0; j < i; j++) {
+                below += this.counts[j];
+            }
+            long lower = lower(i);
+            long upper = upper(i);
+            double within = upper > lower ? Math.min(1, (double) (time - lower) / (upper - lower)) : 1;
+            return (below + this.counts[i] * within) / this.total;
+        }
+
+        /**
+         * @param q Quantile between 0 and 1
+         * @return time in milliseconds, interpolated within the bucket
+         */
+        synchronized long quantile(final double q) {
+            double target = q * this.total;
+            long   below  = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                long c = this.counts[i];
+                if (c > 0 && below + c >= target) {
+                    double within = Math.max(0, target - below) / c;
+                    return lower(i) + (long) ((upper(i) - lower(i)) * within);
+                }
+                below += c;
+            }
+            return BOUNDS[BOUNDS.length - 1];
+        }
+
+        private static int index(final long time) {
+            int i = Arrays.binarySearch(BOUNDS, time);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        private static long lower(final int i) {
+            return i == 0 ? 0 : BOUNDS[i - 1];
+        }
+
+        private static long upper(final int i) {
+            return i < BOUNDS.length ? BOUNDS[i] : BOUNDS[BOUNDS.length - 1] * 2;
+        }
+
+    }
+
+}
@@ -0,0 +1,391 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Rate limits and fair scheduling of requests of several AP_IDs.
+ * <p>One scheduler can be shared by the {@link fi.methics.laverca.rest.MssClient}s of all APs
+ * of a service. Each AP_ID has a token bucket that matches its MSSP quota, and all APs
+ * may share a global bucket that matches the capacity bought from the MSSP.
+ * <p>Requests waiting for the global bucket are served in weighted fair queuing order:
+ * every AP gets a share of the global rate in proportion to its weight, however many
+ * requests a noisy AP queues. A request never waits for longer than the configured
+ * max wait; by default requests are not queued at all and fail at once when the AP is
+ * out of tokens, so bulk jobs can back off before the MSSP starts to answer with faults.
+ * <p>Usage:
+ * <pre>
+ * TenantScheduler scheduler = new TenantScheduler().withGlobalLimit(new RateLimitConfig().withRate(100))
+ *                                                  .withTenant("bulk_ap",  new RateLimitConfig().withRate(50).withWeight(1))
+ *                                                  .withTenant("login_ap", new RateLimitConfig().withRate(80).withWeight(4));
+ * MssClient bulk  = new MssClient.Builder().withApiKey("bulk_ap",  key1).withScheduler(scheduler).build();
+ * MssClient login = new MssClient.Builder().withApiKey("login_ap", key2).withScheduler(scheduler).build();
+ * </pre>
+ */
+public class TenantScheduler {
+
+    private static final Log log = LogFactory.getLog(TenantScheduler.class);
+
+    private final Map<String, Tenant> tenants = new HashMap<>(); // guarded by this
+
+    private RateLimitConfig defaultConfig = RateLimitConfig.unlimited();
+    private Bucket global = new Bucket(RateLimitConfig.unlimited());
+    private long   maxWait;
+
+    private double virtualTime; // start tag of the latest granted request
+    private long   seq;
+    private int    queued;
+
+    public TenantScheduler() {
+
+    }
+
+    /**
+     * Set the limit shared by all APs
+     * @param config Global rate limit (weight is ignored)
+     * @return this scheduler
+     */
+    public synchronized TenantScheduler withGlobalLimit(final RateLimitConfig config) {
+        this.global = new Bucket(config);
+        return this;
+    }
+
+    /**
+     * Set the limit and weight of an AP_ID
+     * @param apid   AP_ID
+     * @param config Rate limit of the AP
+     * @return this scheduler
+     */
+    public synchronized TenantScheduler withTenant(final String apid, final RateLimitConfig config) {
+        this.tenants.put(apid, new Tenant(apid, config));
+        return this;
+    }
+
+    /**
+     * Set the limit of AP_IDs that have no limit of their own. Default is no limit.
+     * @param config Rate limit
+     * @return this scheduler
+     */
+    public synchronized TenantScheduler withDefaultLimit(final RateLimitConfig config) {
+        this.defaultConfig = config;
+        return this;
+    }
+
+    /**
+     * Set how long {@link #acquire(String)} waits for a token. Default is 0, which does not wait.
+     * @param maxWait wait in milliseconds
+     * @return this scheduler
+     */
+    public synchronized TenantScheduler withMaxWait(final long maxWait) {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    /**
+     * Take a token for one request of the given AP without waiting.
+     * Fails if the AP or the global bucket is out of tokens, or if a queued request
+     * has a fairer claim on the next global token.
+     * @param apid AP_ID
+     * @return true if the request may be sent
+     */
+    public synchronized boolean tryAcquire(final String apid) {
+        if (this.tryTake(apid)) {
+            return true;
+        }
+        this.tenant(apid).rejected.increment();
+        return false;
+    }
+
+    /**
+     * Take a token for one request of the given AP, waiting up to the configured max wait
+     * @param apid AP_ID
+     * @return true if the request may be sent
+     */
+    public boolean acquire(final String apid) {
+        return this.acquire(apid, this.getMaxWait());
+    }
+
+    /**
+     * Take a token for one request of the given AP, waiting in fair queuing order
+     * @param apid    AP_ID
+     * @param maxWait Maximum wait in milliseconds
+     * @return true if the request may be sent
+     */
+    public synchronized boolean acquire(final String apid, final long maxWait) {
+        if (this.tryTake(apid)) {
+            return true;
+        }
+        Tenant tenant = this.tenant(apid);
+        if (maxWait <= 0 || !tenant.config.isLimited() && !this.global.config.isLimited()) {
+            tenant.rejected.increment();
+            return false;
+        }
+        long   deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        Waiter waiter   = new Waiter(tenant, this.seq++);
+        tenant.queue.add(waiter);
+        this.queued++;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (this.isNext(waiter, now) && this.global.hasToken(now)) {
+                    this.dequeue(waiter);
+                    this.grant(tenant, tenant.nextStart(this.virtualTime));
+                    this.notifyAll();
+                    return true;
+                }
+                long left = deadline - now;
+                if (left <= 0) {
+                    tenant.rejected.increment();
+                    return false;
+                }
+                long refill = Math.max(tenant.bucket.nanosToToken(now), this.global.nanosToToken(now));
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(Math.min(left, refill), TimeUnit.MILLISECONDS.toNanos(1)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tenant.rejected.increment();
+            return false;
+        } finally {
+            if (this.dequeue(waiter)) {
+                this.notifyAll(); // let the next waiter take our place
+            }
+        }
+    }
+
+    /**
+     * Get the time until the AP has a token, e.g. for a bulk job's backoff
+     * @param apid AP_ID
+     * @return wait in milliseconds, 0 if a token is available
+     */
+    public synchronized long getDelay(final String apid) {
+        long now = System.nanoTime();
+        long nanos = Math.max(this.tenant(apid).bucket.nanosToToken(now), this.global.nanosToToken(now));
+        return TimeUnit.NANOSECONDS.toMillis(nanos + 999_999);
+    }
+
+    /**
+     * @param apid AP_ID
+     * @return tokens left in the bucket of the AP
+     */
+    public synchronized double getAvailableTokens(final String apid) {
+        Bucket bucket = this.tenant(apid).bucket;
+        bucket.refill(System.nanoTime());
+        return bucket.tokens;
+    }
+
+    /**
+     * @param apid AP_ID
+     * @return number of requests of the AP that got a token
+     */
+    public synchronized long getGrantedCount(final String apid) {
+        return this.tenant(apid).granted.sum();
+    }
+
+    /**
+     * @param apid AP_ID
+     * @return number of requests of the AP that were rejected
+     */
+    public synchronized long getRejectedCount(final String apid) {
+        return this.tenant(apid).rejected.sum();
+    }
+
+    /**
+     * @return number of requests waiting for a token
+     */
+    public synchronized int getQueueLength() {
+        return this.queued;
+    }
+
+    public synchronized long getMaxWait() {
+        return this.maxWait;
+    }
+
+    private boolean tryTake(final String apid) {
+        Tenant tenant = this.tenant(apid);
+        long   now    = System.nanoTime();
+        if (this.isQueued(tenant, now) || !tenant.bucket.hasToken(now) || !this.global.hasToken(now)) {
+            return false;
+        }
+        this.grant(tenant, tenant.nextStart(this.virtualTime));
+        return true;
+    }
+
+    private void grant(final Tenant tenant, final double start) {
+        tenant.bucket.take();
+        this.global.take();
+        tenant.granted.increment();
+        this.virtualTime = Math.max(this.virtualTime, start);
+    }
+
+    private boolean dequeue(final Waiter waiter) {
+        if (waiter.tenant.queue.remove(waiter)) {
+            this.queued--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the waiter is first in the queue of its AP, and its AP has the smallest start tag
+     * among the APs it competes with. Start tags are only taken when a token is granted, so
+     * requests that give up do not push their AP back. APs that are out of tokens do not block
+     * others. Without a global limit only waiters of the same AP compete.
+     */
+    private boolean isNext(final Waiter waiter, final long now) {
+        Tenant tenant = waiter.tenant;
+        if (tenant.queue.peekFirst() != waiter || !tenant.bucket.hasToken(now)) {
+            return false;
+        }
+        if (!this.global.config.isLimited()) {
+            return true;
+        }
+        double start = tenant.peekStart(this.virtualTime);
+        for (Tenant t : this.tenants.values()) {
+            Waiter first = t.queue.peekFirst();
+            if (t == tenant || first == null || !t.bucket.hasToken(now)) {
+                continue;
+            }
+            double s = t.peekStart(this.virtualTime);
+            if (s < start || s == start && first.seq < waiter.seq) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a waiting request would take the token a new request of the AP needs
+     */
+    private boolean isQueued(final Tenant tenant, final long now) {
+        for (Tenant t : this.tenants.values()) {
+            if (!t.queue.isEmpty() && t.bucket.hasToken(now) && (this.global.config.isLimited() || t == tenant)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Tenant tenant(final String apid) {
+        String key = apid != null ? apid : "";
+        Tenant tenant = this.tenants.get(key);
+        if (tenant == null) {
+            tenant = new Tenant(key, this.defaultConfig);
+            this.tenants.put(key, tenant);
+            log.debug("Using default rate limit for AP " + key);
+        }
+        return tenant;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("TenantScheduler [queue=" + this.queued);
+        for (Tenant tenant : this.tenants.values()) {
+            sb.append(", ").append(tenant.apid)
+              .append("={granted=").append(tenant.granted.sum())
+              .append(", rejected=").append(tenant.rejected.sum()).append("}");
+        }
+        return sb.append("]").toString();
+    }
+
+    /**
+     * Token bucket. Guarded by the scheduler.
+     */
+    private static class Bucket {
+
+        private final RateLimitConfig config;
+        private double tokens;
+        private long   stamp = System.nanoTime();
+
+        Bucket(final RateLimitConfig config) {
+            this.config = config;
+            this.tokens = config.getBurst();
+        }
+
+        void refill(final long now) {
+            if (!this.config.isLimited()) return;
+            double added = (now - this.stamp) / 1e9 * this.config.getRate();
+            this.tokens  = Math.min(this.tokens + added, Math.max(this.config.getBurst(), 1));
+            this.stamp   = now;
+        }
+
+        boolean hasToken(final long now) {
+            this.refill(now);
+            return !this.config.isLimited() || this.tokens >= 1;
+        }
+
+        void take() {
+            if (this.config.isLimited()) {
+                this.tokens -= 1;
+            }
+        }
+
+        long nanosToToken(final long now) {
+            if (this.hasToken(now)) return 0;
+            return (long) Math.ceil((1 - this.tokens) / this.config.getRate() * 1e9);
+        }
+
+    }
+
+    /**
+     * Bucket and fair queuing state of one AP
+     */
+    private static class Tenant {
+
+        private final String apid;
+        private final RateLimitConfig config;
+        private final Bucket bucket;
+        private final LongAdder granted  = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<>(); // requests of this AP waiting for a token, in arrival order
+        private double finish; // finish tag of the latest granted request of this AP
+
+        Tenant(final String apid, final RateLimitConfig config) {
+            this.apid   = apid;
+            this.config = config;
+            this.bucket = new Bucket(config);
+        }
+
+        /**
+         * Start-time fair queuing tag of the next request. Each request advances the AP's
+         * finish tag by 1/weight, so a heavier AP is served more often.
+         */
+        double nextStart(final double virtualTime) {
+            double start = this.peekStart(virtualTime);
+            this.finish  = start + 1 / Math.max(this.config.getWeight(), 1e-6);
+            return start;
+        }
+
+        /**
+         * Start tag the next request would get, without taking it
+         */
+        double peekStart(final double virtualTime) {
+            return Math.max(virtualTime, this.finish);
+        }
+
+    }
+
+    /**
+     * A request waiting for a token
+     */
+    private static class Waiter {
+
+        private final Tenant tenant;
+        private final long   seq;
+
+        Waiter(final Tenant tenant, final long seq) {
+            this.tenant = tenant;
+            this.seq    = seq;
+        }
+
+    }
+
+}
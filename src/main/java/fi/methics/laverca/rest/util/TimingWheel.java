@@ -0,0 +1,379 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hierarchical hashed timing wheel for very large numbers of timers.
+ * <p>Timers of pending MSSP transactions (status polls, TimeOut expiry and retry backoff) are
+ * kept in buckets of four wheels of increasing tick size. Scheduling and cancelling a timer
+ * take constant time and no lock, whereas a {@link java.util.concurrent.ScheduledThreadPoolExecutor}
+ * pays O(log n) under one lock per operation. New timers are handed to the worker thread through
+ * a lock-free queue linked through the timers themselves, and cancelled timers are only marked:
+ * the worker drops them when it reaches their bucket. The worker advances the wheels tick by tick
+ * and fires all timers of a tick as a batch. Timers of the coarser wheels move down to finer wheels
+ * as their time approaches.
+ * <p>Timers never fire early, and fire at most one tick late when the worker keeps up.
+ * Tasks run on the worker thread, so they must not block. Sending a request with
+ * {@link RestClient#sendReqAsync(fi.methics.laverca.rest.json.JsonRequest)} is fine.
+ * <p>Usage:
+ * <pre>
+ * TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 256);
+ * TimingWheel.Timeout timeout = wheel.schedule(() -&gt; poll(transId), 2, TimeUnit.SECONDS);
+ * timeout.cancel();
+ * </pre>
+ */
+public class TimingWheel {
+
+    private static final Log log = LogFactory.getLog(TimingWheel.class);
+
+    public static final long DEFAULT_TICK       = 10; // ms
+    public static final int  DEFAULT_WHEEL_SIZE = 256;
+
+    private static final int LEVELS = 4;
+
+    private static volatile TimingWheel shared;
+
+    private final long     tickNanos;
+    private final int      bits;
+    private final int      mask;
+    private final Bucket[][] wheels;
+    private final long     start = System.nanoTime();
+
+    // Multi-producer single-consumer queue of new timers: producers swap the tail, the worker follows the links from head
+    private final AtomicReference<Timeout> tail;
+    private Timeout head;
+
+    private final AtomicInteger  pending = new AtomicInteger();
+    private final LongAdder      expired = new LongAdder();
+    private final Thread         worker;
+
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    // only touched by the worker
+    private long tick;
+    private long placed;
+    private final List<Timeout> batch = new ArrayList<>();
+
+    public TimingWheel() {
+        this(DEFAULT_TICK, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Create a new timing wheel and start its worker thread
+     * @param tickDuration Resolution of the wheel
+     * @param unit         Unit of the tick duration
+     * @param wheelSize    Number of buckets per wheel. Rounded up to a power of two.
+     */
+    public TimingWheel(final long tickDuration, final TimeUnit unit, final int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        if (wheelSize < 2 || wheelSize > 1 << 15) {
+            throw new IllegalArgumentException("Wheel size must be between 2 and 32768");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.bits      = 32 - Integer.numberOfLeadingZeros(wheelSize - 1);
+        this.mask      = (1 << this.bits) - 1;
+        this.wheels    = new Bucket[LEVELS][1 << this.bits];
+        this.head      = new Timeout(this, null, 0);
+        this.tail      = new AtomicReference<>(this.head);
+        for (Bucket[] wheel : this.wheels) {
+            for (int i = 0; i < wheel.length; i++) {
+                wheel[i] = new Bucket();
+            }
+        }
+        this.worker = new Thread(this::run, "laverca-timing-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Get the wheel shared by all pollers and clients that were not given one. It is created on first use.
+     * @return shared timing wheel
+     */
+    public static TimingWheel getDefault() {
+        TimingWheel w = shared;
+        if (w == null) {
+            synchronized (TimingWheel.class) {
+                w = shared;
+                if (w == null) {
+                    w = new TimingWheel();
+                    shared = w;
+                }
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Run a task after given delay
+     * @param task  Task to run on the worker thread
+     * @param delay Delay
+     * @param unit  Unit of the delay
+     * @return handle that cancels the timer
+     * @throws RejectedExecutionException if the wheel is closed
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (this.closed) {
+            throw new RejectedExecutionException("Timing wheel closed");
+        }
+        long offset = System.nanoTime() - this.start + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(this, task, (offset + this.tickNanos - 1) / this.tickNanos);
+        this.pending.incrementAndGet();
+        this.tail.getAndSet(timeout).queued = timeout;
+        if (this.idle) {
+            LockSupport.unpark(this.worker);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return number of timers that have not fired or been cancelled
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * @return number of timers fired
+     */
+    public long getExpiredCount() {
+        return this.expired.sum();
+    }
+
+    /**
+     * @return resolution of the wheel in milliseconds
+     */
+    public long getTickDuration() {
+        return TimeUnit.NANOSECONDS.toMillis(this.tickNanos);
+    }
+
+    /**
+     * Stop the worker thread. Timers that have not fired are dropped.
+     */
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(this.worker);
+    }
+
+    private void run() {
+        while (!this.closed) {
+            long now  = System.nanoTime();
+            long due  = this.start + this.tick * this.tickNanos;
+            if (now - due < 0) {
+                if (this.pending.get() == 0 && this.tail.get() == this.head) {
+                    this.sleep();
+                } else {
+                    LockSupport.parkNanos(this, due - now);
+                }
+                continue;
+            }
+            try {
+                this.advance(this.tick);
+            } catch (RuntimeException e) {
+                log.error("Timing wheel tick failed", e);
+            }
+            this.tick++;
+        }
+    }
+
+    /**
+     * Park the worker until a timer is added. No timer is pending, so the buckets hold
+     * cancelled timers only. They are emptied, and the ticks spent asleep need not be replayed.
+     */
+    private void sleep() {
+        if (this.placed > 0) {
+            for (Bucket[] wheel : this.wheels) {
+                for (Bucket bucket : wheel) {
+                    bucket.head = null;
+                }
+            }
+            this.placed = 0;
+        }
+        this.idle = true;
+        if (this.pending.get() == 0 && this.tail.get() == this.head && !this.closed) {
+            LockSupport.park(this);
+        }
+        this.idle = false;
+        this.tick = Math.max(this.tick, (System.nanoTime() - this.start) / this.tickNanos);
+    }
+
+    /**
+     * Process one tick: move timers of the coarser wheels down, add new timers
+     * and fire the timers of this tick. Cancelled timers are dropped on the way.
+     * @param now Tick number
+     */
+    private void advance(final long now) {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = this.bits * level;
+            if ((now & ((1L << shift) - 1)) != 0) {
+                break;
+            }
+            Bucket bucket = this.wheels[level][(int) ((now >>> shift) & this.mask)];
+            this.placed -= bucket.drainTo(this.batch);
+            for (Timeout t : this.batch) {
+                if (t.state == Timeout.INIT) {
+                    this.place(t, now);
+                }
+            }
+            this.batch.clear();
+        }
+        Timeout t;
+        while ((t = this.head.queued) != null) {
+            this.head.queued = null;
+            this.head = t; // the last taken timer stays as the queue head until the next one arrives
+            if (t.state == Timeout.INIT) {
+                this.place(t, now);
+            }
+        }
+
+        this.placed -= this.wheels[0][(int) (now & this.mask)].drainTo(this.batch);
+        for (Timeout expiring : this.batch) {
+            if (expiring.state != Timeout.INIT) {
+                continue;
+            }
+            if (expiring.deadline > now) {
+                this.place(expiring, now); // only after the worker fell a full rotation behind
+            } else if (expiring.expire()) {
+                this.expired.increment();
+                try {
+                    expiring.task.run();
+                } catch (Throwable e) {
+                    log.warn("Timer task failed", e);
+                }
+            }
+        }
+        this.batch.clear();
+    }
+
+    /**
+     * Put a timer in the bucket of the finest wheel that spans its deadline
+     * @param t   Timer
+     * @param now Current tick
+     */
+    private void place(final Timeout t, final long now) {
+        this.placed++;
+        long delta = t.deadline - now;
+        if (delta < 1L << this.bits) {
+            this.wheels[0][(int) (Math.max(t.deadline, now) & this.mask)].add(t);
+            return;
+        }
+        int level = 1;
+        while (level < LEVELS - 1 && delta >= 1L << (this.bits * (level + 1))) {
+            level++;
+        }
+        this.wheels[level][(int) ((t.deadline >>> (this.bits * level)) & this.mask)].add(t);
+    }
+
+    @Override
+    public String toString() {
+        return "TimingWheel [pending=" + this.getPendingCount() + ", expired=" + this.getExpiredCount()
+             + ", tick=" + this.getTickDuration() + " ms]";
+    }
+
+    /**
+     * Handle of a scheduled timer
+     */
+    public static final class Timeout {
+
+        static final int INIT      = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED   = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable    task;
+        private final long        deadline; // tick
+
+        private volatile int     state;
+        private volatile Timeout queued; // next timer in the queue of new timers
+
+        // only touched by the worker
+        private Timeout next;
+
+        Timeout(final TimingWheel wheel, final Runnable task, final long deadline) {
+            this.wheel    = wheel;
+            this.task     = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timer
+         * @return true if the timer was cancelled, false if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED)) {
+                return false;
+            }
+            this.wheel.pending.decrementAndGet();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return this.state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return this.state == EXPIRED;
+        }
+
+        boolean expire() {
+            if (!STATE.compareAndSet(this, INIT, EXPIRED)) {
+                return false;
+            }
+            this.wheel.pending.decrementAndGet();
+            return true;
+        }
+
+    }
+
+    /**
+     * Singly linked list of the timers of one wheel slot
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+
+        void add(final Timeout t) {
+            t.next    = this.head;
+            this.head = t;
+        }
+
+        /**
+         * Move all timers of this bucket to given list
+         * @param out List to add the timers to
+         * @return number of timers moved
+         */
+        int drainTo(final List<Timeout> out) {
+            int n = 0;
+            Timeout t = this.head;
+            while (t != null) {
+                Timeout next = t.next;
+                t.next = null;
+                out.add(t);
+                t = next;
+                n++;
+            }
+            this.head = null;
+            return n;
+        }
+
+    }
+
+}
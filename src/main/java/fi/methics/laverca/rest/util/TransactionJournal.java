@@ -0,0 +1,838 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only, memory-mapped journal of pending asynchronous signature transactions.
+ * <p>{@link RestClient} writes a record when an asynchClientServer or asynchServerServer signature is
+ * acknowledged, and another when its final status is known. After a restart the journal is read back,
+ * and {@link fi.methics.laverca.rest.MssClient#resumePending()} resumes tracking the transactions that were
+ * still pending, so users are not asked to sign again.
+ * <p>Records are copied into a memory-mapped file, so an append is a few memory writes with no system call.
+ * A background thread forces the records written since its previous round to disk together (group commit),
+ * so no fsync is on the request path unless {@link JournalConfig#withSyncCommit(boolean)} is set.
+ * Each record carries a CRC, and reading stops at the first torn or missing record.
+ * <p>When the file is half full, the journal is compacted: the records of the pending transactions are
+ * written to a new file and forced while appends go on, then the records appended meanwhile are copied
+ * over and the new file atomically replaces the old one. If appends fill the file before the
+ * background thread compacts it, the file is mapped again at twice the size, which needs no fsync.
+ * Mappings that are no longer used are unmapped at once rather than left to the garbage collector.
+ * <p>Usage:
+ * <pre>
+ * TransactionJournal journal = new TransactionJournal(Paths.get("/var/lib/app/mss.journal"), new JournalConfig());
+ * MssClient client = new MssClient.Builder().withRestUrl(url)
+ *                                           .withApiKey(apid, apikey)
+ *                                           .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_CLIENT_SERVER)
+ *                                           .withJournal(journal)
+ *                                           .build();
+ * client.resumePending().forEach((apTransId, resp) -&gt; resp.thenAccept(r -&gt; handle(apTransId, r)));
+ * </pre>
+ */
+public class TransactionJournal {
+
+    private static final Log log = LogFactory.getLog(TransactionJournal.class);
+
+    private static final byte BEGIN  = 1;
+    private static final byte END    = 2;
+    private static final int  HEADER = 8; // length and CRC
+
+    private static final int  MAX_CAPACITY = 1 << 30;
+
+    private static final Consumer<MappedByteBuffer> UNMAP = unmapper();
+
+    private final JournalConfig config;
+    private final Path path;
+    private final Path tmpPath;
+
+    // Appends share the read lock. Flush bookkeeping and swapping segments take the write lock,
+    // but never while forcing. Flushes, compactions and close take turns on the flush lock.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Map<String, Entry> live = new ConcurrentHashMap<>(); // by MSSP_TransID
+    private final List<Entry> recovered;
+
+    private final AtomicLong sequence = new AtomicLong(); // records appended
+    private final Object flushMonitor = new Object();
+    private volatile long flushed;                        // records forced to disk
+    private volatile Segment segment;
+    private final Queue<Segment> retired = new ConcurrentLinkedQueue<>(); // mappings replaced by grow()
+
+    private final LongAdder appends     = new LongAdder();
+    private final LongAdder flushes     = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    /**
+     * Open a journal. Pending transactions of an existing journal are read back and
+     * are available from {@link #getRecovered()}. Transactions past their deadline are dropped.
+     * @param path   Journal file. A temporary file with a ".tmp" suffix is used next to it during compaction.
+     * @param config Journal settings
+     * @throws IOException if the journal cannot be read or created
+     */
+    public TransactionJournal(final Path path, final JournalConfig config) throws IOException {
+        this.config  = config;
+        this.path    = path;
+        this.tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(this.tmpPath);
+
+        List<Entry> pending = new ArrayList<>();
+        if (Files.exists(path)) {
+            this.recover(path);
+            long now = System.currentTimeMillis();
+            this.live.values().removeIf(e -> e.deadline > 0 && e.deadline <= now);
+            pending.addAll(this.live.values());
+            log.info("Recovered " + pending.size() + " pending transactions from " + path);
+        }
+        this.recovered = Collections.unmodifiableList(pending);
+        Segment s = this.rewrite(pending, this.capacityFor(pending));
+        this.move();
+        this.segment = s;
+
+        this.flusher = new Thread(this::flushLoop, "laverca-journal");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public JournalConfig getConfig() {
+        return this.config;
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Get the transactions that were pending when the journal was opened
+     * @return recovered transactions
+     */
+    public List<Entry> getRecovered() {
+        return this.recovered;
+    }
+
+    /**
+     * @return number of pending transactions in the journal
+     */
+    public int getPendingCount() {
+        return this.live.size();
+    }
+
+    /**
+     * @return number of records appended
+     */
+    public long getAppendCount() {
+        return this.appends.sum();
+    }
+
+    /**
+     * @return number of group commits (forces of the mapped file)
+     */
+    public long getFlushCount() {
+        return this.flushes.sum();
+    }
+
+    /**
+     * @return number of compactions
+     */
+    public long getCompactionCount() {
+        return this.compactions.sum();
+    }
+
+    /**
+     * @return size of the journal file in bytes
+     */
+    public int getCapacity() {
+        return this.segment.capacity;
+    }
+
+    /**
+     * Record an acknowledged transaction
+     * @param entry Pending transaction
+     */
+    public void begin(final Entry entry) {
+        if (entry.msspTransId == null) {
+            return;
+        }
+        this.append(entry.encode(), entry.msspTransId, entry);
+    }
+
+    /**
+     * Record that a transaction got its final status, failed or was given up
+     * @param msspTransId MSSP_TransID of the transaction
+     */
+    public void end(final String msspTransId) {
+        if (msspTransId == null || !this.live.containsKey(msspTransId)) {
+            return;
+        }
+        byte[] id = utf8(msspTransId);
+        ByteBuffer b = ByteBuffer.allocate(1 + 2 + id.length);
+        b.put(END).putShort((short) id.length).put(id);
+        this.append(b.array(), msspTransId, null);
+    }
+
+    /**
+     * Force all appended records to disk now
+     */
+    public void flush() {
+        this.flushOnce();
+    }
+
+    /**
+     * Rewrite the journal with the pending transactions only
+     * @throws IOException if the new file cannot be written
+     */
+    public void compact() throws IOException {
+        this.flushLock.lock();
+        try {
+            this.compactLocked();
+        } finally {
+            this.flushLock.unlock();
+        }
+    }
+
+    /**
+     * Flush and close the journal. Later appends are ignored, so transactions still pending
+     * stay in the journal for the next start.
+     */
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.flushLock.lock(); // not while compacting
+        try {
+            this.flushOnce();
+            this.lock.writeLock().lock();
+            try {
+                this.closed = true;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+            this.releaseRetired();
+            this.segment.unmap();
+            this.segment.closeChannel();
+        } finally {
+            this.flushLock.unlock();
+        }
+        LockSupport.unpark(this.flusher);
+        synchronized (this.flushMonitor) {
+            this.flushMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Append a record and update the pending transactions in the same step, so that compaction
+     * always sees the two agree
+     * @param payload     Record payload
+     * @param msspTransId Transaction
+     * @param begin       Entry to add, or null to remove the transaction
+     */
+    private void append(final byte[] payload, final String msspTransId, final Entry begin) {
+        final int size = HEADER + payload.length;
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        long seq = 0;
+        while (seq == 0) {
+            this.lock.readLock().lock();
+            try {
+                if (this.closed) {
+                    return;
+                }
+                Segment s = this.segment;
+                int pos = s.position.getAndAdd(size);
+                if (pos + size > s.capacity) {
+                    s.end.accumulateAndGet(pos, Math::min); // records end where the first one did not fit
+                } else {
+                    if (begin != null) {
+                        this.live.put(msspTransId, begin);
+                    } else {
+                        this.live.remove(msspTransId);
+                    }
+                    ByteBuffer b = s.buffer.duplicate();
+                    b.position(pos + 4);
+                    b.putInt((int) crc.getValue());
+                    b.put(payload);
+                    b.putInt(pos, payload.length); // length last: a record without it ends the journal
+                    seq = this.sequence.incrementAndGet();
+                }
+            } finally {
+                this.lock.readLock().unlock();
+            }
+            if (seq == 0) {
+                this.grow(size);
+            }
+        }
+        this.appends.increment();
+        if (this.config.isSyncCommit()) {
+            this.awaitFlush(seq);
+        }
+    }
+
+    /**
+     * Map a full journal file again at a larger size, unless another append already did.
+     * Runs on the appending thread, so it neither forces nor unmaps anything: the flusher
+     * forces and unmaps the replaced mapping.
+     * @param reserve Size of the record that did not fit
+     */
+    private void grow(final int reserve) {
+        this.lock.writeLock().lock();
+        try {
+            Segment s = this.segment;
+            if (this.closed || s.position.get() <= s.capacity) {
+                return; // grown or compacted meanwhile
+            }
+            int  end      = Math.min(s.end.get(), s.capacity);
+            long capacity = s.capacity;
+            do {
+                capacity *= 2;
+            } while (capacity < end + reserve);
+            if (capacity > MAX_CAPACITY) {
+                throw new MssRestException(MssRestException.INTERNAL_ERROR, "Journal " + this.path + " is full");
+            }
+            Segment grown = new Segment(s.channel, s.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), (int) capacity);
+            grown.position.set(end);
+            this.segment = grown;
+            this.retired.add(s);
+            LockSupport.unpark(this.flusher);
+            if (log.isDebugEnabled()) {
+                log.debug("Grew journal " + this.path + " to " + capacity + " bytes");
+            }
+        } catch (IOException e) {
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void awaitFlush(final long seq) {
+        LockSupport.unpark(this.flusher);
+        synchronized (this.flushMonitor) {
+            while (this.flushed < seq && !this.closed) {
+                try {
+                    this.flushMonitor.wait(this.config.getFlushInterval() + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Background loop: group commit every flush interval, and compact when the file is half full
+     */
+    private void flushLoop() {
+        final long interval = TimeUnit.MILLISECONDS.toNanos(Math.max(this.config.getFlushInterval(), 1));
+        while (!this.closed) {
+            LockSupport.parkNanos(this, interval);
+            try {
+                this.flushOnce();
+                this.releaseRetired();
+                Segment s = this.segment;
+                if (!this.closed && s.position.get() > s.capacity / 2) {
+                    this.compact();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Journal flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * Force all complete records to disk and release the appends waiting for them
+     */
+    private void flushOnce() {
+        this.flushLock.lock(); // a compaction's new file is not durable before it replaces the old one
+        try {
+            long target;
+            Segment s;
+            this.lock.writeLock().lock(); // no append is half written
+            try {
+                if (this.closed) {
+                    return;
+                }
+                target = this.sequence.get();
+                s      = this.segment;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+            if (target <= this.flushed) {
+                return;
+            }
+            for (Segment r : this.retired) {
+                r.force(); // records appended before the journal grew
+            }
+            s.force();
+            this.flushes.increment();
+            this.setFlushed(target);
+        } finally {
+            this.flushLock.unlock();
+        }
+    }
+
+    private void setFlushed(final long target) {
+        synchronized (this.flushMonitor) {
+            if (target > this.flushed) {
+                this.flushed = target;
+            }
+            this.flushMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Force and unmap the mappings replaced by {@link #grow(int)}
+     */
+    private void releaseRetired() {
+        Segment r;
+        while ((r = this.retired.poll()) != null) {
+            r.force();
+            r.unmap();
+        }
+    }
+
+    /**
+     * Compact the journal without making appends wait for a force. Call with the flush lock held.
+     * <ol>
+     * <li>Under the write lock, take the pending transactions and the end of the records that hold them</li>
+     * <li>Write those transactions to a new file and force it, while appends go on to the old file</li>
+     * <li>Under the write lock, copy the records appended meanwhile to the new file and switch to it</li>
+     * <li>Force the new file again, replace the old one with it and sync the directory</li>
+     * </ol>
+     * Until the new file replaces the old one, the old file holds every record reported as flushed.
+     */
+    private void compactLocked() throws IOException {
+        final List<Entry> entries;
+        final int mark;
+        this.lock.writeLock().lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            entries = new ArrayList<>(this.live.values());
+            mark    = this.segment.end();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        final int capacity = this.capacityFor(entries);
+        final Segment next = this.rewrite(entries, capacity);
+        final List<Segment> replaced = new ArrayList<>();
+        final long target;
+        this.lock.writeLock().lock();
+        try {
+            Segment old = this.segment;
+            int end  = old.end();
+            int tail = end - mark;
+            if (this.closed || next.position.get() + tail > next.capacity) {
+                target = -1;
+            } else {
+                ByteBuffer from = old.buffer.duplicate();
+                from.limit(end).position(mark);
+                ByteBuffer to = next.buffer.duplicate();
+                to.position(next.position.get());
+                to.put(from);
+                next.position.addAndGet(tail);
+                this.segment = next;
+                Segment r;
+                while ((r = this.retired.poll()) != null) {
+                    replaced.add(r);
+                }
+                replaced.add(old);
+                target = this.sequence.get();
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        if (target < 0) {
+            // Closed meanwhile, or too many appends to fit: the old file stays, and grows if needed
+            next.unmap();
+            next.closeChannel();
+            Files.deleteIfExists(this.tmpPath);
+            return;
+        }
+
+        // Unmap the old file before replacing it: a mapped file cannot be replaced on Windows,
+        // and the mapping would otherwise stay until the garbage collector finds the buffer.
+        // Its records are in the new file, so it is not forced.
+        for (Segment r : replaced) {
+            r.unmap();
+        }
+        replaced.get(replaced.size() - 1).closeChannel();
+        next.force();
+        this.move();
+        this.compactions.increment();
+        this.setFlushed(target);
+        if (log.isDebugEnabled()) {
+            log.debug("Compacted journal " + this.path + ": " + entries.size() + " pending transactions, " + capacity + " bytes");
+        }
+    }
+
+    /**
+     * Get the size of the next journal file: the configured capacity, doubled until the pending
+     * transactions fill at most a quarter of it. A grown journal shrinks back when compacted.
+     * @param entries Pending transactions
+     * @return new size
+     */
+    private int capacityFor(final Collection<Entry> entries) {
+        int capacity = Math.max(this.config.getCapacity(), 4096);
+        int needed   = 0;
+        for (Entry e : entries) {
+            needed += HEADER + e.encode().length;
+        }
+        while (needed > capacity / 4 && capacity < MAX_CAPACITY) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+     * Write pending transactions to a new temporary file and force it
+     * @param entries  Pending transactions
+     * @param capacity Size of the new file
+     * @return mapped new file
+     */
+    private Segment rewrite(final Collection<Entry> entries, final int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(this.tmpPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        Segment s = new Segment(channel, buffer, capacity);
+        int pos = 0;
+        CRC32 crc = new CRC32();
+        for (Entry e : entries) {
+            byte[] payload = e.encode();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            buffer.putInt(pos, payload.length);
+            buffer.putInt(pos + 4, (int) crc.getValue());
+            ByteBuffer b = buffer.duplicate();
+            b.position(pos + HEADER);
+            b.put(payload);
+            pos += HEADER + payload.length;
+        }
+        s.position.set(pos);
+        buffer.force();
+        return s;
+    }
+
+    /**
+     * Replace the journal with the temporary file, and sync the directory so that the rename is durable
+     */
+    private void move() throws IOException {
+        Files.move(this.tmpPath, this.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Path dir = this.path.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Cannot sync directory " + dir, e); // e.g. directories cannot be opened on Windows
+        }
+    }
+
+    /**
+     * Read an existing journal into the pending transactions. Reading stops at the first missing or torn record.
+     * @param file Journal file
+     */
+    private void recover(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER) {
+                return;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                this.recover(file, buffer, (int) Math.min(size, Integer.MAX_VALUE));
+            } finally {
+                UNMAP.accept(buffer);
+            }
+        }
+    }
+
+    private void recover(final Path file, final ByteBuffer buffer, final int size) {
+        CRC32 crc = new CRC32();
+        int pos = 0;
+        int records = 0;
+        while (pos + HEADER <= size) {
+            int len = buffer.getInt(pos);
+            if (len <= 0 || pos + HEADER + len > size) {
+                break;
+            }
+            byte[] payload = new byte[len];
+            ByteBuffer b = buffer.duplicate();
+            b.position(pos + HEADER);
+            b.get(payload);
+            crc.reset();
+            crc.update(payload, 0, len);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                log.warn("Torn record at " + pos + " of " + file + ", ignoring the rest");
+                break;
+            }
+            try {
+                this.replay(payload);
+            } catch (RuntimeException e) {
+                log.warn("Bad record at " + pos + " of " + file + ", ignoring the rest", e);
+                break;
+            }
+            pos += HEADER + len;
+            records++;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Read " + records + " records from " + file);
+        }
+    }
+
+    /**
+     * Find a way to unmap a buffer without waiting for the garbage collector:
+     * Unsafe.invokeCleaner on Java 9 and later, the Cleaner of the buffer on Java 8
+     * @return unmapper, or a no-op if neither is available
+     */
+    private static Consumer<MappedByteBuffer> unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field    theUnsafe   = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return b -> {
+                try {
+                    invokeCleaner.invoke(unsafe, b);
+                } catch (ReflectiveOperationException e) {
+                    log.debug("Unmapping journal failed", e);
+                }
+            };
+        } catch (NoSuchMethodException e) {
+            // Java 8
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Cannot unmap journal buffers", e);
+            return b -> { };
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean   = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return b -> {
+                try {
+                    Object c = cleaner.invoke(b);
+                    if (c != null) {
+                        clean.invoke(c);
+                    }
+                } catch (ReflectiveOperationException e) {
+                    log.debug("Unmapping journal failed", e);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Cannot unmap journal buffers", e);
+            return b -> { };
+        }
+    }
+
+    private void replay(final byte[] payload) {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        byte type = b.get();
+        if (type == BEGIN) {
+            Entry e = Entry.decode(b);
+            this.live.put(e.msspTransId, e);
+        } else if (type == END) {
+            this.live.remove(readString(b));
+        } else {
+            throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    private static byte[] utf8(final String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static String readString(final ByteBuffer b) {
+        int len = b.getShort();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionJournal [" + this.path + " pending=" + this.getPendingCount() + ", appends=" + this.getAppendCount()
+             + ", flushes=" + this.getFlushCount() + ", compactions=" + this.getCompactionCount() + "]";
+    }
+
+    /**
+     * Mapped journal file
+     */
+    private static final class Segment {
+
+        final FileChannel      channel;
+        final MappedByteBuffer buffer;
+        final int              capacity;
+        final AtomicInteger    position = new AtomicInteger();
+        final AtomicInteger    end      = new AtomicInteger(Integer.MAX_VALUE);
+
+        private boolean unmapped;
+
+        Segment(final FileChannel channel, final MappedByteBuffer buffer, final int capacity) {
+            this.channel  = channel;
+            this.buffer   = buffer;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Force the mapping to disk, unless it is unmapped already
+         */
+        synchronized void force() {
+            if (!this.unmapped) {
+                this.buffer.force();
+            }
+        }
+
+        /**
+         * Unmap the file. Waits for a force in progress, and later forces do nothing.
+         */
+        synchronized void unmap() {
+            if (!this.unmapped) {
+                this.unmapped = true;
+                UNMAP.accept(this.buffer);
+            }
+        }
+
+        /**
+         * @return end of the complete records. Call with the write lock held.
+         */
+        int end() {
+            return Math.min(Math.min(this.position.get(), this.end.get()), this.capacity);
+        }
+
+        void closeChannel() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                log.debug("Closing journal file failed", e);
+            }
+        }
+
+    }
+
+    /**
+     * One pending transaction
+     */
+    public static final class Entry {
+
+        private final String msspTransId;
+        private final String apTransId;
+        private final String apid;
+        private final String msisdn;
+        private final String signatureProfile;
+        private final long   deadline;
+
+        /**
+         * @param msspTransId      MSSP_TransID
+         * @param apTransId        AP_TransID (may be null)
+         * @param apid             AP_ID (may be null)
+         * @param msisdn           MSISDN (may be null)
+         * @param signatureProfile SignatureProfile (may be null)
+         * @param deadline         Time after which the transaction is given up, in epoch milliseconds, or 0 for none
+         */
+        public Entry(final String msspTransId,
+                     final String apTransId,
+                     final String apid,
+                     final String msisdn,
+                     final String signatureProfile,
+                     final long   deadline)
+        {
+            this.msspTransId      = msspTransId;
+            this.apTransId        = apTransId;
+            this.apid             = apid;
+            this.msisdn           = msisdn;
+            this.signatureProfile = signatureProfile;
+            this.deadline         = deadline;
+        }
+
+        public String getMsspTransId() {
+            return this.msspTransId;
+        }
+
+        public String getApTransId() {
+            return this.apTransId;
+        }
+
+        public String getApId() {
+            return this.apid;
+        }
+
+        public String getMsisdn() {
+            return this.msisdn;
+        }
+
+        public String getSignatureProfile() {
+            return this.signatureProfile;
+        }
+
+        /**
+         * @return deadline in epoch milliseconds, or 0 for none
+         */
+        public long getDeadline() {
+            return this.deadline;
+        }
+
+        byte[] encode() {
+            byte[][] fields = {utf8(this.msspTransId), utf8(this.apTransId), utf8(this.apid), utf8(this.msisdn), utf8(this.signatureProfile)};
+            int size = 1 + 8;
+            for (byte[] f : fields) {
+                size += 2 + (f != null ? f.length : 0);
+            }
+            ByteBuffer b = ByteBuffer.allocate(size);
+            b.put(BEGIN).putLong(this.deadline);
+            for (byte[] f : fields) {
+                if (f == null) {
+                    b.putShort((short) -1);
+                } else {
+                    b.putShort((short) f.length).put(f);
+                }
+            }
+            return b.array();
+        }
+
+        static Entry decode(final ByteBuffer b) {
+            long deadline = b.getLong();
+            return new Entry(readString(b), readString(b), readString(b), readString(b), readString(b), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [MSSP_TransID=" + this.msspTransId + ", AP_TransID=" + this.apTransId + ", MSISDN=" + this.msisdn + "]";
+        }
+
+    }
+
+}
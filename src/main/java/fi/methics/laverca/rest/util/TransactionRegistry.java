@@ -0,0 +1,487 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.Cancellable;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+import fi.methics.laverca.rest.json.JsonResponse;
+
+/**
+ * Registry of the MSS_SignatureReqs in flight of one or more {@link RestClient}s.
+ * <p>A mobile user can answer only one signature at a time, so the registry
+ * <ul>
+ * <li>coalesces identical concurrent requests (same AP, MSISDN, SignatureProfile, DTBS and DTBD)
+ *     into one MSSP call whose response all callers get
+ * <li>queues differing requests for the same MSISDN, so that they go to the MSSP one after another
+ *     instead of colliding. A queued request waits at most until its {@link Deadline}.
+ * <li>finds a pending transaction by its AP_TransID or MSSP_TransID in O(1)
+ * </ul>
+ * The registry is built on {@link ConcurrentHashMap} and futures, and takes no locks of its own.
+ * <p>Usage:
+ * <pre>
+ * TransactionRegistry registry = new TransactionRegistry();
+ * MssClient client = new MssClient.Builder().withRestUrl(url)
+ *                                           .withApiKey(apid, apikey)
+ *                                           .withTransactionRegistry(registry)
+ *                                           .build();
+ * </pre>
+ */
+public class TransactionRegistry {
+
+    private static final Log log = LogFactory.getLog(TransactionRegistry.class);
+
+    private static final CompletableFuture<Void> RELEASED = CompletableFuture.completedFuture(null);
+
+    private final ConcurrentHashMap<String, Transaction> byMsisdn    = new ConcurrentHashMap<>(); // last queued per user
+    private final ConcurrentHashMap<String, Transaction> bySignature = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Transaction> byTransId   = new ConcurrentHashMap<>(); // AP_TransID and MSSP_TransID
+
+    private final AtomicInteger pending   = new AtomicInteger();
+    private final LongAdder     coalesced = new LongAdder();
+    private final LongAdder     queued    = new LongAdder();
+
+    private volatile boolean coalescing   = true;
+    private volatile boolean perUserQueue = true;
+
+    /**
+     * Enable or disable coalescing of identical requests. Enabled by default.
+     * @param coalescing true to coalesce
+     * @return this registry
+     */
+    public TransactionRegistry withCoalescing(final boolean coalescing) {
+        this.coalescing = coalescing;
+        return this;
+    }
+
+    /**
+     * Enable or disable queueing of requests per MSISDN. Enabled by default.
+     * @param perUserQueue true to send one request per MSISDN at a time
+     * @return this registry
+     */
+    public TransactionRegistry withPerUserQueue(final boolean perUserQueue) {
+        this.perUserQueue = perUserQueue;
+        return this;
+    }
+
+    public boolean isCoalescing() {
+        return this.coalescing;
+    }
+
+    public boolean isPerUserQueue() {
+        return this.perUserQueue;
+    }
+
+    /**
+     * Find a pending transaction
+     * @param transId AP_TransID or MSSP_TransID
+     * @return transaction, or null if no such transaction is pending
+     */
+    public Transaction find(final String transId) {
+        return transId != null ? this.byTransId.get(transId) : null;
+    }
+
+    /**
+     * Get the latest transaction of a user. Earlier transactions of the user may still be queued before it.
+     * @param msisdn MSISDN
+     * @return transaction, or null if the user has no pending transaction
+     */
+    public Transaction findLatest(final String msisdn) {
+        return msisdn != null ? this.byMsisdn.get(msisdn) : null;
+    }
+
+    /**
+     * @return number of transactions sent or queued
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * @return number of requests that were answered with the response of an identical request
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * @return number of requests that had to wait for an earlier request of the same user
+     */
+    public long getQueuedCount() {
+        return this.queued.sum();
+    }
+
+    /**
+     * Check if a request is tracked by this registry
+     * @param req JSON request
+     * @return true for MSS_SignatureReqs with an MSISDN
+     */
+    boolean tracks(final JsonRequest req) {
+        return req.getRequestType() == RequestType.MSS_SignatureReq && req.getMsisdn() != null;
+    }
+
+    /**
+     * Send a request through the registry and block until it has a response
+     * @param req      JSON request
+     * @param deadline Deadline of the request, or null
+     * @param sender   Sends the request once it is the user's turn
+     * @return JSON response
+     * @throws MssRestException if the request fails, or its deadline passes while it is queued
+     */
+    JsonResponse send(final JsonRequest req, final Deadline deadline, final Sender sender) throws MssRestException {
+        while (true) {
+            final Transaction tx     = new Transaction(req);
+            final Transaction leader = this.coalesce(tx);
+            if (leader != null) {
+                try {
+                    return await(leader.result, deadline);
+                } catch (MssRestException e) {
+                    if (isAbandoned(e, deadline)) {
+                        continue; // the caller of the leader gave up, but this caller still wants the response
+                    }
+                    throw e;
+                }
+            }
+            this.enqueue(tx);
+            try {
+                await(tx.turn, deadline);
+                if (deadline != null) {
+                    deadline.check();
+                }
+                JsonResponse resp = sender.send();
+                this.complete(tx, resp, null);
+                return resp;
+            } catch (Throwable e) {
+                // Errors too: a transaction left pending would block the user's queue for good
+                this.complete(tx, null, e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Send a request through the registry without blocking
+     * @param req      JSON request
+     * @param deadline Deadline of the request, or null
+     * @param wheel    Timing wheel of the deadline timers of queued requests
+     * @param sender   Sends the request once it is the user's turn
+     * @return Future that completes with the JSON response, or with a {@link MssRestException}
+     */
+    CompletableFuture<JsonResponse> sendAsync(final JsonRequest req,
+                                              final Deadline deadline,
+                                              final TimingWheel wheel,
+                                              final Supplier<CompletableFuture<JsonResponse>> sender)
+    {
+        final Transaction tx     = new Transaction(req);
+        final Transaction leader = this.coalesce(tx);
+        if (leader != null) {
+            return leader.result.handle((resp, t) -> {
+                if (t == null) {
+                    return CompletableFuture.completedFuture(resp);
+                }
+                Throwable e = unwrap(t);
+                if (e instanceof MssRestException && isAbandoned((MssRestException) e, deadline)) {
+                    return this.sendAsync(req, deadline, wheel, sender);
+                }
+                CompletableFuture<JsonResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }).thenCompose(f -> f);
+        }
+        this.enqueue(tx);
+        if (deadline != null && !tx.turn.isDone()) {
+            this.expire(tx, deadline, wheel);
+        }
+        tx.turn.thenCompose(v -> {
+            if (tx.isDone() || (deadline != null && deadline.isDone())) {
+                CompletableFuture<JsonResponse> dropped = new CompletableFuture<>();
+                dropped.completeExceptionally(deadline.toException());
+                return dropped;
+            }
+            return sender.get();
+        }).whenComplete((resp, t) -> {
+            this.complete(tx, resp, unwrap(t));
+        });
+        return tx.result.thenApply(resp -> resp);
+    }
+
+    /**
+     * Fail a queued transaction as soon as its deadline passes or it is cancelled,
+     * instead of when its turn comes. The timer is stopped once the turn comes.
+     * @param tx       Queued transaction
+     * @param deadline Deadline of the transaction
+     * @param wheel    Timing wheel of the deadline timer
+     */
+    private void expire(final Transaction tx, final Deadline deadline, final TimingWheel wheel) {
+        final Cancellable drop = () -> {
+            this.complete(tx, null, deadline.toException());
+            return true;
+        };
+        deadline.attach(drop);
+        final TimingWheel.Timeout timer;
+        try {
+            timer = wheel.schedule(drop::cancel, deadline.remaining(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Without a timer, the deadline is checked when the turn comes
+            tx.turn.whenComplete((v, t) -> deadline.detach(drop));
+            return;
+        }
+        tx.turn.whenComplete((v, t) -> {
+            timer.cancel();
+            deadline.detach(drop);
+        });
+    }
+
+    /**
+     * Index the MSSP_TransID of a pending transaction
+     * @param tx           Transaction
+     * @param msspTransId  MSSP_TransID from the MSSP response
+     */
+    void bind(final Transaction tx, final String msspTransId) {
+        if (msspTransId != null && !tx.isDone()) {
+            tx.msspTransId = msspTransId;
+            this.byTransId.put(msspTransId, tx);
+        }
+    }
+
+    /**
+     * Index the MSSP_TransID of a pending transaction found by its AP_TransID
+     * @param apTransId    AP_TransID of the request
+     * @param msspTransId  MSSP_TransID from the MSSP response
+     */
+    void bind(final String apTransId, final String msspTransId) {
+        final Transaction tx = apTransId != null ? this.byTransId.get(apTransId) : null;
+        if (tx != null) {
+            this.bind(tx, msspTransId);
+        }
+    }
+
+    /**
+     * Register a transaction as the leader of its signature key
+     * @param tx New transaction
+     * @return pending identical transaction to wait for, or null if tx is the leader
+     */
+    private Transaction coalesce(final Transaction tx) {
+        if (!this.coalescing || tx.signatureKey == null) {
+            return null;
+        }
+        Transaction leader = this.bySignature.putIfAbsent(tx.signatureKey, tx);
+        if (leader != null) {
+            this.coalesced.increment();
+            if (log.isDebugEnabled()) {
+                log.debug("Coalescing request of " + tx.msisdn + " with " + leader.apTransId);
+            }
+        }
+        return leader;
+    }
+
+    /**
+     * Put a transaction at the end of the queue of its user and index it
+     * @param tx New transaction
+     */
+    private void enqueue(final Transaction tx) {
+        this.pending.incrementAndGet();
+        if (tx.apTransId != null) {
+            this.byTransId.put(tx.apTransId, tx);
+        }
+        Transaction prev = this.byMsisdn.put(tx.msisdn, tx);
+        if (this.perUserQueue && prev != null && !prev.released.isDone()) {
+            this.queued.increment();
+            log.debug("Queueing request of " + tx.msisdn + " after " + prev.apTransId);
+            tx.turn = prev.released;
+        } else {
+            tx.turn = RELEASED;
+        }
+        // The next request of the user may go when both this request and all requests before it are done
+        tx.turn.runAfterBoth(tx.result.handle((r, e) -> null), () -> tx.released.complete(null));
+    }
+
+    /**
+     * Complete a transaction and remove it from the registry. Only the first call has an effect.
+     * @param tx   Transaction
+     * @param resp Response, or null if the request failed
+     * @param e    Failure, or null
+     */
+    private void complete(final Transaction tx, final JsonResponse resp, final Throwable e) {
+        if (!tx.completed.compareAndSet(false, true)) {
+            return;
+        }
+        if (resp != null && resp.MSS_SignatureResp != null) {
+            this.bind(tx, resp.MSS_SignatureResp.MSSP_TransID);
+        }
+        if (tx.signatureKey != null) {
+            this.bySignature.remove(tx.signatureKey, tx);
+        }
+        if (tx.turn.isDone()) {
+            this.byMsisdn.remove(tx.msisdn, tx);
+        } else {
+            // Dropped from the queue: requests of the user made from now on must still wait for the ones before it
+            tx.released.thenRun(() -> this.byMsisdn.remove(tx.msisdn, tx));
+        }
+        if (tx.apTransId != null) {
+            this.byTransId.remove(tx.apTransId, tx);
+        }
+        if (tx.msspTransId != null) {
+            this.byTransId.remove(tx.msspTransId, tx);
+        }
+        this.pending.decrementAndGet();
+        if (e == null) {
+            tx.result.complete(resp);
+        } else {
+            tx.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Check if a coalesced request failed only because the caller of the leader gave up
+     * @param e        Failure of the leader
+     * @param deadline Deadline of the waiting caller, or null
+     * @return true if the waiting caller should send the request itself
+     */
+    private static boolean isAbandoned(final MssRestException e, final Deadline deadline) {
+        boolean gaveUp = MssRestException.CANCELLED.equals(e.getErrorCode()) || MssRestException.DEADLINE_EXCEEDED.equals(e.getErrorCode());
+        return gaveUp && (deadline == null || !deadline.isDone());
+    }
+
+    private static Throwable unwrap(final Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     * Wait for a future within a deadline
+     * @param future   Future to wait for
+     * @param deadline Deadline, or null to wait without a limit
+     * @return result of the future
+     * @throws MssRestException if the future fails or the deadline ends the wait
+     */
+    private static <T> T await(final CompletableFuture<T> future, final Deadline deadline) throws MssRestException {
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            return future.join();
+        }
+        // Wait on a copy, so that cancelling the wait does not cancel the shared future
+        final CompletableFuture<T> wait  = future.thenApply(r -> r);
+        final Cancellable          abort = () -> wait.cancel(false);
+        try {
+            if (deadline == null) {
+                return wait.get();
+            }
+            deadline.attach(abort);
+            return wait.get(deadline.remaining(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | CancellationException e) {
+            throw deadline.toException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MssRestException) {
+                throw (MssRestException) e.getCause();
+            }
+            throw new MssRestException(MssRestException.INTERNAL_ERROR, e.getCause().getMessage());
+        } finally {
+            if (deadline != null) {
+                deadline.detach(abort);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionRegistry [pending=" + this.getPendingCount()
+             + ", coalesced=" + this.getCoalescedCount()
+             + ", queued=" + this.getQueuedCount() + "]";
+    }
+
+    /**
+     * Sends a request once it is the user's turn
+     */
+    interface Sender {
+        JsonResponse send() throws MssRestException;
+    }
+
+    /**
+     * One MSS_SignatureReq in flight or in the queue of its user
+     */
+    public static class Transaction {
+
+        private final String msisdn;
+        private final String apTransId;
+        private final String signatureKey;
+        private final long   created = System.currentTimeMillis();
+        private final CompletableFuture<JsonResponse> result = new CompletableFuture<>();
+
+        private final CompletableFuture<Void> released = new CompletableFuture<>();
+        private final AtomicBoolean           completed = new AtomicBoolean();
+
+        private volatile String msspTransId;
+
+        // set by enqueue and read by the sending thread only
+        private CompletableFuture<Void> turn;
+
+        Transaction(final JsonRequest req) {
+            this.msisdn       = req.getMsisdn();
+            this.apTransId    = req.getApTransId();
+            this.signatureKey = req.getSignatureKey();
+        }
+
+        public String getMsisdn() {
+            return this.msisdn;
+        }
+
+        public String getApTransId() {
+            return this.apTransId;
+        }
+
+        /**
+         * @return MSSP_TransID, or null if the MSSP has not answered yet
+         */
+        public String getMsspTransId() {
+            return this.msspTransId;
+        }
+
+        /**
+         * @return creation time (epoch millis)
+         */
+        public long getCreated() {
+            return this.created;
+        }
+
+        /**
+         * @return true if the transaction has a response or has failed
+         */
+        public boolean isDone() {
+            return this.result.isDone();
+        }
+
+        /**
+         * Get the response of this transaction
+         * @return Future that completes with the JSON response, or with a {@link MssRestException}
+         */
+        public CompletableFuture<JsonResponse> getResponse() {
+            return this.result.thenApply(resp -> resp);
+        }
+
+        @Override
+        public String toString() {
+            return "Transaction [MSISDN=" + this.msisdn + ", AP_TransID=" + this.apTransId + ", MSSP_TransID=" + this.msspTransId + "]";
+        }
+
+    }
+
+}
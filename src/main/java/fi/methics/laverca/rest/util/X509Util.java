@@ -3,14 +3,9 @@
 //
 package fi.methics.laverca.rest.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
@@ -56,22 +51,13 @@ public class X509Util {
     }
     
     /**
-     * Convert a DER certificate to X509Certificate
+     * Convert a DER certificate to X509Certificate.
+     * Equal certificates share one instance from {@link CertificateStore#getDefault()}.
      * @param der Certificate to convert
      * @return Converted certificate as X509Certificate. Returns null if the conversion failed or input is null. 
      */
     public static X509Certificate DERtoX509Certificate(final byte[] der) {
-        if (der == null) {
-            return null;
-        }
-        
-        try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(der);
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            return (X509Certificate)cf.generateCertificate(bis);
-        } catch (CertificateException e) {
-            return null;
-        }
+        return CertificateStore.getDefault().intern(der);
     }
     
     /**
@@ -104,16 +90,14 @@ public class X509Util {
         return certs;
     }
     
+    /**
+     * Convert a base64 encoded DER certificate to X509Certificate.
+     * Equal certificates share one instance from {@link CertificateStore#getDefault()}.
+     * @param b64Cert Certificate to convert
+     * @return Converted certificate as X509Certificate. Returns null if the conversion failed or input is null.
+     */
     public static X509Certificate parseCertificate(String b64Cert) {
-        CertificateFactory certFactory = null;
-        try {
-            certFactory = CertificateFactory.getInstance("X.509");
-            InputStream in = new ByteArrayInputStream(Base64.getDecoder().decode(b64Cert));
-            X509Certificate x509cert = (X509Certificate) certFactory.generateCertificate(in);
-            return x509cert;
-        } catch (Exception e) {
-            return null;
-        }
+        return CertificateStore.getDefault().intern(b64Cert);
     }
     
 }
@@ -0,0 +1,240 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Local stand-in for a MSSP REST endpoint used by tests and benchmarks.
+ * <p>Answers every POST with a fixed (or computed) JSON body after an optional delay.
+ * Other methods (e.g. health probes) get an empty response and are not counted as requests.
+ */
+public class StubMssp implements AutoCloseable {
+
+    public static final String PROFILE_RESP = "{\"MSS_ProfileResp\":{\"Status\":{\"StatusCode\":{\"Value\":\"100\"},"
+                                            + "\"StatusDetail\":{\"ProfileQueryExtension\":{\"MobileUserCertificate\":[]}}}}}";
+
+    private final HttpServer      server;
+    private final ExecutorService executor;
+    private final AtomicInteger   requests = new AtomicInteger();
+    private final AtomicInteger   active   = new AtomicInteger();
+    private final AtomicInteger   peak     = new AtomicInteger();
+
+    private volatile long    delay;
+    private volatile boolean failing;
+    private volatile String  lastBody;
+    private volatile Headers lastHeaders;
+    private volatile Function<String, String> responder = req -> PROFILE_RESP;
+
+    public StubMssp() throws IOException {
+        this(HttpServer.create(new InetSocketAddress("localhost", 0), 0));
+    }
+
+    private StubMssp(final HttpServer server) {
+        this.server   = server;
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    /**
+     * Create a stub that serves HTTPS with a self-signed certificate
+     * @return new stub
+     * @throws Exception if the server or its key cannot be created
+     */
+    public static StubMssp https() throws Exception {
+        HttpsServer server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(createSslContext()));
+        return new StubMssp(server);
+    }
+
+    /**
+     * Set the delay before every response
+     * @param delay delay in milliseconds
+     * @return this stub
+     */
+    public StubMssp withDelay(long delay) {
+        this.delay = delay;
+        return this;
+    }
+
+    /**
+     * Set the stub to drop every connection without a response.
+     * Dropped POSTs are still counted as requests.
+     * @param failing true to fail
+     * @return this stub
+     */
+    public StubMssp withFailure(boolean failing) {
+        this.failing = failing;
+        return this;
+    }
+
+    /**
+     * Set a function that computes the response body from the request body
+     * @param responder response function
+     * @return this stub
+     */
+    public StubMssp withResponder(Function<String, String> responder) {
+        this.responder = responder;
+        return this;
+    }
+
+    /**
+     * Get the REST URL of this stub
+     * @return URL
+     */
+    public String getUrl() {
+        String scheme = this.server instanceof HttpsServer ? "https" : "http";
+        return scheme + "://localhost:" + this.server.getAddress().getPort() + "/rest/service";
+    }
+
+    /**
+     * Get the number of requests handled so far
+     * @return request count
+     */
+    public int getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * Get the number of requests being handled now
+     * @return request count
+     */
+    public int getActiveCount() {
+        return this.active.get();
+    }
+
+    /**
+     * Get the largest number of requests handled at the same time
+     * @return request count
+     */
+    public int getPeakActiveCount() {
+        return this.peak.get();
+    }
+
+    /**
+     * Get the body of the latest request
+     * @return request body
+     */
+    public String getLastBody() {
+        return this.lastBody;
+    }
+
+    /**
+     * Get the HTTP headers of the latest request
+     * @return request headers
+     */
+    public Headers getLastHeaders() {
+        return this.lastHeaders;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        boolean post = "POST".equals(exchange.getRequestMethod());
+        if (post) {
+            this.requests.incrementAndGet();
+        }
+        if (this.failing) {
+            exchange.close();
+            return;
+        }
+        if (!post) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        String req = read(exchange.getRequestBody());
+        this.lastBody    = req;
+        this.lastHeaders = exchange.getRequestHeaders();
+        this.peak.accumulateAndGet(this.active.incrementAndGet(), Math::max);
+        byte[] resp;
+        try {
+            try {
+                if (this.delay > 0) {
+                    Thread.sleep(this.delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resp = this.responder.apply(req).getBytes(StandardCharsets.UTF_8);
+        } finally {
+            this.active.decrementAndGet();
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, resp.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(resp);
+        }
+    }
+
+    /**
+     * Create a server TLS context with a fresh self-signed EC key made by the JDK keytool
+     */
+    static SSLContext createSslContext() throws Exception {
+        File   file  = File.createTempFile("stubmssp", ".p12");
+        char[] pwd   = "changeit".toCharArray();
+        String tool  = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        file.delete();
+        try {
+            Process p = new ProcessBuilder(tool, "-genkeypair", "-alias", "stub", "-keyalg", "EC", "-groupname", "secp256r1",
+                                           "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                                           "-keystore", file.getPath(), "-storepass", "changeit")
+                                  .redirectErrorStream(true)
+                                  .start();
+            read(p.getInputStream());
+            if (p.waitFor() != 0) {
+                throw new IOException("keytool failed");
+            }
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            try (InputStream is = new FileInputStream(file)) {
+                ks.load(is, pwd);
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, pwd);
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            return ctx;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String read(final InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            bos.write(buf, 0, n);
+        }
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+}
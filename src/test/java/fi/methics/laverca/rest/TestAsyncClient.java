@@ -0,0 +1,98 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.util.ConnectionPoolConfig;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestAsyncClient {
+
+    public static final String SIGNATURE_RESP = "{\"MSS_SignatureResp\":{\"MSSP_TransID\":\"T1\",\"Status\":{\"StatusCode\":{\"Value\":\"500\"}}}}";
+    public static final String FAULT_RESP     = "{\"Fault\":{\"Code\":{\"Value\":\"env:Receiver\",\"SubCode\":{\"Value\":\"_105\"}},\"Reason\":\"UNKNOWN_CLIENT\"}}";
+    
+    public static final SignatureProfile SIGPROF = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    
+    @Test
+    public void testConcurrentAuthentications() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(500).withResponder(req -> SIGNATURE_RESP)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", "apikey")
+                                                      .withConnectionPool(new ConnectionPoolConfig().withMaxTotal(500)
+                                                                                                    .withMaxPerRoute(500)
+                                                                                                    .withIoThreads(2))
+                                                      .build();
+            try {
+                // Warm up the I/O reactor and HMAC signer
+                client.async().authenticate("35847001001", "testAsync", SIGPROF).get(10, TimeUnit.SECONDS);
+                
+                long start = System.nanoTime();
+                List<CompletableFuture<MSS_SignatureResp>> results = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    results.add(client.async().authenticate("35847001001", "testAsync", SIGPROF));
+                }
+                CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(20, TimeUnit.SECONDS);
+                
+                // 200 x 500 ms would take 100 s if the requests were served one by one
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                Assertions.assertTrue(elapsed < 10000, "Requests were outstanding concurrently, took " + elapsed + " ms");
+                for (CompletableFuture<MSS_SignatureResp> f : results) {
+                    Assertions.assertTrue(f.get().isSuccessful(), "Authentication succeeded");
+                }
+                Assertions.assertEquals(201, mssp.getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testSecondaryUrl() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> SIGNATURE_RESP)) {
+            MssClient client = new MssClient.Builder().withRestUrl("http://localhost:1/rest/service")
+                                                      .withSecondaryUrl(mssp.getUrl())
+                                                      .withPassword("TestAP", "password")
+                                                      .build();
+            try {
+                MSS_SignatureResp resp = client.async().authenticate("35847001001", "testAsync", SIGPROF).get(10, TimeUnit.SECONDS);
+                Assertions.assertTrue(resp.isSuccessful(), "Authentication succeeded");
+                Assertions.assertTrue(mssp.getLastBody().startsWith("{\"MSS_SignatureReq\":"), "Request body is sent whole: " + mssp.getLastBody());
+                Assertions.assertTrue(mssp.getLastBody().endsWith("}}"), mssp.getLastBody());
+                Assertions.assertTrue(mssp.getLastBody().contains("\"MSISDN\":\"35847001001\""), mssp.getLastBody());
+            } finally {
+                client.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testFault() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> FAULT_RESP)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withPassword("TestAP", "password")
+                                                      .build();
+            try {
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> 
+                    {
+                        client.async().authenticate("35847001001", "testAsync", SIGPROF).get(10, TimeUnit.SECONDS);
+                    });
+                Assertions.assertTrue(e.getCause() instanceof MssRestException);
+                Assertions.assertEquals("105", ((MssRestException)e.getCause()).getErrorCode());
+            } finally {
+                client.close();
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,173 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+import fi.methics.laverca.rest.util.Bulkhead;
+import fi.methics.laverca.rest.util.BulkheadConfig;
+import fi.methics.laverca.rest.util.ConnectionPoolConfig;
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.RestClient;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+
+public class TestBulkhead {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile     AUTHN    = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final SignatureReqTemplate TEMPLATE = new SignatureReqTemplate("TestAP", null, SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                                                  DTBS.MIME_SHA256, DTBS.ENCODING_BASE64);
+
+    /**
+     * Stub MSSP where signatures wait for the user and profile queries are fast
+     */
+    private static StubMssp slowSignatures() throws Exception {
+        return new StubMssp().withResponder(req -> {
+            if (req.contains("MSS_SignatureReq")) {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return StubMssp.PROFILE_RESP;
+        });
+    }
+
+    @Test
+    public void testSignaturesDoNotBlockProfileQueries() throws Exception {
+        try (StubMssp mssp = slowSignatures()) {
+            BulkheadConfig signatures = BulkheadConfig.of("signature", RequestType.MSS_SignatureReq)
+                                                      .withPool(new ConnectionPoolConfig().withMaxPerRoute(4).withMaxTotal(4))
+                                                      .withMaxConcurrent(4);
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withConnectionPool(new ConnectionPoolConfig().withMaxPerRoute(4).withMaxTotal(4))
+                                                      .withBulkhead(signatures)
+                                                      .build();
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                client.getCertificate(MSISDN, AUTHN);
+                AtomicInteger rejected = new AtomicInteger();
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    futures.add(pool.submit(() -> {
+                        try {
+                            client.getRestClient().sendReq(TEMPLATE.prepare(MSISDN, new byte[32], "Sign"));
+                        } catch (MssRestException e) {
+                            Assertions.assertEquals(MssRestException.TOO_MANY_REQUESTS, e.getErrorCode());
+                            rejected.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                long deadline = System.currentTimeMillis() + 5000;
+                while (mssp.getRequestCount() < 5 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Bulkhead bulkhead = client.getBulkheads().iterator().next();
+                Assertions.assertEquals(4, bulkhead.getActiveCount());
+                Assertions.assertEquals(4, rejected.get(), "Signatures over the bulkhead are rejected at once");
+                Assertions.assertEquals(4, client.getEndpoints().get(0).getPoolStats("signature").getLeased());
+
+                long start = System.currentTimeMillis();
+                client.getCertificate(MSISDN, AUTHN);
+                long latency = System.currentTimeMillis() - start;
+                Assertions.assertTrue(latency < 500, "Profile query took " + latency + " ms");
+                Assertions.assertEquals(0, client.getEndpoints().get(0).getPoolStats(RestClient.DEFAULT_BULKHEAD).getLeased());
+
+                for (Future<?> f : futures) {
+                    f.get(10, TimeUnit.SECONDS);
+                }
+                Assertions.assertEquals(4, bulkhead.getRejectedCount());
+                Assertions.assertEquals(0, bulkhead.getActiveCount());
+            } finally {
+                pool.shutdownNow();
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testQueueBound() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(300)) {
+            BulkheadConfig metadata = BulkheadConfig.of("metadata", RequestType.MSS_ProfileReq, RequestType.MSS_StatusReq)
+                                                    .withMaxConcurrent(1)
+                                                    .withMaxQueue(1)
+                                                    .withMaxWait(5000);
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withBulkhead(metadata)
+                                                      .build();
+            ExecutorService pool = Executors.newFixedThreadPool(3);
+            try {
+                AtomicInteger rejected = new AtomicInteger();
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    futures.add(pool.submit(() -> {
+                        try {
+                            client.getCertificate(MSISDN, AUTHN);
+                        } catch (MssRestException e) {
+                            rejected.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get(10, TimeUnit.SECONDS);
+                }
+                Assertions.assertEquals(1, rejected.get(), "One in flight, one queued, one rejected");
+                Assertions.assertEquals(2, mssp.getRequestCount());
+            } finally {
+                pool.shutdownNow();
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testTypeInOneBulkheadOnly() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> {
+            new MssClient.Builder().withRestUrl("http://localhost:1/rest/service")
+                                   .withApiKey("TestAP", APIKEY)
+                                   .withBulkhead(BulkheadConfig.of("a", RequestType.MSS_ProfileReq))
+                                   .withBulkhead(BulkheadConfig.of("b", RequestType.MSS_ProfileReq))
+                                   .build();
+        });
+    }
+
+    @Test
+    public void testBulkheadNamesAreUnique() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BulkheadConfig.of(RestClient.DEFAULT_BULKHEAD, RequestType.MSS_SignatureReq));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> {
+            new MssClient.Builder().withRestUrl("http://localhost:1/rest/service")
+                                   .withApiKey("TestAP", APIKEY)
+                                   .withBulkhead(BulkheadConfig.of("a", RequestType.MSS_ProfileReq))
+                                   .withBulkhead(BulkheadConfig.of("a", RequestType.MSS_SignatureReq))
+                                   .build();
+        });
+    }
+
+    @Test
+    public void testBulkheadWithoutTypes() {
+        BulkheadConfig empty = BulkheadConfig.of("empty");
+        Assertions.assertTrue(empty.getRequestTypes().isEmpty());
+        Assertions.assertEquals(2, BulkheadConfig.of("metadata", RequestType.MSS_ProfileReq, RequestType.MSS_StatusReq).getRequestTypes().size());
+    }
+
+}
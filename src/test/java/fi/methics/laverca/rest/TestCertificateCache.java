@@ -0,0 +1,186 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.CertificateCache;
+import fi.methics.laverca.rest.util.CertificateCacheConfig;
+import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestCertificateCache {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final SignatureProfile SIGN  = SignatureProfile.of("http://alauda.mobi/nonRepudiation");
+
+    private static Map<SignatureProfile, MssCertificate> certificates() {
+        Map<SignatureProfile, MssCertificate> certs = new HashMap<>();
+        certs.put(AUTHN, new MssCertificate(Collections.emptyList()));
+        return certs;
+    }
+
+    private static <T> CompletableFuture<T> failed(final String code) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(new MssRestException(code, "Test"));
+        return result;
+    }
+
+    /**
+     * Loader that counts ProfileQueries and answers them with given function
+     */
+    private static Function<String, CompletableFuture<Map<SignatureProfile, MssCertificate>>> counting(
+        final AtomicInteger queries,
+        final Function<String, CompletableFuture<Map<SignatureProfile, MssCertificate>>> answer)
+    {
+        return msisdn -> {
+            queries.incrementAndGet();
+            return answer.apply(msisdn);
+        };
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        CompletableFuture<Map<SignatureProfile, MssCertificate>> pending = new CompletableFuture<>();
+        CertificateCache cache = new CertificateCache(new CertificateCacheConfig(), counting(queries, m -> pending));
+
+        CompletableFuture<MssCertificate> first  = cache.get(MSISDN, AUTHN);
+        CompletableFuture<MssCertificate> second = cache.get(MSISDN, AUTHN);
+        Assertions.assertFalse(first.isDone());
+        Assertions.assertEquals(1, queries.get(), "Concurrent misses share one ProfileQuery");
+        pending.complete(certificates());
+
+        Assertions.assertNotSame(MssCertificate.EMPTY, first.get());
+        Assertions.assertSame(first.get(), second.get());
+        Assertions.assertSame(first.get(), cache.get(MSISDN, AUTHN).get());
+        Assertions.assertSame(MssCertificate.EMPTY, cache.get(MSISDN, SIGN).get(), "Missing SignatureProfile");
+        Assertions.assertEquals(1, cache.get(MSISDN).get().size());
+        Assertions.assertEquals(1, queries.get());
+        Assertions.assertEquals(1, cache.getMissCount());
+        Assertions.assertEquals(4, cache.getHitCount());
+        Assertions.assertEquals(1, cache.getNegativeHitCount());
+
+        cache.invalidate(MSISDN);
+        cache.get(MSISDN).get();
+        Assertions.assertEquals(2, queries.get(), "Invalidated user is queried again");
+        Assertions.assertEquals(2, cache.getLoadCount());
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        CertificateCache cache = new CertificateCache(new CertificateCacheConfig().withTtl(500).withRefreshAfter(100),
+                                                      counting(queries, m -> CompletableFuture.completedFuture(certificates())));
+        MssCertificate first = cache.get(MSISDN, AUTHN).get();
+        for (int i = 0; i < 15; i++) {
+            Thread.sleep(60);
+            CompletableFuture<MssCertificate> cert = cache.get(MSISDN, AUTHN);
+            Assertions.assertTrue(cert.isDone(), "Hot user never waits");
+            Assertions.assertNotNull(cert.get());
+        }
+        Assertions.assertEquals(1, cache.getMissCount());
+        Assertions.assertTrue(cache.getRefreshCount() >= 3, "Refreshed in the background: " + cache);
+        Assertions.assertNotSame(first, cache.get(MSISDN, AUTHN).get(), "Refreshed certificate is returned");
+
+        Thread.sleep(600);
+        cache.get(MSISDN).get();
+        Assertions.assertEquals(2, cache.getMissCount(), "Unused result expires");
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        CertificateCache cache = new CertificateCache(new CertificateCacheConfig().withNegativeTtl(200), counting(queries, m -> {
+            if (m.equals("unknown")) {
+                return failed(MssRestException.UNKNOWN_USER);
+            }
+            if (m.equals("broken")) {
+                return failed(MssRestException.INTERNAL_ERROR);
+            }
+            return CompletableFuture.completedFuture(certificates());
+        }));
+        for (int i = 0; i < 3; i++) {
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> cache.get("unknown", AUTHN).get());
+            Assertions.assertEquals(MssRestException.UNKNOWN_USER, ((MssRestException) e.getCause()).getErrorCode());
+        }
+        Assertions.assertEquals(1, queries.get(), "Unknown user is cached");
+
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertThrows(ExecutionException.class, () -> cache.get("broken").get());
+        }
+        Assertions.assertEquals(4, queries.get(), "Other failures are not cached");
+        Assertions.assertEquals(3, cache.getLoadFailureCount());
+
+        Assertions.assertSame(MssCertificate.EMPTY, cache.get(MSISDN, SIGN).get());
+        Assertions.assertSame(MssCertificate.EMPTY, cache.get(MSISDN, SIGN).get());
+        Assertions.assertEquals(5, queries.get(), "Missing SignatureProfile is cached");
+
+        Thread.sleep(250);
+        cache.get(MSISDN, AUTHN).get();
+        Assertions.assertEquals(5, queries.get(), "Found SignatureProfile lives for the TTL");
+        cache.get(MSISDN, SIGN).get();
+        Assertions.assertEquals(6, queries.get(), "Missing SignatureProfile lives for the negative TTL");
+        Assertions.assertThrows(ExecutionException.class, () -> cache.get("unknown").get());
+        Assertions.assertEquals(7, queries.get(), "Unknown user lives for the negative TTL");
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        CertificateCache cache = new CertificateCache(new CertificateCacheConfig().withMaxSize(100),
+                                                      counting(queries, m -> CompletableFuture.completedFuture(certificates())));
+        for (int i = 0; i < 500; i++) {
+            cache.get(MSISDN).get();
+            cache.get("358470" + (10000 + i)).get();
+        }
+        Assertions.assertTrue(cache.size() <= 100, "Size is bounded: " + cache.size());
+        Assertions.assertTrue(cache.getEvictionCount() >= 400);
+        Assertions.assertEquals(501, queries.get(), "Recently used user is not evicted");
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        AtomicInteger profileQueries = new AtomicInteger();
+        StubMssp stub = new StubMssp().withResponder(req -> {
+            profileQueries.incrementAndGet();
+            return req.contains("35847000000") ? TestAsyncClient.FAULT_RESP : StubMssp.PROFILE_RESP;
+        });
+        try (StubMssp mssp = stub) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withCertificateCache(new CertificateCacheConfig())
+                                                      .build();
+            try {
+                for (int i = 0; i < 5; i++) {
+                    Assertions.assertTrue(client.listCertificates(MSISDN).isEmpty());
+                    Assertions.assertSame(MssCertificate.EMPTY, client.getCertificate(MSISDN, AUTHN));
+                    Assertions.assertSame(MssCertificate.EMPTY, client.async().getCertificate(MSISDN, AUTHN).get(5, TimeUnit.SECONDS));
+                    MssRestException e = Assertions.assertThrows(MssRestException.class, () -> client.getCertificate("35847000000", AUTHN));
+                    Assertions.assertEquals(MssRestException.UNKNOWN_USER, e.getErrorCode());
+                }
+                Assertions.assertEquals(2, profileQueries.get(), "One ProfileQuery per user");
+                Assertions.assertEquals(2, client.getCertificateCache().getMissCount());
+                Assertions.assertTrue(client.getCertificateCache().getAverageLoadTime() > 0);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.CertificateStore;
+import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.X509Util;
+
+public class TestCertificateStore {
+
+    private static final AlgorithmIdentifier SHA256_RSA = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption);
+
+    /**
+     * Create a DER certificate. The signature is random bytes: certificates are parsed, not verified.
+     * @param subject CN of the subject
+     * @param issuer  CN of the issuer
+     * @param serial  Serial number
+     * @param key     Public key
+     * @return DER encoded certificate
+     */
+    public static byte[] certificate(final String subject, final String issuer, final long serial, final PublicKey key) throws Exception {
+        V3TBSCertificateGenerator gen = new V3TBSCertificateGenerator();
+        gen.setSerialNumber(new ASN1Integer(BigInteger.valueOf(serial)));
+        gen.setIssuer(new X500Name("CN=" + issuer + ",O=Methics Oy,C=FI"));
+        gen.setSubject(new X500Name("CN=" + subject + ",O=Methics Oy,C=FI"));
+        gen.setStartDate(new Time(new Date(System.currentTimeMillis() - 86400000L)));
+        gen.setEndDate(new Time(new Date(System.currentTimeMillis() + 365 * 86400000L)));
+        gen.setSignature(SHA256_RSA);
+        gen.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(key.getEncoded()));
+        TBSCertificate tbs = gen.generateTBSCertificate();
+        byte[] signature = new byte[256];
+        new java.util.Random(serial).nextBytes(signature);
+        ASN1EncodableVector cert = new ASN1EncodableVector();
+        cert.add(tbs);
+        cert.add(SHA256_RSA);
+        cert.add(new DERBitString(signature));
+        return new DERSequence(cert).getEncoded("DER");
+    }
+
+    /**
+     * Create base64 chains of given number of users: a user certificate, a shared intermediate CA and a shared root CA
+     * @param users Number of users
+     * @return chains as in MSS_ProfileResp
+     */
+    public static List<List<String>> chains(final int users) throws Exception {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(256);
+        String root = Base64.getEncoder().encodeToString(certificate("Root CA", "Root CA", 1, rsa.generateKeyPair().getPublic()));
+        String ca   = Base64.getEncoder().encodeToString(certificate("Issuing CA", "Root CA", 2, rsa.generateKeyPair().getPublic()));
+        PublicKey userKey = ec.generateKeyPair().getPublic();
+        List<List<String>> chains = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            String user = Base64.getEncoder().encodeToString(certificate("358470" + (10000 + i), "Issuing CA", 1000 + i, userKey));
+            chains.add(Arrays.asList(user, ca, root));
+        }
+        return chains;
+    }
+
+    @Test
+    public void testIntern() throws Exception {
+        CertificateStore store = new CertificateStore();
+        List<List<String>> chains = chains(3);
+        X509Certificate root = store.intern(chains.get(0).get(2));
+        Assertions.assertNotNull(root);
+        Assertions.assertTrue(root.getSubjectX500Principal().getName().contains("CN=Root CA"));
+        Assertions.assertSame(root, store.intern(chains.get(1).get(2)), "Equal certificates share one instance");
+        Assertions.assertSame(root, store.intern(Base64.getDecoder().decode(chains.get(2).get(2))));
+        X509Certificate user0 = store.intern(chains.get(0).get(0));
+        X509Certificate user1 = store.intern(chains.get(1).get(0));
+        Assertions.assertNotSame(user0, user1);
+        Assertions.assertEquals(BigInteger.valueOf(1000), user0.getSerialNumber());
+        Assertions.assertEquals(3, store.getMissCount());
+        Assertions.assertEquals(2, store.getHitCount());
+        Assertions.assertEquals(3, store.size());
+
+        Assertions.assertNull(store.intern("not base64!"));
+        Assertions.assertNull(store.intern(new byte[] {1, 2, 3}));
+        Assertions.assertNull(store.intern((String) null));
+    }
+
+    @Test
+    public void testSharedChains() throws Exception {
+        List<List<String>> chains = chains(100);
+        List<MssCertificate> certs = new ArrayList<>();
+        for (List<String> chain : chains) {
+            certs.add(MssCertificate.fromJson(chain));
+        }
+        X509Certificate ca   = certs.get(0).getCertificateChain().get(1);
+        X509Certificate root = certs.get(0).getCertificateChain().get(2);
+        for (MssCertificate cert : certs) {
+            Assertions.assertSame(ca,   cert.getCertificateChain().get(1));
+            Assertions.assertSame(root, cert.getCertificateChain().get(2));
+        }
+        Assertions.assertSame(root, X509Util.parseCertificate(chains.get(0).get(2)));
+        Assertions.assertNotSame(certs.get(0).getCertificate(), certs.get(1).getCertificate());
+    }
+
+    @Test
+    public void testUnusedCertificatesAreDropped() throws Exception {
+        CertificateStore store = new CertificateStore();
+        List<List<String>> chains = chains(2000);
+        X509Certificate root = store.intern(chains.get(0).get(2));
+        List<X509Certificate> users = new ArrayList<>();
+        for (List<String> chain : chains) {
+            users.add(store.intern(chain.get(0)));
+        }
+        Assertions.assertEquals(2001, store.size());
+        users = null;
+        // The JDK CertificateFactory may keep some recently parsed certificates softly reachable
+        for (int i = 0; i < 50 && store.size() > 1000; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        Assertions.assertTrue(store.size() < 1000, "Certificates no longer in use are dropped");
+        Assertions.assertSame(root, store.intern(chains.get(0).get(2)));
+    }
+
+}
@@ -0,0 +1,141 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.CircuitBreaker;
+import fi.methics.laverca.rest.util.CircuitBreakerConfig;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestCircuitBreaker {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", new CircuitBreakerConfig().withFailureThreshold(3).withLatencySlo(100));
+        Assertions.assertFalse(breaker.recordFailure());
+        Assertions.assertFalse(breaker.recordFailure());
+        Assertions.assertFalse(breaker.recordSuccess(10, true), "Success resets the failure count");
+        Assertions.assertFalse(breaker.recordFailure());
+        Assertions.assertFalse(breaker.recordSuccess(500, false), "SLO not checked");
+        Assertions.assertFalse(breaker.recordSuccess(500, true));
+        Assertions.assertFalse(breaker.recordFailure());
+        Assertions.assertTrue(breaker.recordSuccess(500, true), "Third slow call opens the breaker");
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assertions.assertFalse(breaker.isCallPermitted());
+        Assertions.assertEquals(1, breaker.getOpenCount());
+        Assertions.assertEquals(2, breaker.getSlowCallCount());
+    }
+
+    @Test
+    public void testDisabledNeverOpens() {
+        CircuitBreaker breaker = new CircuitBreaker("test", CircuitBreakerConfig.disabled());
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertFalse(breaker.recordFailure());
+        }
+        Assertions.assertTrue(breaker.isCallPermitted());
+    }
+
+    @Test
+    public void testShortCircuitCountsSkippedEndpointsOnly() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = new MssClient.Builder().withRestUrl(primary.getUrl())
+                                                      .withSecondaryUrl(secondary.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withCircuitBreaker(new CircuitBreakerConfig().withFailureThreshold(3))
+                                                      .build();
+            try {
+                CircuitBreaker standby = client.getCircuitBreakers().get(1);
+                for (int i = 0; i < 3; i++) {
+                    standby.recordFailure();
+                }
+                Assertions.assertEquals(CircuitBreaker.State.OPEN, standby.getState());
+                for (int i = 0; i < 5; i++) {
+                    client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN));
+                }
+                Assertions.assertEquals(5, primary.getRequestCount());
+                Assertions.assertEquals(0, standby.getShortCircuitCount(), "No request would have gone to the secondary");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testFailoverAndRecovery() throws Exception {
+        try (StubMssp primary   = new StubMssp().withFailure(true);
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = new MssClient.Builder().withRestUrl(primary.getUrl())
+                                                      .withSecondaryUrl(secondary.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withCircuitBreaker(new CircuitBreakerConfig().withFailureThreshold(3)
+                                                                                                    .withProbeInterval(200))
+                                                      .build();
+            try {
+                for (int i = 0; i < 10; i++) {
+                    client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN));
+                }
+                List<CircuitBreaker> breakers = client.getCircuitBreakers();
+                CircuitBreaker breaker = breakers.get(0);
+                Assertions.assertEquals(3,  primary.getRequestCount(), "Primary is skipped after the breaker opens");
+                Assertions.assertEquals(10, secondary.getRequestCount());
+                Assertions.assertNotEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+                Assertions.assertEquals(7, breaker.getShortCircuitCount());
+                Assertions.assertEquals(CircuitBreaker.State.CLOSED, breakers.get(1).getState());
+
+                Thread.sleep(500);
+                Assertions.assertTrue(breaker.getProbeFailureCount() > 0, "Failing primary is probed");
+                Assertions.assertNotEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+                primary.withFailure(false);
+                long deadline = System.currentTimeMillis() + 5000;
+                while (breaker.getState() != CircuitBreaker.State.CLOSED && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(), "Probe closes the breaker");
+                Assertions.assertEquals(1, breaker.getCloseCount());
+
+                client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN));
+                Assertions.assertEquals(4,  primary.getRequestCount(), "Traffic returns to primary");
+                Assertions.assertEquals(10, secondary.getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLatencySlo() throws Exception {
+        try (StubMssp primary   = new StubMssp().withDelay(300);
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = new MssClient.Builder().withRestUrl(primary.getUrl())
+                                                      .withSecondaryUrl(secondary.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withCircuitBreaker(new CircuitBreakerConfig().withFailureThreshold(2)
+                                                                                                    .withLatencySlo(100)
+                                                                                                    .withProbeInterval(60000))
+                                                      .build();
+            try {
+                for (int i = 0; i < 5; i++) {
+                    client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN));
+                }
+                Assertions.assertEquals(2, primary.getRequestCount());
+                Assertions.assertEquals(3, secondary.getRequestCount());
+                Assertions.assertEquals(CircuitBreaker.State.OPEN, client.getCircuitBreakers().get(0).getState());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+import fi.methics.laverca.rest.util.ConcurrencyLimitConfig;
+import fi.methics.laverca.rest.util.ConcurrencyLimitConfig.Algorithm;
+import fi.methics.laverca.rest.util.ConcurrencyLimiter;
+import fi.methics.laverca.rest.util.Deadline;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestConcurrencyLimit {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+
+    private static MssClient build(String url, ConcurrencyLimitConfig config) {
+        return new MssClient.Builder().withRestUrl(url)
+                                      .withApiKey("TestAP", APIKEY)
+                                      .withConcurrencyLimit(config)
+                                      .build();
+    }
+
+    /**
+     * Send given number of concurrent ProfileReqs
+     * @return number of requests rejected by the limit
+     */
+    private static int burst(MssClient client, int n) throws Exception {
+        ExecutorService pool  = Executors.newFixedThreadPool(n);
+        CountDownLatch  start = new CountDownLatch(1);
+        AtomicInteger   rejected = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    try {
+                        client.getCertificate(MSISDN, AUTHN);
+                    } catch (MssRestException e) {
+                        Assertions.assertEquals(MssRestException.TOO_MANY_REQUESTS, e.getErrorCode());
+                        rejected.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return rejected.get();
+    }
+
+    @Test
+    public void testExcessRequestsAreRejected() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(300)) {
+            MssClient client = build(mssp.getUrl(), new ConcurrencyLimitConfig().withInitialLimit(2));
+            try {
+                Assertions.assertEquals(3, burst(client, 5));
+                Assertions.assertEquals(2, mssp.getRequestCount());
+                ConcurrencyLimiter limiter = client.getLimiter();
+                Assertions.assertEquals(3, limiter.getRejectedCount(RequestType.MSS_ProfileReq));
+                Assertions.assertEquals(0, limiter.getInFlight(RequestType.MSS_ProfileReq));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncRequestsAreRejected() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(300)) {
+            MssClient client = build(mssp.getUrl(), new ConcurrencyLimitConfig().withInitialLimit(2).withMaxWait(5000));
+            try {
+                CompletableFuture<?> first  = client.async().getCertificate(MSISDN, AUTHN);
+                CompletableFuture<?> second = client.async().getCertificate(MSISDN, AUTHN);
+                CompletableFuture<?> third  = client.async().getCertificate(MSISDN, AUTHN);
+
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> third.get(10, TimeUnit.SECONDS));
+                Assertions.assertEquals(MssRestException.TOO_MANY_REQUESTS, ((MssRestException) e.getCause()).getErrorCode());
+                Assertions.assertFalse(first.isDone(), "Async requests never wait for room");
+                first.get(10, TimeUnit.SECONDS);
+                second.get(10, TimeUnit.SECONDS);
+                Assertions.assertEquals(2, mssp.getRequestCount());
+                Assertions.assertEquals(0, client.getLimiter().getInFlight(RequestType.MSS_ProfileReq));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRequestsWaitForRoom() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(100)) {
+            MssClient client = build(mssp.getUrl(), new ConcurrencyLimitConfig().withInitialLimit(1).withMaxWait(5000));
+            try {
+                Assertions.assertEquals(0, burst(client, 3));
+                Assertions.assertEquals(3, mssp.getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testWaitForRoomEndsAtDeadline() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(1000).withResponder(req -> TestAsyncClient.SIGNATURE_RESP)) {
+            MssClient client = build(mssp.getUrl(), new ConcurrencyLimitConfig().withInitialLimit(1).withMaxWait(5000));
+            try {
+                CompletableFuture<?> first = CompletableFuture.runAsync(() -> client.authenticate(MSISDN, "First", AUTHN));
+                long wait = System.currentTimeMillis() + 5000;
+                while (mssp.getActiveCount() == 0 && System.currentTimeMillis() < wait) {
+                    Thread.sleep(5);
+                }
+                long start = System.currentTimeMillis();
+                MssRestException e = Assertions.assertThrows(MssRestException.class, () -> {
+                    client.authenticate(MSISDN, "Second", AUTHN, Deadline.after(200, TimeUnit.MILLISECONDS));
+                });
+                long waited = System.currentTimeMillis() - start;
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, e.getErrorCode());
+                Assertions.assertTrue(waited < 700, "Wait for a permit ended at the deadline: " + waited + " ms");
+                first.get(10, TimeUnit.SECONDS);
+                Assertions.assertEquals(1, mssp.getRequestCount());
+                Assertions.assertEquals(0, client.getRestClient().getLimiter().getInFlight(RequestType.MSS_SignatureReq));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLimitsArePerRequestType() throws Exception {
+        try (StubMssp mssp = new StubMssp()) {
+            ConcurrencyLimitConfig config = new ConcurrencyLimitConfig().withInitialLimit(1)
+                                                                        .withLimits(RequestType.MSS_SignatureReq, 50, 500);
+            MssClient client = build(mssp.getUrl(), config);
+            try {
+                ConcurrencyLimiter limiter = client.getLimiter();
+                Assertions.assertEquals(1,  limiter.getLimit(RequestType.MSS_ProfileReq));
+                Assertions.assertEquals(1,  limiter.getLimit(RequestType.MSS_StatusReq));
+                Assertions.assertEquals(50, limiter.getLimit(RequestType.MSS_SignatureReq));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testFaultsCutTheLimit() throws Exception {
+        String fault = "{\"Fault\":{\"Code\":{\"Value\":\"env:Receiver\",\"SubCode\":{\"Value\":\"_780\"}},\"Reason\":\"TEST\"}}";
+        try (StubMssp mssp = new StubMssp().withResponder(req -> fault)) {
+            MssClient client = build(mssp.getUrl(), new ConcurrencyLimitConfig().withInitialLimit(20).withBackoffRatio(0.5));
+            try {
+                for (int i = 0; i < 3; i++) {
+                    Assertions.assertThrows(MssRestException.class, () -> client.getCertificate(MSISDN, AUTHN));
+                }
+                Assertions.assertEquals(2, client.getLimiter().getLimit(RequestType.MSS_ProfileReq), "20 * 0.5^3");
+                Assertions.assertEquals(3, client.getLimiter().getDropCount(RequestType.MSS_ProfileReq));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Load test: steady load against an MSSP that gets slower over time.
+     * The gradient limit must shrink and shed the excess load, so that latency stays bounded.
+     */
+    @Test
+    public void testLimitFollowsDegradingMssp() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(20)) {
+            ConcurrencyLimitConfig config = new ConcurrencyLimitConfig().withAlgorithm(Algorithm.GRADIENT)
+                                                                        .withInitialLimit(20)
+                                                                        .withMaxWait(20);
+            MssClient client = build(mssp.getUrl(), config);
+            ConcurrencyLimiter limiter = client.getLimiter();
+            ExecutorService pool = Executors.newFixedThreadPool(32);
+            AtomicBoolean   stop = new AtomicBoolean();
+            try {
+                for (int i = 0; i < 32; i++) {
+                    pool.submit(() -> {
+                        while (!stop.get()) {
+                            try {
+                                client.getCertificate(MSISDN, AUTHN);
+                            } catch (MssRestException e) {
+                                // rejected
+                            }
+                        }
+                    });
+                }
+                Thread.sleep(1000);
+                int  healthy   = limiter.getLimit(RequestType.MSS_ProfileReq);
+                long rejected0 = limiter.getRejectedCount();
+
+                for (long delay = 100; delay <= 400; delay += 100) {
+                    mssp.withDelay(delay); // MSSP degrades step by step
+                    Thread.sleep(500);
+                }
+                int degraded = limiter.getLimit(RequestType.MSS_ProfileReq);
+
+                Assertions.assertTrue(degraded < healthy, "Limit " + healthy + " -> " + degraded);
+                Assertions.assertTrue(degraded <= 10, "Limit " + degraded + " when the MSSP is slow");
+                Assertions.assertTrue(limiter.getRejectedCount() > rejected0, "Excess load is shed");
+                Assertions.assertTrue(limiter.getInFlight(RequestType.MSS_ProfileReq) <= degraded + 1);
+            } finally {
+                stop.set(true);
+                pool.shutdownNow();
+                pool.awaitTermination(5, TimeUnit.SECONDS);
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(200)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl()).withApiKey("TestAP", APIKEY).build();
+            try {
+                Assertions.assertEquals(0, burst(client, 30));
+                Assertions.assertEquals(0, client.getLimiter().getRejectedCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
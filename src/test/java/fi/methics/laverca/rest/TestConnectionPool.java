@@ -0,0 +1,118 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.ConnectionPoolConfig;
+import fi.methics.laverca.rest.util.LoadBalancerConfig;
+import fi.methics.laverca.rest.util.LoadBalancingPolicy;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+/**
+ * Pooled HTTP connection manager against a local stub MSSP.
+ * Throughput per pool size is measured by {@link fi.methics.laverca.rest.benchmark.ConnectionPoolBenchmark}.
+ */
+public class TestConnectionPool {
+
+    private static final int THREADS = 32;
+
+    @Test
+    public void testRequestsUseAllPooledConnections() throws Exception {
+        for (int poolSize : new int[] {2, 8}) {
+            final CountDownLatch release = new CountDownLatch(1);
+            StubMssp stub = new StubMssp().withResponder(req -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return StubMssp.PROFILE_RESP;
+            });
+            try (StubMssp mssp = stub) {
+                MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                          .withPassword("TestAP", "password")
+                                                          .withMaxConnections(poolSize, poolSize)
+                                                          .build();
+                ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+                try {
+                    List<Future<?>> results = new ArrayList<>();
+                    for (int i = 0; i < THREADS; i++) {
+                        results.add(pool.submit(() -> client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN))));
+                    }
+                    long wait = System.currentTimeMillis() + 5000;
+                    while (mssp.getActiveCount() < poolSize && System.currentTimeMillis() < wait) {
+                        Thread.sleep(5);
+                    }
+                    Assertions.assertEquals(poolSize, mssp.getActiveCount(), "Every pooled connection carries a request");
+                    Assertions.assertEquals(poolSize, client.getRestClient().getPoolStats().getLeased());
+                    release.countDown();
+                    for (Future<?> f : results) {
+                        f.get(10, TimeUnit.SECONDS);
+                    }
+                    Assertions.assertEquals(poolSize, mssp.getPeakActiveCount(), "No more requests in flight than pooled connections");
+                    Assertions.assertEquals(THREADS, mssp.getRequestCount());
+                } finally {
+                    release.countDown();
+                    pool.shutdownNow();
+                    client.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBuilderKeepsCallerConfig() throws Exception {
+        ConnectionPoolConfig shared   = new ConnectionPoolConfig().withMaxTotal(10).withMaxPerRoute(10);
+        LoadBalancerConfig   balancer = new LoadBalancerConfig();
+        LoadBalancingPolicy  failover = balancer.getPolicy();
+        MssClient client = new MssClient.Builder().withRestUrl("http://localhost:1/rest/service")
+                                                  .withPassword("TestAP", "password")
+                                                  .withConnectionPool(shared)
+                                                  .withMaxConnections(1, 1)
+                                                  .withLoadBalancer(balancer)
+                                                  .withLoadBalancing(LoadBalancingPolicy.roundRobin())
+                                                  .build();
+        try {
+            Assertions.assertEquals(1,  client.getRestClient().getPoolStats().getMax());
+            Assertions.assertEquals(10, shared.getMaxTotal(), "Builder changes its own copy");
+            Assertions.assertEquals(10, shared.getMaxPerRoute());
+            Assertions.assertSame(failover, balancer.getPolicy());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testLeaseTimeout() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(500)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withPassword("TestAP", "password")
+                                                      .withMaxConnections(1, 1)
+                                                      .withConnectionLeaseTimeout(50)
+                                                      .build();
+            ExecutorService pool = Executors.newFixedThreadPool(2);
+            try {
+                Future<?> first  = pool.submit(() -> client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN)));
+                Thread.sleep(100);
+                Future<?> second = pool.submit(() -> client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN)));
+                first.get();
+                Assertions.assertThrows(Exception.class, () -> second.get(), "Lease timed out");
+            } finally {
+                pool.shutdownNow();
+                client.close();
+            }
+        }
+    }
+
+}
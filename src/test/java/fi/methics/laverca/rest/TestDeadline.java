@@ -0,0 +1,124 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.util.BulkheadConfig;
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.Deadline;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+
+public class TestDeadline {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile     AUTHN    = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final SignatureReqTemplate TEMPLATE = new SignatureReqTemplate("TestAP", null, SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                                                  DTBS.MIME_SHA256, DTBS.ENCODING_BASE64);
+
+    @Test
+    public void testDefaultDeadline() {
+        Deadline deadline = Deadline.of(TEMPLATE.prepare(MSISDN, new byte[32], null, 60000, "A1"));
+        long remaining = deadline.remaining();
+        Assertions.assertTrue(remaining > 60000 && remaining <= 60000 + Deadline.TIMEOUT_GRACE, "TimeOut plus grace: " + remaining);
+        Assertions.assertNull(Deadline.of(TEMPLATE.prepare(MSISDN, new byte[32], null)), "No TimeOut, no deadline");
+    }
+
+    @Test
+    public void testCancelAbortsPendingSignature() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(5000)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .build();
+            try {
+                Deadline deadline = Deadline.after(30, TimeUnit.SECONDS);
+                CompletableFuture<MSS_SignatureResp> resp = CompletableFuture.supplyAsync(() -> client.authenticate(MSISDN, "Login", AUTHN, deadline));
+                long wait = System.currentTimeMillis() + 5000;
+                while (mssp.getRequestCount() == 0 && System.currentTimeMillis() < wait) {
+                    Thread.sleep(10);
+                }
+                Assertions.assertEquals(1, client.getEndpoints().get(0).getPoolStats().getLeased());
+
+                long start = System.currentTimeMillis();
+                deadline.cancel();
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> resp.get(2, TimeUnit.SECONDS));
+                Assertions.assertEquals(MssRestException.CANCELLED, ((MssRestException) e.getCause()).getErrorCode());
+                Assertions.assertTrue(System.currentTimeMillis() - start < 1000, "Aborted at once");
+                Assertions.assertEquals(0, client.getEndpoints().get(0).getPoolStats().getLeased(), "Connection is back in the pool");
+                Assertions.assertEquals(0, client.getEndpoints().get(0).getCircuitBreaker().getFailureCount(), "Not an MSSP failure");
+
+                MssRestException again = Assertions.assertThrows(MssRestException.class, () -> client.authenticate(MSISDN, "Login", AUTHN, deadline));
+                Assertions.assertEquals(MssRestException.CANCELLED, again.getErrorCode());
+                Assertions.assertEquals(1, mssp.getRequestCount(), "Cancelled call is not sent again");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDeadlineCutsSocketTimeout() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(3000)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .build();
+            try {
+                long start = System.currentTimeMillis();
+                MssRestException e = Assertions.assertThrows(MssRestException.class, () -> {
+                    client.authenticate(MSISDN, "Login", AUTHN, Deadline.after(500, TimeUnit.MILLISECONDS));
+                });
+                long elapsed = System.currentTimeMillis() - start;
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, e.getErrorCode());
+                Assertions.assertTrue(elapsed < 2000, "Gave up after " + elapsed + " ms");
+
+                ExecutionException ae = Assertions.assertThrows(ExecutionException.class, () -> {
+                    client.async().authenticate(MSISDN, "Login", AUTHN, Deadline.after(500, TimeUnit.MILLISECONDS)).get(2, TimeUnit.SECONDS);
+                });
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, ((MssRestException) ae.getCause()).getErrorCode());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testExpiredWorkIsDropped() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(1000)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withBulkhead(BulkheadConfig.of("signature", RequestType.MSS_SignatureReq)
+                                                                                  .withMaxConcurrent(1)
+                                                                                  .withMaxQueue(10)
+                                                                                  .withMaxWait(5000))
+                                                      .build();
+            try {
+                CompletableFuture<MSS_SignatureResp> first = CompletableFuture.supplyAsync(() -> client.authenticate(MSISDN, "Login", AUTHN));
+                long wait = System.currentTimeMillis() + 5000;
+                while (mssp.getRequestCount() == 0 && System.currentTimeMillis() < wait) {
+                    Thread.sleep(10);
+                }
+                MssRestException e = Assertions.assertThrows(MssRestException.class, () -> {
+                    client.authenticate(MSISDN, "Login", AUTHN, Deadline.after(200, TimeUnit.MILLISECONDS));
+                });
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, e.getErrorCode());
+                first.get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(1, mssp.getRequestCount(), "Expired request is never sent");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
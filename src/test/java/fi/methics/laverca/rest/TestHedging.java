@@ -0,0 +1,184 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.Endpoint;
+import fi.methics.laverca.rest.util.HedgingConfig;
+import fi.methics.laverca.rest.util.RequestHedger;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+
+public class TestHedging {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static MssClient build(StubMssp primary, StubMssp secondary, HedgingConfig config) {
+        return new MssClient.Builder().withRestUrls(primary.getUrl(), secondary.getUrl())
+                                      .withApiKey("TestAP", APIKEY)
+                                      .withHedging(config)
+                                      .build();
+    }
+
+    private static void warmUp(MssClient client, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            client.getCertificate(MSISDN, SignatureProfile.of(SignatureProfile.URI_AUTHN));
+        }
+    }
+
+    private static void awaitHedges(RequestHedger hedger) throws Exception {
+        long end = System.currentTimeMillis() + 5000;
+        while (hedger.getInFlightCount() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        Assertions.assertEquals(0, hedger.getInFlightCount(), "Hedges completed: " + hedger);
+    }
+
+    @Test
+    public void testSlowProfileReqIsHedged() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = build(primary, secondary, new HedgingConfig().withMinSamples(10));
+            try {
+                warmUp(client, 20);
+                RequestHedger hedger = client.getHedger();
+                Assertions.assertTrue(hedger.getDelay() >= 0, "Hedge delay is known after warm-up");
+                long hedges    = hedger.getHedgeCount();
+                long wins      = hedger.getHedgeWinCount();
+                int  secondary0 = secondary.getRequestCount();
+
+                primary.withDelay(2000);
+                long start = System.currentTimeMillis();
+                client.getCertificate(MSISDN, SignatureProfile.of(SignatureProfile.URI_AUTHN));
+                long latency = System.currentTimeMillis() - start;
+
+                Assertions.assertTrue(latency < 1500, "Hedge answered in " + latency + " ms");
+                Assertions.assertEquals(secondary0 + 1, secondary.getRequestCount());
+                Assertions.assertEquals(21,       hedger.getRequestCount());
+                Assertions.assertEquals(hedges + 1, hedger.getHedgeCount());
+                Assertions.assertEquals(wins + 1,   hedger.getHedgeWinCount());
+                Assertions.assertEquals((hedges + 1) / 21.0, hedger.getHedgeRate(), 1e-9);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSignatureReqIsNeverHedged() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = build(primary, secondary, new HedgingConfig().withMinSamples(10));
+            try {
+                warmUp(client, 20);
+                awaitHedges(client.getHedger()); // a losing warm-up hedge may reach the secondary before it is aborted
+                long hedges    = client.getHedger().getHedgeCount();
+                int  secondary0 = secondary.getRequestCount();
+                primary.withDelay(300);
+                SignatureReqTemplate template = new SignatureReqTemplate("TestAP", null, SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                                         DTBS.MIME_SHA256, DTBS.ENCODING_BASE64);
+                client.getRestClient().sendReq(template.prepare(MSISDN, new byte[32], "Sign"));
+                Assertions.assertEquals(secondary0, secondary.getRequestCount());
+                Assertions.assertEquals(hedges, client.getHedger().getHedgeCount());
+                Assertions.assertEquals(20, client.getHedger().getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testHedgeBudget() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = build(primary, secondary, new HedgingConfig().withPercentile(50)
+                                                                            .withMinDelay(100)
+                                                                            .withMinSamples(10)
+                                                                            .withMaxHedgePercent(5));
+            try {
+                warmUp(client, 20);
+                Assertions.assertEquals(0, client.getHedger().getHedgeCount());
+                primary.withDelay(400);
+                warmUp(client, 4);
+                Assertions.assertEquals(1, client.getHedger().getHedgeCount(), "5% of 24 requests allows one hedge");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testHedgeBurst() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = build(primary, secondary, new HedgingConfig().withPercentile(50)
+                                                                            .withMinDelay(100)
+                                                                            .withMinSamples(10)
+                                                                            .withMaxHedgeBurst(2));
+            try {
+                warmUp(client, 100);
+                Assertions.assertEquals(0, client.getHedger().getHedgeCount());
+                primary.withDelay(300);
+                warmUp(client, 4);
+                Assertions.assertEquals(2, client.getHedger().getHedgeCount(), "A healthy run saves up at most two hedges");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLosingCopyIsCancelled() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = build(primary, secondary, new HedgingConfig().withMinSamples(10));
+            try {
+                warmUp(client, 20);
+                awaitHedges(client.getHedger());
+                primary.withDelay(2000);
+                client.getCertificate(MSISDN, SignatureProfile.of(SignatureProfile.URI_AUTHN));
+                Assertions.assertEquals(1, client.getHedger().getHedgeWinCount());
+
+                Endpoint slow = client.getEndpoints().get(0);
+                long end = System.currentTimeMillis() + 500;
+                while (slow.getOutstanding() > 0 && System.currentTimeMillis() < end) {
+                    Thread.sleep(5);
+                }
+                Assertions.assertEquals(0, slow.getOutstanding(), "Losing copy was aborted: " + slow);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = new MssClient.Builder().withRestUrls(primary.getUrl(), secondary.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .build();
+            try {
+                warmUp(client, 30);
+                primary.withDelay(200);
+                warmUp(client, 1);
+                Assertions.assertEquals(0, secondary.getRequestCount());
+                Assertions.assertEquals(0, client.getHedger().getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.client.methods.HttpPost;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.HmacSigner;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestHmacSigner {
+
+    private static final String USERID = Base64.getEncoder().encodeToString("TestAP".getBytes());
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String BODY   = "{\"MSS_ProfileReq\":{\"MobileUser\":{\"MSISDN\":\"35847001001\"}}}";
+
+    @Test
+    public void testSignatureMatchesCanonicalString() throws Exception {
+        HmacSigner signer = new HmacSigner(USERID, APIKEY);
+        HttpPost post = new HttpPost("https://mssp.example.com:9061/rest/service");
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        signer.sign(post, body, 0, body.length);
+
+        String date = post.getFirstHeader("Date").getValue();
+        String data = date + "\nPOST\nmssp.example.com:9061\n/rest/service\n" + BODY + "\n";
+
+        Assertions.assertEquals(this.expectedAuthorization(data), post.getFirstHeader("Authorization").getValue());
+        Assertions.assertEquals("application/json", post.getFirstHeader("Content-Type").getValue());
+    }
+
+    @Test
+    public void testSignatureCoversSentBody() throws Exception {
+        try (StubMssp mssp = new StubMssp()) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .build();
+            try {
+                client.getCertificate("35847001001", SignatureProfile.of(SignatureProfile.URI_AUTHN));
+            } finally {
+                client.close();
+            }
+            String body = mssp.getLastBody();
+            String date = mssp.getLastHeaders().getFirst("Date");
+            String host = mssp.getLastHeaders().getFirst("Host");
+            Assertions.assertTrue(body.contains("\"MSISDN\":\"35847001001\""), "Request was sent");
+            Assertions.assertEquals(this.expectedAuthorization(date + "\nPOST\n" + host + "\n/rest/service\n" + body + "\n"),
+                                    mssp.getLastHeaders().getFirst("Authorization"));
+        }
+    }
+
+    @Test
+    public void testSignerIsReusable() throws Exception {
+        HmacSigner signer = new HmacSigner(USERID, APIKEY);
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        HttpPost first  = new HttpPost("https://mssp.example.com/rest/service");
+        HttpPost second = new HttpPost("https://mssp.example.com/rest/service");
+        signer.sign(first,  body, 0, body.length);
+        signer.sign(second, body, 0, body.length);
+        if (first.getFirstHeader("Date").getValue().equals(second.getFirstHeader("Date").getValue())) {
+            Assertions.assertEquals(first.getFirstHeader("Authorization").getValue(), second.getFirstHeader("Authorization").getValue());
+        }
+    }
+
+    /**
+     * Compute the Authorization header value the MSSP expects for given signed data
+     */
+    private String expectedAuthorization(final String data) throws Exception {
+        Mac mac = Mac.getInstance("HMACSHA256");
+        mac.init(new SecretKeySpec(APIKEY.getBytes(), "RAW"));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : mac.doFinal(data.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return "Basic " + Base64.getEncoder().encodeToString((USERID + ":" + hex).getBytes());
+    }
+
+}
@@ -0,0 +1,106 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import fi.methics.laverca.rest.json.AdditionalServices;
+import fi.methics.laverca.rest.json.Input;
+import fi.methics.laverca.rest.json.JsonAdapters;
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_ProfileReq;
+import fi.methics.laverca.rest.json.MSS_RegistrationReq;
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+import fi.methics.laverca.rest.json.MSS_StatusReq;
+import fi.methics.laverca.rest.json.Status;
+import fi.methics.laverca.rest.util.DTBS;
+
+public class TestJsonAdapters {
+
+    private static final Gson REFLECTIVE = new GsonBuilder().create();
+
+    public static final String PROFILE_RESP = "{\"MSS_ProfileResp\":{\"SignatureProfile\":[\"http://alauda.mobi/digitalSignature\"],"
+                                            + "\"Unknown\":{\"Nested\":[1,2,{\"a\":null}]},"
+                                            + "\"Status\":{\"StatusCode\":{\"Value\":500,\"StatusCode\":{\"Value\":\"_500\"}},\"StatusMessage\":\"SIGNATURE\","
+                                            + "\"StatusDetail\":{\"ProfileQueryExtension\":{\"MobileUserCertificate\":[{"
+                                            + "\"X509Certificate\":[\"MIIB\",\"MIIC\"],\"X509SubjectName\":[\"CN Test\"],\"Algorithm\":\"RSA\",\"State\":\"ACTIVE\","
+                                            + "\"SignatureProfiles\":[\"http://alauda.mobi/digitalSignature\"]}],\"AutoActivation\":\"true\"}}},"
+                                            + "\"MajorVersion\":\"1\",\"AP_Info\":{\"AP_ID\":\"TestAP\",\"AP_TransID\":\"A1\"}}}";
+
+    public static final String FAULT_RESP = "{\"Fault\":{\"Code\":{\"Value\":\"env:Receiver\",\"SubCode\":{\"Value\":\"_105\",\"ValueNs\":\"mss\"}},"
+                                          + "\"Reason\":\"UNKNOWN_CLIENT\",\"Detail\":\"<b>No such user</b>\",\"RollbackFault\":{\"Reason\":\"x\"}}}";
+
+    @Test
+    public void testSignatureReqIsIdentical() {
+        MSS_SignatureReq req = new MSS_SignatureReq("+35847001001", new DTBS("Sign this", DTBS.ENCODING_UTF8), "Sign \"this\" <now> \u00e4 & \u2028");
+        req.SignatureProfile = "http://alauda.mobi/digitalSignature";
+        req.AP_Info.AP_ID      = "TestAP";
+        req.AP_Info.AP_PWD     = "pwd";
+        req.AP_Info.AP_TransID = "A123";
+        req.TimeOut = "60";
+        req.AdditionalServices.add(new AdditionalServices("http://uri.etsi.org/TS102204/v1.1.2#validate"));
+        req.AdditionalServices.add(null);
+        JsonRequest jReq = new JsonRequest();
+        jReq.MSS_SignatureReq = req;
+
+        this.assertIdentical(jReq);
+    }
+
+    @Test
+    public void testOtherRequestsAreIdentical() {
+        JsonRequest profile = new JsonRequest();
+        profile.MSS_ProfileReq = new MSS_ProfileReq("35847001001");
+        profile.MSS_ProfileReq.AP_Info.AP_ID = "TestAP";
+        this.assertIdentical(profile);
+
+        JsonRequest status = new JsonRequest();
+        status.MSS_StatusReq = new MSS_StatusReq();
+        status.MSS_StatusReq.MSSP_TransID = "T1";
+        this.assertIdentical(status);
+
+        Input input = new Input("MSISDN", "35847001001");
+        input.Required = Boolean.TRUE;
+        JsonRequest reg = new JsonRequest();
+        reg.MSS_RegistrationReq = new MSS_RegistrationReq("http://mss.ficom.fi/TS102204/v1.0.0#", "CreateUser");
+        reg.MSS_RegistrationReq.UseCase.Inputs = Arrays.asList(input);
+        this.assertIdentical(reg);
+    }
+
+    @Test
+    public void testResponsesAreIdentical() {
+        for (String json : new String[] { PROFILE_RESP, FAULT_RESP, StubMssp.PROFILE_RESP, TestAsyncClient.SIGNATURE_RESP }) {
+            JsonResponse compiled   = JsonResponse.fromString(json);
+            JsonResponse reflective = REFLECTIVE.fromJson(json, JsonResponse.class);
+            Assertions.assertEquals(REFLECTIVE.toJson(reflective).replace(",\"X509SubjectName\":[\"CN Test\"]", ""),
+                                    JsonAdapters.GSON.toJson(compiled));
+        }
+    }
+
+    @Test
+    public void testParseSkipsUnreadFields() {
+        JsonResponse resp = JsonResponse.fromString(PROFILE_RESP);
+        Status.MobileUserCertificate cert = resp.MSS_ProfileResp.Status.StatusDetail.ProfileQueryExtension.MobileUserCertificate.get(0);
+        Assertions.assertNull(cert.X509SubjectName, "X509SubjectName is not materialized");
+        Assertions.assertEquals(Arrays.asList("MIIB", "MIIC"), cert.X509Certificate);
+        Assertions.assertEquals("500", resp.MSS_ProfileResp.Status.StatusCode.Value);
+        Assertions.assertEquals(Boolean.TRUE, resp.MSS_ProfileResp.Status.StatusDetail.ProfileQueryExtension.AutoActivation);
+        Assertions.assertEquals("A1", resp.MSS_ProfileResp.AP_Info.AP_TransID);
+
+        JsonResponse fault = JsonResponse.fromString(FAULT_RESP);
+        Assertions.assertEquals("105", fault.getFaultCode());
+        Assertions.assertEquals("x", fault.Fault.RollbackFault.Reason);
+    }
+
+    private void assertIdentical(final JsonRequest req) {
+        Assertions.assertEquals(REFLECTIVE.toJson(req), req.toJson());
+    }
+
+}
@@ -0,0 +1,214 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.Endpoint;
+import fi.methics.laverca.rest.util.LoadBalancerConfig;
+import fi.methics.laverca.rest.util.LoadBalancingPolicy;
+import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestLoadBalancing {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static MssClient.Builder builder(StubMssp... stubs) {
+        String[] urls = new String[stubs.length];
+        for (int i = 0; i < stubs.length; i++) {
+            urls[i] = stubs[i].getUrl();
+        }
+        return new MssClient.Builder().withRestUrls(urls).withApiKey("TestAP", APIKEY);
+    }
+
+    private static void query(MssClient client) throws Exception {
+        client.getCertificate(MSISDN, SignatureProfile.of(SignatureProfile.URI_AUTHN));
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        try (StubMssp a = new StubMssp();
+             StubMssp b = new StubMssp();
+             StubMssp c = new StubMssp())
+        {
+            MssClient client = builder(a, b, c).withLoadBalancing(LoadBalancingPolicy.roundRobin()).build();
+            try {
+                for (int i = 0; i < 30; i++) {
+                    query(client);
+                }
+                Assertions.assertEquals(10, a.getRequestCount());
+                Assertions.assertEquals(10, b.getRequestCount());
+                Assertions.assertEquals(10, c.getRequestCount());
+                Assertions.assertEquals(3, client.getEndpoints().size());
+                for (Endpoint endpoint : client.getEndpoints()) {
+                    Assertions.assertEquals(0,  endpoint.getOutstanding());
+                    Assertions.assertEquals(10, endpoint.getRequestCount());
+                }
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testFailoverIsDefault() throws Exception {
+        try (StubMssp a = new StubMssp();
+             StubMssp b = new StubMssp())
+        {
+            MssClient client = builder(a, b).build();
+            try {
+                for (int i = 0; i < 5; i++) {
+                    query(client);
+                }
+                Assertions.assertEquals(5, a.getRequestCount());
+                Assertions.assertEquals(0, b.getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPeakEwmaAvoidsSlowEndpoint() throws Exception {
+        try (StubMssp a    = new StubMssp();
+             StubMssp b    = new StubMssp();
+             StubMssp slow = new StubMssp().withDelay(200))
+        {
+            MssClient client = builder(a, b, slow).withLoadBalancer(new LoadBalancerConfig().withPolicy(LoadBalancingPolicy.peakEwma())
+                                                                                          .withOutlierLatencyFactor(0))
+                                                  .build();
+            try {
+                for (int i = 0; i < 40; i++) {
+                    query(client);
+                }
+                Assertions.assertTrue(slow.getRequestCount() <= 2, "Slow endpoint got " + slow.getRequestCount() + " requests");
+                Assertions.assertEquals(40, a.getRequestCount() + b.getRequestCount() + slow.getRequestCount());
+                if (slow.getRequestCount() > 0) {
+                    Assertions.assertTrue(client.getEndpoints().get(2).getLatencyEwma() >= 150);
+                }
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLeastOutstandingAvoidsSlowEndpoint() throws Exception {
+        try (StubMssp a    = new StubMssp();
+             StubMssp b    = new StubMssp();
+             StubMssp slow = new StubMssp().withDelay(300))
+        {
+            MssClient client = builder(a, b, slow).withLoadBalancing(LoadBalancingPolicy.leastOutstanding()).build();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < 20; i++) {
+                            query(client);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+                Assertions.assertEquals(80, a.getRequestCount() + b.getRequestCount() + slow.getRequestCount());
+                Assertions.assertTrue(slow.getRequestCount() < a.getRequestCount(), "Slow endpoint got " + slow.getRequestCount() + " requests");
+                Assertions.assertTrue(slow.getRequestCount() < b.getRequestCount(), "Slow endpoint got " + slow.getRequestCount() + " requests");
+            } finally {
+                executor.shutdownNow();
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOutlierEjection() throws Exception {
+        try (StubMssp fast = new StubMssp();
+             StubMssp slow = new StubMssp().withDelay(100))
+        {
+            MssClient client = builder(fast, slow).withLoadBalancer(new LoadBalancerConfig().withPolicy(LoadBalancingPolicy.roundRobin())
+                                                                                          .withEwmaDecay(50)
+                                                                                          .withMinRequests(5)
+                                                                                          .withOutlierInterval(0)
+                                                                                          .withEjectionTime(60000))
+                                                  .build();
+            try {
+                for (int i = 0; i < 12; i++) {
+                    query(client);
+                }
+                Endpoint ejected = client.getEndpoints().get(1);
+                Assertions.assertEquals(1, ejected.getEjectionCount());
+                Assertions.assertTrue(ejected.isEjected(System.currentTimeMillis()));
+                Assertions.assertEquals(0, client.getEndpoints().get(0).getEjectionCount());
+
+                int before = slow.getRequestCount();
+                for (int i = 0; i < 10; i++) {
+                    query(client);
+                }
+                Assertions.assertEquals(before, slow.getRequestCount(), "Ejected endpoint gets no traffic");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncPoolsPerEndpoint() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        StubMssp stuck = new StubMssp().withResponder(req -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return StubMssp.PROFILE_RESP;
+        });
+        try (StubMssp slow = stuck;
+             StubMssp fast = new StubMssp())
+        {
+            MssClient client = builder(slow, fast).withLoadBalancing(LoadBalancingPolicy.roundRobin())
+                                                  .withMaxConnections(4, 4)
+                                                  .build();
+            try {
+                List<CompletableFuture<MssCertificate>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    results.add(client.async().getCertificate(MSISDN, SignatureProfile.of(SignatureProfile.URI_AUTHN)));
+                }
+                long wait = System.currentTimeMillis() + 5000;
+                while (slow.getActiveCount() < 4 && System.currentTimeMillis() < wait) {
+                    Thread.sleep(5);
+                }
+                Assertions.assertEquals(4, slow.getActiveCount(), "Slow endpoint holds all of its connections");
+                for (int i = 0; i < 8; i++) {
+                    if (i % 2 == 1) {
+                        results.get(i).get(5, TimeUnit.SECONDS); // not blocked by the slow endpoint's connections
+                    }
+                }
+                Assertions.assertEquals(4, fast.getRequestCount());
+                release.countDown();
+                for (CompletableFuture<MssCertificate> f : results) {
+                    f.get(10, TimeUnit.SECONDS);
+                }
+            } finally {
+                release.countDown();
+                client.close();
+            }
+        }
+    }
+
+}
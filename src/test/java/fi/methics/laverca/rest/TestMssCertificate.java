@@ -0,0 +1,112 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.CertificateCacheConfig;
+import fi.methics.laverca.rest.util.CertificateStore;
+import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestMssCertificate {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final SignatureProfile SIGN  = SignatureProfile.of("http://alauda.mobi/nonRepudiation");
+
+    private static String profileResp(final List<String> chain) {
+        String certs = chain.stream().map(c -> "\"" + c + "\"").collect(Collectors.joining(","));
+        return "{\"MSS_ProfileResp\":{\"Status\":{\"StatusCode\":{\"Value\":\"100\"},"
+             + "\"StatusDetail\":{\"ProfileQueryExtension\":{\"MobileUserCertificate\":[{"
+             + "\"SignatureProfiles\":[\"" + AUTHN.getUri() + "\",\"" + SIGN.getUri() + "\"],"
+             + "\"State\":\"ACTIVE\","
+             + "\"X509Certificate\":[" + certs + "]}]}}}}}";
+    }
+
+    @Test
+    public void testLazyDecode() throws Exception {
+        List<String> chain = TestCertificateStore.chains(1).get(0);
+        CertificateStore store = CertificateStore.getDefault();
+
+        MssCertificate cert = MssCertificate.fromJson(chain);
+        long lookups = store.getHitCount() + store.getMissCount();
+        Assertions.assertEquals(3, cert.getCertificateChain().size());
+        Assertions.assertEquals(lookups + 3, store.getHitCount() + store.getMissCount(), "Decoded on first use");
+        Assertions.assertSame(cert.getCertificateChain().get(0), cert.getCertificate());
+        Assertions.assertSame(cert.getCertificate(), MssCertificate.fromJson(chain).getCertificate());
+        Assertions.assertEquals(lookups + 6, store.getHitCount() + store.getMissCount(), "Decoded once");
+
+        Assertions.assertNull(MssCertificate.fromJson(null).getCertificate());
+        Assertions.assertTrue(MssCertificate.fromJson(null).getCertificateChain().isEmpty());
+    }
+
+    @Test
+    public void testOneInstancePerChain() throws Exception {
+        List<String> chain = TestCertificateStore.chains(1).get(0);
+        CertificateStore store = CertificateStore.getDefault();
+        try (StubMssp mssp = new StubMssp().withResponder(req -> profileResp(chain))) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .build();
+            try {
+                Map<SignatureProfile, MssCertificate> certs = client.listCertificates(MSISDN);
+                Assertions.assertEquals(2, certs.size());
+                Assertions.assertSame(certs.get(AUTHN), certs.get(SIGN), "Profiles of one chain share the instance");
+                Assertions.assertEquals(2, certs.get(AUTHN).getSignatureProfiles().size());
+
+                long misses = store.getMissCount();
+                X509Certificate user = certs.get(AUTHN).getCertificate();
+                Assertions.assertEquals(misses + 3, store.getMissCount());
+                Assertions.assertSame(user, certs.get(SIGN).getCertificate());
+                Assertions.assertEquals(misses + 3, store.getMissCount());
+
+                MssCertificate sign = client.getCertificate(MSISDN, SIGN);
+                Assertions.assertSame(user, sign.getCertificate());
+                Assertions.assertEquals(3, sign.getCertificateChain().size());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCachedCertificatesAreCopied() throws Exception {
+        List<String> chain = TestCertificateStore.chains(1).get(0);
+        try (StubMssp mssp = new StubMssp().withResponder(req -> profileResp(chain))) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withCertificateCache(new CertificateCacheConfig())
+                                                      .build();
+            try {
+                Map<SignatureProfile, MssCertificate> first = client.listCertificates(MSISDN);
+                Assertions.assertSame(first.get(AUTHN), first.get(SIGN), "Profiles of one chain share the copy");
+                first.get(AUTHN).addSignatureProfile("http://example.com/modified");
+                first.remove(SIGN);
+
+                Map<SignatureProfile, MssCertificate> second = client.listCertificates(MSISDN);
+                Assertions.assertEquals(1, mssp.getRequestCount(), "Served from the cache");
+                Assertions.assertEquals(2, second.size());
+                Assertions.assertNotSame(first.get(AUTHN), second.get(AUTHN));
+                Assertions.assertEquals(2, second.get(AUTHN).getSignatureProfiles().size(), "Changes of other callers are not seen");
+                Assertions.assertEquals(2, client.getCertificate(MSISDN, SIGN).getSignatureProfiles().size());
+                Assertions.assertEquals(2, client.async().getCertificate(MSISDN, SIGN).get().getSignatureProfiles().size());
+
+                Assertions.assertSame(first.get(AUTHN).getCertificate(), second.get(AUTHN).getCertificate(), "Chain is decoded once");
+                Assertions.assertThrows(UnsupportedOperationException.class, () -> second.get(AUTHN).getCertificateChain().clear());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
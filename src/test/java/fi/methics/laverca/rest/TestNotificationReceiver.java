@@ -0,0 +1,241 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.util.Deadline;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.NotificationConfig;
+import fi.methics.laverca.rest.util.NotificationReceiver;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.StatusPoller;
+
+public class TestNotificationReceiver {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN      = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final Pattern          AP_TRANSID = Pattern.compile("\"AP_TransID\":\"([^\"]+)\"");
+    private static final Pattern          USER       = Pattern.compile("\"MSISDN\":\"([^\"]+)\"");
+
+    private static String ack(final String transId) {
+        return "{\"MSS_SignatureResp\":{\"MSSP_TransID\":\"" + transId + "\",\"SignatureProfile\":\"" + SignatureProfile.URI_AUTHN + "\","
+             + "\"Status\":{\"StatusCode\":{\"Value\":\"100\"}}}}";
+    }
+
+    private static String notification(final String apTransId, final String msisdn) {
+        return "{\"MSS_StatusResp\":{\"AP_Info\":{\"AP_ID\":\"TestAP\",\"AP_TransID\":\"" + apTransId + "\"},"
+             + "\"MobileUser\":{\"MSISDN\":\"" + msisdn + "\"},\"MSS_Signature\":{\"Base64Signature\":\"AAEC\"},"
+             + "\"Status\":{\"StatusCode\":{\"Value\":\"500\"}}}}";
+    }
+
+    private static String basic(final String user, final String password) {
+        return "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * POST a notification like the MSSP does
+     * @return HTTP status
+     */
+    private static int push(final String url, final String authorization, final String body) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        if (authorization != null) {
+            conn.setRequestProperty("Authorization", authorization);
+        }
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = conn.getResponseCode();
+        conn.disconnect();
+        return status;
+    }
+
+    private static String url(final HttpServer server) {
+        return "http://localhost:" + server.getAddress().getPort() + NotificationConfig.DEFAULT_PATH;
+    }
+
+    private static MssClient newClient(final StubMssp mssp, final StatusPoller poller, final NotificationReceiver receiver) {
+        return new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                      .withApiKey("TestAP", APIKEY)
+                                      .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_SERVER_SERVER)
+                                      .withStatusPoller(poller)
+                                      .withNotificationReceiver(receiver)
+                                      .build();
+    }
+
+    /**
+     * Stub MSSP that acknowledges each asynchServerServer signature and pushes the result after given delay.
+     * A negative delay pushes the result before the acknowledgement is sent.
+     * Any status query fails the test.
+     */
+    private static StubMssp serverServer(final String notifyUrl, final long delay, final ScheduledExecutorService pusher) throws Exception {
+        final AtomicInteger transIds = new AtomicInteger();
+        return new StubMssp().withResponder(req -> {
+            Assertions.assertTrue(req.contains("MSS_SignatureReq"), "No polling: " + req);
+            Assertions.assertTrue(req.contains("\"MessagingMode\":\"asynchServerServer\""), req);
+            Matcher transId = AP_TRANSID.matcher(req);
+            Matcher user    = USER.matcher(req);
+            Assertions.assertTrue(transId.find() && user.find(), req);
+            final String body = notification(transId.group(1), user.group(1));
+            Runnable push = () -> {
+                try {
+                    Assertions.assertEquals(200, push(notifyUrl, basic("mssp", "secret"), body));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+            if (delay < 0) {
+                push.run();
+            } else {
+                pusher.schedule(push, delay, TimeUnit.MILLISECONDS);
+            }
+            return ack("T" + transIds.incrementAndGet());
+        });
+    }
+
+    @Test
+    public void testPushedResults() throws Exception {
+        NotificationReceiver receiver = new NotificationReceiver(new NotificationConfig().withCredentials("mssp", "secret"));
+        StatusPoller poller = new StatusPoller();
+        ScheduledExecutorService pusher = Executors.newScheduledThreadPool(4);
+        HttpServer server = receiver.start(new InetSocketAddress("localhost", 0));
+        try (StubMssp mssp = serverServer(url(server), 100, pusher)) {
+            MssClient client = newClient(mssp, poller, receiver);
+            try {
+                MSS_SignatureResp resp = client.authenticate(MSISDN, "Login", AUTHN);
+                Assertions.assertTrue(resp.isSuccessful(), "Pushed status is returned");
+                Assertions.assertEquals("T1", resp.MSSP_TransID);
+                Assertions.assertEquals(MSISDN, resp.getMsisdn());
+
+                List<CompletableFuture<MSS_SignatureResp>> results = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    results.add(client.async().authenticate("358470" + (10000 + i), "Login", AUTHN));
+                }
+                for (CompletableFuture<MSS_SignatureResp> f : results) {
+                    Assertions.assertTrue(f.get(10, TimeUnit.SECONDS).isSuccessful());
+                }
+                Assertions.assertEquals(21, mssp.getRequestCount(), "Only signature requests were sent");
+                Assertions.assertEquals(0, poller.getPollCount());
+                Assertions.assertEquals(21, receiver.getMatchedCount());
+                Assertions.assertEquals(0, receiver.getPendingCount());
+            } finally {
+                client.close();
+            }
+        } finally {
+            receiver.close();
+            poller.close();
+            pusher.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEarlyNotification() throws Exception {
+        NotificationReceiver receiver = new NotificationReceiver(new NotificationConfig().withCredentials("mssp", "secret"));
+        ScheduledExecutorService pusher = Executors.newScheduledThreadPool(1);
+        HttpServer server = receiver.start(new InetSocketAddress("localhost", 0));
+        try (StubMssp mssp = serverServer(url(server), -1, pusher)) {
+            MssClient client = newClient(mssp, null, receiver);
+            try {
+                MSS_SignatureResp resp = client.authenticate(MSISDN, "Login", AUTHN);
+                Assertions.assertTrue(resp.isSuccessful(), "Notification before the acknowledgement is matched");
+                Assertions.assertEquals(1, receiver.getMatchedCount());
+            } finally {
+                client.close();
+            }
+        } finally {
+            receiver.close();
+            pusher.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testVerification() throws Exception {
+        NotificationReceiver receiver = new NotificationReceiver(new NotificationConfig().withCredentials("mssp", "secret"));
+        HttpServer server = receiver.start(new InetSocketAddress("localhost", 0));
+        final AtomicReference<String> apTransId = new AtomicReference<>();
+        StubMssp stub = new StubMssp().withResponder(req -> {
+            Matcher m = AP_TRANSID.matcher(req);
+            Assertions.assertTrue(m.find(), req);
+            apTransId.set(m.group(1));
+            return ack("T1");
+        });
+        try (StubMssp mssp = stub) {
+            MssClient client = newClient(mssp, null, receiver);
+            try {
+                CompletableFuture<MSS_SignatureResp> resp = client.async().authenticate(MSISDN, "Login", AUTHN);
+                long wait = System.currentTimeMillis() + 5000;
+                while (receiver.getPendingCount() == 0 && System.currentTimeMillis() < wait) {
+                    Thread.sleep(5);
+                }
+                String url = url(server);
+                Assertions.assertEquals(401, push(url, null, notification(apTransId.get(), MSISDN)));
+                Assertions.assertEquals(401, push(url, basic("mssp", "wrong"), notification(apTransId.get(), MSISDN)));
+                Assertions.assertEquals(400, push(url, basic("mssp", "secret"), notification(apTransId.get(), "35847009999")));
+                Assertions.assertEquals(400, push(url, basic("mssp", "secret"), "{\"MSS_StatusResp\":"));
+                Assertions.assertEquals(400, push(url, basic("mssp", "secret"),
+                                                  notification(apTransId.get(), MSISDN).replace(",\"MSS_Signature\":{\"Base64Signature\":\"AAEC\"}", "")));
+                Assertions.assertFalse(resp.isDone(), "Refused notifications leave the request pending");
+                Assertions.assertEquals(5, receiver.getRejectedCount());
+
+                Assertions.assertEquals(200, push(url, basic("mssp", "secret"), notification(apTransId.get(), MSISDN)));
+                Assertions.assertTrue(resp.get(5, TimeUnit.SECONDS).isSuccessful());
+
+                MssRestException expired = Assertions.assertThrows(MssRestException.class, () -> {
+                    client.authenticate(MSISDN, "Login", AUTHN, Deadline.after(300, TimeUnit.MILLISECONDS));
+                });
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, expired.getErrorCode());
+                Assertions.assertEquals(0, receiver.getPendingCount());
+            } finally {
+                client.close();
+            }
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testCredentialsRequired() throws Exception {
+        NotificationReceiver open = new NotificationReceiver(new NotificationConfig());
+        Assertions.assertThrows(IllegalStateException.class, () -> open.start(new InetSocketAddress("localhost", 0)));
+        byte[] body = notification("A1", MSISDN).getBytes(StandardCharsets.UTF_8);
+        Assertions.assertEquals(401, open.receive(null, new ByteArrayInputStream(body)), "No credentials, no notifications");
+
+        NotificationReceiver unauthenticated = new NotificationReceiver(new NotificationConfig().withUnauthenticated(true));
+        HttpServer server = unauthenticated.start(new InetSocketAddress("localhost", 0));
+        try {
+            Assertions.assertEquals(200, push(url(server), null, notification("A1", MSISDN)), "Explicitly allowed");
+        } finally {
+            unauthenticated.close();
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_ReceiptReq;
+import fi.methics.laverca.rest.json.MSS_ReceiptResp;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.json.MobileUser;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.ReceiptConfig;
+import fi.methics.laverca.rest.util.ReceiptDispatcher;
+
+public class TestReceiptDispatcher {
+
+    private static final String RECEIPT_RESP = "{\"MSS_ReceiptResp\":{\"Status\":{\"StatusCode\":{\"Value\":\"100\"}}}}";
+
+    private static MSS_ReceiptReq receipt(final String transId) {
+        return new MSS_ReceiptReq("TestAP", transId, "35847001001", "Done");
+    }
+
+    private static JsonResponse ok() {
+        JsonResponse resp = new JsonResponse();
+        resp.MSS_ReceiptResp = new MSS_ReceiptResp();
+        return resp;
+    }
+
+    /**
+     * Sender that keeps the futures of the sent requests for the test to complete
+     */
+    private static class ManualSender implements Function<JsonRequest, CompletableFuture<JsonResponse>> {
+
+        final ConcurrentLinkedQueue<CompletableFuture<JsonResponse>> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger sent = new AtomicInteger();
+
+        @Override
+        public CompletableFuture<JsonResponse> apply(final JsonRequest req) {
+            CompletableFuture<JsonResponse> f = new CompletableFuture<>();
+            this.pending.add(f);
+            this.sent.incrementAndGet();
+            return f;
+        }
+
+        void completeAll() {
+            CompletableFuture<JsonResponse> f;
+            while ((f = this.pending.poll()) != null) {
+                f.complete(ok());
+            }
+        }
+
+    }
+
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        Assertions.assertTrue(condition.getAsBoolean(), "Condition reached in time");
+    }
+
+    @Test
+    public void testSendInBackground() throws Exception {
+        try (StubMssp mssp = new StubMssp().withDelay(200).withResponder(req -> RECEIPT_RESP)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", "9TMzfH7EKXETOB8FT5gz")
+                                                      .withReceipts(new ReceiptConfig().withThreads(2).withBatchSize(50))
+                                                      .build();
+            try {
+                MSS_SignatureResp signature = new MSS_SignatureResp();
+                signature.MSSP_TransID = "T0";
+                signature.MobileUser   = new MobileUser("35847001001");
+
+                List<CompletableFuture<MSS_ReceiptResp>> results = new ArrayList<>();
+                long start = System.nanoTime();
+                results.add(client.sendReceipt(signature, "Logged in"));
+                for (int i = 1; i < 100; i++) {
+                    results.add(client.sendReceipt(receipt("T" + i)));
+                }
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                Assertions.assertTrue(elapsed < 200, "Queueing took " + elapsed + " ms");
+
+                for (CompletableFuture<MSS_ReceiptResp> result : results) {
+                    Assertions.assertNotNull(result.get(10, TimeUnit.SECONDS));
+                }
+                ReceiptDispatcher receipts = client.getReceiptDispatcher();
+                Assertions.assertEquals(100, receipts.getSentCount());
+                Assertions.assertEquals(100, mssp.getRequestCount());
+                Assertions.assertTrue(receipts.getBatchCount() < 20, "Burst sent in " + receipts.getBatchCount() + " batches");
+                Assertions.assertTrue(mssp.getLastBody().contains("MSS_ReceiptReq"), mssp.getLastBody());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReceiptHasApInfo() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> RECEIPT_RESP)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withPassword("TestAP", "9TMzfH7EKXETOB8FT5gz")
+                                                      .withAppwd("secret")
+                                                      .build();
+            try {
+                MSS_SignatureResp signature = new MSS_SignatureResp();
+                signature.MSSP_TransID = "T0";
+                Assertions.assertNotNull(client.sendReceipt(signature, "Logged in").get(10, TimeUnit.SECONDS));
+                Assertions.assertTrue(mssp.getLastBody().contains("\"AP_PWD\":\"secret\""), mssp.getLastBody());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testApiKeyReceiptHasApId() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> RECEIPT_RESP)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", "9TMzfH7EKXETOB8FT5gz")
+                                                      .build();
+            try {
+                MSS_SignatureResp signature = new MSS_SignatureResp();
+                signature.MSSP_TransID = "T0";
+                Assertions.assertNotNull(client.sendReceipt(signature, "Logged in").get(10, TimeUnit.SECONDS));
+                Assertions.assertTrue(mssp.getLastBody().contains("\"AP_ID\":\"TestAP\""), mssp.getLastBody());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        ManualSender sender = new ManualSender();
+        ReceiptDispatcher receipts = new ReceiptDispatcher(new ReceiptConfig().withBatchSize(1), sender);
+        try {
+            CompletableFuture<MSS_ReceiptResp> busy = receipts.send(receipt("T1"));
+            waitFor(() -> sender.sent.get() == 1);
+
+            // the worker waits for T1, so both receipts of T2 stay queued
+            CompletableFuture<MSS_ReceiptResp> first  = receipts.send(receipt("T2"));
+            CompletableFuture<MSS_ReceiptResp> second = receipts.send(receipt("T2"));
+            Assertions.assertSame(first, second);
+            Assertions.assertEquals(1, receipts.getCoalescedCount());
+            Assertions.assertEquals(1, receipts.getQueuedCount());
+
+            sender.completeAll();
+            busy.get(5, TimeUnit.SECONDS);
+            waitFor(() -> sender.sent.get() == 2);
+            sender.completeAll();
+            Assertions.assertNotNull(second.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, receipts.getSentCount());
+        } finally {
+            receipts.close();
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        ReceiptDispatcher receipts = new ReceiptDispatcher(new ReceiptConfig().withRetryDelay(10).withMaxAttempts(3), req -> {
+            CompletableFuture<JsonResponse> f = new CompletableFuture<>();
+            if (attempts.incrementAndGet() < 3) {
+                f.completeExceptionally(new MssRestException(MssRestException.INTERNAL_ERROR, "Down"));
+            } else {
+                f.complete(ok());
+            }
+            return f;
+        });
+        try {
+            Assertions.assertNotNull(receipts.send(receipt("T1")).get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(3, attempts.get());
+            Assertions.assertEquals(2, receipts.getRetryCount());
+
+            // not retryable
+            ReceiptDispatcher strict = new ReceiptDispatcher(new ReceiptConfig().withRetryableCodes(), req -> {
+                CompletableFuture<JsonResponse> f = new CompletableFuture<>();
+                f.completeExceptionally(new MssRestException(MssRestException.WRONG_PARAM, "Bad"));
+                return f;
+            });
+            try {
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                                                               () -> strict.send(receipt("T2")).get(5, TimeUnit.SECONDS));
+                Assertions.assertEquals(MssRestException.WRONG_PARAM, ((MssRestException) e.getCause()).getErrorCode());
+                Assertions.assertEquals(0, strict.getRetryCount());
+                Assertions.assertEquals(1, strict.getFailedCount());
+            } finally {
+                strict.close();
+            }
+        } finally {
+            receipts.close();
+        }
+    }
+
+    @Test
+    public void testRetryIsCoalesced() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        ReceiptDispatcher receipts = new ReceiptDispatcher(new ReceiptConfig().withRetryDelay(300).withMaxAttempts(3), req -> {
+            CompletableFuture<JsonResponse> f = new CompletableFuture<>();
+            if (attempts.incrementAndGet() == 1) {
+                f.completeExceptionally(new MssRestException(MssRestException.INTERNAL_ERROR, "Down"));
+            } else {
+                f.complete(ok());
+            }
+            return f;
+        });
+        try {
+            CompletableFuture<MSS_ReceiptResp> first = receipts.send(receipt("T1"));
+            waitFor(() -> receipts.getRetryCount() == 1);
+
+            // the first receipt waits for its retry, so the second one shares it
+            CompletableFuture<MSS_ReceiptResp> second = receipts.send(receipt("T1"));
+            Assertions.assertSame(first, second);
+            Assertions.assertEquals(1, receipts.getCoalescedCount());
+            Assertions.assertNotNull(second.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, attempts.get(), "One failed attempt and one retry");
+        } finally {
+            receipts.close();
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        ManualSender sender = new ManualSender();
+        ReceiptDispatcher receipts = new ReceiptDispatcher(new ReceiptConfig().withQueueSize(5).withBatchSize(1), sender);
+        try {
+            List<CompletableFuture<MSS_ReceiptResp>> results = new ArrayList<>();
+            results.add(receipts.send(receipt("T0")));
+            waitFor(() -> sender.sent.get() == 1);
+            for (int i = 1; i <= 5; i++) {
+                results.add(receipts.send(receipt("T" + i)));
+            }
+            long start = System.nanoTime();
+            CompletableFuture<MSS_ReceiptResp> full = receipts.send(receipt("T6"));
+            Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100, "Did not block");
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> full.get(1, TimeUnit.SECONDS));
+            Assertions.assertEquals(MssRestException.TOO_MANY_REQUESTS, ((MssRestException) e.getCause()).getErrorCode());
+            Assertions.assertEquals(1, receipts.getRejectedCount());
+
+            for (CompletableFuture<MSS_ReceiptResp> result : results) {
+                while (!result.isDone()) {
+                    sender.completeAll();
+                    Thread.sleep(5);
+                }
+                Assertions.assertNotNull(result.get());
+            }
+            Assertions.assertEquals(6, receipts.getSentCount());
+        } finally {
+            receipts.close();
+        }
+    }
+
+}
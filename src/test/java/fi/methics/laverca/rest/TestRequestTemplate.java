@@ -0,0 +1,103 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonRequest.RequestType;
+import fi.methics.laverca.rest.json.MSS_ProfileReq;
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.MSS_SignatureReqBuilder;
+import fi.methics.laverca.rest.util.PreparedRequest;
+import fi.methics.laverca.rest.util.ProfileReqTemplate;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+
+public class TestRequestTemplate {
+
+    private static final String MESSAGE = "Sign \"contract\" <1> & 'two' = \u00e4\u20ac\ud83d\ude00\u2028\ud800 \n\t\u0001";
+
+    @Test
+    public void testSignatureReqIsIdentical() {
+        byte[] digest = new byte[] { 1, 2, 3, 4, 5 };
+        SignatureReqTemplate template = new SignatureReqTemplate("TestAP", "p\"wd", SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                                 DTBS.MIME_SHA256, DTBS.ENCODING_BASE64);
+        for (int timeout : new int[] { 0, 60000 }) {
+            for (String dtbd : new String[] { null, MESSAGE }) {
+                MSS_SignatureReqBuilder builder = new MSS_SignatureReqBuilder();
+                builder.withApid("TestAP");
+                builder.withAppwd("p\"wd");
+                builder.withDtbd(dtbd);
+                builder.withDtbs(new DTBS(digest, DTBS.ENCODING_BASE64, DTBS.MIME_SHA256));
+                builder.withMssFormat(MssClient.FORMAT_CMS);
+                builder.withMsisdn("+35847001001");
+                builder.withSignatureProfile(SignatureProfile.URI_AUTHN);
+                builder.withTimeout(timeout);
+                MSS_SignatureReq req = builder.build();
+
+                JsonRequest expected = new JsonRequest();
+                expected.MSS_SignatureReq = req;
+                PreparedRequest actual = template.prepare("+35847001001", digest, dtbd, timeout, req.AP_Info.AP_TransID);
+
+                Assertions.assertArrayEquals(expected.toJson().getBytes(StandardCharsets.UTF_8), actual.getBytes());
+                Assertions.assertEquals(RequestType.MSS_SignatureReq, actual.getRequestType());
+                Assertions.assertEquals(req.AP_Info.AP_TransID, actual.getApTransId());
+            }
+        }
+    }
+
+    @Test
+    public void testAuthnReqIsIdentical() {
+        SignatureReqTemplate template = new SignatureReqTemplate(null, null, SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                                 null, DTBS.ENCODING_UTF8);
+        DTBS dtbs = new DTBS(MESSAGE);
+        MSS_SignatureReq req = new MSS_SignatureReq("35847001001", dtbs, null);
+        req.SignatureProfile   = SignatureProfile.URI_AUTHN;
+        req.MSS_Format         = MssClient.FORMAT_CMS;
+        req.AP_Info.AP_TransID = "A1";
+        JsonRequest expected = new JsonRequest();
+        expected.MSS_SignatureReq = req;
+
+        PreparedRequest actual = template.prepare("35847001001", MESSAGE.getBytes(StandardCharsets.UTF_8), null, 0, "A1");
+        Assertions.assertArrayEquals(expected.toJson().getBytes(StandardCharsets.UTF_8), actual.getBytes());
+    }
+
+    @Test
+    public void testProfileReqIsIdentical() {
+        String[][] apInfos = { { "TestAP", "x" }, { "TestAP", null }, { null, "x" }, { null, null } };
+        for (String[] apInfo : apInfos) {
+            JsonRequest expected = new JsonRequest();
+            expected.MSS_ProfileReq = new MSS_ProfileReq("35847001001");
+            expected.MSS_ProfileReq.AP_Info.AP_ID  = apInfo[0];
+            expected.MSS_ProfileReq.AP_Info.AP_PWD = apInfo[1];
+
+            PreparedRequest actual = new ProfileReqTemplate(apInfo[0], apInfo[1]).prepare("35847001001");
+            Assertions.assertEquals(expected.toJson(), actual.toJson());
+        }
+    }
+
+    @Test
+    public void testClientSendsTemplate() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> TestAsyncClient.SIGNATURE_RESP)) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", "9TMzfH7EKXETOB8FT5gz")
+                                                      .build();
+            try {
+                client.authenticate("35847001001", MESSAGE, SignatureProfile.of(SignatureProfile.URI_AUTHN));
+            } finally {
+                client.close();
+            }
+            String body = mssp.getLastBody();
+            Assertions.assertTrue(body.startsWith("{\"MSS_SignatureReq\":{\"MessagingMode\":\"synch\",\"SignatureProfile\":"), body);
+            Assertions.assertTrue(body.contains("\"MobileUser\":{\"MSISDN\":\"35847001001\"}"), body);
+            Assertions.assertNotNull(mssp.getLastHeaders().getFirst("Authorization"));
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.ConnectionFailedException;
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.PreparedRequest;
+import fi.methics.laverca.rest.util.Retrier;
+import fi.methics.laverca.rest.util.RetryConfig;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+
+public class TestRetry {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile     AUTHN    = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final SignatureReqTemplate TEMPLATE = new SignatureReqTemplate("TestAP", null, SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                                                  DTBS.MIME_SHA256, DTBS.ENCODING_BASE64);
+
+    private static String fault(String code) {
+        return "{\"Fault\":{\"Code\":{\"Value\":\"env:Receiver\",\"SubCode\":{\"Value\":\"_" + code + "\"}},\"Reason\":\"TEST\"}}";
+    }
+
+    private static MssClient build(String url, RetryConfig config) {
+        return new MssClient.Builder().withRestUrl(url)
+                                      .withApiKey("TestAP", APIKEY)
+                                      .withRetry(config)
+                                      .build();
+    }
+
+    private static RetryConfig fastRetry() {
+        return new RetryConfig().withMaxAttempts(3).withBackoff(10, 50);
+    }
+
+    @Test
+    public void testProfileReqRetriedOnFault() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        try (StubMssp mssp = new StubMssp().withResponder(req -> calls.incrementAndGet() <= 2 ? fault("780") : StubMssp.PROFILE_RESP)) {
+            MssClient client = build(mssp.getUrl(), fastRetry());
+            try {
+                client.getCertificate(MSISDN, AUTHN);
+                Assertions.assertEquals(3, mssp.getRequestCount());
+                Assertions.assertEquals(2, client.getRetrier().getRetryCount());
+                Assertions.assertEquals(1, client.getRetrier().getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncProfileReqRetriedOnFault() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        try (StubMssp mssp = new StubMssp().withResponder(req -> calls.incrementAndGet() <= 1 ? fault("900") : StubMssp.PROFILE_RESP)) {
+            MssClient client = build(mssp.getUrl(), fastRetry());
+            try {
+                client.async().getCertificate(MSISDN, AUTHN).get(10, TimeUnit.SECONDS);
+                Assertions.assertEquals(2, mssp.getRequestCount());
+                Assertions.assertEquals(1, client.getRetrier().getRetryCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOtherFaultsAreNotRetried() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> fault("105"))) {
+            MssClient client = build(mssp.getUrl(), fastRetry());
+            try {
+                MssRestException e = Assertions.assertThrows(MssRestException.class, () -> client.getCertificate(MSISDN, AUTHN));
+                Assertions.assertEquals("105", e.getErrorCode());
+                Assertions.assertEquals(1, mssp.getRequestCount());
+                Assertions.assertEquals(0, client.getRetrier().getRetryCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDeliveredSignatureReqIsNotRetried() throws Exception {
+        try (StubMssp mssp = new StubMssp().withFailure(true)) {
+            MssClient client = build(mssp.getUrl(), fastRetry());
+            try {
+                PreparedRequest req = TEMPLATE.prepare(MSISDN, new byte[32], "Sign");
+                ConnectionFailedException e = Assertions.assertThrows(ConnectionFailedException.class, () -> client.getRestClient().sendReq(req));
+                Assertions.assertTrue(e.isDelivered());
+                Assertions.assertEquals(1, mssp.getRequestCount());
+
+                Assertions.assertThrows(MssRestException.class, () -> client.getCertificate(MSISDN, AUTHN));
+                Assertions.assertEquals(4, mssp.getRequestCount(), "Idempotent ProfileReq is retried");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testUnsentSignatureReqIsRetried() throws Exception {
+        String url;
+        try (StubMssp mssp = new StubMssp()) {
+            url = mssp.getUrl();
+        }
+        MssClient client = build(url, fastRetry());
+        try {
+            PreparedRequest req = TEMPLATE.prepare(MSISDN, new byte[32], "Sign");
+            ConnectionFailedException e = Assertions.assertThrows(ConnectionFailedException.class, () -> client.getRestClient().sendReq(req));
+            Assertions.assertFalse(e.isDelivered());
+            Assertions.assertEquals(2, client.getRetrier().getRetryCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRetryRespectsTimeOut() throws Exception {
+        String url;
+        try (StubMssp mssp = new StubMssp()) {
+            url = mssp.getUrl();
+        }
+        MssClient client = build(url, new RetryConfig().withMaxAttempts(3).withBackoff(500, 500));
+        try {
+            PreparedRequest req = TEMPLATE.prepare(MSISDN, new byte[32], "Sign", 200, "A1");
+            Assertions.assertThrows(ConnectionFailedException.class, () -> client.getRestClient().sendReq(req));
+            Assertions.assertEquals(0, client.getRetrier().getRetryCount());
+            Assertions.assertEquals(1, client.getRetrier().getDeadlineReachedCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRetryBudget() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> fault("780"))) {
+            MssClient client = build(mssp.getUrl(), fastRetry().withMaxRetryBurst(3).withBudgetPercent(0));
+            try {
+                for (int i = 0; i < 3; i++) {
+                    Assertions.assertThrows(MssRestException.class, () -> client.getCertificate(MSISDN, AUTHN));
+                }
+                Retrier retrier = client.getRetrier();
+                Assertions.assertEquals(3, retrier.getRetryCount(), "Budget allows three retries in total");
+                Assertions.assertEquals(6, mssp.getRequestCount());
+                Assertions.assertEquals(2, retrier.getBudgetExhaustedCount());
+                Assertions.assertEquals(0, retrier.getAvailableBudget(), 1e-9);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        try (StubMssp mssp = new StubMssp().withResponder(req -> fault("780"))) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl()).withApiKey("TestAP", APIKEY).build();
+            try {
+                Assertions.assertThrows(MssRestException.class, () -> client.getCertificate(MSISDN, AUTHN));
+                Assertions.assertEquals(1, mssp.getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SingleFlight;
+
+public class TestSingleFlight {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+
+    @Test
+    public void testSharedCall() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletableFuture<String> first  = flights.run("a", k -> { calls.incrementAndGet(); return pending; });
+        CompletableFuture<String> second = flights.run("a", k -> { calls.incrementAndGet(); return pending; });
+        CompletableFuture<String> other  = flights.run("b", k -> { calls.incrementAndGet(); return CompletableFuture.completedFuture(k); });
+        Assertions.assertEquals("b", other.get());
+        Assertions.assertEquals(2, calls.get(), "Same key shares the call");
+        Assertions.assertEquals(1, flights.getSharedCount());
+        Assertions.assertEquals(1, flights.getInFlightCount());
+
+        second.cancel(false);
+        Assertions.assertFalse(first.isDone(), "Cancelling one caller does not cancel the shared call");
+        pending.complete("A");
+        Assertions.assertEquals("A", first.get());
+        Assertions.assertEquals(0, flights.getInFlightCount());
+
+        flights.run("a", k -> { calls.incrementAndGet(); return CompletableFuture.completedFuture("A2"); });
+        Assertions.assertEquals(3, calls.get(), "Completed call is not reused");
+
+        CompletableFuture<String> failed = flights.run("c", k -> { throw new MssRestException(MssRestException.INTERNAL_ERROR, "Test"); });
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> failed.get());
+        Assertions.assertTrue(e.getCause() instanceof MssRestException);
+        Assertions.assertEquals(0, flights.getInFlightCount());
+        Assertions.assertEquals(4, flights.getCallCount());
+    }
+
+    @Test
+    public void testConcurrentProfileQueries() throws Exception {
+        AtomicInteger profileQueries = new AtomicInteger();
+        StubMssp stub = new StubMssp().withDelay(300).withResponder(req -> {
+            profileQueries.incrementAndGet();
+            return StubMssp.PROFILE_RESP;
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try (StubMssp mssp = stub) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withProfileQueryCoalescing(true)
+                                                      .build();
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    final boolean list = i % 2 == 0;
+                    results.add(pool.submit(() -> {
+                        start.await();
+                        if (list) {
+                            Map<SignatureProfile, MssCertificate> certs = client.listCertificates(MSISDN);
+                            certs.clear(); // callers get their own copy
+                            return certs;
+                        }
+                        return client.getCertificate(MSISDN, AUTHN);
+                    }));
+                }
+                CompletableFuture<MssCertificate> async = client.async().getCertificate(MSISDN, AUTHN);
+                start.countDown();
+                for (Future<?> f : results) {
+                    f.get(10, TimeUnit.SECONDS);
+                }
+                Assertions.assertSame(MssCertificate.EMPTY, async.get(10, TimeUnit.SECONDS));
+                Assertions.assertEquals(1, profileQueries.get(), "Concurrent lookups share one MSS_ProfileReq");
+                Assertions.assertEquals(8, client.getProfileQueries().getSharedCount());
+
+                Assertions.assertTrue(client.listCertificates(MSISDN).isEmpty());
+                Assertions.assertEquals(2, profileQueries.get(), "Results are not cached");
+            } finally {
+                client.close();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
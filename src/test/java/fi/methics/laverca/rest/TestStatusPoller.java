@@ -0,0 +1,334 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.util.ConnectionPoolConfig;
+import fi.methics.laverca.rest.util.Deadline;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.PollingConfig;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.StatusPoller;
+import fi.methics.laverca.rest.util.TransactionRegistry;
+
+public class TestStatusPoller {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN    = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final Pattern          TRANSID  = Pattern.compile("\"MSSP_TransID\":\"([^\"]+)\"");
+    private static final String           CANCEL   = "{\"Fault\":{\"Code\":{\"Value\":\"env:Receiver\",\"SubCode\":{\"Value\":\"_401\"}},\"Reason\":\"USER_CANCEL\"}}";
+
+    private static String ack(final String transId) {
+        return "{\"MSS_SignatureResp\":{\"MSSP_TransID\":\"" + transId + "\",\"SignatureProfile\":\"" + SignatureProfile.URI_AUTHN + "\","
+             + "\"Status\":{\"StatusCode\":{\"Value\":\"100\"}}}}";
+    }
+
+    private static String status(final String code) {
+        return "{\"MSS_StatusResp\":{\"MobileUser\":{\"MSISDN\":\"" + MSISDN + "\"},"
+             + ("500".equals(code) ? "\"MSS_Signature\":{\"Base64Signature\":\"AAEC\"}," : "")
+             + "\"Status\":{\"StatusCode\":{\"Value\":\"" + code + "\"}}}}";
+    }
+
+    /**
+     * Stub MSSP that acknowledges each asynchClientServer signature with a new MSSP_TransID,
+     * answers the first given number of status queries of each transaction with 504 and then with given final status
+     */
+    private static StubMssp asynch(final int outstanding, final String result, final AtomicInteger polls) throws Exception {
+        final AtomicInteger              transIds = new AtomicInteger();
+        final Map<String, AtomicInteger> queries  = new ConcurrentHashMap<>();
+        return new StubMssp().withResponder(req -> {
+            if (req.contains("MSS_SignatureReq")) {
+                Assertions.assertTrue(req.contains("\"MessagingMode\":\"asynchClientServer\""), req);
+                return ack("T" + transIds.incrementAndGet());
+            }
+            polls.incrementAndGet();
+            Matcher m = TRANSID.matcher(req);
+            Assertions.assertTrue(m.find(), req);
+            int n = queries.computeIfAbsent(m.group(1), k -> new AtomicInteger()).incrementAndGet();
+            return n <= outstanding ? status(MSS_SignatureResp.STATUS_OUTSTANDING) : result;
+        });
+    }
+
+    private static MssClient newClient(final StubMssp mssp, final StatusPoller poller, final TransactionRegistry registry) {
+        return new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                      .withApiKey("TestAP", APIKEY)
+                                      .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_CLIENT_SERVER)
+                                      .withStatusPoller(poller)
+                                      .withTransactionRegistry(registry)
+                                      .withConnectionPool(new ConnectionPoolConfig().withMaxTotal(200)
+                                                                                    .withMaxPerRoute(200)
+                                                                                    .withIoThreads(2))
+                                      .build();
+    }
+
+    private static PollingConfig fast() {
+        return new PollingConfig().withInitialDelay(50).withMinInterval(20).withMaxInterval(100);
+    }
+
+    @Test
+    public void testPollUntilSigned() throws Exception {
+        StatusPoller poller = new StatusPoller(fast());
+        TransactionRegistry registry = new TransactionRegistry();
+        AtomicInteger polls = new AtomicInteger();
+        try (StubMssp mssp = asynch(2, status(MSS_SignatureResp.STATUS_SIGNATURE), polls)) {
+            MssClient client = newClient(mssp, poller, registry);
+            try {
+                MSS_SignatureResp resp = client.authenticate(MSISDN, "Login", AUTHN);
+                Assertions.assertTrue(resp.isSuccessful(), "Final status is returned");
+                Assertions.assertEquals("T1", resp.MSSP_TransID);
+                Assertions.assertEquals(SignatureProfile.URI_AUTHN, resp.SignatureProfile);
+                Assertions.assertEquals(MSISDN, resp.getMsisdn());
+                Assertions.assertEquals(3, polls.get(), "Polled until the user signed");
+
+                CompletableFuture<MSS_SignatureResp> async = client.async().authenticate(MSISDN, "Login again", AUTHN);
+                long wait = System.currentTimeMillis() + 5000;
+                while (poller.getPendingCount() == 0 && !async.isDone() && System.currentTimeMillis() < wait) {
+                    Thread.sleep(5);
+                }
+                Assertions.assertNotNull(registry.find("T2"), "Pending transaction is found by MSSP_TransID");
+                Assertions.assertTrue(async.get(10, TimeUnit.SECONDS).isSuccessful());
+                Assertions.assertNull(registry.find("T2"));
+                Assertions.assertEquals(0, poller.getPendingCount());
+                Assertions.assertEquals(2, poller.getCompletedCount());
+            } finally {
+                client.close();
+                poller.close();
+            }
+        }
+    }
+
+    @Test
+    public void testStatusQueryHasApInfo() throws Exception {
+        StatusPoller poller = new StatusPoller(fast());
+        try (StubMssp mssp = asynch(0, status(MSS_SignatureResp.STATUS_SIGNATURE), new AtomicInteger())) {
+            MssClient client = newClient(mssp, poller, null);
+            MssClient basic  = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withPassword("TestAP", APIKEY)
+                                                      .withAppwd("secret")
+                                                      .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_CLIENT_SERVER)
+                                                      .withStatusPoller(poller)
+                                                      .build();
+            try {
+                Assertions.assertTrue(client.authenticate(MSISDN, "Login", AUTHN).isSuccessful());
+                Assertions.assertTrue(mssp.getLastBody().contains("\"MSS_StatusReq\""), mssp.getLastBody());
+                Assertions.assertTrue(mssp.getLastBody().contains("\"AP_ID\":\"TestAP\""), mssp.getLastBody());
+                Assertions.assertTrue(mssp.getLastBody().contains("\"AP_PWD\":\"x\""), "Default AP_PWD: " + mssp.getLastBody());
+
+                Assertions.assertTrue(basic.authenticate(MSISDN, "Login", AUTHN).isSuccessful());
+                Assertions.assertTrue(mssp.getLastBody().contains("\"MSS_StatusReq\""), mssp.getLastBody());
+                Assertions.assertTrue(mssp.getLastBody().contains("\"AP_PWD\":\"secret\""), mssp.getLastBody());
+            } finally {
+                client.close();
+                basic.close();
+                poller.close();
+            }
+        }
+    }
+
+    @Test
+    public void testFaultEndsPolling() throws Exception {
+        StatusPoller poller = new StatusPoller(fast());
+        try (StubMssp mssp = asynch(1, CANCEL, new AtomicInteger())) {
+            MssClient client = newClient(mssp, poller, null);
+            try {
+                MssRestException e = Assertions.assertThrows(MssRestException.class, () -> client.authenticate(MSISDN, "Login", AUTHN));
+                Assertions.assertEquals("401", e.getErrorCode());
+                Assertions.assertEquals(1, poller.getFailedCount());
+            } finally {
+                client.close();
+                poller.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCancelStopsPolling() throws Exception {
+        StatusPoller poller = new StatusPoller(fast());
+        AtomicInteger polls = new AtomicInteger();
+        try (StubMssp mssp = asynch(Integer.MAX_VALUE, null, polls)) {
+            MssClient client = newClient(mssp, poller, null);
+            try {
+                Deadline deadline = Deadline.after(30, TimeUnit.SECONDS);
+                CompletableFuture<MSS_SignatureResp> resp = client.async().authenticate(MSISDN, "Login", AUTHN, deadline);
+                long wait = System.currentTimeMillis() + 5000;
+                while (polls.get() < 2 && System.currentTimeMillis() < wait) {
+                    Thread.sleep(5);
+                }
+                deadline.cancel();
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> resp.get(1, TimeUnit.SECONDS));
+                Assertions.assertEquals(MssRestException.CANCELLED, ((MssRestException) e.getCause()).getErrorCode());
+                Assertions.assertEquals(0, poller.getPendingCount());
+
+                int sent = polls.get();
+                Thread.sleep(300);
+                Assertions.assertTrue(polls.get() <= sent + 1, "No status queries after cancel");
+
+                MssRestException expired = Assertions.assertThrows(MssRestException.class, () -> {
+                    client.authenticate(MSISDN, "Login", AUTHN, Deadline.after(300, TimeUnit.MILLISECONDS));
+                });
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, expired.getErrorCode());
+            } finally {
+                client.close();
+                poller.close();
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptivePolling() throws Exception {
+        StatusPoller poller = new StatusPoller(new PollingConfig().withInitialDelay(20)
+                                                                  .withMinInterval(20)
+                                                                  .withMaxInterval(100)
+                                                                  .withBackoff(1)
+                                                                  .withMinSamples(20)
+                                                                  .withQuantileStep(0.25));
+        final AtomicInteger     transIds = new AtomicInteger();
+        final Map<String, Long> acked    = new ConcurrentHashMap<>();
+        final AtomicInteger     polls    = new AtomicInteger();
+        StubMssp stub = new StubMssp().withResponder(req -> {
+            if (req.contains("MSS_SignatureReq")) {
+                String transId = "T" + transIds.incrementAndGet();
+                acked.put(transId, System.currentTimeMillis());
+                return ack(transId);
+            }
+            polls.incrementAndGet();
+            Matcher m = TRANSID.matcher(req);
+            Assertions.assertTrue(m.find(), req);
+            boolean signed = System.currentTimeMillis() - acked.get(m.group(1)) >= 600; // users take 600 ms
+            return status(signed ? MSS_SignatureResp.STATUS_SIGNATURE : MSS_SignatureResp.STATUS_OUTSTANDING);
+        });
+        try (StubMssp mssp = stub) {
+            MssClient client = newClient(mssp, poller, null);
+            try {
+                List<CompletableFuture<MSS_SignatureResp>> learning = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    learning.add(client.async().authenticate("358470" + (10000 + i), "Login", AUTHN));
+                }
+                for (CompletableFuture<MSS_SignatureResp> f : learning) {
+                    Assertions.assertTrue(f.get(10, TimeUnit.SECONDS).isSuccessful());
+                }
+                int fixed = polls.getAndSet(0);
+
+                List<CompletableFuture<MSS_SignatureResp>> adapted = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    adapted.add(client.async().authenticate("358470" + (20000 + i), "Login", AUTHN));
+                }
+                for (CompletableFuture<MSS_SignatureResp> f : adapted) {
+                    Assertions.assertTrue(f.get(10, TimeUnit.SECONDS).isSuccessful());
+                }
+                Assertions.assertTrue(polls.get() * 3 < fixed, "Polls at a fixed interval: " + fixed + ", adapted: " + polls.get());
+            } finally {
+                client.close();
+                poller.close();
+            }
+        }
+    }
+
+    @Test
+    public void testUnansweredTransactionBacksOff() throws Exception {
+        StatusPoller poller = new StatusPoller(new PollingConfig().withInitialDelay(20)
+                                                                  .withMinInterval(20)
+                                                                  .withMaxInterval(400)
+                                                                  .withBackoff(2)
+                                                                  .withMinSamples(20)
+                                                                  .withQuantileStep(0.25)
+                                                                  .withMaxPollTime(2000));
+        final AtomicInteger     transIds = new AtomicInteger();
+        final Map<String, Long> acked    = new ConcurrentHashMap<>();
+        final AtomicInteger     polls    = new AtomicInteger();
+        StubMssp stub = new StubMssp().withResponder(req -> {
+            if (req.contains("MSS_SignatureReq")) {
+                String transId = "T" + transIds.incrementAndGet();
+                acked.put(transId, System.currentTimeMillis());
+                return ack(transId);
+            }
+            Matcher m = TRANSID.matcher(req);
+            Assertions.assertTrue(m.find(), req);
+            if ("T21".equals(m.group(1))) {
+                polls.incrementAndGet();
+                return status(MSS_SignatureResp.STATUS_OUTSTANDING); // never answers
+            }
+            boolean signed = System.currentTimeMillis() - acked.get(m.group(1)) >= 100;
+            return status(signed ? MSS_SignatureResp.STATUS_SIGNATURE : MSS_SignatureResp.STATUS_OUTSTANDING);
+        });
+        try (StubMssp mssp = stub) {
+            MssClient client = newClient(mssp, poller, null);
+            try {
+                List<CompletableFuture<MSS_SignatureResp>> learning = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    learning.add(client.async().authenticate("358470" + (10000 + i), "Login", AUTHN));
+                }
+                for (CompletableFuture<MSS_SignatureResp> f : learning) {
+                    Assertions.assertTrue(f.get(10, TimeUnit.SECONDS).isSuccessful());
+                }
+                CompletableFuture<MSS_SignatureResp> unanswered = client.async().authenticate("35847020000", "Login", AUTHN);
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> unanswered.get(10, TimeUnit.SECONDS));
+                Assertions.assertTrue(e.getCause() instanceof MssRestException, e.toString());
+                // 20, 40, 80, 160, 320, 400, 400... ms instead of every 20 ms until the max poll time
+                Assertions.assertTrue(polls.get() < 15, "Polled " + polls.get() + " times in 2 s");
+            } finally {
+                client.close();
+                poller.close();
+            }
+        }
+    }
+
+    @Test
+    public void testManyPending() throws Exception {
+        final int count = 1000;
+        StatusPoller poller = new StatusPoller(new PollingConfig().withInitialDelay(2000)
+                                                                  .withMinInterval(50));
+        AtomicInteger polls = new AtomicInteger();
+        try (StubMssp mssp = asynch(1, status(MSS_SignatureResp.STATUS_VALID_SIGNATURE), polls)) {
+            MssClient client = newClient(mssp, poller, null);
+            try {
+                List<CompletableFuture<MSS_SignatureResp>> results = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    results.add(client.async().authenticate("358470" + (10000 + i), "Login", AUTHN));
+                }
+                long wait = System.currentTimeMillis() + 10000;
+                int peak = 0;
+                while (peak < count && System.currentTimeMillis() < wait) {
+                    peak = Math.max(peak, poller.getPendingCount());
+                    Thread.sleep(5);
+                }
+                Assertions.assertEquals(count, peak, "All signatures pending at once");
+
+                Set<String> transIds = ConcurrentHashMap.newKeySet();
+                for (CompletableFuture<MSS_SignatureResp> f : results) {
+                    MSS_SignatureResp resp = f.get(30, TimeUnit.SECONDS);
+                    Assertions.assertTrue(resp.isSuccessful());
+                    transIds.add(resp.MSSP_TransID);
+                }
+                Assertions.assertEquals(count, transIds.size());
+                Assertions.assertEquals(0, poller.getPendingCount());
+                Assertions.assertTrue(polls.get() >= 2 * count);
+                long median = poller.getConfirmationTime();
+                Assertions.assertTrue(median >= 1800 && median < 5000, "Median confirmation time " + median);
+            } finally {
+                client.close();
+                poller.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.RateLimitConfig;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.TenantScheduler;
+
+public class TestTenantScheduler {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+
+    @Test
+    public void testTokenBucket() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler().withTenant("bulk", new RateLimitConfig().withRate(1).withBurst(3));
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(scheduler.tryAcquire("bulk"), "Burst of 3");
+        }
+        Assertions.assertFalse(scheduler.tryAcquire("bulk"));
+        long delay = scheduler.getDelay("bulk");
+        Assertions.assertTrue(delay > 0 && delay <= 1000, "Next token in " + delay + " ms");
+        Assertions.assertEquals(3, scheduler.getGrantedCount("bulk"));
+        Assertions.assertEquals(1, scheduler.getRejectedCount("bulk"));
+        Assertions.assertTrue(scheduler.tryAcquire("other"), "No limit for other APs by default");
+        Assertions.assertTrue(scheduler.acquire("bulk", 2000), "Waits for the next token");
+    }
+
+    @Test
+    public void testSharedBetweenClients() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler().withTenant("bulk", new RateLimitConfig().withRate(0.1).withBurst(2));
+        try (StubMssp mssp = new StubMssp()) {
+            MssClient bulk  = new MssClient.Builder().withRestUrl(mssp.getUrl()).withApiKey("bulk",  APIKEY).withScheduler(scheduler).build();
+            MssClient login = new MssClient.Builder().withRestUrl(mssp.getUrl()).withApiKey("login", APIKEY).withScheduler(scheduler).build();
+            try {
+                bulk.getCertificate(MSISDN, AUTHN);
+                bulk.getCertificate(MSISDN, AUTHN);
+                MssRestException e = Assertions.assertThrows(MssRestException.class, () -> bulk.getCertificate(MSISDN, AUTHN));
+                Assertions.assertEquals(MssRestException.TOO_MANY_REQUESTS, e.getErrorCode());
+                Assertions.assertEquals(2, mssp.getRequestCount(), "Rejected request is not sent");
+
+                login.getCertificate(MSISDN, AUTHN);
+                Assertions.assertEquals(3, mssp.getRequestCount());
+                Assertions.assertSame(scheduler, login.getScheduler());
+            } finally {
+                bulk.close();
+                login.close();
+            }
+        }
+    }
+
+    @Test
+    public void testWeightedFairQueuing() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler().withGlobalLimit(new RateLimitConfig().withRate(100).withBurst(1))
+                                                         .withTenant("noisy", RateLimitConfig.unlimited().withWeight(1))
+                                                         .withTenant("heavy", RateLimitConfig.unlimited().withWeight(3));
+        ExecutorService pool = Executors.newFixedThreadPool(12);
+        AtomicBoolean   stop = new AtomicBoolean();
+        try {
+            for (int i = 0; i < 12; i++) {
+                String ap = i < 10 ? "noisy" : "heavy"; // noisy AP has five times the callers
+                pool.submit(() -> {
+                    while (!stop.get()) {
+                        scheduler.acquire(ap, 1000);
+                    }
+                });
+            }
+            Thread.sleep(1500);
+        } finally {
+            stop.set(true);
+            pool.shutdown();
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        double noisy = scheduler.getGrantedCount("noisy");
+        double heavy = scheduler.getGrantedCount("heavy");
+        double ratio = heavy / noisy;
+        Assertions.assertTrue(noisy + heavy <= 160, "Global rate holds: " + (noisy + heavy));
+        Assertions.assertTrue(ratio > 2 && ratio < 4, "Weight 3 gets three times the share: " + scheduler);
+    }
+
+    @Test
+    public void testTryAcquireDoesNotJumpTheQueue() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler().withGlobalLimit(new RateLimitConfig().withRate(2).withBurst(1));
+        Assertions.assertTrue(scheduler.tryAcquire("a"));
+        Thread waiter = new Thread(() -> scheduler.acquire("a", 5000));
+        waiter.start();
+        while (scheduler.getQueueLength() == 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(600); // the next token is free now, but it belongs to the waiter
+        Assertions.assertFalse(scheduler.tryAcquire("b"));
+        waiter.join(5000);
+        Assertions.assertEquals(2, scheduler.getGrantedCount("a"));
+    }
+
+    @Test
+    public void testGivingUpDoesNotCostTheTurn() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler().withGlobalLimit(new RateLimitConfig().withRate(2).withBurst(1));
+        Assertions.assertTrue(scheduler.tryAcquire("c"));
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertFalse(scheduler.acquire("a", 1), "Times out before the next token");
+        }
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Thread a = new Thread(() -> { if (scheduler.acquire("a", 5000)) order.add("a"); });
+        Thread b = new Thread(() -> { if (scheduler.acquire("b", 5000)) order.add("b"); });
+        a.start();
+        while (scheduler.getQueueLength() < 1) {
+            Thread.sleep(1);
+        }
+        b.start();
+        while (scheduler.getQueueLength() < 2) {
+            Thread.sleep(1);
+        }
+        a.join(5000);
+        b.join(5000);
+        Assertions.assertEquals(Arrays.asList("a", "b"), order, "Requests that gave up took no start tags: " + scheduler);
+        Assertions.assertEquals(0, scheduler.getQueueLength());
+    }
+
+}
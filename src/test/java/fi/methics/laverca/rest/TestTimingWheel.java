@@ -0,0 +1,99 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.TimingWheel;
+
+public class TestTimingWheel {
+
+    @Test
+    public void testFiresOnTimeAcrossWheels() throws Exception {
+        // 4 slots of 1 ms per wheel: delays over 4, 16 and 64 ms move down from coarser wheels,
+        // and delays over 256 ms wrap the coarsest wheel
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 4);
+        try {
+            final int           count = 300;
+            final Random        random = new Random(1);
+            final CountDownLatch fired = new CountDownLatch(count);
+            final AtomicInteger early  = new AtomicInteger();
+            final AtomicLong    late   = new AtomicLong();
+            for (int i = 0; i < count; i++) {
+                final long delay = random.nextInt(600);
+                final long start = System.nanoTime();
+                wheel.schedule(() -> {
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (elapsed < delay) {
+                        early.incrementAndGet();
+                    }
+                    late.accumulateAndGet(elapsed - delay, Math::max);
+                    fired.countDown();
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            Assertions.assertTrue(fired.await(5, TimeUnit.SECONDS), "All timers fired");
+            Assertions.assertEquals(0, early.get(), "No timer fires early");
+            Assertions.assertTrue(late.get() < 200, "Latest timer was " + late.get() + " ms late");
+            Assertions.assertEquals(0, wheel.getPendingCount());
+            Assertions.assertEquals(count, wheel.getExpiredCount());
+        } finally {
+            wheel.close();
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        TimingWheel wheel = new TimingWheel(5, TimeUnit.MILLISECONDS, 64);
+        try {
+            final AtomicInteger fired = new AtomicInteger();
+            List<TimingWheel.Timeout> timeouts = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                timeouts.add(wheel.schedule(fired::incrementAndGet, 100 + i % 1000, TimeUnit.MILLISECONDS));
+            }
+            for (int i = 0; i < timeouts.size(); i += 2) {
+                Assertions.assertTrue(timeouts.get(i).cancel());
+                Assertions.assertFalse(timeouts.get(i).cancel(), "Cancelled once");
+            }
+            Assertions.assertEquals(500, wheel.getPendingCount());
+
+            long wait = System.currentTimeMillis() + 5000;
+            while (wheel.getPendingCount() > 0 && System.currentTimeMillis() < wait) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(500, fired.get());
+            Assertions.assertTrue(timeouts.get(1).isExpired());
+            Assertions.assertFalse(timeouts.get(1).cancel(), "Fired timer cannot be cancelled");
+            Assertions.assertTrue(timeouts.get(0).isCancelled());
+        } finally {
+            wheel.close();
+        }
+    }
+
+    @Test
+    public void testManyTimers() throws Exception {
+        TimingWheel wheel = new TimingWheel();
+        try {
+            final int            count = 200000;
+            final CountDownLatch fired = new CountDownLatch(count);
+            final Random         random = new Random(2);
+            for (int i = 0; i < count; i++) {
+                wheel.schedule(fired::countDown, random.nextInt(1000), TimeUnit.MILLISECONDS);
+            }
+            Assertions.assertTrue(fired.await(10, TimeUnit.SECONDS), "All timers fired");
+            Assertions.assertEquals(0, wheel.getPendingCount());
+        } finally {
+            wheel.close();
+        }
+    }
+
+}
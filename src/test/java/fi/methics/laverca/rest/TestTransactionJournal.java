@@ -0,0 +1,343 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.util.JournalConfig;
+import fi.methics.laverca.rest.util.PollingConfig;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.StatusPoller;
+import fi.methics.laverca.rest.util.TransactionJournal;
+
+public class TestTransactionJournal {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile AUTHN = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+
+    private static TransactionJournal.Entry entry(final int i, final long deadline) {
+        return new TransactionJournal.Entry("T" + i, "A" + i, "TestAP", "358470" + (10000 + i), SignatureProfile.URI_AUTHN, deadline);
+    }
+
+    private static long inOneHour() {
+        return System.currentTimeMillis() + 3600000;
+    }
+
+    private static void delete(final Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            Path file = dir.resolve("mss.journal");
+            TransactionJournal journal = new TransactionJournal(file, new JournalConfig());
+            Assertions.assertTrue(journal.getRecovered().isEmpty());
+            for (int i = 0; i < 100; i++) {
+                journal.begin(entry(i, i == 99 ? System.currentTimeMillis() + 100 : inOneHour()));
+            }
+            for (int i = 0; i < 100; i += 2) {
+                journal.end("T" + i);
+            }
+            journal.end("unknown");
+            Assertions.assertEquals(50, journal.getPendingCount());
+            Assertions.assertEquals(150, journal.getAppendCount(), "Unknown transaction is not journaled");
+            journal.close();
+            journal.begin(entry(1000, inOneHour()));
+            Assertions.assertEquals(150, journal.getAppendCount(), "Closed journal ignores appends");
+            Thread.sleep(150);
+
+            journal = new TransactionJournal(file, new JournalConfig());
+            try {
+                List<TransactionJournal.Entry> recovered = journal.getRecovered();
+                Assertions.assertEquals(49, recovered.size(), "Ended and expired transactions are not recovered");
+                Set<String> ids = new HashSet<>();
+                for (TransactionJournal.Entry e : recovered) {
+                    ids.add(e.getMsspTransId());
+                    int i = Integer.parseInt(e.getMsspTransId().substring(1));
+                    Assertions.assertEquals("A" + i, e.getApTransId());
+                    Assertions.assertEquals("358470" + (10000 + i), e.getMsisdn());
+                    Assertions.assertEquals("TestAP", e.getApId());
+                    Assertions.assertEquals(SignatureProfile.URI_AUTHN, e.getSignatureProfile());
+                }
+                for (int i = 1; i < 99; i += 2) {
+                    Assertions.assertTrue(ids.contains("T" + i), "T" + i);
+                }
+                Assertions.assertEquals(49, journal.getPendingCount());
+            } finally {
+                journal.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            Path file = dir.resolve("mss.journal");
+            TransactionJournal journal = new TransactionJournal(file, new JournalConfig().withCapacity(8192));
+            try {
+                for (int i = 0; i < 10000; i++) {
+                    journal.begin(entry(i, inOneHour()));
+                    if (i >= 10) {
+                        journal.end("T" + (i - 10));
+                    }
+                }
+                Assertions.assertEquals(10, journal.getPendingCount());
+                // Appends faster than the flusher compacts grow the file instead of compacting on the caller thread
+                journal.compact();
+                Assertions.assertTrue(journal.getCompactionCount() > 0);
+                Assertions.assertEquals(8192, journal.getCapacity(), "Compacted journal shrinks back while few transactions are pending");
+                Assertions.assertEquals(8192, Files.size(file));
+
+                for (int i = 0; i < 1000; i++) {
+                    journal.begin(entry(20000 + i, inOneHour()));
+                }
+                Assertions.assertEquals(1010, journal.getPendingCount());
+                Assertions.assertTrue(journal.getCapacity() > 8192, "Journal grows with the pending transactions");
+                journal.compact();
+                Assertions.assertTrue(journal.getCapacity() > 8192, "Compaction keeps room for the pending transactions");
+            } finally {
+                journal.close();
+            }
+            Assertions.assertFalse(Files.exists(dir.resolve("mss.journal.tmp")));
+            journal = new TransactionJournal(file, new JournalConfig().withCapacity(8192));
+            try {
+                Assertions.assertEquals(1010, journal.getRecovered().size());
+            } finally {
+                journal.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testCompactionWhileAppending() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            Path file = dir.resolve("mss.journal");
+            TransactionJournal journal = new TransactionJournal(file, new JournalConfig().withCapacity(8192));
+            Set<String> pending = ConcurrentHashMap.newKeySet();
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    final int base = t * 100000;
+                    writers.add(pool.submit(() -> {
+                        for (int i = base; i < base + 5000; i++) {
+                            journal.begin(entry(i, inOneHour()));
+                            if (i % 2 == 0) {
+                                journal.end("T" + i);
+                            } else {
+                                pending.add("T" + i);
+                            }
+                        }
+                    }));
+                }
+                while (!writers.stream().allMatch(Future::isDone)) {
+                    journal.compact(); // records appended while the new file is written are copied over
+                }
+                for (Future<?> f : writers) {
+                    f.get();
+                }
+                Assertions.assertEquals(10000, journal.getPendingCount());
+                Assertions.assertTrue(journal.getCompactionCount() > 1);
+            } finally {
+                pool.shutdown();
+                journal.close();
+            }
+            TransactionJournal reopened = new TransactionJournal(file, new JournalConfig().withCapacity(8192));
+            try {
+                Set<String> recovered = new HashSet<>();
+                reopened.getRecovered().forEach(e -> recovered.add(e.getMsspTransId()));
+                Assertions.assertEquals(pending, recovered);
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * @return number of memory mappings of files in given directory, or -1 if not known on this platform
+     */
+    private static long mappings(final Path dir) throws IOException {
+        Path maps = java.nio.file.Paths.get("/proc/self/maps");
+        if (!Files.isReadable(maps)) {
+            return -1;
+        }
+        try (Stream<String> lines = Files.lines(maps)) {
+            return lines.filter(l -> l.contains(dir.toString())).count();
+        }
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            Path file = dir.resolve("mss.journal");
+            TransactionJournal journal = new TransactionJournal(file, new JournalConfig().withCapacity(4096));
+            try {
+                for (int i = 0; i < 2000; i++) {
+                    journal.begin(entry(i, inOneHour()));
+                }
+                Assertions.assertTrue(journal.getCapacity() >= 2000 * 64, "Full journal grows");
+                for (int i = 0; i < 3; i++) {
+                    journal.compact();
+                }
+                long mapped = mappings(dir);
+                Assertions.assertTrue(mapped == -1 || mapped == 1, "Replaced files are unmapped: " + mapped);
+            } finally {
+                journal.close();
+            }
+            long mapped = mappings(dir);
+            Assertions.assertTrue(mapped <= 0, "Closed journal is unmapped: " + mapped);
+
+            journal = new TransactionJournal(file, new JournalConfig().withCapacity(4096));
+            try {
+                Assertions.assertEquals(2000, journal.getRecovered().size());
+            } finally {
+                journal.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        try {
+            Path file = dir.resolve("mss.journal");
+            TransactionJournal journal = new TransactionJournal(file, new JournalConfig().withSyncCommit(true));
+            for (int i = 0; i < 3; i++) {
+                journal.begin(entry(i, inOneHour()));
+            }
+            Assertions.assertTrue(journal.getFlushCount() > 0, "Sync commit waits for a flush");
+            journal.close();
+
+            // Corrupt the last record as if the process died while writing it
+            long length = 0;
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                for (int i = 0; i < 2; i++) {
+                    raf.seek(length);
+                    length += 8 + raf.readInt();
+                }
+                raf.seek(length + 20);
+                raf.write(0x7f);
+            }
+            journal = new TransactionJournal(file, new JournalConfig());
+            try {
+                Assertions.assertEquals(2, journal.getRecovered().size(), "Records before the torn one are recovered");
+                journal.begin(entry(3, inOneHour()));
+                Assertions.assertEquals(3, journal.getPendingCount());
+            } finally {
+                journal.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testResumeAfterRestart() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        final AtomicBoolean signed     = new AtomicBoolean();
+        final AtomicInteger signatures = new AtomicInteger();
+        StubMssp stub = new StubMssp().withResponder(req -> {
+            if (req.contains("MSS_SignatureReq")) {
+                return "{\"MSS_SignatureResp\":{\"MSSP_TransID\":\"T" + signatures.incrementAndGet() + "\","
+                     + "\"SignatureProfile\":\"" + SignatureProfile.URI_AUTHN + "\",\"Status\":{\"StatusCode\":{\"Value\":\"100\"}}}}";
+            }
+            Assertions.assertTrue(req.contains("\"MSSP_TransID\":\"T1\""), req);
+            String code = signed.get() ? MSS_SignatureResp.STATUS_SIGNATURE : MSS_SignatureResp.STATUS_OUTSTANDING;
+            return "{\"MSS_StatusResp\":{\"MobileUser\":{\"MSISDN\":\"" + MSISDN + "\"},"
+                 + (signed.get() ? "\"MSS_Signature\":{\"Base64Signature\":\"AAEC\"}," : "")
+                 + "\"Status\":{\"StatusCode\":{\"Value\":\"" + code + "\"}}}}";
+        });
+        PollingConfig polling = new PollingConfig().withInitialDelay(20).withMinInterval(20).withMaxInterval(50);
+        try (StubMssp mssp = stub) {
+            Path file = dir.resolve("mss.journal");
+
+            // First run: the application stops while the user has not yet signed
+            StatusPoller poller = new StatusPoller(polling);
+            TransactionJournal journal = new TransactionJournal(file, new JournalConfig());
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_CLIENT_SERVER)
+                                                      .withStatusPoller(poller)
+                                                      .withJournal(journal)
+                                                      .build();
+            CompletableFuture<MSS_SignatureResp> pending = client.async().authenticate(MSISDN, "Login", AUTHN);
+            long wait = System.currentTimeMillis() + 5000;
+            while (journal.getPendingCount() == 0 && System.currentTimeMillis() < wait) {
+                Thread.sleep(5);
+            }
+            Assertions.assertFalse(pending.isDone(), String.valueOf(pending));
+            Assertions.assertEquals(1, journal.getPendingCount());
+            client.close();
+            poller.close();
+
+            // Second run: the pending signature is resumed without a new request
+            poller  = new StatusPoller(polling);
+            journal = new TransactionJournal(file, new JournalConfig());
+            client  = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                             .withApiKey("TestAP", APIKEY)
+                                             .withMessagingMode(MSS_SignatureReq.MODE_ASYNCH_CLIENT_SERVER)
+                                             .withStatusPoller(poller)
+                                             .withJournal(journal)
+                                             .build();
+            try {
+                Assertions.assertEquals(1, journal.getRecovered().size());
+                signed.set(true);
+                Map<String, CompletableFuture<MSS_SignatureResp>> resumed = client.resumePending();
+                Assertions.assertEquals(1, resumed.size());
+                MSS_SignatureResp resp = resumed.values().iterator().next().get(10, TimeUnit.SECONDS);
+                Assertions.assertTrue(resp.isSuccessful());
+                Assertions.assertEquals("T1", resp.MSSP_TransID);
+                Assertions.assertEquals(MSISDN, resp.getMsisdn());
+                Assertions.assertEquals(1, signatures.get(), "Signature was not requested again");
+                Assertions.assertEquals(0, journal.getPendingCount());
+            } finally {
+                client.close();
+                poller.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_SignatureResp;
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.Deadline;
+import fi.methics.laverca.rest.util.MssRestException;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+import fi.methics.laverca.rest.util.TransactionRegistry;
+
+public class TestTransactionRegistry {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    private static final SignatureProfile     AUTHN    = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+    private static final SignatureReqTemplate TEMPLATE = new SignatureReqTemplate("TestAP", null, SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                                                  DTBS.MIME_SHA256, DTBS.ENCODING_BASE64);
+
+    /**
+     * Stub MSSP that answers signatures after given delay and records the peak number of requests in progress
+     */
+    private static StubMssp signatures(final long delay, final AtomicInteger peak) throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        return new StubMssp().withResponder(req -> {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                active.decrementAndGet();
+            }
+            return TestAsyncClient.SIGNATURE_RESP;
+        });
+    }
+
+    private static MssClient newClient(final StubMssp mssp, final TransactionRegistry registry) {
+        return new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                      .withApiKey("TestAP", APIKEY)
+                                      .withTransactionRegistry(registry)
+                                      .build();
+    }
+
+    @Test
+    public void testIdenticalRequestsCoalesce() throws Exception {
+        TransactionRegistry registry = new TransactionRegistry();
+        try (StubMssp mssp = signatures(500, new AtomicInteger())) {
+            MssClient client = newClient(mssp, registry);
+            try {
+                List<CompletableFuture<MSS_SignatureResp>> results = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    results.add(CompletableFuture.supplyAsync(() -> client.authenticate(MSISDN, "Login", AUTHN)));
+                }
+                results.add(client.async().authenticate(MSISDN, "Login", AUTHN));
+                for (CompletableFuture<MSS_SignatureResp> f : results) {
+                    Assertions.assertEquals("T1", f.get(10, TimeUnit.SECONDS).MSSP_TransID);
+                }
+                Assertions.assertEquals(1, mssp.getRequestCount(), "Double submits reach the MSSP once");
+                Assertions.assertEquals(4, registry.getCoalescedCount());
+                Assertions.assertEquals(0, registry.getPendingCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSameUserIsQueued() throws Exception {
+        TransactionRegistry registry = new TransactionRegistry();
+        AtomicInteger peak = new AtomicInteger();
+        try (StubMssp mssp = signatures(200, peak)) {
+            MssClient client = newClient(mssp, registry);
+            try {
+                List<CompletableFuture<MSS_SignatureResp>> results = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    String message = "Sign " + i;
+                    results.add(CompletableFuture.supplyAsync(() -> client.authenticate(MSISDN, message, AUTHN)));
+                }
+                results.add(client.async().authenticate("35847001002", "Other user", AUTHN));
+                for (CompletableFuture<MSS_SignatureResp> f : results) {
+                    f.get(10, TimeUnit.SECONDS);
+                }
+                Assertions.assertEquals(4, mssp.getRequestCount());
+                Assertions.assertEquals(2, peak.get(), "One request per user at a time, users in parallel");
+                Assertions.assertEquals(2, registry.getQueuedCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testFindPendingTransaction() throws Exception {
+        TransactionRegistry registry = new TransactionRegistry();
+        try (StubMssp mssp = signatures(500, new AtomicInteger())) {
+            MssClient client = newClient(mssp, registry);
+            try {
+                CompletableFuture<JsonResponse> resp = client.getRestClient().sendReqAsync(TEMPLATE.prepare(MSISDN, new byte[32], null, 0, "A123"));
+                TransactionRegistry.Transaction tx = registry.find("A123");
+                Assertions.assertNotNull(tx);
+                Assertions.assertSame(tx, registry.findLatest(MSISDN));
+                Assertions.assertEquals(MSISDN, tx.getMsisdn());
+                Assertions.assertEquals("T1", tx.getResponse().get(10, TimeUnit.SECONDS).MSS_SignatureResp.MSSP_TransID);
+                resp.get(10, TimeUnit.SECONDS);
+                Assertions.assertNull(registry.find("A123"), "Answered transactions are removed");
+                Assertions.assertNull(registry.findLatest(MSISDN));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testQueuedRequestDroppedAtDeadline() throws Exception {
+        TransactionRegistry registry = new TransactionRegistry();
+        try (StubMssp mssp = signatures(1000, new AtomicInteger())) {
+            MssClient client = newClient(mssp, registry);
+            try {
+                CompletableFuture<MSS_SignatureResp> first = CompletableFuture.supplyAsync(() -> client.authenticate(MSISDN, "First", AUTHN));
+                long wait = System.currentTimeMillis() + 5000;
+                while (registry.getPendingCount() == 0 && System.currentTimeMillis() < wait) {
+                    Thread.sleep(5);
+                }
+                MssRestException e = Assertions.assertThrows(MssRestException.class, () -> {
+                    client.authenticate(MSISDN, "Second", AUTHN, Deadline.after(200, TimeUnit.MILLISECONDS));
+                });
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, e.getErrorCode());
+                first.get(10, TimeUnit.SECONDS);
+                Assertions.assertEquals(1, mssp.getRequestCount(), "Expired request is never sent");
+
+                client.authenticate(MSISDN, "Third", AUTHN);
+                Assertions.assertEquals(2, mssp.getRequestCount(), "Queue moves on after a dropped request");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testQueuedAsyncRequestDroppedAtDeadline() throws Exception {
+        TransactionRegistry registry = new TransactionRegistry();
+        try (StubMssp mssp = signatures(1000, new AtomicInteger())) {
+            MssClient client = newClient(mssp, registry);
+            try {
+                CompletableFuture<MSS_SignatureResp> first = client.async().authenticate(MSISDN, "First", AUTHN);
+                long start = System.currentTimeMillis();
+                CompletableFuture<MSS_SignatureResp> second = client.async().authenticate(MSISDN, "Second", AUTHN, Deadline.after(200, TimeUnit.MILLISECONDS));
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> second.get(10, TimeUnit.SECONDS));
+                long waited = System.currentTimeMillis() - start;
+
+                Assertions.assertEquals(MssRestException.DEADLINE_EXCEEDED, ((MssRestException) e.getCause()).getErrorCode());
+                Assertions.assertTrue(waited < 700, "Dropped at its deadline, not when the first request finished: " + waited + " ms");
+                Assertions.assertFalse(first.isDone());
+                Assertions.assertEquals(1, registry.getPendingCount());
+
+                first.get(10, TimeUnit.SECONDS);
+                client.authenticate(MSISDN, "Third", AUTHN);
+                Assertions.assertEquals(2, mssp.getRequestCount(), "Expired request is never sent");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
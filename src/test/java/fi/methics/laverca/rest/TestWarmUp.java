@@ -0,0 +1,139 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.methics.laverca.rest.util.RestSocketFactory;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+public class TestWarmUp {
+
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+    private static final String MSISDN = "35847001001";
+
+    @Test
+    public void testWarmUpResumesTlsSessions() throws Exception {
+        try (StubMssp mssp = StubMssp.https()) {
+            long full    = RestSocketFactory.getFullHandshakeCount();
+            long resumed = RestSocketFactory.getResumedHandshakeCount();
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withWarmUp(4)
+                                                      .build();
+            try {
+                Assertions.assertEquals(4, client.getRestClient().getPoolStats().getAvailable());
+                Assertions.assertEquals(4, (RestSocketFactory.getFullHandshakeCount() - full) + (RestSocketFactory.getResumedHandshakeCount() - resumed));
+                Assertions.assertTrue(RestSocketFactory.getResumedHandshakeCount() - resumed >= 3, "Later connections resume the first session");
+                Assertions.assertEquals(0, mssp.getRequestCount());
+
+                long handshakes = RestSocketFactory.getFullHandshakeCount() + RestSocketFactory.getResumedHandshakeCount();
+                client.getCertificate(MSISDN, SignatureProfile.of(SignatureProfile.URI_AUTHN));
+                Assertions.assertEquals(1, mssp.getRequestCount());
+                Assertions.assertEquals(handshakes, RestSocketFactory.getFullHandshakeCount() + RestSocketFactory.getResumedHandshakeCount(),
+                                        "Request uses a warmed connection");
+
+                long resumed0 = RestSocketFactory.getResumedHandshakeCount();
+                client.async().getCertificate(MSISDN, SignatureProfile.of(SignatureProfile.URI_AUTHN)).get(10, TimeUnit.SECONDS);
+                Assertions.assertEquals(resumed0 + 1, RestSocketFactory.getResumedHandshakeCount(), "Async client shares the TLS session cache");
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testWarmUpAllEndpoints() throws Exception {
+        try (StubMssp primary   = new StubMssp();
+             StubMssp secondary = new StubMssp())
+        {
+            MssClient client = new MssClient.Builder().withRestUrls(primary.getUrl(), secondary.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .build();
+            try {
+                Assertions.assertEquals(6, client.warmUp(3));
+                Assertions.assertEquals(3, client.getEndpoints().get(0).getPoolStats().getAvailable());
+                Assertions.assertEquals(3, client.getEndpoints().get(1).getPoolStats().getAvailable());
+                Assertions.assertEquals(0, primary.getRequestCount() + secondary.getRequestCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testUnreachableUrlIsSkipped() throws Exception {
+        String url;
+        try (StubMssp mssp = new StubMssp()) {
+            url = mssp.getUrl();
+        }
+        MssClient client = new MssClient.Builder().withRestUrl(url)
+                                                  .withApiKey("TestAP", APIKEY)
+                                                  .withWarmUp(2)
+                                                  .build();
+        try {
+            Assertions.assertEquals(0, client.warmUp(2));
+            Assertions.assertEquals(0, client.getRestClient().getPoolStats().getAvailable());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testWarmUpIsCappedAtRouteLimit() throws Exception {
+        try (StubMssp mssp = new StubMssp()) {
+            MssClient client = new MssClient.Builder().withRestUrl(mssp.getUrl())
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .withMaxConnections(10, 2)
+                                                      .build();
+            try {
+                long start = System.currentTimeMillis();
+                Assertions.assertEquals(2, client.warmUp(5));
+                Assertions.assertTrue(System.currentTimeMillis() - start < 1000, "No wait for connections over the route limit");
+                Assertions.assertEquals(2, client.getRestClient().getPoolStats().getAvailable());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testClosedConnectionIsNotPooled() throws Exception {
+        // TLS server that closes each connection right after the handshake
+        try (SSLServerSocket server = (SSLServerSocket) StubMssp.createSslContext().getServerSocketFactory()
+                                                                .createServerSocket(0, 10, InetAddress.getLoopbackAddress()))
+        {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (SSLSocket socket = (SSLSocket) server.accept()) {
+                        socket.startHandshake();
+                    } catch (Exception e) {
+                        // closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            InetSocketAddress address = (InetSocketAddress) server.getLocalSocketAddress();
+            MssClient client = new MssClient.Builder().withRestUrl("https://localhost:" + address.getPort() + "/rest/service")
+                                                      .withApiKey("TestAP", APIKEY)
+                                                      .build();
+            try {
+                Assertions.assertEquals(0, client.warmUp(2), "Connections closed by the server are not counted");
+                Assertions.assertEquals(0, client.getRestClient().getPoolStats().getAvailable());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+}
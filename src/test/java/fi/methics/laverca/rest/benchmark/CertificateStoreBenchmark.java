@@ -0,0 +1,163 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fi.methics.laverca.rest.TestCertificateStore;
+import fi.methics.laverca.rest.util.CertificateStore;
+
+/**
+ * Parsing certificate chains of distinct users who share the intermediate and root CA certificates.
+ * <ul>
+ * <li>factory: new CertificateFactory for each certificate, as X509Util did before</li>
+ * <li>bc: BouncyCastle CertificateFactory, which X509Util got when BC was the first registered provider</li>
+ * <li>store: {@link CertificateStore#intern(String)}</li>
+ * </ul>
+ * <p>{@link #retainedHeap(Users, Heap)} parses the chains of 100000 users once and reports the heap
+ * they retain as bytesPerUser. Its time includes the forced garbage collections around it.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.CertificateStoreBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CertificateStoreBenchmark {
+
+    private static final int USERS = 100000;
+
+    @Param({"factory", "bc", "store"})
+    public String parser;
+
+    private List<List<String>> chains;
+    private Parser             impl;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.chains = TestCertificateStore.chains(1000);
+        this.impl   = parser(this.parser);
+    }
+
+    @Benchmark
+    public Object parseChain() throws Exception {
+        List<String> chain = this.chains.get(Math.floorMod(this.next.getAndIncrement(), this.chains.size()));
+        List<X509Certificate> certs = new ArrayList<>(chain.size());
+        for (String cert : chain) {
+            certs.add(this.impl.parse(cert));
+        }
+        return certs;
+    }
+
+    /**
+     * Chains of 100000 users, created only for {@link #retainedHeap(Users, Heap)}
+     */
+    @State(Scope.Benchmark)
+    public static class Users {
+
+        private List<List<String>> chains;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            this.chains = TestCertificateStore.chains(USERS);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+
+        public long bytesPerUser;
+
+    }
+
+    /**
+     * Parse the chains of all users and keep them, as a service that has looked up every user would
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+    public Object retainedHeap(final Users users, final Heap heap) throws Exception {
+        Parser impl = parser(this.parser);
+        long before = usedHeap();
+        List<List<X509Certificate>> parsed = new ArrayList<>(users.chains.size());
+        for (List<String> chain : users.chains) {
+            List<X509Certificate> certs = new ArrayList<>(chain.size());
+            for (String cert : chain) {
+                certs.add(impl.parse(cert));
+            }
+            parsed.add(certs);
+        }
+        heap.bytesPerUser = (usedHeap() - before) / users.chains.size();
+        return parsed;
+    }
+
+    private interface Parser {
+        X509Certificate parse(String base64) throws Exception;
+    }
+
+    private static Parser parser(final String name) {
+        switch (name) {
+            case "factory":
+                return c -> (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(Base64.getDecoder().decode(c)));
+            case "bc":
+                final BouncyCastleProvider bc = new BouncyCastleProvider();
+                return c -> (X509Certificate) CertificateFactory.getInstance("X.509", bc).generateCertificate(new ByteArrayInputStream(Base64.getDecoder().decode(c)));
+            default:
+                final CertificateStore store = new CertificateStore();
+                return store::intern;
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(CertificateStoreBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}
@@ -0,0 +1,83 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fi.methics.laverca.rest.MssClient;
+import fi.methics.laverca.rest.StubMssp;
+import fi.methics.laverca.rest.util.MssCertificate;
+import fi.methics.laverca.rest.util.SignatureProfile;
+
+/**
+ * ProfileReq throughput by connection pool size against a local stub MSSP that answers in 20 ms.
+ * <p>32 threads share one client, so with a pool of n connections the expected throughput
+ * is about n / 20 ms until the pool is as large as the number of threads.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.ConnectionPoolBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class ConnectionPoolBenchmark {
+
+    private static final SignatureProfile AUTHN = SignatureProfile.of(SignatureProfile.URI_AUTHN);
+
+    @Param({"2", "8", "32"})
+    public int poolSize;
+
+    private StubMssp  mssp;
+    private MssClient client;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.mssp   = new StubMssp().withDelay(20);
+        this.client = new MssClient.Builder().withRestUrl(this.mssp.getUrl())
+                                             .withPassword("TestAP", "password")
+                                             .withMaxConnections(this.poolSize, this.poolSize)
+                                             .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.client.close();
+        this.mssp.close();
+    }
+
+    @Benchmark
+    public MssCertificate profileReq() {
+        return this.client.getCertificate("35847001001", AUTHN);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ConnectionPoolBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}
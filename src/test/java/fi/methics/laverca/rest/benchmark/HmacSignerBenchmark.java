@@ -0,0 +1,108 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.client.methods.HttpPost;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fi.methics.laverca.rest.util.HmacSigner;
+
+/**
+ * HMAC request signing: per-request Mac/SimpleDateFormat/String concatenation
+ * versus the shared {@link HmacSigner}.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.HmacSignerBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HmacSignerBenchmark {
+
+    private static final String URL    = "https://mssp.example.com/rest/service";
+    private static final String USERID = Base64.getEncoder().encodeToString("TestAP".getBytes());
+    private static final String APIKEY = "9TMzfH7EKXETOB8FT5gz";
+
+    private String     body;
+    private byte[]     bodyBytes;
+    private HmacSigner signer;
+    private HttpPost   post;
+
+    @Setup
+    public void setup() {
+        this.body      = "{\"MSS_ProfileReq\":{\"AP_Info\":{\"AP_ID\":\"TestAP\",\"AP_PWD\":\"x\"},\"MobileUser\":{\"MSISDN\":\"35847001001\"}}}";
+        this.bodyBytes = this.body.getBytes(StandardCharsets.UTF_8);
+        this.signer    = new HmacSigner(USERID, APIKEY);
+        this.post      = new HttpPost(URL);
+    }
+
+    @Benchmark
+    public HttpPost legacy() throws Exception {
+        SimpleDateFormat rfc2822 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+        String date = rfc2822.format(new Date());
+        String[] values = new String[] { date, this.post.getMethod(), this.post.getURI().getHost(), this.post.getURI().getPath(), this.body };
+        StringBuilder data = new StringBuilder();
+        for (String val : values) {
+            data.append(val);
+            data.append("\n");
+        }
+        Mac mac = Mac.getInstance("HMACSHA256");
+        mac.init(new SecretKeySpec(APIKEY.getBytes(), "RAW"));
+        byte[] digest = mac.doFinal(data.toString().getBytes());
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        String auth = USERID + ":" + hex;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Date", date);
+        headers.put("Authorization", "Basic " + Base64.getEncoder().encodeToString(auth.getBytes()));
+        headers.put("Content-Type",  "application/json");
+        for (String header : headers.keySet()) {
+            this.post.setHeader(header, headers.get(header));
+        }
+        return this.post;
+    }
+
+    @Benchmark
+    public HttpPost signer() throws Exception {
+        this.signer.sign(this.post, this.bodyBytes, 0, this.bodyBytes.length);
+        return this.post;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(HmacSignerBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}
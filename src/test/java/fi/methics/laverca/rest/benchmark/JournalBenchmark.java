@@ -0,0 +1,122 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fi.methics.laverca.rest.util.JournalConfig;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.TransactionJournal;
+
+/**
+ * Journal throughput under concurrent signing.
+ * <p>One operation is the life of one asynchronous signature in the {@link TransactionJournal}:
+ * the record written when it is acknowledged and the one written when its status is final.
+ * Four threads do this at once. With syncCommit each append waits for the group commit
+ * that covers it, otherwise the journal is forced in the background only.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.JournalBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class JournalBenchmark {
+
+    @Param({"false", "true"})
+    public boolean syncCommit;
+
+    private final AtomicLong transIds = new AtomicLong();
+
+    private Path               dir;
+    private TransactionJournal journal;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir     = Files.createTempDirectory("journal");
+        this.journal = new TransactionJournal(this.dir.resolve("mss.journal"), new JournalConfig().withSyncCommit(this.syncCommit));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.journal.close();
+        Files.deleteIfExists(this.dir.resolve("mss.journal"));
+        Files.deleteIfExists(this.dir);
+    }
+
+    /**
+     * Reports the group commits of the journal as "flushes" per second next to the throughput.
+     * The journal is shared, so only the first thread reports them.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Flushes {
+
+        public long flushes;
+
+        private long    start;
+        private boolean first;
+
+        @Setup(Level.Iteration)
+        public void start(final JournalBenchmark bench, final ThreadParams params) {
+            this.start = bench.journal.getFlushCount();
+            this.first = params.getThreadIndex() == 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void end(final JournalBenchmark bench) {
+            this.flushes = this.first ? bench.journal.getFlushCount() - this.start : 0;
+        }
+
+    }
+
+    @Benchmark
+    public void beginEnd(final Flushes flushes) {
+        long id = this.transIds.incrementAndGet();
+        String msspTransId = "T" + id;
+        this.journal.begin(new TransactionJournal.Entry(msspTransId,
+                                                        "A" + id,
+                                                        "TestAP",
+                                                        "35847001001",
+                                                        SignatureProfile.URI_AUTHN,
+                                                        System.currentTimeMillis() + 300000));
+        this.journal.end(msspTransId);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(JournalBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}
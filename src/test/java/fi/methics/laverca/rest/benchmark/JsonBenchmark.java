@@ -0,0 +1,121 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import fi.methics.laverca.rest.json.JsonAdapters;
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.json.JsonResponse;
+import fi.methics.laverca.rest.json.MSS_SignatureReq;
+import fi.methics.laverca.rest.util.DTBS;
+
+/**
+ * JSON serialization and parsing: reflective Gson versus the compiled {@link JsonAdapters}.
+ * <p>The <code>startup*</code> benchmarks create a new Gson for every call, so they measure
+ * the one-time cost paid by the first request of a fresh client.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.JsonBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    private static final String PROFILE_RESP = "{\"MSS_ProfileResp\":{\"SignatureProfile\":[\"http://alauda.mobi/digitalSignature\",\"http://alauda.mobi/nonRepudiation\"],"
+                                             + "\"Status\":{\"StatusCode\":{\"Value\":\"100\"},\"StatusMessage\":\"REQUEST_OK\","
+                                             + "\"StatusDetail\":{\"ProfileQueryExtension\":{\"MobileUserCertificate\":["
+                                             + "{\"X509Certificate\":[\"MIIDdzCCAl+gAwIBAgIEbX\",\"MIIDdzCCAl+gAwIBAgIEbY\"],\"X509SubjectName\":[\"CN=Test User,C=FI\",\"CN=Test CA,C=FI\"],"
+                                             + "\"Algorithm\":\"RSA2048\",\"State\":\"ACTIVE\",\"SignatureProfiles\":[\"http://alauda.mobi/digitalSignature\"]},"
+                                             + "{\"X509Certificate\":[\"MIIDdzCCAl+gAwIBAgIEbZ\",\"MIIDdzCCAl+gAwIBAgIEbY\"],\"X509SubjectName\":[\"CN=Test User,C=FI\",\"CN=Test CA,C=FI\"],"
+                                             + "\"Algorithm\":\"RSA2048\",\"State\":\"ACTIVE\",\"SignatureProfiles\":[\"http://alauda.mobi/nonRepudiation\"]}],"
+                                             + "\"AutoActivation\":false,\"ServerSideSignature\":false}}},"
+                                             + "\"MajorVersion\":\"1\",\"MinorVersion\":\"1\",\"AP_Info\":{\"AP_ID\":\"TestAP\",\"AP_TransID\":\"A1\",\"Instant\":\"2023-01-01T00:00:00Z\"},"
+                                             + "\"MSSP_Info\":{\"Instant\":\"2023-01-01T00:00:00Z\",\"MSSP_ID\":{\"URI\":\"http://mssp.example.com\"}}}}";
+
+    private Gson        reflective;
+    private Gson        compiled;
+    private JsonRequest request;
+
+    @Setup
+    public void setup() {
+        this.reflective = new GsonBuilder().create();
+        this.compiled   = JsonAdapters.GSON;
+
+        MSS_SignatureReq req = new MSS_SignatureReq("35847001001", new DTBS("Please sign the contract", DTBS.ENCODING_UTF8), "Please sign the contract");
+        req.SignatureProfile   = "http://alauda.mobi/digitalSignature";
+        req.AP_Info.AP_ID      = "TestAP";
+        req.AP_Info.AP_TransID = "A1234567";
+        req.TimeOut            = "60";
+        this.request = new JsonRequest();
+        this.request.MSS_SignatureReq = req;
+    }
+
+    @Benchmark
+    public String serializeReflective() {
+        return this.reflective.toJson(this.request);
+    }
+
+    @Benchmark
+    public String serializeCompiled() {
+        return this.compiled.toJson(this.request);
+    }
+
+    @Benchmark
+    public JsonResponse parseReflective() {
+        return this.reflective.fromJson(PROFILE_RESP, JsonResponse.class);
+    }
+
+    @Benchmark
+    public JsonResponse parseCompiled() {
+        return this.compiled.fromJson(PROFILE_RESP, JsonResponse.class);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public JsonResponse startupReflective() {
+        Gson gson = new GsonBuilder().create();
+        gson.toJson(this.request);
+        return gson.fromJson(PROFILE_RESP, JsonResponse.class);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public JsonResponse startupCompiled() {
+        Gson gson = new GsonBuilder().registerTypeAdapterFactory(JsonAdapters.FACTORY).create();
+        gson.toJson(this.request);
+        return gson.fromJson(PROFILE_RESP, JsonResponse.class);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(JsonBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}
@@ -0,0 +1,107 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fi.methics.laverca.rest.MssClient;
+import fi.methics.laverca.rest.json.JsonRequest;
+import fi.methics.laverca.rest.util.DTBS;
+import fi.methics.laverca.rest.util.HmacHttpClient;
+import fi.methics.laverca.rest.util.MSS_SignatureReqBuilder;
+import fi.methics.laverca.rest.util.SignatureProfile;
+import fi.methics.laverca.rest.util.SignatureReqTemplate;
+
+/**
+ * MSS_SignatureReq creation: {@link MSS_SignatureReqBuilder} and Gson versus {@link SignatureReqTemplate}.
+ * <p>The <code>*Signed</code> benchmarks also compute the HMAC headers over the produced body.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.RequestTemplateBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestTemplateBenchmark {
+
+    private static final String URL     = "https://mssp.example.com/rest/service";
+    private static final String MSISDN  = "35847001001";
+    private static final String MESSAGE = "Please sign contract.pdf";
+    private static final byte[] DIGEST  = new byte[32];
+
+    private SignatureReqTemplate template;
+    private HmacHttpClient       hmac;
+
+    @Setup
+    public void setup() {
+        this.template = new SignatureReqTemplate("TestAP", "x", SignatureProfile.URI_AUTHN, MssClient.FORMAT_CMS,
+                                                 DTBS.MIME_SHA256, DTBS.ENCODING_BASE64);
+        this.hmac     = new HmacHttpClient((HttpClient) null, Base64.getEncoder().encodeToString("TestAP".getBytes()), "9TMzfH7EKXETOB8FT5gz");
+    }
+
+    private JsonRequest build() {
+        MSS_SignatureReqBuilder builder = new MSS_SignatureReqBuilder();
+        builder.withApid("TestAP");
+        builder.withAppwd("x");
+        builder.withDtbd(MESSAGE);
+        builder.withDtbs(new DTBS(DIGEST, DTBS.ENCODING_BASE64, DTBS.MIME_SHA256));
+        builder.withMssFormat(MssClient.FORMAT_CMS);
+        builder.withMsisdn(MSISDN);
+        builder.withSignatureProfile(SignatureProfile.URI_AUTHN);
+        JsonRequest jReq = new JsonRequest();
+        jReq.MSS_SignatureReq = builder.build();
+        return jReq;
+    }
+
+    @Benchmark
+    public byte[] builder() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        this.build().writeTo(bos);
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] template() {
+        return this.template.prepare(MSISDN, DIGEST, MESSAGE).getBytes();
+    }
+
+    @Benchmark
+    public HttpPost builderSigned() throws Exception {
+        return this.hmac.createPost(this.build(), URL);
+    }
+
+    @Benchmark
+    public HttpPost templateSigned() throws Exception {
+        return this.hmac.createPost(this.template.prepare(MSISDN, DIGEST, MESSAGE), URL);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(RequestTemplateBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}
@@ -0,0 +1,101 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fi.methics.laverca.rest.util.SingleFlight;
+
+/**
+ * Contention on shared ProfileQueries: {@link SingleFlight} versus a map updated with computeIfAbsent.
+ * <p>Four threads look up the same MSISDN, as when a multi-document workflow starts. Each lookup
+ * joins the query in flight or starts a new one, and on average every burst-th lookup completes
+ * the query, so about burst lookups share one. computeIfAbsent locks the hash bin of the key even
+ * when the query is already in flight, SingleFlight only reads the map.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.SingleFlightBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SingleFlightBenchmark {
+
+    private static final String MSISDN = "35847001001";
+
+    @Param({"1", "16", "256"})
+    public int burst;
+
+    private final Function<String, CompletableFuture<String>> query = k -> this.inFlight = new CompletableFuture<>();
+
+    private volatile CompletableFuture<String> inFlight;
+
+    private SingleFlight<String, String>           flights;
+    private Map<String, CompletableFuture<String>> locking;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.flights = new SingleFlight<>();
+        this.locking = new ConcurrentHashMap<>();
+    }
+
+    private boolean completes() {
+        return ThreadLocalRandom.current().nextInt(this.burst) == 0;
+    }
+
+    @Benchmark
+    public Object singleFlight() {
+        CompletableFuture<String> result = this.flights.run(MSISDN, this.query);
+        if (this.completes()) {
+            this.inFlight.complete(MSISDN);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Object computeIfAbsent() {
+        CompletableFuture<String> result = this.locking.computeIfAbsent(MSISDN, this.query).thenApply(v -> v);
+        if (this.completes()) {
+            CompletableFuture<String> flight = this.inFlight;
+            if (this.locking.remove(MSISDN, flight)) {
+                flight.complete(MSISDN);
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(SingleFlightBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}
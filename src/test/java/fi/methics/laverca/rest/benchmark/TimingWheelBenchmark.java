@@ -0,0 +1,104 @@
+//
+//  (c) Copyright 2003-2023 Methics Oy. All rights reserved.
+//
+package fi.methics.laverca.rest.benchmark;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import fi.methics.laverca.rest.util.TimingWheel;
+
+/**
+ * Poll timer churn: {@link TimingWheel} versus the JDK {@link ScheduledThreadPoolExecutor}.
+ * <p>Each scheduler holds a steady population of pending poll timers (1-60 s). One operation
+ * replaces a pending timer: the old one is cancelled, as when its transaction completes,
+ * and a new one is scheduled. Four threads do this at once, like the I/O threads that
+ * complete status queries.
+ * <p>Run with:
+ * <pre>
+ * mvn test-compile exec:exec -Dbenchmark=fi.methics.laverca.rest.benchmark.TimingWheelBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class TimingWheelBenchmark {
+
+    private static final Runnable NOOP = () -> { };
+
+    @Param({"10000", "100000", "1000000"})
+    public int pending;
+
+    private TimingWheel                 wheel;
+    private TimingWheel.Timeout[]       timeouts;
+    private ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?>[]        futures;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.wheel    = new TimingWheel();
+        this.executor = new ScheduledThreadPoolExecutor(1);
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.timeouts = new TimingWheel.Timeout[this.pending];
+        this.futures  = new ScheduledFuture<?>[this.pending];
+        for (int i = 0; i < this.pending; i++) {
+            this.timeouts[i] = this.wheel.schedule(NOOP, delay(), TimeUnit.MILLISECONDS);
+            this.futures[i]  = this.executor.schedule(NOOP, delay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.wheel.close();
+        this.executor.shutdownNow();
+    }
+
+    private static long delay() {
+        return ThreadLocalRandom.current().nextLong(1000, 60000);
+    }
+
+    @Benchmark
+    public Object timingWheel() {
+        int i = ThreadLocalRandom.current().nextInt(this.pending);
+        this.timeouts[i].cancel();
+        return this.timeouts[i] = this.wheel.schedule(NOOP, delay(), TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    public Object scheduledExecutor() {
+        int i = ThreadLocalRandom.current().nextInt(this.pending);
+        this.futures[i].cancel(false);
+        return this.futures[i] = this.executor.schedule(NOOP, delay(), TimeUnit.MILLISECONDS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(TimingWheelBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+
+}